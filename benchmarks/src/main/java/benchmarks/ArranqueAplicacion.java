@@ -0,0 +1,182 @@
+package benchmarks;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import util.MotorChat;
+import util.Transporte;
+import util.TransporteTcp;
+
+/**
+ * Mide el arranque de la aplicación de escritorio: lanza la aplicación en procesos nuevos, cada uno
+ * con el formulario llenado por {@link ArranqueGuiado} para conectarse a un par que este proceso atiende, y da el
+ * tiempo hasta la primera ventana y hasta que el chat está listo, ambos desde que arranca la JVM
+ * según la bitácora de la aplicación. Lo compara entre el arranque normal (sin precarga ni archivo
+ * de clases propio) y el rápido (precarga durante el formulario y AppCDS; una primera ejecución,
+ * que no cuenta, crea el archivo).
+ *
+ * Necesita un entorno gráfico y la aplicación con sus dependencias como JAR en una carpeta, que es lo
+ * que deja el perfil {@code arranque-rapido}:
+ * <pre>
+ * mvn -Parranque-rapido package   (en la raíz)
+ * java -cp target/benchmarks.jar benchmarks.ArranqueAplicacion --modulos ../target/modulos --repeticiones 5
+ * </pre>
+ * Cada proceso usa una carpeta personal temporal, así que no toca el historial del usuario.
+ */
+public class ArranqueAplicacion {
+
+    private static final Pattern HITO = Pattern.compile("(Primera ventana|Chat listo) a (\\d+) ms del arranque");
+
+    private Path modulos = Path.of("..", "target", "modulos"); // JAR de la aplicación y de sus dependencias
+    private int repeticiones = 5; // Lanzamientos medidos por modo
+    private String modos = "normal,rapido";
+    private int espera = 60; // Segundos máximos por lanzamiento
+
+    private Path temporal;
+
+    /**
+     * Tiempos de un lanzamiento, en milisegundos desde que arrancó su JVM.
+     */
+    private record Arranque(long primeraVentana, long chatListo) {}
+
+    public static void main(String[] args) throws Exception {
+        ArranqueAplicacion medicion = new ArranqueAplicacion();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String valor = args[i + 1];
+            switch (args[i]) {
+                case "--modulos" -> medicion.modulos = Path.of(valor);
+                case "--repeticiones" -> medicion.repeticiones = Integer.parseInt(valor);
+                case "--modos" -> medicion.modos = valor;
+                case "--espera" -> medicion.espera = Integer.parseInt(valor);
+                default -> throw new IllegalArgumentException("Opción desconocida: " + args[i]);
+            }
+        }
+        System.exit(medicion.ejecutar() ? 0 : 1);
+    }
+
+    private boolean ejecutar() throws Exception {
+        if (!Files.isDirectory(modulos)) {
+            System.out.println("No existe " + modulos.toAbsolutePath() + "; crearla con mvn -Parranque-rapido package en la raíz");
+            return false;
+        }
+        temporal = Files.createTempDirectory("arranque");
+        System.out.printf(Locale.ROOT, "módulos=%s repeticiones=%d%n", modulos.toAbsolutePath(), repeticiones);
+        for (String modo : modos.split(",")) {
+            boolean rapido = switch (modo.trim()) {
+                case "normal" -> false;
+                case "rapido" -> true;
+                default -> throw new IllegalArgumentException("Modo desconocido: " + modo);
+            };
+            if (rapido && lanzar(true) == null) { // Crea el archivo de clases
+                return false;
+            }
+            long[] ventanas = new long[repeticiones];
+            long[] listos = new long[repeticiones];
+            for (int i = 0; i < repeticiones; i++) {
+                Arranque arranque = lanzar(rapido);
+                if (arranque == null) {
+                    return false;
+                }
+                ventanas[i] = arranque.primeraVentana();
+                listos[i] = arranque.chatListo();
+            }
+            Arrays.sort(ventanas);
+            Arrays.sort(listos);
+            System.out.printf(Locale.ROOT, "%-7s primera ventana: p50=%,d ms mín=%,d ms   chat listo: p50=%,d ms mín=%,d ms%n",
+                    modo.trim(), ventanas[repeticiones / 2], ventanas[0], listos[repeticiones / 2], listos[0]);
+        }
+        return true;
+    }
+
+    /**
+     * Lanza la aplicación, le responde como par hasta que el chat está listo y la cierra.
+     * @return los tiempos del lanzamiento, o null si la aplicación no llegó a mostrar el chat
+     */
+    private Arranque lanzar(boolean rapido) throws Exception {
+        try (Transporte.Escucha escucha = new TransporteTcp("127.0.0.1", 0).escuchar()) {
+            List<String> comando = new ArrayList<>(List.of(ProcessHandle.current().info().command().orElse("java"),
+                    "-Duser.home=" + temporal,
+                    "-Dchat.transporte=tcp://" + escucha.getDireccion(),
+                    "-Dchat.precarga=" + rapido));
+            if (rapido) {
+                comando.add("-XX:+AutoCreateSharedArchive");
+                comando.add("-XX:SharedArchiveFile=" + temporal.resolve("chatcifrado.jsa"));
+            }
+            // La aplicación sale del module path; de este JAR solo se usa el lanzador que llena el formulario
+            comando.addAll(List.of("--module-path", modulos.toString(), "--add-modules", "ui",
+                    "-cp", Path.of(ArranqueGuiado.class.getProtectionDomain().getCodeSource().getLocation().toURI()).toString(),
+                    ArranqueGuiado.class.getName(), "medicion", "Peer B"));
+            Process proceso = new ProcessBuilder(comando).redirectErrorStream(true).start();
+
+            CompletableFuture<Arranque> hitos = new CompletableFuture<>();
+            Thread.ofVirtual().start(() -> leerHitos(proceso, hitos));
+            CompletableFuture<MotorChat> par = CompletableFuture.supplyAsync(() -> {
+                try {
+                    MotorChat motor = MotorChat.aceptar(escucha, "par", Runnable::run).get(espera, TimeUnit.SECONDS);
+                    motor.suscribir(mensaje -> { });
+                    motor.iniciar().get(espera, TimeUnit.SECONDS); // El nombre llega cuando la ventana del chat empieza a recibir
+                    return motor;
+                } catch (Exception e) {
+                    throw new CompletionException(e);
+                }
+            });
+            try {
+                Arranque arranque = hitos.get(espera, TimeUnit.SECONDS);
+                par.get(espera, TimeUnit.SECONDS).close();
+                return arranque;
+            } catch (Exception e) {
+                System.out.println("El lanzamiento no llegó al chat: " + e);
+                return null;
+            } finally {
+                proceso.destroy(); // Cierre ordenado: la JVM guarda el archivo de clases al salir
+                if (!proceso.waitFor(espera, TimeUnit.SECONDS)) {
+                    proceso.destroyForcibly();
+                }
+            }
+        }
+    }
+
+    /**
+     * Lee la salida de la aplicación hasta que termina, para que no se bloquee al escribir, y completa
+     * el futuro con los dos hitos; si termina antes de mostrarlos, lo completa con el final de la salida.
+     */
+    private static void leerHitos(Process proceso, CompletableFuture<Arranque> hitos) {
+        long primeraVentana = -1;
+        List<String> ultimas = new ArrayList<>();
+        try (BufferedReader salida = new BufferedReader(new InputStreamReader(proceso.getInputStream(), StandardCharsets.UTF_8))) {
+            String linea;
+            while ((linea = salida.readLine()) != null) {
+                ultimas.add(linea);
+                if (ultimas.size() > 10) {
+                    ultimas.remove(0);
+                }
+                Matcher hito = HITO.matcher(linea);
+                if (!hito.find()) {
+                    continue;
+                }
+                long milisegundos = Long.parseLong(hito.group(2));
+                if (hito.group(1).equals("Primera ventana")) {
+                    primeraVentana = milisegundos;
+                } else {
+                    hitos.complete(new Arranque(primeraVentana, milisegundos));
+                }
+            }
+        } catch (IOException e) {
+            hitos.completeExceptionally(new UncheckedIOException(e));
+        }
+        hitos.completeExceptionally(new IllegalStateException("La aplicación terminó sin mostrar el chat:\n" + String.join("\n", ultimas)));
+    }
+}
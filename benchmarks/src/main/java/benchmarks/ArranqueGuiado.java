@@ -0,0 +1,43 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import javafx.application.Platform;
+import javafx.scene.Scene;
+import javafx.scene.control.Button;
+import javafx.scene.control.ChoiceBox;
+import javafx.scene.control.TextField;
+import javafx.stage.Stage;
+import ui.ControladorAplicacion;
+
+/**
+ * Arranca la aplicación de escritorio y llena el formulario de conexión como lo haría el usuario:
+ * escribe el nombre, elige el peer y pulsa el botón cuando la ventana ya se muestra. Es lo que lanza
+ * {@link ArranqueAplicacion} en cada proceso medido, con la aplicación en el module path:
+ * <pre>
+ * java --module-path ../target/modulos --add-modules ui -cp target/benchmarks.jar benchmarks.ArranqueGuiado medicion "Peer B"
+ * </pre>
+ */
+public class ArranqueGuiado {
+
+    public static void main(String[] args) {
+        String nombre = args.length > 0 ? args[0] : "medicion";
+        String peer = args.length > 1 ? args[1] : "Peer B";
+        Platform.startup(() -> {
+            Stage stage = new Stage();
+            try {
+                new ControladorAplicacion().start(stage);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            // Los campos del formulario se buscan por su fx:id, que FXMLLoader copia al id del nodo
+            Scene escena = stage.getScene();
+            ((TextField) escena.lookup("#nombre")).setText(nombre);
+            @SuppressWarnings("unchecked")
+            ChoiceBox<String> opciones = (ChoiceBox<String>) escena.lookup("#peer");
+            opciones.setValue(peer);
+            Button conectarse = (Button) escena.lookup("#conectarse");
+            Platform.runLater(conectarse::fire); // Como el clic del usuario, con la ventana ya en pantalla
+        });
+    }
+}
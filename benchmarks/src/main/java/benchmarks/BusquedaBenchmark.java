@@ -0,0 +1,93 @@
+package benchmarks;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import util.HistorialMemoria;
+import util.IndiceHistorial;
+import util.MensajeChat;
+
+/**
+ * Tiempo hasta la primera página de resultados de {@link IndiceHistorial} sobre un historial de un
+ * millón de mensajes, que es lo que espera el usuario al pulsar Intro. Los mensajes mezclan palabras
+ * reales, con y sin tilde, y un vocabulario inventado de unas 50.000 palabras con frecuencias de Zipf,
+ * como en un texto natural: unas pocas muy comunes y muchas que casi no se repiten. Las consultas
+ * cubren una palabra común, una con la tilde omitida, dos palabras, un prefijo con pocas palabras
+ * y uno corto que abarca miles.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+@State(Scope.Benchmark)
+public class BusquedaBenchmark {
+
+    private static final String[] COMUNES = {"hola", "que", "tal", "de", "la", "el", "mañana", "reunión", "canción",
+            "café", "archivo", "clave", "cifrado", "envío", "gracias", "adiós", "está", "también", "después", "niño"};
+    private static final String[] SILABAS = {"ca", "pe", "ri", "lo", "mu", "ta", "sé", "ná", "bo", "gu", "ción", "dre", "fi", "ló", "ñu", "xa"};
+    private static final int VOCABULARIO = 50_000;
+    private static final int PAGINA = 50; // La de la lista de resultados
+
+    @Param({"1000000"})
+    public int mensajes;
+
+    @Param({"hola", "Cancion", "reunion mañana", "cifra", "ca", "cafe niño"})
+    public String consulta;
+
+    private IndiceHistorial indice;
+
+    @Setup(Level.Trial)
+    public void preparar() {
+        Random aleatorio = new Random(42);
+        List<String> palabras = new ArrayList<>(Arrays.asList(COMUNES));
+        while (palabras.size() < VOCABULARIO) {
+            StringBuilder palabra = new StringBuilder();
+            for (int silabas = 2 + aleatorio.nextInt(3); silabas > 0; silabas--) {
+                palabra.append(SILABAS[aleatorio.nextInt(SILABAS.length)]);
+            }
+            palabras.add(palabra.toString());
+        }
+        Collections.shuffle(palabras.subList(COMUNES.length, palabras.size()), aleatorio);
+        double[] acumulado = new double[palabras.size()]; // Zipf con exponente 1: la palabra r aparece como 1/r
+        double total = 0;
+        for (int r = 0; r < acumulado.length; r++) {
+            total += 1.0 / (r + 1);
+            acumulado[r] = total;
+        }
+
+        HistorialMemoria historial = new HistorialMemoria();
+        StringBuilder texto = new StringBuilder();
+        for (int i = 0; i < mensajes; i++) {
+            texto.setLength(0);
+            for (int n = 3 + aleatorio.nextInt(12); n > 0; n--) {
+                int posicion = Arrays.binarySearch(acumulado, aleatorio.nextDouble() * total);
+                String palabra = palabras.get(posicion >= 0 ? posicion : -posicion - 1);
+                texto.append(aleatorio.nextInt(8) == 0 ? Character.toUpperCase(palabra.charAt(0)) + palabra.substring(1) : palabra).append(' ');
+            }
+            historial.agregar(i % 2 == 0 ? "Ana" : "Luis", texto.toString());
+        }
+        indice = new IndiceHistorial(historial);
+        indice.actualizar();
+    }
+
+    @Benchmark
+    public List<MensajeChat> primeraPagina() {
+        return indice.buscar(consulta).siguientes(PAGINA);
+    }
+}
@@ -0,0 +1,53 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import ui.Chat;
+
+/**
+ * Cifrado y descifrado de {@link Chat} para distintos tamaños de mensaje (16 B a 1 MiB).
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CifradoBenchmark {
+
+    @Param({"16", "256", "4096", "65536", "1048576"})
+    public int tamano;
+
+    private Chat chat;
+    private String mensaje;
+    private byte[] mensajeCifrado;
+
+    @Setup(Level.Trial)
+    public void preparar() throws Exception {
+        ClienteBenchmark.prepararConexionLocal();
+        chat = Chat.getInstance();
+        mensaje = ClienteBenchmark.texto(tamano);
+        mensajeCifrado = chat.encriptarMensaje(mensaje);
+    }
+
+    @Benchmark
+    public byte[] encriptar() throws Exception {
+        return chat.encriptarMensaje(mensaje);
+    }
+
+    @Benchmark
+    public String desencriptar() throws Exception {
+        return chat.desencriptarMensaje(mensajeCifrado);
+    }
+}
@@ -0,0 +1,87 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.spec.X509EncodedKeySpec;
+import util.Conexion;
+import util.MotorChat;
+import util.Sesion;
+
+/**
+ * Utilidades compartidas por los benchmarks para abrir sesiones sin interfaz gráfica.
+ */
+final class ClienteBenchmark {
+
+    private ClienteBenchmark() {}
+
+    /**
+     * Conecta un {@link MotorChat} a un hub y espera a que intercambien los nombres, como lo haría la
+     * aplicación: saludo de la conversación, nombres y acuses del hub incluidos.
+     */
+    static MotorChat conectar(InetSocketAddress direccion, String nombre) throws Exception {
+        MotorChat motor = MotorChat.conectar(direccion.getHostString(), direccion.getPort(), nombre, Runnable::run).get();
+        try {
+            motor.iniciar().get();
+            return motor;
+        } catch (Exception e) {
+            motor.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Conecta a un hub una sesión sin motor que completa el intercambio de claves como el Peer B y
+     * se presenta sin saludo de conversación, para medir el cable sin historial ni acuses.
+     */
+    static Sesion conectarSesion(InetSocketAddress direccion, String nombre) throws Exception {
+        Conexion conexion = Conexion.getInstance();
+        Sesion sesion = new Sesion(SocketChannel.open(direccion), true);
+        KeyPair par = conexion.diffieHellman();
+        sesion.escribirTramaPlana(par.getPublic().getEncoded());
+
+        byte[] recibida = sesion.leerTramaPlana();
+        PublicKey publicaRemota = KeyFactory.getInstance("DH").generatePublic(new X509EncodedKeySpec(recibida));
+        sesion.setClaveCompartida(conexion.generarClaveCompartida(par.getPrivate(), publicaRemota));
+        sesion.escribirMensaje(nombre); // El hub espera a que el par hable primero
+        sesion.setNombreRemoto(sesion.leerMensaje());
+        return sesion;
+    }
+
+    /**
+     * Deja la instancia única de {@link Conexion} conectada por loopback y con una clave aleatoria,
+     * para poder medir los métodos de {@code Chat} que dependen de ella.
+     */
+    static void prepararConexionLocal() throws IOException {
+        Conexion conexion = Conexion.getInstance();
+        if (conexion.getClaveCompartida() != null) {
+            return;
+        }
+        ServerSocketChannel servidor = ServerSocketChannel.open().bind(new InetSocketAddress("127.0.0.1", Conexion.PUERTO));
+        Thread aceptador = new Thread(() -> {
+            try (servidor) {
+                servidor.accept();
+            } catch (IOException e) {
+                System.err.println("Error en el aceptador del benchmark: " + e.getMessage());
+            }
+        }, "benchmark-aceptador");
+        aceptador.setDaemon(true);
+        aceptador.start();
+        conexion.setClientSocket("127.0.0.1");
+        byte[] clave = new byte[32];
+        new SecureRandom().nextBytes(clave);
+        conexion.setClaveCompartida(clave);
+    }
+
+    /**
+     * Devuelve un texto ASCII del tamaño indicado en bytes.
+     */
+    static String texto(int bytes) {
+        return "a".repeat(bytes);
+    }
+}
@@ -0,0 +1,110 @@
+package benchmarks;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import util.Sesion;
+import util.TipoTrama;
+
+/**
+ * Envío y recepción por loopback con la compresión activada y desactivada: mensajes que son
+ * registros pegados en el chat, mensajes cortos y bloques de archivo aleatorios (que no se
+ * comprimen y miden el coste de intentarlo). Al terminar cada combinación imprime los bytes
+ * que viajaron por la red por cada operación.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CompresionBenchmark {
+
+    private static final String REGISTRO = """
+            2026-10-17 10:15:02.311 WARN  [main] util.Conexion - Reintentando conexión con 127.0.0.1:5000
+            2026-10-17 10:15:02.412 ERROR [main] util.Conexion - java.io.IOException: Connection reset
+            \tat java.base/sun.nio.ch.SocketChannelImpl.read(SocketChannelImpl.java:401)
+            \tat util.CanalTramas.leerTrama(CanalTramas.java:77)
+            \tat util.Sesion.leerMensaje(Sesion.java:312)
+            \tat ui.Chat.lambda$recibirMensaje$0(Chat.java:94)
+            \tat java.base/java.util.concurrent.FutureTask.run(FutureTask.java:317)
+            \tat java.base/java.lang.VirtualThread.run(VirtualThread.java:309)
+            2026-10-17 10:15:03.001 INFO  [main] util.Conexion - Conexión restablecida, sesión 42
+            """;
+
+    @Param({"true", "false"})
+    public boolean compresion;
+
+    @Param({"REGISTRO", "CHAT", "ARCHIVO_ALEATORIO"})
+    public String contenido;
+
+    private Sesion cliente;
+    private Sesion servidor;
+    private String mensaje;
+    private ByteBuffer bloque;
+    private ByteBuffer cabeceraBloque;
+    private long operaciones;
+
+    @Setup(Level.Trial)
+    public void preparar() throws Exception {
+        byte[] clave = new byte[32];
+        SecureRandom aleatorio = new SecureRandom();
+        aleatorio.nextBytes(clave);
+        try (ServerSocketChannel aceptador = ServerSocketChannel.open().bind(new InetSocketAddress("127.0.0.1", 0))) {
+            cliente = new Sesion(SocketChannel.open(aceptador.getLocalAddress()), true);
+            servidor = new Sesion(aceptador.accept(), false);
+        }
+        cliente.setClaveCompartida(clave);
+        servidor.setClaveCompartida(clave);
+        servidor.registrarManejador(TipoTrama.ARCHIVO_BLOQUE, (sesion, datos) -> datos.position(datos.limit()));
+        cliente.anunciarCapacidades(compresion);
+        servidor.anunciarCapacidades(compresion);
+        servidor.enviarMensaje("listo");
+        cliente.leerMensaje(); // Procesa las capacidades del servidor
+        cliente.enviarMensaje("listo");
+        servidor.leerMensaje(); // ...y el servidor las del cliente
+        mensaje = switch (contenido) {
+            case "REGISTRO" -> REGISTRO.repeat(4);
+            case "CHAT" -> "¿Nos vemos mañana a las diez para revisar el informe?";
+            default -> ".";
+        };
+        byte[] datos = new byte[64 * 1024];
+        aleatorio.nextBytes(datos);
+        bloque = ByteBuffer.wrap(datos);
+        cabeceraBloque = ByteBuffer.allocate(1 + 4 + 8).put(TipoTrama.ARCHIVO_BLOQUE).putInt(1).putLong(0).flip();
+    }
+
+    @TearDown(Level.Trial)
+    public void cerrar() {
+        System.out.printf("%nBytes en la red por operación (compresión %s, %s): %d%n",
+                compresion ? "activa" : "desactivada", contenido, cliente.getBytesEnviados() / Math.max(1, operaciones));
+        cliente.cerrar();
+        servidor.cerrar();
+    }
+
+    @Benchmark
+    public String enviarYRecibir() throws Exception {
+        operaciones++;
+        if (contenido.equals("ARCHIVO_ALEATORIO")) {
+            cliente.enviarTramaMasiva(cabeceraBloque.rewind(), bloque.rewind());
+        }
+        cliente.enviarMensaje(mensaje);
+        return servidor.leerMensaje();
+    }
+}
@@ -0,0 +1,31 @@
+package benchmarks;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Punto de entrada del jar de benchmarks.
+ * Acepta las mismas opciones que JMH y, si no se indica otro formato, guarda los resultados
+ * en JSON para poder comparar ejecuciones y detectar regresiones.
+ */
+public class EjecutarBenchmarks {
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions linea = new CommandLineOptions(args);
+        if (linea.shouldHelp() || linea.shouldList() || linea.shouldListProfilers() || linea.shouldListResultFormats()) {
+            org.openjdk.jmh.Main.main(args);
+            return;
+        }
+        OptionsBuilder opciones = new OptionsBuilder();
+        opciones.parent(linea);
+        if (!linea.getResultFormat().hasValue()) {
+            opciones.resultFormat(ResultFormatType.JSON);
+        }
+        if (!linea.getResult().hasValue()) {
+            opciones.result("jmh-result.json");
+        }
+        new Runner(opciones.build()).run();
+    }
+}
@@ -0,0 +1,105 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import util.ModoEjecucion;
+import util.Sesion;
+
+/**
+ * Escalado del modelo bloqueante con cada {@link ModoEjecucion}: N sesiones con un lector de eco
+ * cada una, y una ronda que envía un mensaje por cada sesión y espera todos los ecos.
+ * El pool fijo de tres hilos no puede atender más de tres lectores a la vez, así que con más
+ * sesiones la ronda no terminaría; en ese caso la preparación falla y JMH omite la combinación.
+ */
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xss256k")
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+public class EscaladoBenchmark {
+
+    private static final int HILOS_POOL_FIJO = 3; // Lectores que el pool fijo puede mantener a la vez
+
+    @Param({"HILOS_VIRTUALES", "HILOS_PLATAFORMA", "POOL_FIJO"})
+    public ModoEjecucion modo;
+
+    @Param({"3", "1000", "5000"})
+    public int sesiones;
+
+    private final List<Sesion> clientes = new ArrayList<>();
+    private final List<Sesion> servidores = new ArrayList<>();
+    private String mensaje;
+
+    @Setup(Level.Trial)
+    public void preparar() throws Exception {
+        if (modo == ModoEjecucion.POOL_FIJO && sesiones > HILOS_POOL_FIJO) {
+            throw new IllegalStateException("El pool fijo solo atiende " + HILOS_POOL_FIJO + " sesiones a la vez");
+        }
+        byte[] clave = new byte[32];
+        new SecureRandom().nextBytes(clave);
+        try (ServerSocketChannel aceptador = ServerSocketChannel.open()
+                .bind(new InetSocketAddress("127.0.0.1", 0), sesiones)) {
+            for (int i = 0; i < sesiones; i++) {
+                Sesion cliente = new Sesion(SocketChannel.open(aceptador.getLocalAddress()), true, ModoEjecucion.HILOS_VIRTUALES);
+                Sesion servidor = new Sesion(aceptador.accept(), false, modo);
+                cliente.setClaveCompartida(clave);
+                servidor.setClaveCompartida(clave);
+                servidor.ejecutar(() -> eco(servidor));
+                clientes.add(cliente);
+                servidores.add(servidor);
+            }
+        }
+        mensaje = ClienteBenchmark.texto(64);
+    }
+
+    @TearDown(Level.Trial)
+    public void cerrar() {
+        servidores.forEach(Sesion::cerrar);
+        clientes.forEach(Sesion::cerrar);
+        servidores.clear();
+        clientes.clear();
+    }
+
+    @Benchmark
+    public void ronda(Blackhole agujero) throws Exception {
+        for (Sesion cliente : clientes) {
+            cliente.enviarMensaje(mensaje);
+        }
+        for (Sesion cliente : clientes) {
+            agujero.consume(cliente.leerMensaje());
+        }
+    }
+
+    private static void eco(Sesion sesion) {
+        try {
+            while (true) {
+                sesion.enviarMensaje(sesion.leerMensaje());
+            }
+        } catch (IOException e) {
+            // La sesión se cerró al terminar el benchmark
+        } catch (Exception e) {
+            System.err.println("Error en el eco de la sesión " + sesion.getId() + ": " + e.getMessage());
+        }
+    }
+}
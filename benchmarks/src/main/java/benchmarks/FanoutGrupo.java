@@ -0,0 +1,151 @@
+package benchmarks;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Path;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import util.Histograma;
+import util.SalaGrupo;
+import util.Sesion;
+import util.Transporte;
+import util.TransporteMemoria;
+import util.TransporteTcp;
+import util.TransporteUnix;
+
+/**
+ * Coste de enviar a un grupo: un emisor con una sesión con cada uno de N miembros manda mensajes
+ * de uno en uno, primero con una {@link SalaGrupo} (cifra una vez con su clave de emisor y encola la
+ * misma trama en todas las sesiones) y después como haría un grupo ingenuo, con
+ * {@link Sesion#enviarMensaje(String)} en cada sesión (N cifrados). Para cada tamaño de grupo mide la
+ * CPU del hilo emisor y la del proceso por mensaje, y la latencia hasta que el último miembro lo recibe.
+ * La CPU del proceso incluye a los N receptores, que descifran cada uno su copia en ambos casos.
+ *
+ * <pre>
+ * java -cp target/benchmarks.jar benchmarks.FanoutGrupo --miembros 10,100,1000 --mensajes 200 --tamano 256
+ * </pre>
+ */
+public class FanoutGrupo {
+
+    private String miembros = "10,100,1000"; // Tamaños de grupo, separados por comas
+    private int mensajes = 200; // Mensajes medidos por tamaño y modo
+    private int tamano = 256; // Caracteres por mensaje
+    private String transporte = "memoria"; // tcp, unix o memoria
+
+    private final AtomicReference<CountDownLatch> entregas = new AtomicReference<>(new CountDownLatch(0)); // Del mensaje en curso
+
+    public static void main(String[] args) throws Exception {
+        FanoutGrupo medicion = new FanoutGrupo();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String valor = args[i + 1];
+            switch (args[i]) {
+                case "--miembros" -> medicion.miembros = valor;
+                case "--mensajes" -> medicion.mensajes = Integer.parseInt(valor);
+                case "--tamano" -> medicion.tamano = Integer.parseInt(valor);
+                case "--transporte" -> medicion.transporte = valor;
+                default -> throw new IllegalArgumentException("Opción desconocida: " + args[i]);
+            }
+        }
+        System.out.printf(Locale.ROOT, "transporte=%s tamano=%d mensajes=%d%n", medicion.transporte, medicion.tamano, medicion.mensajes);
+        System.out.printf("%9s %-7s %16s %16s %10s %10s %10s%n", "miembros", "modo", "CPU emisor µs", "CPU proceso µs", "p50 ms", "p99 ms", "max ms");
+        for (String cantidad : medicion.miembros.split(",")) {
+            medicion.medir(Integer.parseInt(cantidad.trim()));
+        }
+        System.exit(0);
+    }
+
+    private void medir(int n) throws Exception {
+        Transporte local = switch (transporte) {
+            case "tcp" -> new TransporteTcp("127.0.0.1", 0);
+            case "unix" -> new TransporteUnix(Path.of(System.getProperty("java.io.tmpdir"), "fanout-" + ProcessHandle.current().pid() + ".sock"));
+            case "memoria" -> new TransporteMemoria("fanout-" + n);
+            default -> throw new IllegalArgumentException("Transporte desconocido: " + transporte);
+        };
+        byte[] id = SalaGrupo.nuevoId();
+        List<Sesion> enEmisor = new ArrayList<>();
+        List<Sesion> todas = new ArrayList<>();
+        try (Transporte.Escucha escucha = local.escuchar()) {
+            Transporte destino = Transporte.desde(escucha.getDireccion());
+            SecureRandom aleatorio = new SecureRandom();
+            for (int i = 0; i < n; i++) {
+                Sesion emisor = new Sesion(destino.conectar(), true);
+                Sesion miembro = new Sesion(escucha.aceptar(), false);
+                byte[] clave = new byte[32];
+                aleatorio.nextBytes(clave);
+                for (Sesion sesion : List.of(emisor, miembro)) {
+                    sesion.setClaveCompartida(clave);
+                    sesion.anunciarCapacidades(false);
+                    leer(sesion);
+                    todas.add(sesion);
+                }
+                new SalaGrupo(id, (sala, de, mensaje) -> entregas.get().countDown()).agregar(miembro);
+                enEmisor.add(emisor);
+            }
+        }
+        SalaGrupo sala = new SalaGrupo(id, (s, de, mensaje) -> {});
+        sala.agregar(enEmisor);
+
+        String texto = ClienteBenchmark.texto(tamano);
+        Envio enGrupo = () -> sala.enviar(texto);
+        Envio enPares = () -> enEmisor.forEach(sesion -> sesion.enviarMensaje(texto));
+        ronda(n, enGrupo, Math.max(10, mensajes / 5), null); // Calentamiento; también espera a que lleguen las claves
+        ronda(n, enGrupo, mensajes, "grupo");
+        ronda(n, enPares, Math.max(10, mensajes / 5), null);
+        ronda(n, enPares, mensajes, "pares");
+        todas.forEach(Sesion::cerrar);
+    }
+
+    /**
+     * Envía los mensajes de uno en uno, esperando cada vez a que lleguen a los n miembros.
+     * @param modo nombre con el que se imprime la fila, o null para no imprimirla
+     */
+    private void ronda(int n, Envio envio, int cantidad, String modo) throws Exception {
+        ThreadMXBean hilos = ManagementFactory.getThreadMXBean();
+        com.sun.management.OperatingSystemMXBean sistema =
+                (com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+        Histograma latencia = new Histograma("fanout", "ns");
+        long cpuEmisor = 0;
+        long cpuProceso = sistema.getProcessCpuTime();
+        for (int i = 0; i < cantidad; i++) {
+            CountDownLatch recibidos = new CountDownLatch(n);
+            entregas.set(recibidos);
+            long inicio = System.nanoTime();
+            long cpu = hilos.getCurrentThreadCpuTime();
+            envio.enviar();
+            cpuEmisor += hilos.getCurrentThreadCpuTime() - cpu;
+            if (!recibidos.await(30, TimeUnit.SECONDS)) {
+                throw new IllegalStateException("Faltan " + recibidos.getCount() + " de " + n + " miembros por recibir el mensaje");
+            }
+            latencia.registrar(System.nanoTime() - inicio);
+        }
+        cpuProceso = sistema.getProcessCpuTime() - cpuProceso;
+        if (modo != null) {
+            Histograma.Resumen r = latencia.resumen();
+            System.out.printf(Locale.ROOT, "%9d %-7s %16.1f %16.1f %10.2f %10.2f %10.2f%n", n, modo,
+                    cpuEmisor / 1e3 / cantidad, cpuProceso / 1e3 / cantidad, r.p50() / 1e6, r.p99() / 1e6, r.maximo() / 1e6);
+        }
+    }
+
+    /**
+     * Lee la sesión en su propio hilo; los mensajes de grupo llegan a la sala por su manejador y
+     * los de chat par a par cuentan aquí.
+     */
+    private void leer(Sesion sesion) {
+        sesion.ejecutar(() -> {
+            while (true) {
+                sesion.leerMensaje();
+                entregas.get().countDown();
+            }
+        });
+    }
+
+    @FunctionalInterface
+    private interface Envio {
+        void enviar() throws Exception;
+    }
+}
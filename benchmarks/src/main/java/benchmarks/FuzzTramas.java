@@ -0,0 +1,330 @@
+package benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+import util.CanalTramas;
+import util.CanalTransporte;
+import util.FormatoTrama;
+import util.LimitesTrama;
+import util.PoolBuffers;
+import util.Sesion;
+import util.TransferenciaArchivos;
+
+/**
+ * Fuzzing del decodificador de tramas. Genera tramas válidas, las muta (bytes cambiados, cortadas,
+ * bytes insertados o ruido) y las entrega en trozos de tamaño aleatorio, primero a {@link CanalTramas}
+ * y después a {@link Sesion#leerMensaje()} con las tramas cifradas de un par que conoce la clave,
+ * para llegar también a los manejadores de cada tipo.
+ * Solo se admite que entreguen tramas dentro del máximo o que fallen con {@link IOException} o
+ * {@link GeneralSecurityException}; cualquier otra excepción se informa con su semilla y los bytes
+ * de entrada, y el proceso termina con código 1. Sin mutar, lo leído debe coincidir con lo enviado.
+ *
+ * <pre>
+ * java -cp target/benchmarks.jar benchmarks.FuzzTramas --iteraciones 100000 --semilla 1
+ * </pre>
+ */
+public class FuzzTramas {
+
+    private static final int MAXIMO = 8 * 1024; // Contenido máximo de cualquier tipo en el lector de tramas planas
+    private static final LimitesTrama LIMITES = LimitesTrama.uniformes(MAXIMO);
+
+    private int iteraciones = 50_000; // Entradas de cada fase
+    private long semilla = System.nanoTime(); // Semilla base; cada entrada usa semilla + i
+    private final Map<String, Integer> rechazos = new TreeMap<>(); // Excepciones admitidas, por clase
+    private int fallos;
+
+    public static void main(String[] args) throws Exception {
+        FuzzTramas fuzz = new FuzzTramas();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--iteraciones" -> fuzz.iteraciones = Integer.parseInt(args[i + 1]);
+                case "--semilla" -> fuzz.semilla = Long.parseLong(args[i + 1]);
+                default -> throw new IllegalArgumentException("Opción desconocida: " + args[i]);
+            }
+        }
+        System.out.println("semilla=" + fuzz.semilla + " iteraciones=" + fuzz.iteraciones);
+        int planas = fuzz.fuzzCanal();
+        int cifradas = fuzz.fuzzSesion();
+        System.out.println("tramas planas entregadas=" + planas + " mensajes cifrados entregados=" + cifradas);
+        System.out.println("rechazos=" + fuzz.rechazos + " fallos=" + fuzz.fallos);
+        System.exit(fuzz.fallos == 0 ? 0 : 1);
+    }
+
+    /**
+     * Fase 1: cabeceras y longitudes en {@link CanalTramas}, sin cifrado.
+     */
+    private int fuzzCanal() {
+        PoolBuffers pool = new PoolBuffers(true);
+        int entregadas = 0;
+        for (int i = 0; i < iteraciones; i++) {
+            Random aleatorio = new Random(semilla + i);
+            ByteArrayOutputStream salida = new ByteArrayOutputStream();
+            List<byte[]> cargas = new ArrayList<>();
+            for (int t = 1 + aleatorio.nextInt(4); t > 0; t--) {
+                byte[] carga = new byte[aleatorio.nextInt(8) == 0 ? aleatorio.nextInt(MAXIMO + 1) : aleatorio.nextInt(300)];
+                aleatorio.nextBytes(carga);
+                int flujo = aleatorio.nextInt(FormatoTrama.FLUJOS);
+                ByteBuffer trama = ByteBuffer.allocate(FormatoTrama.longitudCabecera(flujo, carga.length) + carga.length);
+                FormatoTrama.escribirCabecera(trama, (byte) aleatorio.nextInt(8), aleatorio.nextBoolean() ? FormatoTrama.COMPRIMIDA : 0, flujo, carga.length);
+                salida.write(trama.put(carga).array(), 0, trama.capacity());
+                cargas.add(carga);
+            }
+            boolean mutada = aleatorio.nextInt(5) != 0;
+            byte[] entrada = mutada ? mutar(salida.toByteArray(), aleatorio) : salida.toByteArray();
+            CanalTramas lector = new CanalTramas(new FuenteTrozos(entrada, aleatorio), pool, LIMITES);
+            int leidas = 0;
+            try {
+                while (true) {
+                    ByteBuffer trama = lector.leerTrama();
+                    if (trama.remaining() > LIMITES.getMaximoCarga(lector.getTipo()) || lector.getFlujo() >= FormatoTrama.FLUJOS
+                            || lector.getLongitudTotal() != trama.remaining() + lector.getCabecera().remaining()) {
+                        throw new IllegalStateException("Trama fuera de los límites: " + trama.remaining() + " bytes, flujo " + lector.getFlujo());
+                    }
+                    if (!mutada) {
+                        byte[] leida = new byte[trama.remaining()];
+                        trama.get(leida);
+                        if (!Arrays.equals(leida, cargas.get(leidas))) {
+                            throw new IllegalStateException("La trama " + leidas + " no coincide con la enviada");
+                        }
+                    }
+                    leidas++;
+                    entregadas++;
+                }
+            } catch (IOException e) {
+                if (!mutada && leidas != cargas.size()) {
+                    fallo(i, entrada, new IllegalStateException("Se leyeron " + leidas + " de " + cargas.size() + " tramas", e));
+                } else {
+                    rechazar(e);
+                }
+            } catch (RuntimeException | Error e) {
+                fallo(i, entrada, e);
+            } finally {
+                lector.liberar();
+            }
+            if (pool.getPrestados() != 0) {
+                fallo(i, entrada, new IllegalStateException("Búferes sin devolver al pool", pool.getFugas().get(0)));
+            }
+        }
+        return entregadas;
+    }
+
+    /**
+     * Fase 2: tramas cifradas con la clave de la sesión, incluidos contenidos arbitrarios de cada tipo.
+     */
+    private int fuzzSesion() throws Exception {
+        byte[] clave = new byte[32];
+        new Random(semilla).nextBytes(clave);
+        Path descargas = Files.createTempDirectory("fuzz-tramas");
+        CanalMemoria capturaEmisor = new CanalMemoria(new byte[0], new Random(semilla));
+        Sesion emisor = new Sesion(capturaEmisor, true);
+        emisor.setClaveCompartida(clave);
+        emisor.anunciarCapacidades(false).get();
+
+        // Corpus: mensajes de chat y tramas de cada tipo con contenido aleatorio, cifradas como lo haría un par con la clave
+        Random aleatorio = new Random(semilla);
+        List<byte[]> corpus = new ArrayList<>();
+        List<String> textos = new ArrayList<>();
+        for (int t = 0; t < 200; t++) {
+            int antes = capturaEmisor.escritos.size();
+            String texto = null;
+            if (t % 3 == 0) {
+                texto = ClienteBenchmark.texto(aleatorio.nextInt(600));
+                emisor.enviarMensaje(texto).get();
+            } else {
+                byte[] contenido = new byte[aleatorio.nextInt(40)];
+                aleatorio.nextBytes(contenido);
+                byte tipo = (byte) (2 + aleatorio.nextInt(6));
+                emisor.enviarTrama(ByteBuffer.allocate(1 + contenido.length).put(tipo).put(contenido).flip(), null).get();
+            }
+            byte[] todo = capturaEmisor.escritos.toByteArray();
+            corpus.add(Arrays.copyOfRange(todo, antes, todo.length));
+            textos.add(texto);
+        }
+        emisor.cerrar();
+
+        int entregados = 0;
+        try {
+            for (int i = 0; i < iteraciones; i++) {
+                Random azar = new Random(semilla + iteraciones + i);
+                ByteArrayOutputStream salida = new ByteArrayOutputStream();
+                List<String> esperados = new ArrayList<>(); // Mensajes de chat de la entrada, en orden
+                for (int t = 1 + azar.nextInt(3); t > 0; t--) {
+                    int elegida = azar.nextInt(corpus.size());
+                    salida.writeBytes(corpus.get(elegida));
+                    if (textos.get(elegida) != null) {
+                        esperados.add(textos.get(elegida));
+                    }
+                }
+                boolean mutada = azar.nextInt(4) != 0;
+                byte[] entrada = mutada ? mutar(salida.toByteArray(), azar) : salida.toByteArray();
+                Sesion receptor = new Sesion(new CanalMemoria(entrada, azar), false);
+                receptor.setClaveCompartida(clave);
+                TransferenciaArchivos archivos = new TransferenciaArchivos(receptor, descargas, null);
+                int leidos = 0;
+                try {
+                    while (true) {
+                        String mensaje = receptor.leerMensaje();
+                        // Sin mutar, los mensajes llegan en orden; una trama de contenido aleatorio puede cortar la lectura antes
+                        if (!mutada && (leidos >= esperados.size() || !mensaje.equals(esperados.get(leidos)))) {
+                            throw new IllegalStateException("Mensaje descifrado distinto del enviado");
+                        }
+                        leidos++;
+                        entregados++;
+                    }
+                } catch (IOException | GeneralSecurityException e) {
+                    rechazar(e);
+                } catch (RuntimeException | Error e) {
+                    fallo(i, entrada, e);
+                } finally {
+                    archivos.close();
+                    receptor.cerrar();
+                }
+            }
+        } finally {
+            try (Stream<Path> archivos = Files.walk(descargas)) {
+                archivos.sorted(Comparator.reverseOrder()).forEach(ruta -> ruta.toFile().delete());
+            }
+        }
+        return entregados;
+    }
+
+    /**
+     * Aplica entre una y cuatro mutaciones: cambiar bytes, cortar, insertar bytes o sustituirlo todo por ruido.
+     */
+    private static byte[] mutar(byte[] datos, Random aleatorio) {
+        for (int m = 1 + aleatorio.nextInt(4); m > 0; m--) {
+            switch (aleatorio.nextInt(5)) {
+                case 0, 1 -> {
+                    if (datos.length > 0) {
+                        int posicion = aleatorio.nextInt(Math.min(datos.length, aleatorio.nextBoolean() ? 16 : datos.length));
+                        datos[posicion] ^= (byte) (1 + aleatorio.nextInt(255));
+                    }
+                }
+                case 2 -> datos = Arrays.copyOf(datos, aleatorio.nextInt(datos.length + 1));
+                case 3 -> {
+                    byte[] insertados = new byte[1 + aleatorio.nextInt(8)];
+                    aleatorio.nextBytes(insertados);
+                    int posicion = aleatorio.nextInt(datos.length + 1);
+                    byte[] mayor = new byte[datos.length + insertados.length];
+                    System.arraycopy(datos, 0, mayor, 0, posicion);
+                    System.arraycopy(insertados, 0, mayor, posicion, insertados.length);
+                    System.arraycopy(datos, posicion, mayor, posicion + insertados.length, datos.length - posicion);
+                    datos = mayor;
+                }
+                default -> {
+                    datos = new byte[aleatorio.nextInt(64)];
+                    aleatorio.nextBytes(datos);
+                    if (datos.length > 0 && aleatorio.nextBoolean()) {
+                        datos[0] = FormatoTrama.VERSION; // Que pase de la versión y llegue a los varint
+                    }
+                }
+            }
+        }
+        return datos;
+    }
+
+    private void rechazar(Exception e) {
+        rechazos.merge(e.getClass().getSimpleName(), 1, Integer::sum);
+    }
+
+    private void fallo(int iteracion, byte[] entrada, Throwable causa) {
+        fallos++;
+        if (fallos <= 10) {
+            System.out.println("FALLO en la entrada " + iteracion + ": " + causa);
+            causa.printStackTrace(System.out);
+            System.out.println("  entrada=" + HexFormat.of().formatHex(entrada, 0, Math.min(entrada.length, 256)));
+        }
+    }
+
+    /**
+     * Canal que entrega unos bytes en trozos de 1 a 64 bytes y después el fin de flujo.
+     */
+    private static class FuenteTrozos implements ReadableByteChannel {
+        private final ByteBuffer datos;
+        private final Random aleatorio;
+        private boolean abierto = true;
+
+        FuenteTrozos(byte[] datos, Random aleatorio) {
+            this.datos = ByteBuffer.wrap(datos);
+            this.aleatorio = aleatorio;
+        }
+
+        @Override
+        public int read(ByteBuffer destino) throws IOException {
+            if (!abierto) {
+                throw new ClosedChannelException();
+            }
+            if (!datos.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(Math.min(destino.remaining(), datos.remaining()), 1 + aleatorio.nextInt(64));
+            destino.put(datos.slice(datos.position(), n));
+            datos.position(datos.position() + n);
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return abierto;
+        }
+
+        @Override
+        public void close() {
+            abierto = false;
+        }
+    }
+
+    /**
+     * Canal de transporte en memoria: se lee de una fuente en trozos y lo escrito se acumula.
+     */
+    private static final class CanalMemoria extends FuenteTrozos implements CanalTransporte {
+        private final ByteArrayOutputStream escritos = new ByteArrayOutputStream();
+
+        CanalMemoria(byte[] entrada, Random aleatorio) {
+            super(entrada, aleatorio);
+        }
+
+        @Override
+        public synchronized int write(ByteBuffer origen) {
+            int n = origen.remaining();
+            byte[] copia = new byte[n];
+            origen.get(copia);
+            escritos.writeBytes(copia);
+            return n;
+        }
+
+        @Override
+        public synchronized long write(ByteBuffer[] origenes, int desde, int cantidad) {
+            long total = 0;
+            for (int i = desde; i < desde + cantidad; i++) {
+                total += write(origenes[i]);
+            }
+            return total;
+        }
+
+        @Override
+        public long write(ByteBuffer[] origenes) {
+            return write(origenes, 0, origenes.length);
+        }
+
+        @Override
+        public String getDireccionRemota() {
+            return "fuzz";
+        }
+    }
+}
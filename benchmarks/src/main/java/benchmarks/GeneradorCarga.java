@@ -0,0 +1,210 @@
+package benchmarks;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import util.Histograma;
+import util.MensajeChat;
+import util.Metricas;
+import util.MotorChat;
+import util.OyenteChat;
+import util.ProveedorHistorial;
+import util.ReenvioMensajes;
+import util.Transporte;
+import util.TransporteMemoria;
+import util.TransporteTcp;
+import util.TransporteUnix;
+
+/**
+ * Generador de carga por línea de comandos: abre N pares de {@link MotorChat} en la misma JVM,
+ * sin JavaFX, por TCP en loopback, socket Unix o en memoria ({@code --transporte tcp|unix|memoria}),
+ * y cada cliente envía mensajes a su servidor al ritmo pedido.
+ * Al terminar muestra mensajes por segundo, bytes por segundo en el cable y la latencia de
+ * extremo a extremo (del envío a la entrega al oyente) en p50, p99 y p99,9.
+ *
+ * <pre>
+ * java -cp target/benchmarks.jar benchmarks.GeneradorCarga --pares 100 --tamano 256 --tasa 1000 --duracion 30
+ * </pre>
+ * Con {@code --tasa 0} cada cliente envía tan rápido como lo permite su ventana de envíos pendientes.
+ * Los servidores no guardan los mensajes, para medir la ruta de red y no el crecimiento del historial.
+ * El relleno se comprime muy bien; con {@code -Dchat.compresion=false} se miden los bytes sin comprimir.
+ */
+public class GeneradorCarga {
+
+    private static final int VENTANA = 256; // Envíos sin escribir por cliente; la cola de la sesión admite 1024
+    private static final int CABECERA = 20; // Instante de envío en 19 dígitos y un separador
+    private static final long ESPERA_ACUSE = TimeUnit.MICROSECONDS.toNanos(200); // Pausa con el búfer de reenvío lleno
+
+    private int pares = 10; // Pares cliente-servidor
+    private int tamano = 256; // Caracteres por mensaje, con la cabecera incluida
+    private int tasa = 0; // Mensajes por segundo de cada cliente; 0 es sin límite
+    private int duracion = 10; // Segundos de medición
+    private int calentamiento = 2; // Segundos antes de medir
+    private String transporte = "tcp"; // tcp, unix o memoria
+
+    private final List<MotorChat> clientes = new ArrayList<>();
+    private final List<MotorChat> servidores = new ArrayList<>();
+    private final LongAdder recibidos = new LongAdder();
+    private final LongAdder errores = new LongAdder();
+    private volatile Histograma latencias = new Histograma("carga.latencia", "ns");
+    private volatile boolean enMarcha = true;
+
+    public static void main(String[] args) throws Exception {
+        System.setProperty(Metricas.PROPIEDAD, "true"); // Los histogramas no registran nada si están desactivadas
+        GeneradorCarga generador = new GeneradorCarga();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String valor = args[i + 1];
+            switch (args[i]) {
+                case "--pares" -> generador.pares = Integer.parseInt(valor);
+                case "--tamano" -> generador.tamano = Math.max(CABECERA, Integer.parseInt(valor));
+                case "--tasa" -> generador.tasa = Integer.parseInt(valor);
+                case "--duracion" -> generador.duracion = Integer.parseInt(valor);
+                case "--calentamiento" -> generador.calentamiento = Integer.parseInt(valor);
+                case "--transporte" -> generador.transporte = valor;
+                default -> throw new IllegalArgumentException("Opción desconocida: " + args[i]);
+            }
+        }
+        generador.ejecutar();
+    }
+
+    private void ejecutar() throws Exception {
+        Transporte local = switch (transporte) {
+            case "tcp" -> new TransporteTcp("127.0.0.1", 0);
+            case "unix" -> new TransporteUnix(Path.of(System.getProperty("java.io.tmpdir"), "carga-" + ProcessHandle.current().pid() + ".sock"));
+            case "memoria" -> new TransporteMemoria("carga");
+            default -> throw new IllegalArgumentException("Transporte desconocido: " + transporte);
+        };
+        try (Transporte.Escucha escucha = local.escuchar()) {
+            Transporte destino = Transporte.desde(escucha.getDireccion());
+            OyenteChat medidor = mensaje -> medir(mensaje);
+            for (int i = 0; i < pares; i++) {
+                CompletableFuture<MotorChat> cliente = MotorChat.conectar(destino, "cliente-" + i, Runnable::run);
+                MotorChat servidor = MotorChat.aceptar(escucha, "servidor-" + i, Runnable::run).get(10, TimeUnit.SECONDS);
+                servidor.setHistorial(new HistorialDescartado());
+                servidor.suscribir(medidor);
+                servidores.add(servidor);
+                clientes.add(cliente.get(10, TimeUnit.SECONDS));
+            }
+        }
+        for (int i = 0; i < pares; i++) {
+            servidores.get(i).iniciar();
+            clientes.get(i).iniciar().get(10, TimeUnit.SECONDS);
+        }
+        List<Thread> emisores = new ArrayList<>();
+        for (MotorChat cliente : clientes) {
+            // Hilos de plataforma: un emisor sin límite nunca se bloquea y acapararía a los lectores virtuales
+            emisores.add(Thread.ofPlatform().daemon().name("carga-" + cliente.getNombreLocal()).start(() -> emitir(cliente)));
+        }
+
+        Thread.sleep(TimeUnit.SECONDS.toMillis(calentamiento));
+        latencias = new Histograma("carga.latencia", "ns");
+        recibidos.reset();
+        errores.reset();
+        long bytesInicio = bytesEnviados();
+        long inicio = System.nanoTime();
+        Thread.sleep(TimeUnit.SECONDS.toMillis(duracion));
+        double segundos = (System.nanoTime() - inicio) / 1e9;
+        long mensajes = recibidos.sum();
+        long bytes = bytesEnviados() - bytesInicio;
+        long fallidos = errores.sum();
+        Histograma.Resumen resumen = latencias.resumen();
+
+        enMarcha = false;
+        for (Thread emisor : emisores) {
+            emisor.join();
+        }
+        clientes.forEach(MotorChat::close);
+        servidores.forEach(MotorChat::close);
+
+        System.out.printf(Locale.ROOT, "transporte=%s pares=%d tamano=%d tasa=%s duracion=%.1fs%n",
+                transporte, pares, tamano, tasa > 0 ? tasa + "/s por par" : "sin limite", segundos);
+        System.out.printf(Locale.ROOT, "mensajes/s=%.0f  bytes/s=%.0f (%.1f MiB/s)  errores=%d%n",
+                mensajes / segundos, bytes / segundos, bytes / segundos / (1 << 20), fallidos);
+        System.out.printf(Locale.ROOT, "latencia ms: p50=%.3f p99=%.3f p999=%.3f max=%.3f (%d muestras)%n",
+                resumen.p50() / 1e6, resumen.p99() / 1e6, resumen.p999() / 1e6, resumen.maximo() / 1e6, resumen.cuenta());
+    }
+
+    /**
+     * Envía mensajes con el instante de envío al principio, respetando la tasa y la ventana.
+     * Con {@link ReenvioMensajes#CAPACIDAD} mensajes sin acuse el motor rechazaría el siguiente,
+     * así que se espera al acuse del servidor en lugar de contarlo como error.
+     */
+    private void emitir(MotorChat cliente) {
+        String relleno = "x".repeat(tamano - CABECERA);
+        Semaphore ventana = new Semaphore(VENTANA);
+        long periodo = tasa > 0 ? TimeUnit.SECONDS.toNanos(1) / tasa : 0;
+        long siguiente = System.nanoTime();
+        while (enMarcha) {
+            if (periodo > 0) {
+                siguiente += periodo;
+                long espera = siguiente - System.nanoTime();
+                if (espera > 0) {
+                    LockSupport.parkNanos(espera);
+                }
+            }
+            ventana.acquireUninterruptibly();
+            while (cliente.getSinAcuse() >= ReenvioMensajes.CAPACIDAD && enMarcha) {
+                LockSupport.parkNanos(ESPERA_ACUSE);
+            }
+            cliente.enviar(String.format("%019d|", System.nanoTime()) + relleno).whenComplete((ignorado, error) -> {
+                ventana.release();
+                if (error != null) {
+                    errores.increment();
+                }
+            });
+        }
+    }
+
+    private void medir(MensajeChat mensaje) {
+        long enviado = Long.parseLong(mensaje.texto(), 0, CABECERA - 1, 10);
+        latencias.registrar(System.nanoTime() - enviado);
+        recibidos.increment();
+    }
+
+    private long bytesEnviados() {
+        long total = 0;
+        for (MotorChat cliente : clientes) {
+            total += cliente.getSesion().getBytesEnviados();
+        }
+        return total;
+    }
+
+    /**
+     * Historial que solo numera los mensajes.
+     */
+    static final class HistorialDescartado implements ProveedorHistorial {
+        private final AtomicLong secuencia = new AtomicLong();
+
+        @Override
+        public MensajeChat agregar(String autor, String texto) {
+            return agregar(autor, texto, System.currentTimeMillis());
+        }
+
+        @Override
+        public MensajeChat agregar(String autor, String texto, long instante) {
+            return new MensajeChat(secuencia.getAndIncrement(), autor, texto, instante);
+        }
+
+        @Override
+        public List<MensajeChat> anteriores(long desde, int cantidad) {
+            return List.of();
+        }
+
+        @Override
+        public List<MensajeChat> posteriores(long desde, int cantidad) {
+            return List.of();
+        }
+
+        @Override
+        public long getTamano() {
+            return secuencia.get();
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package benchmarks;
+
+import java.security.KeyPair;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import util.Conexion;
+
+/**
+ * Intercambio de claves completo de los dos pares: cada uno genera su par con
+ * {@code diffieHellman} y deriva la clave con {@code generarClaveCompartida}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class HandshakeBenchmark {
+
+    private final Conexion conexion = Conexion.getInstance();
+
+    @Benchmark
+    public void diffieHellmanCompleto(Blackhole agujero) throws Exception {
+        KeyPair parA = conexion.diffieHellman();
+        KeyPair parB = conexion.diffieHellman();
+        agujero.consume(conexion.generarClaveCompartida(parA.getPrivate(), parB.getPublic()));
+        agujero.consume(conexion.generarClaveCompartida(parB.getPrivate(), parA.getPublic()));
+    }
+
+    @Benchmark
+    public KeyPair generarPar() throws Exception {
+        return conexion.diffieHellman();
+    }
+}
@@ -0,0 +1,104 @@
+package benchmarks;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import util.MotorChat;
+import util.OyenteHub;
+import util.ServidorHub;
+import util.Sesion;
+
+/**
+ * Prueba de carga del modo hub: abre N conversaciones de {@link MotorChat} contra un solo nodo y en
+ * cada ronda cada par envía un mensaje. Reporta mensajes por segundo y sesiones atendidas. Al pasar
+ * por el motor, el saludo de la conversación y los acuses del hub entran en la medición, y si el hub
+ * dejara de entenderlos la preparación fallaría.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class HubCargaBenchmark {
+
+    @Param({"10", "100", "1000"})
+    public int sesiones;
+
+    private ServidorHub hub;
+    private final List<MotorChat> clientes = new ArrayList<>();
+    private final String mensaje = ClienteBenchmark.texto(64);
+    private long esperados;
+
+    /**
+     * Contadores adicionales que JMH reporta como tasas por segundo.
+     */
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Contadores {
+        public long mensajes;
+
+        @Setup(Level.Iteration)
+        public void reiniciar() {
+            mensajes = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void preparar() throws Exception {
+        hub = new ServidorHub(new InetSocketAddress("127.0.0.1", 0), 2, "hub", new OyenteHub() {
+            @Override
+            public void mensajeRecibido(Sesion sesion, String recibido) {}
+        });
+        InetSocketAddress direccion = new InetSocketAddress("127.0.0.1", hub.getPuerto());
+        ExecutorService conectores = Executors.newFixedThreadPool(32);
+        List<Future<MotorChat>> pendientes = new ArrayList<>();
+        for (int i = 0; i < sesiones; i++) {
+            String nombre = "par-" + i;
+            pendientes.add(conectores.submit(() -> ClienteBenchmark.conectar(direccion, nombre)));
+        }
+        for (Future<MotorChat> pendiente : pendientes) {
+            clientes.add(pendiente.get());
+        }
+        conectores.shutdown();
+        while (hub.getNumeroSesiones() < sesiones) {
+            Thread.sleep(1);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void cerrar() {
+        clientes.forEach(MotorChat::close);
+        hub.close();
+    }
+
+    @Benchmark
+    public void ronda(Contadores contadores) throws Exception {
+        for (MotorChat cliente : clientes) {
+            cliente.enviar(mensaje);
+        }
+        esperados += clientes.size();
+        while (hub.getMensajesRecibidos() < esperados) {
+            Thread.onSpinWait();
+        }
+        contadores.mensajes += clientes.size();
+    }
+}
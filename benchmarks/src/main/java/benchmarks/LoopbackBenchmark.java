@@ -0,0 +1,88 @@
+package benchmarks;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import util.OyenteHub;
+import util.ServidorHub;
+import util.Sesion;
+
+/**
+ * Extremo a extremo por loopback: un cliente cifra y envía mensajes a un hub que los
+ * descifra y devuelve (eco). Mide la latencia de ida y vuelta y el rendimiento en ráfagas.
+ */
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LoopbackBenchmark {
+
+    private static final int RAFAGA = 64; // Mensajes por ráfaga antes de leer los ecos
+
+    @Param({"16", "1024", "65536"})
+    public int tamano;
+
+    private ServidorHub hub;
+    private Sesion cliente;
+    private String mensaje;
+
+    @Setup(Level.Trial)
+    public void preparar() throws Exception {
+        hub = new ServidorHub(new InetSocketAddress("127.0.0.1", 0), 1, "eco", new OyenteHub() {
+            @Override
+            public void mensajeRecibido(Sesion sesion, String recibido) {
+                try {
+                    hub.enviar(sesion, recibido);
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        });
+        cliente = ClienteBenchmark.conectarSesion(new InetSocketAddress("127.0.0.1", hub.getPuerto()), "cliente");
+        mensaje = ClienteBenchmark.texto(tamano);
+    }
+
+    @TearDown(Level.Trial)
+    public void cerrar() {
+        cliente.cerrar();
+        hub.close();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public String idaYVuelta() throws Exception {
+        cliente.escribirMensaje(mensaje);
+        return cliente.leerMensaje();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @OperationsPerInvocation(RAFAGA)
+    public void rafaga(Blackhole agujero) throws Exception {
+        CompletableFuture<Void> ultimo = null;
+        for (int i = 0; i < RAFAGA; i++) {
+            ultimo = cliente.enviarMensaje(mensaje);
+        }
+        ultimo.get();
+        for (int i = 0; i < RAFAGA; i++) {
+            agujero.consume(cliente.leerMensaje());
+        }
+    }
+}
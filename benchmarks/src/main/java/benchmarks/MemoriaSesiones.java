@@ -0,0 +1,140 @@
+package benchmarks;
+
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import util.MotorChat;
+import util.PoolBuffers;
+import util.Transporte;
+import util.TransporteMemoria;
+import util.TransporteTcp;
+import util.TransporteUnix;
+
+/**
+ * Mide la memoria que ocupa cada sesión: abre N pares de {@link MotorChat} y compara el heap
+ * ocupado tras un GC y la memoria directa con la de antes de abrirlos, primero con las sesiones
+ * recién iniciadas (inactivas) y después de que cada cliente haya enviado unos mensajes (activas).
+ * Al cerrar, con {@code -Dchat.pool.fugas=true}, comprueba que todos los búferes volvieron al pool.
+ *
+ * <pre>
+ * java -Dchat.pool.fugas=true -cp target/benchmarks.jar benchmarks.MemoriaSesiones --pares 200 --tamano 1024
+ * </pre>
+ * Cada par son dos sesiones en el mismo proceso; las cifras se dan por sesión.
+ */
+public class MemoriaSesiones {
+
+    private int pares = 100; // Pares cliente-servidor
+    private int tamano = 1024; // Caracteres por mensaje
+    private int mensajes = 20; // Mensajes que envía cada cliente en la fase activa
+    private String transporte = "tcp"; // tcp, unix o memoria
+
+    public static void main(String[] args) throws Exception {
+        MemoriaSesiones medicion = new MemoriaSesiones();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String valor = args[i + 1];
+            switch (args[i]) {
+                case "--pares" -> medicion.pares = Integer.parseInt(valor);
+                case "--tamano" -> medicion.tamano = Integer.parseInt(valor);
+                case "--mensajes" -> medicion.mensajes = Integer.parseInt(valor);
+                case "--transporte" -> medicion.transporte = valor;
+                default -> throw new IllegalArgumentException("Opción desconocida: " + args[i]);
+            }
+        }
+        System.exit(medicion.ejecutar() ? 0 : 1);
+    }
+
+    private boolean ejecutar() throws Exception {
+        Transporte local = switch (transporte) {
+            case "tcp" -> new TransporteTcp("127.0.0.1", 0);
+            case "unix" -> new TransporteUnix(Path.of(System.getProperty("java.io.tmpdir"), "memoria-" + ProcessHandle.current().pid() + ".sock"));
+            case "memoria" -> new TransporteMemoria("memoria");
+            default -> throw new IllegalArgumentException("Transporte desconocido: " + transporte);
+        };
+        PoolBuffers pool = PoolBuffers.getCompartido();
+        List<MotorChat> clientes = new ArrayList<>();
+        List<MotorChat> servidores = new ArrayList<>();
+        CountDownLatch recibidos = new CountDownLatch(pares * mensajes);
+
+        Medida base = Medida.tomar(pool);
+        try (Transporte.Escucha escucha = local.escuchar()) {
+            Transporte destino = Transporte.desde(escucha.getDireccion());
+            for (int i = 0; i < pares; i++) {
+                CompletableFuture<MotorChat> cliente = MotorChat.conectar(destino, "cliente-" + i, Runnable::run);
+                MotorChat servidor = MotorChat.aceptar(escucha, "servidor-" + i, Runnable::run).get(10, TimeUnit.SECONDS);
+                servidor.setHistorial(new GeneradorCarga.HistorialDescartado());
+                servidor.suscribir(mensaje -> recibidos.countDown());
+                servidores.add(servidor);
+                clientes.add(cliente.get(10, TimeUnit.SECONDS));
+            }
+        }
+        for (int i = 0; i < pares; i++) {
+            servidores.get(i).iniciar();
+            clientes.get(i).iniciar().get(10, TimeUnit.SECONDS);
+        }
+        Medida inactivas = Medida.tomar(pool);
+
+        String texto = "x".repeat(tamano);
+        for (MotorChat cliente : clientes) {
+            for (int i = 0; i < mensajes; i++) {
+                cliente.enviar(texto);
+            }
+        }
+        if (!recibidos.await(60, TimeUnit.SECONDS)) {
+            System.out.println("Faltan " + recibidos.getCount() + " mensajes por llegar");
+        }
+        Medida activas = Medida.tomar(pool);
+
+        clientes.forEach(MotorChat::close);
+        servidores.forEach(MotorChat::close);
+        clientes.clear();
+        servidores.clear();
+        Thread.sleep(500); // Los lectores devuelven sus búferes al salir
+        Medida cerradas = Medida.tomar(pool);
+
+        int sesiones = 2 * pares;
+        System.out.printf(Locale.ROOT, "transporte=%s pares=%d tamano=%d mensajes=%d%n", transporte, pares, tamano, mensajes);
+        inactivas.imprimir("inactivas", base, sesiones);
+        activas.imprimir("activas", base, sesiones);
+        cerradas.imprimir("cerradas", base, sesiones);
+        if (!pool.isDetectandoFugas()) {
+            System.out.println("Detección de fugas desactivada; usar -D" + PoolBuffers.PROPIEDAD_FUGAS + "=true");
+            return true;
+        }
+        List<Throwable> fugas = pool.getFugas();
+        System.out.println("búferes sin devolver al pool=" + fugas.size());
+        fugas.stream().limit(3).forEach(fuga -> fuga.printStackTrace(System.out));
+        return fugas.isEmpty();
+    }
+
+    /**
+     * Heap ocupado tras un GC, memoria directa del proceso y bytes que el pool guarda libres.
+     */
+    private record Medida(long heap, long directa, long libresPool) {
+
+        static Medida tomar(PoolBuffers pool) throws InterruptedException {
+            for (int i = 0; i < 3; i++) {
+                System.gc();
+                Thread.sleep(100);
+            }
+            long directa = 0;
+            for (BufferPoolMXBean grupo : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+                if (grupo.getName().equals("direct")) {
+                    directa = grupo.getMemoryUsed();
+                }
+            }
+            return new Medida(ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed(), directa, pool.getBytesLibres());
+        }
+
+        void imprimir(String fase, Medida base, int sesiones) {
+            long enUso = (directa - libresPool) - (base.directa - base.libresPool);
+            System.out.printf(Locale.ROOT, "%-9s heap/sesión=%,d B  directa en uso/sesión=%,d B  libres en el pool=%,d B%n",
+                    fase, (heap - base.heap) / sesiones, enUso / sesiones, libresPool);
+        }
+    }
+}
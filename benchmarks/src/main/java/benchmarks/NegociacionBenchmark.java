@@ -0,0 +1,110 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import util.IntercambioClaves;
+import util.ModoIntercambio;
+import util.PoolParesClaves;
+import util.Sesion;
+
+/**
+ * Latencia de conexión más intercambio de claves por loopback con cada modo, con y sin pares
+ * pregenerados, y con reanudación por ticket. Se mide en modo muestreo para obtener p50 y p99.
+ * En los escenarios con pool cada conexión espera a que haya pares listos, como ocurre cuando
+ * un usuario se conecta tras un rato de inactividad; con conexiones seguidas en una sola CPU
+ * el relleno del pool compite con el propio intercambio.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class NegociacionBenchmark {
+
+    private static final String PAR = "benchmark"; // Identificador del servidor para los tickets del cliente
+
+    @Param({"DH", "DH_POOL", "X25519", "X25519_POOL", "REANUDACION"})
+    public String escenario;
+
+    private ServerSocketChannel aceptador;
+    private PoolParesClaves pares;
+    private IntercambioClaves cliente;
+    private ModoIntercambio modo;
+    private boolean reanudar;
+
+    @Setup(Level.Trial)
+    public void preparar() throws Exception {
+        reanudar = escenario.equals("REANUDACION");
+        modo = escenario.startsWith("DH") ? ModoIntercambio.DH : ModoIntercambio.X25519;
+        pares = new PoolParesClaves(escenario.endsWith("_POOL") ? PoolParesClaves.CAPACIDAD_POR_DEFECTO : 0);
+        pares.precalentar(modo);
+        cliente = new IntercambioClaves(pares);
+        IntercambioClaves servidor = new IntercambioClaves(pares);
+        aceptador = ServerSocketChannel.open().bind(new InetSocketAddress("127.0.0.1", 0));
+        Thread hilo = new Thread(() -> atender(servidor), "negociacion-servidor");
+        hilo.setDaemon(true);
+        hilo.start();
+        if (reanudar) {
+            negociar(); // Deja un ticket para la primera reanudación
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void esperarPares() throws InterruptedException {
+        while (escenario.endsWith("_POOL") && pares.getDisponibles(modo) < 2) {
+            Thread.sleep(1);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void cerrar() throws IOException {
+        aceptador.close();
+    }
+
+    @Benchmark
+    public byte[] negociar() throws Exception {
+        if (!reanudar) {
+            cliente.olvidarTickets();
+        }
+        Sesion sesion = new Sesion(SocketChannel.open(aceptador.getLocalAddress()), true);
+        try {
+            return cliente.negociarCliente(sesion, PAR, modo);
+        } finally {
+            sesion.cerrar();
+        }
+    }
+
+    private void atender(IntercambioClaves servidor) {
+        while (aceptador.isOpen()) {
+            try {
+                Sesion sesion = new Sesion(aceptador.accept(), false);
+                try {
+                    servidor.negociarServidor(sesion);
+                } catch (Exception e) {
+                    // El cliente cerró la conexión a mitad del intercambio
+                } finally {
+                    sesion.cerrar();
+                }
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package benchmarks;
+
+import java.lang.management.ManagementFactory;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import util.Presencia;
+import util.RuedaTemporizadores;
+import util.Sesion;
+import util.Transporte;
+import util.TransporteTcp;
+
+/**
+ * Mide lo que cuestan los latidos de {@link Presencia} con muchas sesiones inactivas y lo que tardan
+ * en notar a un par colgado. Abre N pares de sesiones TCP con un lector virtual cada una y mide el
+ * tiempo de CPU del proceso y los bytes enviados durante una ventana, primero sin presencia y después
+ * con una {@link Presencia} por sesión sobre la rueda compartida. Al final, en algunos pares, un
+ * extremo deja de latir sin cerrar la conexión (como un proceso colgado o un cable cortado tras un
+ * NAT) y se mide cuánto tarda el otro en cerrarla, frente a la cota de silencio + latido + un tic.
+ *
+ * <pre>
+ * java -Xmx3g -cp target/benchmarks.jar benchmarks.PresenciaSesiones --pares 5000 --latido 5000 --silencio 15000
+ * </pre>
+ * Cada par son dos sesiones en el mismo proceso; las cifras de tráfico se dan por sesión.
+ */
+public class PresenciaSesiones {
+
+    private int pares = 5_000; // Pares de sesiones; el doble de sesiones
+    private long latido = 5_000; // Milisegundos entre latidos
+    private long silencio = 15_000; // Milisegundos de silencio tras los que el par se da por caído
+    private int ventana = 30; // Segundos de cada medición
+    private int colgados = 100; // Pares en los que un extremo deja de latir
+
+    private Sesion[] sesiones;
+    private AtomicLongArray finLectura; // Cuándo terminó el lector de cada sesión; 0 mientras lee
+
+    public static void main(String[] args) throws Exception {
+        PresenciaSesiones medicion = new PresenciaSesiones();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String valor = args[i + 1];
+            switch (args[i]) {
+                case "--pares" -> medicion.pares = Integer.parseInt(valor);
+                case "--latido" -> medicion.latido = Long.parseLong(valor);
+                case "--silencio" -> medicion.silencio = Long.parseLong(valor);
+                case "--ventana" -> medicion.ventana = Integer.parseInt(valor);
+                case "--colgados" -> medicion.colgados = Integer.parseInt(valor);
+                default -> throw new IllegalArgumentException("Opción desconocida: " + args[i]);
+            }
+        }
+        System.exit(medicion.ejecutar() ? 0 : 1);
+    }
+
+    private boolean ejecutar() throws Exception {
+        Presencia.Tiempos tiempos = new Presencia.Tiempos(Duration.ofMillis(latido), Duration.ofMillis(silencio));
+        sesiones = new Sesion[2 * pares];
+        finLectura = new AtomicLongArray(sesiones.length);
+        byte[] clave = new byte[32];
+        new SecureRandom().nextBytes(clave);
+        try (Transporte.Escucha escucha = new TransporteTcp("127.0.0.1", 0).escuchar()) {
+            Transporte destino = Transporte.desde(escucha.getDireccion());
+            for (int i = 0; i < pares; i++) {
+                sesiones[2 * i] = new Sesion(destino.conectar(), true);
+                sesiones[2 * i + 1] = new Sesion(escucha.aceptar(), false);
+            }
+        }
+        for (int i = 0; i < sesiones.length; i++) {
+            Sesion sesion = sesiones[i];
+            sesion.setClaveCompartida(clave);
+            sesion.anunciarCapacidades(false, Presencia.CAPACIDAD_PRESENCIA);
+            int numero = i;
+            Thread.ofVirtual().start(() -> {
+                try {
+                    while (sesion.leerMensaje() != null) {
+                        // Las tramas de presencia las atiende su manejador
+                    }
+                } catch (Exception e) {
+                    // El canal se cerró: por un par colgado o al terminar
+                }
+                finLectura.set(numero, System.nanoTime());
+            });
+        }
+        for (Sesion sesion : sesiones) {
+            while (!sesion.isCapacidadPar(Presencia.CAPACIDAD_PRESENCIA)) {
+                Thread.sleep(1);
+            }
+        }
+        System.out.printf(Locale.ROOT, "sesiones=%d latido=%d ms silencio=%d ms ventana=%d s%n", sesiones.length, latido, silencio, ventana);
+
+        Medida sinPresencia = medir();
+        sinPresencia.imprimir("sin presencia");
+
+        Presencia[] presencias = new Presencia[sesiones.length];
+        RuedaTemporizadores rueda = RuedaTemporizadores.getCompartida();
+        for (int i = 0; i < sesiones.length; i++) {
+            presencias[i] = new Presencia(sesiones[i], tiempos, rueda, escribiendo -> { });
+        }
+        Thread.sleep(2 * latido); // Que todas hayan latido y vigilen ya el silencio
+        long tareas = rueda.getEjecutadas();
+        long desde = System.nanoTime();
+        Medida conPresencia = medir();
+        double segundos = (System.nanoTime() - desde) / 1e9;
+        conPresencia.imprimir("con presencia");
+        System.out.printf(Locale.ROOT, "latidos: CPU/sesión=%.2f µs/s  tráfico/sesión=%.2f B/s  revisiones de la rueda=%,.0f/s%n",
+                (conPresencia.cpuNanos - sinPresencia.cpuNanos) / 1_000.0 / sesiones.length / ventana,
+                (double) (conPresencia.bytes - sinPresencia.bytes) / sesiones.length / ventana,
+                (rueda.getEjecutadas() - tareas) / segundos);
+        int falsas = terminadas(0, sesiones.length, 1); // Ningún lector debería haber terminado aún
+
+        long[] deteccion = new long[Math.min(colgados, pares)];
+        long inicio = System.nanoTime();
+        for (int i = 0; i < deteccion.length; i++) {
+            presencias[2 * i].close(); // Deja de latir pero sigue leyendo, con la conexión abierta
+        }
+        long cota = TimeUnit.MILLISECONDS.toNanos(silencio + latido) + RuedaTemporizadores.TIC_POR_DEFECTO.toNanos();
+        long limite = inicio + cota + TimeUnit.SECONDS.toNanos(5);
+        while (System.nanoTime() < limite && terminadas(1, 2 * deteccion.length, 2) < deteccion.length) {
+            Thread.sleep(10);
+        }
+        int detectados = 0;
+        for (int i = 0; i < deteccion.length; i++) {
+            long fin = finLectura.get(2 * i + 1);
+            deteccion[i] = fin != 0 ? fin - inicio : Long.MAX_VALUE;
+            detectados += fin != 0 && fin - inicio <= cota ? 1 : 0;
+        }
+        Arrays.sort(deteccion);
+        System.out.printf(Locale.ROOT, "pares colgados=%d detectados dentro de la cota=%d  detección p50=%,d ms p99=%,d ms máx=%,d ms  cota=%,d ms  caídas falsas=%d%n",
+                deteccion.length, detectados, milisegundos(deteccion[deteccion.length / 2]),
+                milisegundos(deteccion[deteccion.length * 99 / 100]), milisegundos(deteccion[deteccion.length - 1]),
+                TimeUnit.NANOSECONDS.toMillis(cota), falsas);
+
+        for (Presencia presencia : presencias) {
+            presencia.close();
+        }
+        for (Sesion sesion : sesiones) {
+            sesion.cerrar();
+        }
+        return detectados == deteccion.length && falsas == 0;
+    }
+
+    /**
+     * Tiempo de CPU del proceso y bytes enviados por todas las sesiones durante la ventana.
+     */
+    private Medida medir() throws InterruptedException {
+        com.sun.management.OperatingSystemMXBean sistema = (com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+        System.gc();
+        long cpu = sistema.getProcessCpuTime();
+        long bytes = enviados();
+        Thread.sleep(TimeUnit.SECONDS.toMillis(ventana));
+        return new Medida(sistema.getProcessCpuTime() - cpu, enviados() - bytes, ventana);
+    }
+
+    private long enviados() {
+        long total = 0;
+        for (Sesion sesion : sesiones) {
+            total += sesion.getBytesEnviados();
+        }
+        return total;
+    }
+
+    /**
+     * Cuenta los lectores terminados de las sesiones {@code desde}, {@code desde + paso}, ... por debajo de {@code hasta}.
+     */
+    private int terminadas(int desde, int hasta, int paso) {
+        int total = 0;
+        for (int i = desde; i < hasta; i += paso) {
+            total += finLectura.get(i) != 0 ? 1 : 0;
+        }
+        return total;
+    }
+
+    private static long milisegundos(long nanos) {
+        return nanos == Long.MAX_VALUE ? -1 : TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+
+    private record Medida(long cpuNanos, long bytes, int segundos) {
+
+        void imprimir(String fase) {
+            System.out.printf(Locale.ROOT, "%-13s CPU=%,d ms (%.2f%% de un núcleo)  enviados=%,d B%n",
+                    fase, cpuNanos / 1_000_000, 100.0 * cpuNanos / TimeUnit.SECONDS.toNanos(segundos), bytes);
+        }
+    }
+}
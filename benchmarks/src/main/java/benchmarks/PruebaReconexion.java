@@ -0,0 +1,187 @@
+package benchmarks;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import util.Histograma;
+import util.MensajeChat;
+import util.Metricas;
+import util.MotorChat;
+import util.OyenteChat;
+import util.Transporte;
+import util.TransporteMemoria;
+import util.TransporteTcp;
+import util.TransporteUnix;
+
+/**
+ * Prueba de la reconexión: un par de {@link MotorChat} con {@link MotorChat#reconectarA} y
+ * {@link MotorChat#reaceptarEn} se envía mensajes numerados en ambos sentidos tan rápido como puede
+ * mientras otro hilo cierra de golpe el canal de uno de los dos extremos, al azar, cada pocos
+ * milisegundos. Cada receptor comprueba que los números llegan todos, en orden y una sola vez.
+ * Termina con código 1 si falta, se repite o se desordena algún mensaje, o si la conversación se pierde.
+ *
+ * <pre>
+ * java -cp target/benchmarks.jar benchmarks.PruebaReconexion --mensajes 200000 --cortes 20 --intervalo 250
+ * </pre>
+ */
+public class PruebaReconexion {
+
+    private int mensajes = 100_000; // Mensajes por sentido
+    private int cortes = 10; // Veces que se corta el transporte
+    private int intervalo = 200; // Milisegundos entre cortes
+    private long semilla = 1; // Elige qué extremo se corta
+    private String transporte = "tcp"; // tcp, unix o memoria
+
+    private final AtomicReference<Exception> perdida = new AtomicReference<>();
+    private volatile boolean terminando; // Al cerrar los motores, la conexión perdida es la esperada
+
+    public static void main(String[] args) throws Exception {
+        PruebaReconexion prueba = new PruebaReconexion();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String valor = args[i + 1];
+            switch (args[i]) {
+                case "--mensajes" -> prueba.mensajes = Integer.parseInt(valor);
+                case "--cortes" -> prueba.cortes = Integer.parseInt(valor);
+                case "--intervalo" -> prueba.intervalo = Integer.parseInt(valor);
+                case "--semilla" -> prueba.semilla = Long.parseLong(valor);
+                case "--transporte" -> prueba.transporte = valor;
+                default -> throw new IllegalArgumentException("Opción desconocida: " + args[i]);
+            }
+        }
+        System.exit(prueba.ejecutar() ? 0 : 1);
+    }
+
+    private boolean ejecutar() throws Exception {
+        Transporte local = switch (transporte) {
+            case "tcp" -> new TransporteTcp("127.0.0.1", 0);
+            case "unix" -> new TransporteUnix(Path.of(System.getProperty("java.io.tmpdir"), "reconexion-" + ProcessHandle.current().pid() + ".sock"));
+            case "memoria" -> new TransporteMemoria("reconexion");
+            default -> throw new IllegalArgumentException("Transporte desconocido: " + transporte);
+        };
+        try (Transporte.Escucha escucha = local.escuchar()) {
+            Transporte destino = Transporte.desde(escucha.getDireccion());
+            CompletableFuture<MotorChat> conectando = MotorChat.conectar(destino, "cliente", Runnable::run);
+            MotorChat servidor = MotorChat.aceptar(escucha, "servidor", Runnable::run).get(10, TimeUnit.SECONDS);
+            MotorChat cliente = conectando.get(10, TimeUnit.SECONDS);
+            cliente.setReconexion(MotorChat.reconectarA(destino));
+            servidor.setReconexion(MotorChat.reaceptarEn(escucha));
+
+            Verificador enCliente = new Verificador();
+            Verificador enServidor = new Verificador();
+            for (MotorChat motor : List.of(cliente, servidor)) {
+                motor.setHistorial(new GeneradorCarga.HistorialDescartado());
+                motor.suscribir(motor == cliente ? enCliente : enServidor);
+            }
+            servidor.iniciar();
+            cliente.iniciar().get(10, TimeUnit.SECONDS);
+
+            long inicio = System.nanoTime();
+            List<Thread> emisores = new ArrayList<>();
+            for (MotorChat motor : List.of(cliente, servidor)) {
+                // Hilos de plataforma: un emisor que nunca se bloquea acapararía a los lectores virtuales
+                emisores.add(Thread.ofPlatform().daemon().name("emisor-" + motor.getNombreLocal()).start(() -> emitir(motor)));
+            }
+            Random aleatorio = new Random(semilla);
+            int hechos = 0;
+            while (hechos < cortes && perdida.get() == null
+                    && (enCliente.esperado.get() < mensajes || enServidor.esperado.get() < mensajes)) {
+                Thread.sleep(intervalo);
+                MotorChat victima = aleatorio.nextBoolean() ? cliente : servidor;
+                victima.getSesion().getCanal().close(); // Corte brusco: lo que estaba en vuelo se pierde
+                hechos++;
+            }
+            boolean completos = enCliente.completo.await(120, TimeUnit.SECONDS) & enServidor.completo.await(120, TimeUnit.SECONDS);
+            double segundos = (System.nanoTime() - inicio) / 1e9;
+            for (Thread emisor : emisores) {
+                emisor.join(TimeUnit.SECONDS.toMillis(10));
+            }
+            terminando = true;
+            cliente.close();
+            servidor.close();
+
+            Histograma.Resumen reconexion = Metricas.RECONEXION.resumen();
+            System.out.printf(Locale.ROOT, "transporte=%s mensajes=%d por sentido cortes=%d en %.1fs (%.0f mensajes/s)%n",
+                    transporte, mensajes, hechos, segundos, 2 * mensajes / segundos);
+            System.out.printf(Locale.ROOT, "reconexiones=%d/%d  ms: p50=%.1f p99=%.1f max=%.1f%n",
+                    enCliente.reconexiones.get(), enServidor.reconexiones.get(),
+                    reconexion.p50() / 1e6, reconexion.p99() / 1e6, reconexion.maximo() / 1e6);
+            enCliente.imprimir("servidor->cliente");
+            enServidor.imprimir("cliente->servidor");
+            if (perdida.get() != null) {
+                System.out.println("Conversación perdida: " + perdida.get());
+            }
+            return completos && perdida.get() == null && enCliente.correcto() && enServidor.correcto();
+        }
+    }
+
+    /**
+     * Envía los números de 0 a mensajes-1. Si hay demasiados sin acuse, espera un poco y reintenta:
+     * el mensaje rechazado no se numeró, así que reintentarlo no lo duplica.
+     */
+    private void emitir(MotorChat motor) {
+        for (int i = 0; i < mensajes && perdida.get() == null; i++) {
+            while (motor.enviar(Integer.toString(i)).isCompletedExceptionally() && perdida.get() == null) {
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+            }
+        }
+    }
+
+    /**
+     * Comprueba en un extremo que los números llegan en orden, sin huecos ni repeticiones.
+     */
+    private final class Verificador implements OyenteChat {
+        private final AtomicLong esperado = new AtomicLong(); // Siguiente número que debe llegar
+        private final AtomicLong repetidos = new AtomicLong();
+        private final AtomicLong saltados = new AtomicLong(); // Números que faltaron al llegar uno mayor
+        private final AtomicInteger reconexiones = new AtomicInteger();
+        private final CountDownLatch completo = new CountDownLatch(1);
+
+        @Override
+        public void mensajeRecibido(MensajeChat mensaje) {
+            long numero = Long.parseLong(mensaje.texto());
+            long siguiente = esperado.get();
+            if (numero < siguiente) {
+                repetidos.incrementAndGet();
+                return;
+            }
+            if (numero > siguiente) {
+                saltados.addAndGet(numero - siguiente);
+            }
+            esperado.set(numero + 1);
+            if (numero + 1 == mensajes) {
+                completo.countDown();
+            }
+        }
+
+        @Override
+        public void reconectado() {
+            reconexiones.incrementAndGet();
+        }
+
+        @Override
+        public void conexionPerdida(Exception causa) {
+            if (!terminando) {
+                perdida.compareAndSet(null, causa);
+                completo.countDown();
+            }
+        }
+
+        boolean correcto() {
+            return esperado.get() == mensajes && repetidos.get() == 0 && saltados.get() == 0;
+        }
+
+        void imprimir(String sentido) {
+            System.out.printf(Locale.ROOT, "%s: recibidos=%d repetidos=%d perdidos=%d%n",
+                    sentido, esperado.get(), repetidos.get(), saltados.get());
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package benchmarks;
+
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import util.CanalTransporte;
+import util.PoolDescifrado;
+import util.Sesion;
+import util.Transporte;
+import util.TransporteMemoria;
+import util.TransporteTcp;
+
+/**
+ * Rendimiento de recepción con tramas grandes según cuántos hilos descifran. Un hilo escribe sin
+ * parar en el canal tramas ya cifradas (el emisor no cuesta CPU) y el benchmark las lee con
+ * {@link Sesion#leerMensaje()}. Con {@code hilos=0} la sesión descifra en el hilo que lee, como
+ * antes; con {@code hilos=N} usa un {@link PoolDescifrado} propio de N hilos. El rendimiento solo
+ * puede crecer hasta el número de núcleos libres y lo limita el consumidor, que sigue decodificando
+ * cada mensaje en un solo hilo.
+ */
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RecepcionBenchmark {
+
+    private static final int RAFAGA = 16; // Mensajes leídos por invocación
+    private static final int TRAMAS = 64; // Tramas distintas que repite el escritor
+
+    @Param({"TCP", "MEMORIA"})
+    public String transporte;
+
+    @Param({"0", "1", "2", "4", "8"})
+    public int hilos;
+
+    @Param({"65536", "262144"})
+    public int tamano;
+
+    private Transporte.Escucha escucha;
+    private Sesion cliente;
+    private Sesion servidor;
+    private PoolDescifrado descifrado;
+    private Thread escritor;
+
+    @Setup(Level.Trial)
+    public void preparar() throws Exception {
+        Transporte local = transporte.equals("TCP") ? new TransporteTcp("127.0.0.1", 0) : new TransporteMemoria("recepcion");
+        escucha = local.escuchar();
+        cliente = new Sesion(Transporte.desde(escucha.getDireccion()).conectar(), true);
+        servidor = new Sesion(escucha.aceptar(), false);
+        byte[] clave = new byte[32];
+        new SecureRandom().nextBytes(clave);
+        cliente.setClaveCompartida(clave);
+        servidor.setClaveCompartida(clave);
+        descifrado = hilos > 0 ? new PoolDescifrado(hilos, PoolDescifrado.PRESUPUESTO_POR_DEFECTO) : null;
+        servidor.configurarRecepcion(descifrado);
+
+        // Tramas cifradas una vez y reenviadas en bucle: la sesión no rechaza IVs repetidos
+        ByteBuffer[] tramas = new ByteBuffer[TRAMAS];
+        for (int i = 0; i < TRAMAS; i++) {
+            tramas[i] = cliente.cifrarTrama(ClienteBenchmark.texto(tamano));
+        }
+        CanalTransporte canal = cliente.getCanal();
+        escritor = Thread.ofPlatform().daemon().name("escritor-recepcion").start(() -> {
+            try {
+                for (int i = 0; ; i = (i + 1) % TRAMAS) {
+                    ByteBuffer trama = tramas[i].duplicate();
+                    while (trama.hasRemaining()) {
+                        canal.write(trama);
+                    }
+                }
+            } catch (Exception e) {
+                // El canal se cerró al terminar
+            }
+        });
+    }
+
+    @TearDown(Level.Trial)
+    public void cerrar() throws Exception {
+        cliente.cerrar();
+        servidor.cerrar();
+        escucha.close();
+        escritor.join(1000);
+        if (descifrado != null) {
+            descifrado.close();
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @OperationsPerInvocation(RAFAGA)
+    public void recibir(Blackhole agujero) throws Exception {
+        for (int i = 0; i < RAFAGA; i++) {
+            agujero.consume(servidor.leerMensaje());
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import ui.VentanaMensajes;
+import util.MensajeChat;
+import util.RegistroMensajes;
+
+/**
+ * Historial persistente con millones de mensajes: ritmo de añadido (sin esperar al disco y
+ * esperando el force agrupado), latencia de leer una página en una posición aleatoria y coste
+ * de cerrar y volver a abrir el registro. El registro se crea una vez en el directorio temporal
+ * y se reutiliza entre ejecuciones; se borra a mano cuando ya no hace falta.
+ */
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RegistroBenchmark {
+
+    private static final byte[] CLAVE = new byte[32]; // Clave fija para poder reabrir el registro entre ejecuciones
+
+    @Param({"10000000"})
+    public int mensajes;
+
+    private Path directorio;
+    private RegistroMensajes registro;
+    private long tamano; // Mensajes al empezar; las páginas se piden dentro de este rango
+
+    @Setup(Level.Trial)
+    public void preparar() throws IOException {
+        directorio = Path.of(System.getProperty("java.io.tmpdir"), "registro-benchmark-" + mensajes);
+        Files.createDirectories(directorio);
+        registro = abrir();
+        for (long i = registro.getTamano(); i < mensajes; i++) {
+            registro.agregar(i % 2 == 0 ? "Ana" : "Luis", "mensaje número " + i);
+        }
+        registro.sincronizar();
+        tamano = registro.getTamano();
+    }
+
+    @TearDown(Level.Trial)
+    public void cerrar() throws IOException {
+        registro.close();
+    }
+
+    /**
+     * Añadido sin esperar al disco; el force lo hace el hilo de confirmación.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public MensajeChat agregar() {
+        return registro.agregar("Ana", "mensaje nuevo");
+    }
+
+    /**
+     * Añadido que espera a estar en disco; varios escritores comparten cada force.
+     */
+    @Benchmark
+    @Threads(16)
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public MensajeChat agregarSincronizado() throws Exception {
+        return registro.agregarSincronizado("Ana", "mensaje confirmado").get();
+    }
+
+    /**
+     * Una página de la interfaz en una posición cualquiera del historial.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public List<MensajeChat> leerPaginaAleatoria() {
+        return registro.anteriores(ThreadLocalRandom.current().nextLong(tamano) + 1, VentanaMensajes.TAMANO_PAGINA);
+    }
+
+    /**
+     * Cierre y apertura del registro completo; no depende del número de mensajes guardados.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public long reabrir() throws IOException {
+        registro.close();
+        registro = abrir();
+        return registro.getTamano();
+    }
+
+    private RegistroMensajes abrir() throws IOException {
+        return new RegistroMensajes(directorio, CLAVE, RegistroMensajes.MENSAJES_POR_SEGMENTO, RegistroMensajes.INTERVALO_CONFIRMACION);
+    }
+}
@@ -0,0 +1,103 @@
+package benchmarks;
+
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import util.RotacionClaves;
+import util.Sesion;
+import util.Transporte;
+import util.TransporteMemoria;
+import util.TransporteTcp;
+
+/**
+ * Rendimiento sostenido mientras se rota la clave: el mismo eco en ráfagas que
+ * {@link TransporteBenchmark}, con los dos sentidos cambiando de clave cada {@code tramasPorEpoca}
+ * tramas (0 = nunca). Con 64 tramas por época hay cientos de rotaciones por segundo; si el cambio
+ * detuviera el envío, el rendimiento caería respecto a no rotar. Al terminar imprime las épocas
+ * alcanzadas en cada sentido.
+ */
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RotacionBenchmark {
+
+    private static final int RAFAGA = 64; // Mensajes por ráfaga antes de leer los ecos
+
+    @Param({"TCP", "MEMORIA"})
+    public String transporte;
+
+    @Param({"0", "65536", "1024", "64"})
+    public long tramasPorEpoca;
+
+    @Param({"1024"})
+    public int tamano;
+
+    private Transporte.Escucha escucha;
+    private Sesion cliente;
+    private Sesion servidor;
+    private String mensaje;
+
+    @Setup(Level.Trial)
+    public void preparar() throws Exception {
+        Transporte local = transporte.equals("TCP") ? new TransporteTcp("127.0.0.1", 0) : new TransporteMemoria("rotacion");
+        escucha = local.escuchar();
+        cliente = new Sesion(Transporte.desde(escucha.getDireccion()).conectar(), true);
+        servidor = new Sesion(escucha.aceptar(), false);
+        RotacionClaves.Umbrales umbrales = tramasPorEpoca == 0 ? RotacionClaves.Umbrales.NUNCA
+                : new RotacionClaves.Umbrales(Long.MAX_VALUE, tramasPorEpoca, Duration.ofDays(1));
+        byte[] clave = new byte[32];
+        new SecureRandom().nextBytes(clave);
+        for (Sesion sesion : new Sesion[] {cliente, servidor}) {
+            sesion.configurarRotacion(umbrales);
+            sesion.setClaveCompartida(clave);
+            sesion.anunciarCapacidades(false);
+        }
+        servidor.ejecutar(() -> {
+            while (true) {
+                servidor.enviarMensaje(servidor.leerMensaje());
+            }
+        });
+        mensaje = ClienteBenchmark.texto(tamano);
+    }
+
+    @TearDown(Level.Trial)
+    public void cerrar() throws Exception {
+        System.out.printf("%nÉpocas: cliente->servidor=%d servidor->cliente=%d%n",
+                cliente.getRotacion().getEpocaEmision(), servidor.getRotacion().getEpocaEmision());
+        cliente.cerrar();
+        servidor.cerrar();
+        escucha.close();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @OperationsPerInvocation(RAFAGA)
+    public void rafaga(Blackhole agujero) throws Exception {
+        CompletableFuture<Void> ultimo = null;
+        for (int i = 0; i < RAFAGA; i++) {
+            ultimo = cliente.enviarMensaje(mensaje);
+        }
+        ultimo.get();
+        for (int i = 0; i < RAFAGA; i++) {
+            agujero.consume(cliente.leerMensaje());
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package benchmarks;
+
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import util.Sesion;
+
+/**
+ * Ruta de envío y recepción con búferes directos entre dos sesiones conectadas por loopback:
+ * codificación, cifrado, escritura agrupada, lectura de tramas, descifrado y decodificación.
+ * Ejecutar con {@code -prof gc} para ver los bytes asignados por mensaje (gc.alloc.rate.norm).
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RutaDirectaBenchmark {
+
+    @Param({"64", "4096"})
+    public int tamano;
+
+    private Sesion emisor;
+    private Sesion receptor;
+    private String mensaje;
+
+    @Setup(Level.Trial)
+    public void preparar() throws Exception {
+        try (ServerSocketChannel servidor = ServerSocketChannel.open().bind(new InetSocketAddress("127.0.0.1", 0))) {
+            emisor = new Sesion(SocketChannel.open(servidor.getLocalAddress()), true);
+            receptor = new Sesion(servidor.accept(), false);
+        }
+        byte[] clave = new byte[32];
+        new SecureRandom().nextBytes(clave);
+        emisor.setClaveCompartida(clave);
+        receptor.setClaveCompartida(clave);
+        mensaje = ClienteBenchmark.texto(tamano);
+    }
+
+    @TearDown(Level.Trial)
+    public void cerrar() {
+        emisor.cerrar();
+        receptor.cerrar();
+    }
+
+    @Benchmark
+    public String enviarYRecibir() throws Exception {
+        emisor.enviarMensaje(mensaje);
+        return receptor.leerMensaje();
+    }
+}
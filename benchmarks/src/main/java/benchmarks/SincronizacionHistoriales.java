@@ -0,0 +1,176 @@
+package benchmarks;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import util.HistorialMemoria;
+import util.ResumenHistorial;
+import util.Sesion;
+import util.SincronizacionHistorial;
+import util.Transporte;
+import util.TransporteMemoria;
+import util.TransporteTcp;
+import util.TransporteUnix;
+
+/**
+ * Mide cuánto cuesta que dos pares con historiales casi iguales se pongan al día con
+ * {@link SincronizacionHistorial}. Genera una conversación de N mensajes repartidos en varias semanas;
+ * cada par la guarda con sus propios instantes (los mensajes del otro, con un retraso de hasta
+ * {@code --desfase} ms) y pierde D mensajes al azar distintos de los del otro. Para cada D da el tiempo
+ * y los bytes que cruzan la sesión hasta que los dos tienen los N, y los compara con reenviar el
+ * historial entero. Al final repite la sincronización para comprobar que ya no falta nada.
+ *
+ * <pre>
+ * java -Xmx3g -cp target/benchmarks.jar benchmarks.SincronizacionHistoriales --mensajes 1000000 --divergencias 0,10,1000,10000
+ * </pre>
+ */
+public class SincronizacionHistoriales {
+
+    private static final String[] AUTORES = {"ana", "luis"};
+
+    private int mensajes = 1_000_000; // Mensajes de la conversación completa
+    private String divergencias = "0,1,10,100,1000,10000"; // Mensajes que pierde cada par, por prueba
+    private int desfase = 200; // Milisegundos máximos entre el instante del emisor y el del receptor
+    private String transporte = "tcp"; // tcp, unix o memoria
+
+    private String[] textos;
+    private long[] instantes;
+
+    public static void main(String[] args) throws Exception {
+        SincronizacionHistoriales medicion = new SincronizacionHistoriales();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String valor = args[i + 1];
+            switch (args[i]) {
+                case "--mensajes" -> medicion.mensajes = Integer.parseInt(valor);
+                case "--divergencias" -> medicion.divergencias = valor;
+                case "--desfase" -> medicion.desfase = Integer.parseInt(valor);
+                case "--transporte" -> medicion.transporte = valor;
+                default -> throw new IllegalArgumentException("Opción desconocida: " + args[i]);
+            }
+        }
+        System.exit(medicion.ejecutar() ? 0 : 1);
+    }
+
+    private boolean ejecutar() throws Exception {
+        Random aleatorio = new Random(42);
+        textos = new String[mensajes];
+        instantes = new long[mensajes];
+        long instante = System.currentTimeMillis() - 60L * 24 * 3600 * 1000;
+        long completo = 0; // Bytes de autor y texto de todo el historial
+        for (int i = 0; i < mensajes; i++) {
+            textos[i] = "mensaje " + i + " " + Long.toString(aleatorio.nextLong(), 36);
+            instante += aleatorio.nextInt(6000);
+            instantes[i] = instante;
+            completo += AUTORES[i % 2].length() + textos[i].getBytes(StandardCharsets.UTF_8).length + 8;
+        }
+        System.out.printf(Locale.ROOT, "transporte=%s mensajes=%d desfase=%d ms reenvío completo=%,d B por par%n",
+                transporte, mensajes, desfase, completo);
+
+        boolean correcto = true;
+        for (String divergencia : divergencias.split(",")) {
+            correcto &= probar(Integer.parseInt(divergencia.trim()), aleatorio);
+        }
+        return correcto;
+    }
+
+    private boolean probar(int perdidos, Random aleatorio) throws Exception {
+        BitSet faltanA = new BitSet(mensajes);
+        BitSet faltanB = new BitSet(mensajes);
+        while (faltanA.cardinality() < perdidos) {
+            faltanA.set(aleatorio.nextInt(mensajes));
+        }
+        while (faltanB.cardinality() < perdidos) {
+            int posicion = aleatorio.nextInt(mensajes);
+            if (!faltanA.get(posicion)) {
+                faltanB.set(posicion);
+            }
+        }
+        ResumenHistorial resumenA = new ResumenHistorial(historial(0, faltanA, new Random(1)));
+        ResumenHistorial resumenB = new ResumenHistorial(historial(1, faltanB, new Random(2)));
+        long inicio = System.nanoTime();
+        resumenA.actualizar();
+        resumenB.actualizar();
+        long construccion = System.nanoTime() - inicio;
+
+        Transporte local = switch (transporte) {
+            case "tcp" -> new TransporteTcp("127.0.0.1", 0);
+            case "unix" -> new TransporteUnix(Path.of(System.getProperty("java.io.tmpdir"), "sincronizacion-" + ProcessHandle.current().pid() + ".sock"));
+            case "memoria" -> new TransporteMemoria("sincronizacion");
+            default -> throw new IllegalArgumentException("Transporte desconocido: " + transporte);
+        };
+        Sesion a;
+        Sesion b;
+        try (Transporte.Escucha escucha = local.escuchar()) {
+            a = new Sesion(Transporte.desde(escucha.getDireccion()).conectar(), true);
+            b = new Sesion(escucha.aceptar(), false);
+        }
+        byte[] clave = new byte[32];
+        new SecureRandom().nextBytes(clave);
+        a.setClaveCompartida(clave);
+        b.setClaveCompartida(clave);
+        List<Thread> lectores = new ArrayList<>();
+        for (Sesion sesion : List.of(a, b)) {
+            lectores.add(Thread.ofPlatform().daemon().name("lector-" + sesion.getId()).start(() -> {
+                try {
+                    while (sesion.leerMensaje() != null) {
+                        // Las tramas de sincronización las atienden los manejadores
+                    }
+                } catch (Exception e) {
+                    // La sesión se cerró al terminar
+                }
+            }));
+        }
+
+        try (SincronizacionHistorial sincronizacionA = new SincronizacionHistorial(a, resumenA, Long.MAX_VALUE);
+             SincronizacionHistorial sincronizacionB = new SincronizacionHistorial(b, resumenB, Long.MAX_VALUE)) {
+            long bytesAntes = a.getBytesEnviados() + b.getBytesEnviados();
+            inicio = System.nanoTime();
+            CompletableFuture<Long> recuperadosA = sincronizacionA.sincronizar();
+            CompletableFuture<Long> recuperadosB = sincronizacionB.sincronizar();
+            long traidosA = recuperadosA.get(5, TimeUnit.MINUTES);
+            long traidosB = recuperadosB.get(5, TimeUnit.MINUTES);
+            long duracion = System.nanoTime() - inicio;
+            long bytes = a.getBytesEnviados() + b.getBytesEnviados() - bytesAntes;
+
+            bytesAntes = a.getBytesEnviados() + b.getBytesEnviados();
+            inicio = System.nanoTime();
+            long sobrantes = sincronizacionA.sincronizar().get(5, TimeUnit.MINUTES) + sincronizacionB.sincronizar().get(5, TimeUnit.MINUTES);
+            long repeticion = System.nanoTime() - inicio;
+            long bytesRepeticion = a.getBytesEnviados() + b.getBytesEnviados() - bytesAntes;
+
+            boolean correcto = traidosA == perdidos && traidosB == perdidos && sobrantes == 0
+                    && resumenA.getMensajes() == mensajes && resumenB.getMensajes() == mensajes;
+            System.out.printf(Locale.ROOT, "perdidos=%-6d recuperados=%d/%d  resumen=%,d ms  sincronización=%,d ms %,d B  repetición=%,d ms %,d B%s%n",
+                    perdidos, traidosA, traidosB, construccion / 1_000_000, duracion / 1_000_000, bytes,
+                    repeticion / 1_000_000, bytesRepeticion, correcto ? "" : "  INCORRECTO");
+            return correcto;
+        } finally {
+            a.cerrar();
+            b.cerrar();
+            for (Thread lector : lectores) {
+                lector.join(1000);
+            }
+        }
+    }
+
+    /**
+     * Historial de un par: los mensajes propios con su instante y los del otro con un retraso al azar.
+     */
+    private HistorialMemoria historial(int par, BitSet faltan, Random aleatorio) {
+        HistorialMemoria historial = new HistorialMemoria();
+        for (int i = 0; i < mensajes; i++) {
+            if (!faltan.get(i)) {
+                long retraso = i % 2 == par ? 0 : aleatorio.nextInt(desfase + 1);
+                historial.agregar(AUTORES[i % 2], textos[i], instantes[i] + retraso);
+            }
+        }
+        return historial;
+    }
+}
@@ -0,0 +1,72 @@
+package benchmarks;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import util.ContextoCifrado;
+import util.SuiteCifrado;
+
+/**
+ * Cifrado y descifrado con cada {@link SuiteCifrado} sobre búferes directos, como en la sesión,
+ * para varios tamaños de carga. Multiplicando las operaciones por segundo por el tamaño se obtienen
+ * los bytes por segundo de cada suite. Para ver una máquina sin instrucciones AES:
+ *
+ * <pre>
+ * java -jar target/benchmarks.jar SuitesBenchmark -jvmArgsAppend "-XX:+UnlockDiagnosticVMOptions -XX:-UseAESIntrinsics -XX:-UseAESCTRIntrinsics -XX:-UseGHASHIntrinsics"
+ * </pre>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SuitesBenchmark {
+
+    @Param({"AES_GCM", "CHACHA20_POLY1305"})
+    public SuiteCifrado suite;
+
+    @Param({"64", "1024", "16384", "262144"})
+    public int tamano;
+
+    private ContextoCifrado emisor;
+    private ContextoCifrado receptor;
+    private ByteBuffer plano;
+    private ByteBuffer cifrado;
+    private ByteBuffer recibido;
+    private ByteBuffer descifrado;
+
+    @Setup(Level.Trial)
+    public void preparar() throws Exception {
+        byte[] clave = new byte[32];
+        emisor = new ContextoCifrado(clave, true, suite);
+        receptor = new ContextoCifrado(clave, false, suite);
+        plano = ByteBuffer.allocateDirect(tamano);
+        cifrado = ByteBuffer.allocateDirect(ContextoCifrado.longitudCifrada(tamano));
+        descifrado = ByteBuffer.allocateDirect(tamano);
+        recibido = ByteBuffer.allocateDirect(ContextoCifrado.longitudCifrada(tamano));
+        emisor.cifrar(plano.clear(), recibido);
+        recibido.flip();
+    }
+
+    @Benchmark
+    public int cifrar() throws Exception {
+        return emisor.cifrar(plano.clear(), cifrado.clear());
+    }
+
+    @Benchmark
+    public int descifrar() throws Exception {
+        return receptor.descifrar(recibido.rewind(), descifrado.clear());
+    }
+}
@@ -0,0 +1,102 @@
+package benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import util.CanalTramas;
+import util.FormatoTrama;
+import util.LimitesTrama;
+import util.PoolBuffers;
+import util.TipoTrama;
+
+/**
+ * Escritura y lectura de tramas aisladas de la red y del cifrado: con el prefijo de longitud de
+ * un int sobre DataOutputStream/DataInputStream, como se enmarcaban antes, y con la cabecera de
+ * {@link FormatoTrama} (versión, tipo, banderas y varint) que leen {@link CanalTramas} y el hub.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TramasBenchmark {
+
+    @Param({"16", "256", "4096", "65536", "1048576"})
+    public int tamano;
+
+    private byte[] contenido;
+    private ByteArrayOutputStream salida;
+    private DataOutputStream dos;
+    private ByteArrayInputStream entrada;
+    private DataInputStream dis;
+    private ByteBuffer tramaFormato; // Búfer de salida con la cabecera nueva
+    private ByteArrayInputStream entradaFormato;
+    private CanalTramas lector;
+
+    @Setup(Level.Trial)
+    public void preparar() throws IOException {
+        contenido = new byte[tamano];
+        salida = new ByteArrayOutputStream(tamano + 4);
+        dos = new DataOutputStream(salida);
+        dos.writeInt(contenido.length);
+        dos.write(contenido);
+        entrada = new ByteArrayInputStream(salida.toByteArray());
+        dis = new DataInputStream(entrada);
+
+        tramaFormato = ByteBuffer.allocate(FormatoTrama.CABECERA_MAXIMA + tamano);
+        escribirTramaFormato();
+        entradaFormato = new ByteArrayInputStream(tramaFormato.array(), 0, tramaFormato.limit());
+        lector = new CanalTramas(Channels.newChannel(entradaFormato), PoolBuffers.getCompartido(), LimitesTrama.uniformes(tamano));
+    }
+
+    @Benchmark
+    public int escribirTrama() throws IOException {
+        salida.reset();
+        dos.writeInt(contenido.length);
+        dos.write(contenido);
+        dos.flush();
+        return salida.size();
+    }
+
+    @Benchmark
+    public byte[] leerTrama() throws IOException {
+        entrada.reset();
+        int longitud = dis.readInt();
+        byte[] trama = new byte[longitud];
+        dis.readFully(trama);
+        return trama;
+    }
+
+    @Benchmark
+    public int escribirTramaFormato() {
+        tramaFormato.clear();
+        FormatoTrama.escribirCabecera(tramaFormato, TipoTrama.ARCHIVO_BLOQUE, (byte) 0, FormatoTrama.FLUJO_ARCHIVOS, contenido.length);
+        tramaFormato.put(contenido).flip();
+        return tramaFormato.remaining();
+    }
+
+    @Benchmark
+    public int leerTramaFormato() throws IOException {
+        entradaFormato.reset();
+        ByteBuffer trama = lector.leerTrama();
+        return trama.remaining() + lector.getFlujo();
+    }
+}
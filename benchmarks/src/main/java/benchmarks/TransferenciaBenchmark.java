@@ -0,0 +1,172 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.util.Comparator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import util.OyenteArchivos;
+import util.Sesion;
+import util.TransferenciaArchivos;
+
+/**
+ * Transferencia de un archivo cifrado entre dos sesiones conectadas por loopback, comparada con
+ * copiar el mismo archivo por un socket sin cifrar (transferTo). Cada operación es un archivo
+ * completo: los MB/s se obtienen dividiendo el tamaño entre el tiempo medio.
+ */
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+public class TransferenciaBenchmark {
+
+    @Param({"64", "256"})
+    public int megas;
+
+    private Path directorio;
+    private Path origen;
+    private Sesion emisor;
+    private Sesion receptor;
+    private TransferenciaArchivos envios;
+    private TransferenciaArchivos recepciones;
+    private volatile CompletableFuture<Path> recibido;
+    private SocketChannel crudoSalida;
+    private SocketChannel crudoEntrada;
+
+    @Setup(Level.Trial)
+    public void preparar() throws Exception {
+        directorio = Files.createTempDirectory("transferencia-benchmark");
+        origen = directorio.resolve("origen.bin");
+        byte[] bloque = new byte[1024 * 1024];
+        new SecureRandom().nextBytes(bloque);
+        try (FileChannel archivo = FileChannel.open(origen, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            for (int i = 0; i < megas; i++) {
+                archivo.write(ByteBuffer.wrap(bloque));
+            }
+        }
+
+        SocketChannel[] par = conectarPar();
+        emisor = new Sesion(par[0], true);
+        receptor = new Sesion(par[1], false);
+        byte[] clave = new byte[32];
+        new SecureRandom().nextBytes(clave);
+        emisor.setClaveCompartida(clave);
+        receptor.setClaveCompartida(clave);
+        envios = new TransferenciaArchivos(emisor, directorio.resolve("no-usado"), null);
+        recepciones = new TransferenciaArchivos(receptor, directorio.resolve("recibidos"), new OyenteArchivos() {
+            @Override
+            public void recepcionCompletada(Path archivo) {
+                recibido.complete(archivo);
+            }
+
+            @Override
+            public void recepcionFallida(String nombre, Exception causa) {
+                recibido.completeExceptionally(causa);
+            }
+        });
+        leerSiempre(emisor);
+        leerSiempre(receptor);
+
+        SocketChannel[] crudo = conectarPar();
+        crudoSalida = crudo[0];
+        crudoEntrada = crudo[1];
+    }
+
+    @TearDown(Level.Trial)
+    public void cerrar() throws IOException {
+        envios.close();
+        recepciones.close();
+        emisor.cerrar();
+        receptor.cerrar();
+        crudoSalida.close();
+        crudoEntrada.close();
+        try (Stream<Path> rutas = Files.walk(directorio)) {
+            rutas.sorted(Comparator.reverseOrder()).forEach(ruta -> ruta.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public Path cifrado() throws Exception {
+        recibido = new CompletableFuture<>();
+        envios.enviar(origen, null).get();
+        Path archivo = recibido.get();
+        Files.delete(archivo);
+        return archivo;
+    }
+
+    @Benchmark
+    public long sinCifrar() throws Exception {
+        CompletableFuture<Long> enviado = CompletableFuture.supplyAsync(() -> {
+            try (FileChannel archivo = FileChannel.open(origen, StandardOpenOption.READ)) {
+                long posicion = 0;
+                while (posicion < archivo.size()) {
+                    posicion += archivo.transferTo(posicion, archivo.size() - posicion, crudoSalida);
+                }
+                return posicion;
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        Path destino = directorio.resolve("crudo.bin");
+        long total = (long) megas * 1024 * 1024;
+        ByteBuffer bufer = ByteBuffer.allocateDirect(TransferenciaArchivos.TAMANO_BLOQUE);
+        try (FileChannel archivo = FileChannel.open(destino, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long recibidos = 0;
+            while (recibidos < total) {
+                recibidos += crudoEntrada.read(bufer.clear());
+                archivo.write(bufer.flip());
+            }
+            archivo.force(true);
+        }
+        return enviado.get();
+    }
+
+    private static SocketChannel[] conectarPar() throws IOException {
+        try (ServerSocketChannel servidor = ServerSocketChannel.open().bind(new InetSocketAddress("127.0.0.1", 0))) {
+            SocketChannel cliente = SocketChannel.open(servidor.getLocalAddress());
+            return new SocketChannel[] {cliente, servidor.accept()};
+        }
+    }
+
+    /**
+     * Mantiene un hilo leyendo de la sesión para que sus manejadores de archivo atiendan las tramas.
+     */
+    private static void leerSiempre(Sesion sesion) {
+        Thread lector = new Thread(() -> {
+            try {
+                while (true) {
+                    sesion.leerMensaje();
+                }
+            } catch (Exception e) {
+                // La sesión se cerró al terminar el benchmark
+            }
+        }, "lector-" + sesion.getId());
+        lector.setDaemon(true);
+        lector.start();
+    }
+}
@@ -0,0 +1,110 @@
+package benchmarks;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.SecureRandom;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import util.Sesion;
+import util.Transporte;
+import util.TransporteMemoria;
+import util.TransporteTcp;
+import util.TransporteUnix;
+
+/**
+ * Compara los transportes con la misma sesión cifrada encima: el cliente envía y el servidor
+ * devuelve cada mensaje (eco). Mide la ida y vuelta y el rendimiento en ráfagas.
+ */
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TransporteBenchmark {
+
+    private static final int RAFAGA = 64; // Mensajes por ráfaga antes de leer los ecos
+
+    @Param({"TCP", "UNIX", "MEMORIA"})
+    public String transporte;
+
+    @Param({"64", "16384"})
+    public int tamano;
+
+    private Transporte.Escucha escucha;
+    private Path socketUnix;
+    private Sesion cliente;
+    private Sesion servidor;
+    private String mensaje;
+
+    @Setup(Level.Trial)
+    public void preparar() throws Exception {
+        Transporte local = switch (transporte) {
+            case "TCP" -> new TransporteTcp("127.0.0.1", 0);
+            case "UNIX" -> new TransporteUnix(socketUnix = Files.createTempDirectory("transporte").resolve("chat.sock"));
+            default -> new TransporteMemoria("benchmark");
+        };
+        escucha = local.escuchar();
+        cliente = new Sesion(Transporte.desde(escucha.getDireccion()).conectar(), true);
+        servidor = new Sesion(escucha.aceptar(), false);
+        byte[] clave = new byte[32];
+        new SecureRandom().nextBytes(clave);
+        cliente.setClaveCompartida(clave);
+        servidor.setClaveCompartida(clave);
+        cliente.anunciarCapacidades(false);
+        servidor.anunciarCapacidades(false);
+        // El eco no espera a cada escritura: con ráfagas grandes, el cliente no lee hasta terminar de enviar
+        servidor.ejecutar(() -> {
+            while (true) {
+                servidor.enviarMensaje(servidor.leerMensaje());
+            }
+        });
+        mensaje = ClienteBenchmark.texto(tamano);
+    }
+
+    @TearDown(Level.Trial)
+    public void cerrar() throws Exception {
+        cliente.cerrar();
+        servidor.cerrar();
+        escucha.close();
+        if (socketUnix != null) {
+            Files.deleteIfExists(socketUnix.getParent());
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public String idaYVuelta() throws Exception {
+        cliente.escribirMensaje(mensaje);
+        return cliente.leerMensaje();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @OperationsPerInvocation(RAFAGA)
+    public void rafaga(Blackhole agujero) throws Exception {
+        CompletableFuture<Void> ultimo = null;
+        for (int i = 0; i < RAFAGA; i++) {
+            ultimo = cliente.enviarMensaje(mensaje);
+        }
+        ultimo.get();
+        for (int i = 0; i < RAFAGA; i++) {
+            agujero.consume(cliente.leerMensaje());
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package benchmarks;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import javafx.collections.FXCollections;
+import javafx.collections.ObservableList;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import ui.PulsoMensajes;
+import ui.VentanaMensajes;
+import util.HistorialMemoria;
+import util.MensajeChat;
+
+/**
+ * Coste en el hilo de la interfaz de recibir una conversación larga: los mensajes se publican
+ * en el pulso y se entregan a la ventana como lo haría {@code Platform.runLater}, pero con un
+ * ejecutor propio para no depender del toolkit gráfico. Mide el trabajo de modelo de la lista
+ * (no el dibujado), que es lo que crecía con la longitud de la conversación.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class VentanaMensajesBenchmark {
+
+    private static final int MENSAJES_POR_FOTOGRAMA = 500; // Mensajes que llegan entre dos pulsos
+
+    @Param({"100000"})
+    public int mensajes;
+
+    private HistorialMemoria historial;
+    private List<MensajeChat> conversacion;
+    private ObservableList<MensajeChat> filas;
+    private VentanaMensajes ventana;
+    private final ArrayDeque<Runnable> fotogramas = new ArrayDeque<>();
+    private PulsoMensajes<MensajeChat> pulso;
+
+    @Setup(Level.Trial)
+    public void preparar() {
+        historial = new HistorialMemoria();
+        for (int i = 0; i < mensajes; i++) {
+            historial.agregar(i % 2 == 0 ? "Ana" : "Luis", "mensaje número " + i);
+        }
+        conversacion = historial.posteriores(-1, mensajes);
+    }
+
+    @Setup(Level.Invocation)
+    public void vaciar() {
+        filas = FXCollections.observableArrayList();
+        ventana = new VentanaMensajes(filas, historial, VentanaMensajes.FILAS_MAXIMAS);
+        pulso = new PulsoMensajes<>(ventana::agregarRecientes, fotogramas::add);
+    }
+
+    /**
+     * Toda la conversación llega en ráfagas; cada fotograma entrega lo recibido desde el anterior.
+     */
+    @Benchmark
+    public int recibirConversacion() {
+        for (int i = 0; i < conversacion.size(); i++) {
+            pulso.publicar(conversacion.get(i));
+            if (i % MENSAJES_POR_FOTOGRAMA == MENSAJES_POR_FOTOGRAMA - 1) {
+                fotogramas.poll().run();
+            }
+        }
+        Runnable pendiente;
+        while ((pendiente = fotogramas.poll()) != null) {
+            pendiente.run();
+        }
+        return filas.size();
+    }
+
+    /**
+     * Recorre el historial completo hacia atrás página a página, como al desplazarse hasta el inicio.
+     */
+    @Benchmark
+    public int paginarHastaElInicio() {
+        ventana.agregarRecientes(conversacion.subList(conversacion.size() - VentanaMensajes.FILAS_MAXIMAS, conversacion.size()));
+        int paginas = 0;
+        while (ventana.cargarAnteriores() > 0) {
+            paginas++;
+        }
+        return paginas;
+    }
+}
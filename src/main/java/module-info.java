@@ -3,6 +3,9 @@ module ui {
     requires javafx.fxml;
 
     requires org.kordamp.bootstrapfx.core;
+    requires jdk.jfr;
+    requires jdk.httpserver;
+    requires jdk.management;
 
 
     exports ui;
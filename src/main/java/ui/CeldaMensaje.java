@@ -0,0 +1,33 @@
+package ui;
+
+import javafx.scene.control.ListCell;
+import util.MensajeChat;
+
+/**
+ * Celda reutilizable de la lista del chat. La lista solo crea las celdas visibles y las
+ * recicla al desplazarse, así que el coste no depende de la longitud de la conversación.
+ */
+public final class CeldaMensaje extends ListCell<MensajeChat> {
+
+    private static final String ESTILO_SISTEMA = "-fx-font-style: italic; -fx-text-fill: gray;"; // Estilo de los avisos
+
+    /**
+     * Crea la celda con ajuste de línea al ancho de la lista.
+     */
+    public CeldaMensaje() {
+        setWrapText(true);
+        setPrefWidth(0); // Toma el ancho de la lista en lugar del del texto, para que el ajuste funcione
+    }
+
+    @Override
+    protected void updateItem(MensajeChat mensaje, boolean vacia) {
+        super.updateItem(mensaje, vacia);
+        if (vacia || mensaje == null) {
+            setText(null);
+            setStyle(null);
+            return;
+        }
+        setText(mensaje.toString());
+        setStyle(mensaje.autor() == null ? ESTILO_SISTEMA : null);
+    }
+}
@@ -1,43 +1,55 @@
 package ui;
 
+import util.Bitacora;
 import util.Conexion;
-import javax.crypto.Cipher;
-import javax.crypto.spec.GCMParameterSpec;
-import javax.crypto.spec.SecretKeySpec;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
-import java.security.SecureRandom;
+import util.HistorialesPorPar;
+import util.HistorialMemoria;
+import util.IndiceHistorial;
+import util.MensajeChat;
+import util.Metricas;
+import util.MotorChat;
+import util.OyenteArchivos;
+import util.OyenteChat;
+import util.ProgresoTransferencia;
+import util.ProveedorHistorial;
+import util.RegistroMensajes;
+import util.RegistrosPorPar;
+import util.Sesion;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
 import java.util.function.Consumer;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import javafx.application.Platform;
 
 /**
  * Clase Chat que maneja el envío y recepción de mensajes cifrados
  * entre dos usuarios utilizando una conexión segura.
+ * Adapta a la interfaz el {@link MotorChat} de la sesión actual: los eventos llegan en el hilo
+ * lector y los controladores los pasan al hilo de JavaFX por su cuenta.
  */
 public class Chat {
 
     // Instancia singleton de Chat
     private static Chat instance;
 
-    // Longitud del IV (vector de inicialización) para GCM
-    private static final int GCM_IV_LENGTH = 12;
-
-    // Longitud del tag de autenticación para GCM
-    private static final int GCM_TAG_LENGTH = 16;
-
-    // Executor para manejar tareas concurrentes
-    private static final ExecutorService executor = Executors.newFixedThreadPool(3);
+    private static final Bitacora bitacora = Bitacora.de(Chat.class);
 
     // Nombre del usuario local
     private String nombreUser;
 
-    // Nombre del usuario remoto
-    private String nombreRemoto;
+    // Historial completo de la conversación; la interfaz solo muestra una ventana de él
+    private volatile ProveedorHistorial historial = new HistorialMemoria();
+
+    // Carpeta con un historial cifrado por conversación
+    private static final Path DIRECTORIO_HISTORIAL = Path.of(System.getProperty("user.home"), ".chatcifrado", "historial");
+
+    // Conversación con el par actual, creada al terminar el intercambio de claves
+    private volatile MotorChat motor;
 
     // Constructor privado para el patrón singleton
-    private Chat() {}
+    private Chat() {
+        Metricas.indicador("chat.historial.tamano", () -> historial.getTamano());
+    }
 
     /**
      * Obtiene la instancia singleton de Chat.
@@ -51,113 +63,278 @@ public class Chat {
     }
 
     /**
-     * Envía un mensaje cifrado al otro usuario.
+     * Empieza la conversación sobre una sesión que ya tiene clave, con un historial provisional en
+     * memoria: el persistente se guarda uno por par y solo se abre cuando el par prueba ser el de las
+     * conversaciones guardadas ({@link HistorialesPorPar}). No se lee nada hasta {@link #recibirMensaje},
+     * para que la ventana del chat no pierda mensajes. La conversación anterior, si la había, se cierra
+     * con su historial.
+     * @param sesion la sesión con el par
+     */
+    public void iniciarConversacion(Sesion sesion) {
+        MotorChat nuevo = new MotorChat(sesion, nombreUser, Runnable::run);
+        ProveedorHistorial anteriorHistorial = historial;
+        historial = new HistorialMemoria();
+        nuevo.setHistorial(historial);
+        RegistrosPorPar guardados = new RegistrosPorPar(DIRECTORIO_HISTORIAL, nombreUser);
+        nuevo.setHistorialesPorPar(new HistorialesPorPar() {
+            @Override
+            public byte[] secreto(String par) throws IOException {
+                return guardados.secreto(par);
+            }
+
+            @Override
+            public ProveedorHistorial abrir(String par, byte[] secreto) throws IOException {
+                RegistroMensajes registro = guardados.abrir(par, secreto);
+                historial = registro; // Se cierra con cerrarHistorial o con la conversación siguiente
+                return registro;
+            }
+        });
+        nuevo.setReconexion(Conexion.getInstance().getReconexion()); // Si se cae, se reconecta y reenvía lo pendiente
+        MotorChat anterior = motor;
+        motor = nuevo;
+        if (anterior != null && anterior.getSesion() != sesion) {
+            anterior.close();
+        }
+        cerrar(anteriorHistorial);
+    }
+
+    /**
+     * Envía un mensaje cifrado al otro usuario sin bloquear al hilo que llama.
      * @param mensaje el texto del mensaje a enviar
-     * @throws Exception si ocurre un error durante el cifrado o envío
+     * @return futuro que se completa al escribirse el mensaje o falla si no se pudo cifrar o enviar
      */
-    public void enviarMensaje(String mensaje) throws Exception {
-        Conexion conexion = Conexion.getInstance();
-        byte[] mensajeCifrado = encriptarMensaje(mensaje);
-        DataOutputStream dos = conexion.getDos();
-        dos.writeInt(mensajeCifrado.length);
-        dos.write(mensajeCifrado);
-        dos.flush();
+    public CompletableFuture<Void> enviarMensaje(String mensaje) {
+        return getMotor().enviar(mensaje);
     }
 
     /**
-     * Recibe mensajes de forma asíncrona y los pasa al consumidor recibido.
-     * @param onMessageReceived función que se ejecuta al recibir un mensaje
+     * Intercambia los nombres y empieza a recibir mensajes, que se guardan en el historial y se
+     * pasan al consumidor. Cuando el par prueba ser el de las conversaciones guardadas el historial cambia
+     * al suyo, y quien lo muestre debe volver a leerlo ({@link #recibirHistorialDelPar}); si no lo prueba,
+     * el consumidor recibe un aviso de que la conversación no se guarda. Si la conexión se cae, el
+     * consumidor recibe un aviso mientras se reconecta, otro al reanudarse y uno con la causa si no se pudo recuperar.
+     * @param onMessageReceived función que se ejecuta en el hilo lector con cada mensaje guardado;
+     *                          debe pasar los mensajes a la interfaz por su cuenta
      */
-    public void recibirMensaje(Consumer<String> onMessageReceived) {
-        Conexion conexion = Conexion.getInstance();
-        executor.submit(() -> {
-            try {
-                DataInputStream dis = conexion.getDis();
-                while (true) {
-                    int length = dis.readInt();
-                    byte[] mensajeCifrado = new byte[length];
-                    dis.readFully(mensajeCifrado);
-                    String mensaje = desencriptarMensaje(mensajeCifrado);
-                    Platform.runLater(() -> onMessageReceived.accept(mensaje));
+    public void recibirMensaje(Consumer<MensajeChat> onMessageReceived) {
+        MotorChat actual = getMotor();
+        actual.suscribir(new OyenteChat() {
+            @Override
+            public void mensajeRecibido(MensajeChat mensaje) {
+                onMessageReceived.accept(mensaje);
+            }
+
+            @Override
+            public void reconectando(Exception causa, int intento) {
+                if (intento == 1) {
+                    onMessageReceived.accept(actual.agregarAlHistorial(null, "Conexión interrumpida, reconectando... - " + causa.getMessage()));
+                }
+            }
+
+            @Override
+            public void reconectado() {
+                onMessageReceived.accept(actual.agregarAlHistorial(null, "Conexión restablecida"));
+            }
+
+            @Override
+            public void historialDelParRechazado(String motivo) {
+                onMessageReceived.accept(actual.agregarAlHistorial(null, motivo));
+            }
+
+            @Override
+            public void historialSincronizado(long recuperados) {
+                if (recuperados > 0) {
+                    onMessageReceived.accept(actual.agregarAlHistorial(null, "Historial sincronizado: " + recuperados + " mensajes recuperados del par"));
                 }
-            } catch (Exception e) {
-                Platform.runLater(() -> onMessageReceived.accept("Error: Conexión perdida - " + e.getMessage()));
+            }
+
+            @Override
+            public void conexionPerdida(Exception causa) {
+                onMessageReceived.accept(actual.agregarAlHistorial(null, "Error: Conexión perdida - " + causa.getMessage()));
             }
         });
+        actual.iniciar();
     }
 
     /**
-     * Envía el nombre del usuario cifrado.
-     * @param nombre el nombre del usuario
-     * @throws Exception si ocurre un error durante el cifrado o envío
+     * Pasa al consumidor el nombre del usuario remoto cuando llegue.
+     * @param onNombreReceived función que se ejecuta en el hilo lector con el nombre
      */
-    public void enviarNombreUsuario(String nombre) throws Exception {
-        Conexion conexion = Conexion.getInstance();
-        byte[] nombreCifrado = encriptarMensaje(nombre);
-        DataOutputStream dos = conexion.getDos();
-        dos.writeInt(nombreCifrado.length);
-        dos.write(nombreCifrado);
-        dos.flush();
+    public void recibirNombreUsuario(Consumer<String> onNombreReceived) {
+        getMotor().suscribir(new OyenteChat() {
+            @Override
+            public void nombreRecibido(String nombre) {
+                onNombreReceived.accept(nombre);
+            }
+
+            @Override
+            public void mensajeRecibido(MensajeChat mensaje) {}
+        });
     }
 
     /**
-     * Recibe el nombre de usuario cifrado y lo pasa al consumidor recibido.
-     * @param onNombreReceived función que se ejecuta al recibir el nombre
+     * Avisa cuando la conversación pasa al historial guardado con el par, que hay que volver a mostrar.
+     * @param alAbrirse función que se ejecuta en el hilo lector, antes de entregar más mensajes
      */
-    public void recibirNombreUsuario(Consumer<String> onNombreReceived) {
-        Conexion conexion = Conexion.getInstance();
-        executor.submit(() -> {
-            try {
-                DataInputStream dis = conexion.getDis();
-                int length = dis.readInt();
-                byte[] nombreCifrado = new byte[length];
-                dis.readFully(nombreCifrado);
-                String nombre = desencriptarMensaje(nombreCifrado);
-                Platform.runLater(() -> onNombreReceived.accept(nombre));
-            } catch (Exception e) {
-                Platform.runLater(() -> onNombreReceived.accept("Error: No se pudo recibir el nombre - " + e.getMessage()));
+    public void recibirHistorialDelPar(Runnable alAbrirse) {
+        getMotor().suscribir(new OyenteChat() {
+            @Override
+            public void historialDelParAbierto() {
+                alAbrirse.run();
+            }
+
+            @Override
+            public void mensajeRecibido(MensajeChat mensaje) {}
+        });
+    }
+
+    /**
+     * Pasa al consumidor si el usuario remoto está escribiendo, cada vez que cambia.
+     * @param onEscritura función que se ejecuta en el hilo lector o en el de los latidos
+     */
+    public void recibirEscritura(Consumer<Boolean> onEscritura) {
+        getMotor().suscribir(new OyenteChat() {
+            @Override
+            public void parEscribiendo(boolean escribiendo) {
+                onEscritura.accept(escribiendo);
             }
+
+            @Override
+            public void mensajeRecibido(MensajeChat mensaje) {}
         });
     }
 
     /**
-     * Cifra un mensaje utilizando AES en modo GCM.
+     * Anuncia al usuario remoto si el local está escribiendo; se puede llamar en cada pulsación.
+     * @param escribiendo true si hay texto a medio escribir
+     */
+    public void escribiendo(boolean escribiendo) {
+        getMotor().escribiendo(escribiendo);
+    }
+
+    /**
+     * Guarda un mensaje en el historial de la conversación (por ejemplo, uno enviado o un aviso).
+     * @param autor el autor del mensaje, o null para un aviso del sistema
+     * @param texto el contenido
+     * @return el mensaje con su secuencia en el historial
+     */
+    public MensajeChat agregarAlHistorial(String autor, String texto) {
+        return getMotor().agregarAlHistorial(autor, texto);
+    }
+
+    /**
+     * Obtiene el historial de la conversación.
+     * @return el proveedor del historial
+     */
+    public ProveedorHistorial getHistorial() {
+        return historial;
+    }
+
+    /**
+     * Busca en el historial de la conversación los mensajes que contienen las palabras de la consulta.
+     * La primera búsqueda lee el historial entero; no debe hacerse en el hilo de la interfaz.
+     * @param consulta palabras o principios de palabras, sin importar mayúsculas ni tildes
+     * @return los resultados, del más reciente al más antiguo, para pedirlos por páginas
+     */
+    public IndiceHistorial.Resultados buscar(String consulta) {
+        return getMotor().buscar(consulta);
+    }
+
+    /**
+     * Reemplaza el historial de la conversación (por ejemplo, por uno persistente).
+     * @param historial el nuevo proveedor del historial
+     */
+    public void setHistorial(ProveedorHistorial historial) {
+        this.historial = historial;
+        MotorChat actual = motor;
+        if (actual != null) {
+            actual.setHistorial(historial);
+        }
+    }
+
+    /**
+     * Abre el historial persistente de una conversación y lo usa en lugar del actual.
+     * @param conversacion identificador de la conversación (por ejemplo, usuario local y par)
+     * @throws IOException si no se puede abrir el registro
+     */
+    public void abrirHistorial(String conversacion) throws IOException {
+        RegistroMensajes registro = abrirRegistro(conversacion);
+        ProveedorHistorial anterior = historial;
+        setHistorial(registro);
+        if (anterior instanceof Closeable cerrable) {
+            cerrable.close();
+        }
+    }
+
+    private static RegistroMensajes abrirRegistro(String conversacion) throws IOException {
+        return RegistroMensajes.abrir(DIRECTORIO_HISTORIAL.resolve(conversacion.replaceAll("[^\\p{L}\\p{N}._-]", "_")));
+    }
+
+    /**
+     * Cierra el historial si es persistente, llevando a disco lo pendiente.
+     */
+    public void cerrarHistorial() {
+        cerrar(historial);
+    }
+
+    private static void cerrar(ProveedorHistorial historial) {
+        if (historial instanceof Closeable cerrable) {
+            try {
+                cerrable.close();
+            } catch (IOException e) {
+                bitacora.error("Error al cerrar el historial", e);
+            }
+        }
+    }
+
+    /**
+     * Envía un archivo cifrado al otro usuario por la misma conexión del chat.
+     * @param archivo el archivo a enviar
+     * @param progreso función que recibe el avance del envío; puede ser null
+     * @return futuro que se completa cuando se envió el último bloque
+     */
+    public CompletableFuture<Path> enviarArchivo(Path archivo, ProgresoTransferencia progreso) {
+        return getMotor().enviarArchivo(archivo, progreso);
+    }
+
+    /**
+     * Establece el oyente que recibe los eventos de los archivos entrantes.
+     * @param oyenteArchivos el oyente, invocado desde el hilo lector
+     */
+    public void setOyenteArchivos(OyenteArchivos oyenteArchivos) {
+        getMotor().setOyenteArchivos(oyenteArchivos);
+    }
+
+    /**
+     * Devuelve la conversación actual.
+     * @throws IllegalStateException si todavía no se negoció la clave con un par
+     */
+    public MotorChat getMotor() {
+        MotorChat actual = motor;
+        if (actual == null) {
+            throw new IllegalStateException("No hay conversación iniciada");
+        }
+        return actual;
+    }
+
+    /**
+     * Cifra un mensaje utilizando AES en modo GCM con la clave de la sesión actual.
      * @param mensaje el mensaje a cifrar
      * @return el mensaje cifrado con IV prepended
      * @throws Exception si ocurre un error en el proceso de cifrado
      */
     public byte[] encriptarMensaje(String mensaje) throws Exception {
-        SecretKeySpec keySpec = new SecretKeySpec(Conexion.getInstance().getClaveCompartida(), "AES");
-        byte[] iv = new byte[GCM_IV_LENGTH];
-        SecureRandom random = new SecureRandom();
-        random.nextBytes(iv);
-        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
-        GCMParameterSpec gcmSpec = new GCMParameterSpec(GCM_TAG_LENGTH * 8, iv);
-        cipher.init(Cipher.ENCRYPT_MODE, keySpec, gcmSpec);
-        byte[] textoCifrado = cipher.doFinal(mensaje.getBytes("UTF-8"));
-        byte[] mensajeCifrado = new byte[GCM_IV_LENGTH + textoCifrado.length];
-        System.arraycopy(iv, 0, mensajeCifrado, 0, GCM_IV_LENGTH);
-        System.arraycopy(textoCifrado, 0, mensajeCifrado, GCM_IV_LENGTH, textoCifrado.length);
-        return mensajeCifrado;
-    }
-
-    /**
-     * Descifra un mensaje recibido utilizando AES en modo GCM.
+        return Conexion.getInstance().getSesion().encriptar(mensaje);
+    }
+
+    /**
+     * Descifra un mensaje recibido utilizando AES en modo GCM con la clave de la sesión actual.
      * @param mensajeCifrado el mensaje cifrado con el IV al inicio
      * @return el mensaje descifrado en texto plano
      * @throws Exception si ocurre un error en el proceso de descifrado
      */
     public String desencriptarMensaje(byte[] mensajeCifrado) throws Exception {
-        byte[] iv = new byte[GCM_IV_LENGTH];
-        byte[] textoCifrado = new byte[mensajeCifrado.length - GCM_IV_LENGTH];
-        System.arraycopy(mensajeCifrado, 0, iv, 0, GCM_IV_LENGTH);
-        System.arraycopy(mensajeCifrado, GCM_IV_LENGTH, textoCifrado, 0, textoCifrado.length);
-        SecretKeySpec keySpec = new SecretKeySpec(Conexion.getInstance().getClaveCompartida(), "AES");
-        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
-        GCMParameterSpec gcmSpec = new GCMParameterSpec(GCM_TAG_LENGTH * 8, iv);
-        cipher.init(Cipher.DECRYPT_MODE, keySpec, gcmSpec);
-        byte[] textoPlano = cipher.doFinal(textoCifrado);
-        return new String(textoPlano, "UTF-8");
+        return Conexion.getInstance().getSesion().desencriptar(mensajeCifrado);
     }
 
     /**
@@ -178,17 +355,10 @@ public class Chat {
 
     /**
      * Obtiene el nombre del usuario remoto.
-     * @return el nombre del usuario remoto
+     * @return el nombre del usuario remoto, o null si todavía no llegó
      */
     public String getNombreRemoto() {
-        return nombreRemoto;
-    }
-
-    /**
-     * Establece el nombre del usuario remoto.
-     * @param nombreRemoto el nuevo nombre del usuario remoto
-     */
-    public void setNombreRemoto(String nombreRemoto) {
-        this.nombreRemoto = nombreRemoto;
+        MotorChat actual = motor;
+        return actual != null ? actual.getNombreRemoto() : null;
     }
 }
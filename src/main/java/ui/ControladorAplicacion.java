@@ -4,14 +4,38 @@ import javafx.application.Application;
 import javafx.fxml.FXMLLoader;
 import javafx.scene.Scene;
 import javafx.stage.Stage;
+import util.Bitacora;
+import util.IntercambioClaves;
+import util.ModoIntercambio;
+import util.ServidorMetricas;
+import util.SuiteCifrado;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Clase principal que extiende de Application para iniciar la interfaz gráfica de la aplicación cliente.
+ * Mientras se muestra el formulario de conexión, un hilo en segundo plano carga la ventana del chat
+ * y prepara la criptografía (proveedores de la JCA, acuerdo de claves y cifrados), para que al
+ * conectarse no haya que esperar a nada de eso; se desactiva con {@code -Dchat.precarga=false}.
+ * Los momentos en que aparece la primera ventana y el chat queda listo se anotan en la bitácora.
  */
 public class ControladorAplicacion extends Application {
 
+    public static final String PROPIEDAD_PRECARGA = "chat.precarga"; // "false" para no precargar durante el formulario
+
+    private static final Bitacora bitacora = Bitacora.de(ControladorAplicacion.class);
+
+    // Vistas que se están cargando o ya se cargaron en segundo plano, por nombre de FXML; cada una se usa una vez
+    private static final Map<String, CompletableFuture<FXMLLoader>> precargadas = new ConcurrentHashMap<>();
+
+    // Punto local de métricas, solo si se pidió con -Dchat.metricas.puerto
+    private ServidorMetricas servidorMetricas;
+
     /**
      * Método que se ejecuta al iniciar la aplicación.
      * Carga el archivo FXML principal y muestra la ventana.
@@ -21,6 +45,7 @@ public class ControladorAplicacion extends Application {
      */
     @Override
     public void start(Stage stage) throws IOException {
+        servidorMetricas = ServidorMetricas.iniciarSiSePide();
         // Carga el archivo FXML de la interfaz principal
         FXMLLoader fxmlLoader = new FXMLLoader(ControladorAplicacion.class.getResource("controlador-cliente.fxml"));
         // Crea la escena con dimensiones específicas
@@ -29,6 +54,89 @@ public class ControladorAplicacion extends Application {
         stage.setTitle("Cliente");
         stage.setScene(scene);
         stage.show();
+        anotarArranque("Primera ventana");
+        if (!"false".equalsIgnoreCase(System.getProperty(PROPIEDAD_PRECARGA))) {
+            Thread.ofPlatform().daemon().name("precarga").start(ControladorAplicacion::precargar);
+        }
+    }
+
+    /**
+     * Trabajo del hilo de precarga: primero la ventana del chat, que es lo que se ve al conectarse,
+     * y después la criptografía; la medición de las suites sigue en su propio hilo.
+     */
+    private static void precargar() {
+        precargar("chat");
+        IntercambioClaves.precalentar(ModoIntercambio.getPorDefecto());
+        SuiteCifrado.precalentar();
+        bitacora.depuracion(() -> "Precarga terminada a " + ManagementFactory.getRuntimeMXBean().getUptime() + " ms del arranque");
+    }
+
+    /**
+     * Carga una vista en el hilo que llama para que {@link #cargar} la entregue ya hecha. Los
+     * controladores de las vistas precargables no deben tocar la conversación en {@code initialize}.
+     *
+     * @param fxml nombre del archivo FXML (sin extensión) de la carpeta /ui/.
+     */
+    public static void precargar(String fxml) {
+        CompletableFuture<FXMLLoader> vista = new CompletableFuture<>();
+        if (precargadas.putIfAbsent(fxml, vista) != null) {
+            return;
+        }
+        try {
+            vista.complete(nuevaVista(fxml));
+        } catch (IOException | RuntimeException e) {
+            bitacora.aviso("No se pudo precargar " + fxml + ".fxml: " + e.getMessage());
+            vista.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * Devuelve una vista cargada, con su raíz y su controlador: la precargada si la hay (esperando a
+     * que termine, si aún se está cargando) o una nueva.
+     *
+     * @param fxml nombre del archivo FXML (sin extensión) de la carpeta /ui/.
+     */
+    public static FXMLLoader cargar(String fxml) {
+        CompletableFuture<FXMLLoader> precargada = precargadas.remove(fxml);
+        if (precargada != null) {
+            try {
+                return precargada.join();
+            } catch (RuntimeException e) {
+                // Ya se anotó al precargar; se intenta de nuevo aquí
+            }
+        }
+        try {
+            return nuevaVista(fxml);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static FXMLLoader nuevaVista(String fxml) throws IOException {
+        FXMLLoader fxmlLoader = new FXMLLoader(ControladorAplicacion.class.getResource("/ui/" + fxml + ".fxml"));
+        fxmlLoader.load();
+        return fxmlLoader;
+    }
+
+    /**
+     * Anota en la bitácora cuánto tardó en llegar un momento del arranque, desde que arrancó la JVM.
+     *
+     * @param hito lo que acaba de ocurrir, por ejemplo "Chat listo".
+     */
+    public static void anotarArranque(String hito) {
+        bitacora.info(hito + " a " + ManagementFactory.getRuntimeMXBean().getUptime() + " ms del arranque");
+    }
+
+    /**
+     * Método que se ejecuta al cerrar la aplicación.
+     * Lleva a disco el historial de la conversación y cierra el punto de métricas antes de salir.
+     */
+    @Override
+    public void stop() {
+        Chat.getInstance().cerrarHistorial();
+        if (servidorMetricas != null) {
+            servidorMetricas.close();
+        }
     }
 
     /**
@@ -56,15 +164,18 @@ public class ControladorAplicacion extends Application {
      * @param stage escenario donde se mostrará la interfaz; si es null, se crea uno nuevo.
      */
     public static void showWindow(String fxml, Stage stage) {
-        // Carga el archivo FXML especificado
-        FXMLLoader fxmlLoader = new FXMLLoader(ControladorAplicacion.class.getResource("/ui/" + fxml + ".fxml"));
-        Scene scene;
-        try {
-            // Crea la escena con tamaño fijo
-            scene = new Scene(fxmlLoader.load(), 600, 400); // Tamaño ajustado
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
+        showWindow(cargar(fxml), stage);
+    }
+
+    /**
+     * Muestra una nueva ventana con una vista ya cargada (por ejemplo, con {@link #cargar}).
+     *
+     * @param vista cargador que ya leyó el FXML.
+     * @param stage escenario donde se mostrará la interfaz; si es null, se crea uno nuevo.
+     */
+    public static void showWindow(FXMLLoader vista, Stage stage) {
+        // Crea la escena con tamaño fijo
+        Scene scene = new Scene(vista.getRoot(), 600, 400); // Tamaño ajustado
         // Si no se proporcionó un Stage, se crea uno nuevo
         if (stage == null) stage = new Stage();
         // Configura y muestra la nueva ventana
@@ -3,68 +3,310 @@ package ui;
 import javafx.application.Platform;
 import javafx.fxml.FXML;
 import javafx.fxml.Initializable;
+import javafx.geometry.Orientation;
+import javafx.scene.Node;
 import javafx.scene.control.Label;
-import javafx.scene.control.TextArea;
+import javafx.scene.control.ListView;
+import javafx.scene.control.ScrollBar;
 import javafx.scene.control.TextField;
-import util.Conexion;
+import javafx.scene.input.KeyCode;
+import javafx.stage.FileChooser;
+import util.IndiceHistorial;
+import util.MensajeChat;
+import util.OyenteArchivos;
 
+import java.io.File;
 import java.net.URL;
+import java.nio.file.Path;
+import java.util.List;
 import java.util.ResourceBundle;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Controlador de la interfaz del chat.
  * Gestiona el envío y recepción de mensajes en la ventana del chat.
+ * La conversación se muestra en una lista virtualizada que solo guarda una ventana de mensajes;
+ * los que llegan desde otros hilos se agrupan en un único pulso por fotograma.
+ * La búsqueda muestra sus resultados en otra lista que se va llenando por páginas al desplazarse;
+ * al elegir uno, la conversación salta a ese mensaje.
  */
 public class ControladorChat implements Initializable {
 
-    @FXML private Label statusLabel; // Etiqueta de estado (no usada en este código, pero declarada en la UI)
-    @FXML private TextArea chatArea; // Área de texto donde se muestra la conversación
+    @FXML private Label statusLabel; // Etiqueta de estado, muestra el avance de las transferencias
+    @FXML private ListView<MensajeChat> chatList; // Lista virtualizada donde se muestra la conversación
     @FXML private TextField messageField; // Campo de texto para escribir el mensaje a enviar
+    @FXML private TextField searchField; // Campo de búsqueda en el historial
+    @FXML private ListView<MensajeChat> resultList; // Resultados de la búsqueda, encima de la conversación
 
     private Chat chat = Chat.getInstance(); // Instancia única de la clase Chat
-    private String nombreUsuario = chat.getNombreUser(); // Nombre del usuario local
+    private String nombreUsuario; // Nombre del usuario local, que se conoce al iniciar la conversación
+    private volatile long ultimoProgreso; // Momento de la última actualización de progreso mostrada
+    private VentanaMensajes ventana; // Mensajes que se mantienen en la lista
+    private PulsoMensajes<MensajeChat> pulso; // Entrega en lotes los mensajes al hilo de la interfaz
+    private ScrollBar barraVertical; // Barra de desplazamiento de la lista, para paginar el historial
+    private IndiceHistorial.Resultados resultados; // Búsqueda que se muestra; null si no hay ninguna
+    private int busquedas; // Búsquedas lanzadas; descarta la respuesta de una que ya no es la última
+
+    private static final long INTERVALO_PROGRESO_NANOS = 100_000_000L; // Como mucho diez actualizaciones por segundo
+    private static final int PAGINA_RESULTADOS = 50; // Resultados que se cargan cada vez que se llega al final
 
     /**
      * Método que se ejecuta al inicializar la vista.
-     * Inicia un hilo para recibir mensajes de manera asíncrona y los muestra en el área de chat.
+     * Prepara las listas y la búsqueda sin tocar la conversación, que aún puede no existir si la
+     * vista se precarga durante el formulario de conexión; la recepción empieza con {@link #iniciar()}.
      *
      * @param url no utilizado.
      * @param resourceBundle no utilizado.
      */
     @Override
     public void initialize(URL url, ResourceBundle resourceBundle) {
-        // Inicia la recepción de mensajes entrantes
-        chat.recibirMensaje(mensaje -> {
-            String nombreRemoto = chat.getNombreRemoto();
-            Platform.runLater(() ->
-                    chatArea.appendText(
-                            nombreRemoto != null ? nombreRemoto + ": " + mensaje + "\n" : "Otro: " + mensaje + "\n"
-                    )
-            );
+        chatList.setCellFactory(lista -> new CeldaMensaje());
+        pulso = new PulsoMensajes<>(this::mostrarMensajes);
+        chatList.skinProperty().addListener((propiedad, anterior, piel) -> instalarPaginacion());
+        resultList.setCellFactory(lista -> new CeldaMensaje());
+        resultList.skinProperty().addListener((propiedad, anterior, piel) -> instalarPaginacionResultados());
+        resultList.setOnMouseClicked(evento -> {
+            MensajeChat elegido = resultList.getSelectionModel().getSelectedItem();
+            if (elegido != null) {
+                mostrarResultado(elegido);
+            }
+        });
+        searchField.setOnKeyPressed(evento -> {
+            if (evento.getCode() == KeyCode.ESCAPE) {
+                searchField.clear();
+                cerrarBusqueda();
+            }
+        });
+    }
+
+    /**
+     * Conecta la ventana con la conversación ya negociada: muestra el final del historial, se
+     * suscribe a los mensajes, archivos y avisos de escritura del par y empieza a recibir.
+     * Se llama en el hilo de JavaFX, antes de mostrar la ventana.
+     */
+    public void iniciar() {
+        nombreUsuario = chat.getNombreUser();
+        mostrarHistorial();
+        // Cuando el par prueba ser el de las conversaciones guardadas, se muestra su historial
+        chat.recibirHistorialDelPar(() -> Platform.runLater(this::mostrarHistorial));
+
+        // Muestra los archivos entrantes en el chat y su avance en la etiqueta de estado
+        chat.setOyenteArchivos(new OyenteArchivos() {
+            @Override
+            public void progresoRecepcion(String nombre, long recibidos, long tamano) {
+                mostrarProgreso("Recibiendo " + nombre, recibidos, tamano);
+            }
+
+            @Override
+            public void recepcionCompletada(Path archivo) {
+                Platform.runLater(() -> statusLabel.setText("Conectado"));
+                avisar("Archivo recibido: " + archivo);
+            }
+
+            @Override
+            public void recepcionFallida(String nombre, Exception causa) {
+                avisar("Error al recibir " + nombre + ": " + causa.getMessage());
+            }
+        });
+        // Anuncia al par cuándo se escribe y muestra en la etiqueta de estado cuándo escribe él
+        messageField.textProperty().addListener((propiedad, anterior, texto) -> chat.escribiendo(!texto.isBlank()));
+        chat.recibirEscritura(escribiendo -> Platform.runLater(() -> mostrarEscritura(escribiendo)));
+        // Inicia la recepción de mensajes entrantes; el pulso los agrupa por fotograma
+        chat.recibirMensaje(pulso::publicar);
+    }
+
+    /**
+     * Vuelve a llenar la lista con el final del historial actual, incluida la conversación guardada
+     * de ejecuciones anteriores.
+     */
+    private void mostrarHistorial() {
+        ventana = new VentanaMensajes(chatList.getItems(), chat.getHistorial(), VentanaMensajes.FILAS_MAXIMAS);
+        ventana.cargarUltimos();
+        if (!chatList.getItems().isEmpty()) {
+            chatList.scrollTo(chatList.getItems().size() - 1);
+        }
+    }
+
+    /**
+     * Muestra en la etiqueta de estado que el usuario remoto está escribiendo, o lo quita si la
+     * etiqueta aún lo decía (sin tapar el avance de una transferencia que empezó mientras tanto).
+     */
+    private void mostrarEscritura(boolean escribiendo) {
+        String aviso = (chat.getNombreRemoto() != null ? chat.getNombreRemoto() : "El otro usuario") + " está escribiendo...";
+        if (escribiendo) {
+            statusLabel.setText(aviso);
+        } else if (statusLabel.getText().equals(aviso)) {
+            statusLabel.setText("Conectado");
+        }
+    }
+
+    /**
+     * Añade a la lista un lote de mensajes y mantiene la vista al final si el usuario ya estaba ahí.
+     */
+    private void mostrarMensajes(List<MensajeChat> lote) {
+        boolean alFinal = barraVertical == null || barraVertical.getValue() >= barraVertical.getMax();
+        ventana.agregarRecientes(lote);
+        if (alFinal && ventana.isEnVivo()) {
+            chatList.scrollTo(chatList.getItems().size() - 1);
+        }
+    }
+
+    /**
+     * Carga páginas del historial al llegar al principio o al final de la lista.
+     */
+    private void instalarPaginacion() {
+        ScrollBar barra = buscarBarraVertical(chatList);
+        if (barra == null) {
+            return;
+        }
+        barraVertical = barra;
+        barra.valueProperty().addListener((propiedad, anterior, valor) -> {
+            if (valor.doubleValue() <= barra.getMin()) {
+                int cargados = ventana.cargarAnteriores();
+                if (cargados > 0) {
+                    chatList.scrollTo(cargados);
+                }
+            } else if (valor.doubleValue() >= barra.getMax() && !ventana.isEnVivo()) {
+                ventana.cargarPosteriores();
+            }
+        });
+    }
+
+    /**
+     * Carga la siguiente página de resultados al llegar al final de su lista.
+     */
+    private void instalarPaginacionResultados() {
+        ScrollBar barra = buscarBarraVertical(resultList);
+        if (barra == null) {
+            return;
+        }
+        barra.valueProperty().addListener((propiedad, anterior, valor) -> {
+            if (valor.doubleValue() >= barra.getMax() && resultados != null && !resultados.isTerminada()) {
+                resultList.getItems().addAll(resultados.siguientes(PAGINA_RESULTADOS));
+            }
         });
     }
 
+    private static ScrollBar buscarBarraVertical(ListView<?> lista) {
+        for (Node nodo : lista.lookupAll(".scroll-bar")) {
+            if (nodo instanceof ScrollBar barra && barra.getOrientation() == Orientation.VERTICAL) {
+                return barra;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Guarda un aviso en el historial y lo muestra en la lista; puede llamarse desde cualquier hilo.
+     */
+    private void avisar(String texto) {
+        pulso.publicar(chat.agregarAlHistorial(null, texto));
+    }
+
     /**
      * Método llamado cuando se hace clic en el botón de enviar.
-     * Envía el mensaje escrito al otro usuario y lo muestra en el área de chat.
+     * El mensaje se encola para su envío y se muestra de inmediato; si el envío falla
+     * más tarde, el error se muestra en la conversación.
      */
     @FXML
     private void onSendButtonClick() {
         String mensaje = messageField.getText().trim();
         if (!mensaje.isEmpty()) {
-            try {
-                // Enviar el mensaje a través del canal seguro
-                chat.enviarMensaje(mensaje);
-                // Mostrar el mensaje en el área de chat como emisor local
-                chatArea.appendText(nombreUsuario + ": " + mensaje + "\n");
-                // Limpiar el campo de entrada
-                messageField.clear();
-            } catch (Exception e) {
-                // En caso de error, mostrar el mensaje de error en el chat
-                Platform.runLater(() -> {
-                    chatArea.appendText("Error al enviar mensaje: " + e.getMessage() + "\n");
-                });
+            // Encolar el mensaje en el canal seguro sin bloquear la interfaz
+            chat.enviarMensaje(mensaje).whenComplete((ignorado, error) -> {
+                if (error != null) {
+                    // En caso de error, mostrar el mensaje de error en el chat
+                    avisar("Error al enviar mensaje: " + error.getMessage());
+                }
+            });
+            // Mostrar el mensaje en la conversación como emisor local
+            pulso.publicar(chat.agregarAlHistorial(nombreUsuario, mensaje));
+            // Limpiar el campo de entrada
+            messageField.clear();
+        }
+    }
+
+    /**
+     * Método llamado al pulsar Intro en el campo de búsqueda.
+     * Busca en otro hilo, porque la primera búsqueda construye el índice leyendo todo el historial,
+     * y muestra la primera página de resultados, del más reciente al más antiguo.
+     */
+    @FXML
+    private void onSearch() {
+        String consulta = searchField.getText().trim();
+        if (consulta.isEmpty()) {
+            cerrarBusqueda();
+            return;
+        }
+        int busqueda = ++busquedas;
+        statusLabel.setText("Buscando...");
+        CompletableFuture.supplyAsync(() -> chat.buscar(consulta)).whenComplete((encontrados, error) -> Platform.runLater(() -> {
+            if (busqueda != busquedas) {
+                return; // Se lanzó otra búsqueda o se cerró mientras tanto
             }
+            if (error != null) {
+                statusLabel.setText("Error al buscar: " + error.getMessage());
+                return;
+            }
+            resultados = encontrados;
+            resultList.getItems().setAll(encontrados.siguientes(PAGINA_RESULTADOS));
+            resultList.scrollTo(0);
+            resultList.setVisible(true);
+            statusLabel.setText(resultList.getItems().isEmpty() ? "Sin resultados para \"" + consulta + "\"" : "Resultados de \"" + consulta + "\"");
+        }));
+    }
+
+    /**
+     * Oculta los resultados y lleva la conversación al mensaje elegido.
+     */
+    private void mostrarResultado(MensajeChat mensaje) {
+        cerrarBusqueda();
+        int posicion = ventana.irA(mensaje.secuencia());
+        chatList.scrollTo(posicion);
+        chatList.getSelectionModel().select(posicion);
+    }
+
+    /**
+     * Descarta la búsqueda en curso o mostrada y vuelve a la conversación.
+     */
+    private void cerrarBusqueda() {
+        busquedas++;
+        resultados = null;
+        resultList.getItems().clear();
+        resultList.setVisible(false);
+        statusLabel.setText("Conectado");
+    }
+
+    /**
+     * Método llamado cuando se hace clic en el botón de archivo.
+     * Permite elegir un archivo y lo envía cifrado por la conexión del chat,
+     * mostrando el avance en la etiqueta de estado.
+     */
+    @FXML
+    private void onFileButtonClick() {
+        File elegido = new FileChooser().showOpenDialog(chatList.getScene().getWindow());
+        if (elegido == null) {
+            return;
+        }
+        String nombre = elegido.getName();
+        avisar(nombreUsuario + " envía el archivo " + nombre);
+        chat.enviarArchivo(elegido.toPath(), (enviados, total) -> mostrarProgreso("Enviando " + nombre, enviados, total))
+                .whenComplete((archivo, error) -> {
+                    Platform.runLater(() -> statusLabel.setText("Conectado"));
+                    avisar(error != null ? "Error al enviar " + nombre + ": " + error.getMessage() : "Archivo enviado: " + nombre);
+                });
+    }
+
+    /**
+     * Muestra el porcentaje de una transferencia sin saturar el hilo de la interfaz.
+     */
+    private void mostrarProgreso(String accion, long transferidos, long total) {
+        long ahora = System.nanoTime();
+        if (transferidos < total && ahora - ultimoProgreso < INTERVALO_PROGRESO_NANOS) {
+            return;
         }
+        ultimoProgreso = ahora;
+        int porcentaje = total > 0 ? (int) (transferidos * 100 / total) : 100;
+        Platform.runLater(() -> statusLabel.setText(accion + ": " + porcentaje + "%"));
     }
 }
@@ -12,15 +12,14 @@ import util.Conexion;
 import javafx.fxml.Initializable;
 
 import java.net.URL;
-import java.security.KeyPair;
-import java.security.PublicKey;
-import java.security.PrivateKey;
 import java.util.ResourceBundle;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 /**
  * Controlador para la vista principal del cliente.
  * Permite al usuario ingresar su nombre y seleccionar si actuará como Peer A o Peer B.
- * Establece la conexión segura utilizando Diffie-Hellman y transfiere los nombres de usuario.
+ * Establece la conexión segura con el intercambio de claves de {@link Conexion} y transfiere los nombres de usuario.
  */
 public class ControladorCliente implements Initializable {
 
@@ -30,6 +29,9 @@ public class ControladorCliente implements Initializable {
     @FXML
     private ChoiceBox<String> peer; // ChoiceBox para seleccionar el tipo de peer (A o B)
 
+    @FXML
+    private Button conectarse; // Botón de conexión, desactivado mientras se espera al par
+
     /**
      * Se ejecuta al hacer clic en el botón de conectarse.
      * Realiza validaciones, establece la conexión segura, intercambia claves y muestra la ventana de chat.
@@ -49,69 +51,46 @@ public class ControladorCliente implements Initializable {
         Stage stage = (Stage) nombre.getScene().getWindow();
         Conexion conexion = Conexion.getInstance();
         Chat chat = Chat.getInstance();
-        chat.setNombreUser(nombre.getText()); // Asignar el nombre local del usuario
+        chat.setNombreUser(nombre.getText()); // Asignar el nombre local del usuario; el historial se abre al saber el del par
 
+        CompletableFuture<Void> conectada;
         try {
-            // Generar par de llaves públicas/privadas con Diffie-Hellman
-            KeyPair keyPair = conexion.diffieHellman();
-            PublicKey llavePublica = keyPair.getPublic();
-            PrivateKey llavePrivada = keyPair.getPrivate();
-
             if (peer.getValue().equals("Peer A")) {
-                // Peer A actúa como servidor: recibe primero la clave y luego responde
-                conexion.setServerSocket();
-                System.out.println("Servidor iniciado, esperando clave pública...");
-                conexion.recibirClavePublica((publicKeyRecibida) -> {
-                    System.out.println("Clave pública recibida: " + publicKeyRecibida);
-                    try {
-                        conexion.enviarClavePublica(llavePublica);
-                        System.out.println("Clave pública enviada por el servidor: " + llavePublica);
-                        byte[] claveCompartida = conexion.generarClaveCompartida(llavePrivada, publicKeyRecibida);
-                        System.out.println("Clave compartida generada (servidor): " + java.util.Arrays.toString(claveCompartida));
-                        conexion.setClaveCompartida(claveCompartida);
-
-                        // Intercambio de nombres de usuario
-                        chat.enviarNombreUsuario(nombre.getText());
-                        chat.recibirNombreUsuario(nombreRemoto -> chat.setNombreRemoto(nombreRemoto));
-
-                        // Cambiar a la ventana de chat
-                        Platform.runLater(() -> {
-                            ControladorAplicacion.hideWindow(stage);
-                            ControladorAplicacion.showWindow("chat", stage);
-                        });
-                    } catch (Exception e) {
-                        showError("Error en el intercambio de claves o nombres: " + e.getMessage());
-                    }
-                });
+                // Peer A actúa como servidor: espera la conexión en otro hilo para que la ventana siga respondiendo
+                conectada = conexion.esperarPar();
             } else {
-                // Peer B actúa como cliente: envía la clave primero y luego espera respuesta
-                conexion.setClientSocket("127.0.0.1");
-                conexion.enviarClavePublica(llavePublica);
-                System.out.println("Clave pública enviada por el cliente: " + llavePublica);
-                conexion.recibirClavePublica((publicKeyRecibida) -> {
-                    System.out.println("Clave pública recibida: " + publicKeyRecibida);
-                    try {
-                        byte[] claveCompartida = conexion.generarClaveCompartida(llavePrivada, publicKeyRecibida);
-                        System.out.println("Clave compartida generada (cliente): " + java.util.Arrays.toString(claveCompartida));
-                        conexion.setClaveCompartida(claveCompartida);
-
-                        // Intercambio de nombres de usuario
-                        chat.enviarNombreUsuario(nombre.getText());
-                        chat.recibirNombreUsuario(nombreRemoto -> chat.setNombreRemoto(nombreRemoto));
-
-                        // Cambiar a la ventana de chat
-                        Platform.runLater(() -> {
-                            ControladorAplicacion.hideWindow(stage);
-                            ControladorAplicacion.showWindow("chat", stage);
-                        });
-                    } catch (Exception e) {
-                        showError("Error al generar clave compartida o nombres: " + e.getMessage());
-                    }
-                });
+                // Peer B actúa como cliente: propone el intercambio o reanuda la sesión anterior
+                conexion.conectar();
+                conectada = CompletableFuture.completedFuture(null);
             }
         } catch (Exception e) {
             showError("Error al establecer conexión: " + e.getMessage());
+            return;
         }
+        conectarse.setDisable(true); // Hasta que el par llegue o falle la conexión
+        // El intercambio de claves corre en un hilo de la sesión, fuera del hilo de la interfaz
+        conectada.thenCompose(conectado -> conexion.negociarClave()).whenComplete((listo, error) -> {
+            if (error != null) {
+                Throwable causa = error instanceof CompletionException ? error.getCause() : error;
+                Platform.runLater(() -> {
+                    conectarse.setDisable(false);
+                    showError("Error al establecer conexión: " + causa.getMessage());
+                });
+                return;
+            }
+            // La conversación intercambia los nombres cuando la ventana de chat empieza a recibir
+            chat.iniciarConversacion(conexion.getSesion());
+
+            // Cambiar a la ventana de chat, normalmente ya cargada durante el formulario
+            Platform.runLater(() -> {
+                FXMLLoader vista = ControladorAplicacion.cargar("chat");
+                ControladorChat controladorChat = vista.getController();
+                controladorChat.iniciar();
+                ControladorAplicacion.hideWindow(stage);
+                ControladorAplicacion.showWindow(vista, stage);
+                ControladorAplicacion.anotarArranque("Chat listo");
+            });
+        });
     }
 
     /**
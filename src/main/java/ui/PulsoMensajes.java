@@ -0,0 +1,81 @@
+package ui;
+
+import javafx.application.Platform;
+import util.EventosChat;
+import util.Metricas;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * Agrupa los elementos publicados desde cualquier hilo y los entrega al hilo de la interfaz
+ * en lotes: solo hay un {@code runLater} pendiente a la vez, y al ejecutarse entrega todo lo
+ * que llegó desde el anterior. Así una ráfaga de mensajes cuesta una actualización de la lista
+ * en lugar de una por mensaje.
+ *
+ * @param <T> tipo de los elementos publicados
+ */
+public class PulsoMensajes<T> {
+
+    private final Queue<T> pendientes = new ConcurrentLinkedQueue<>(); // Publicados y aún no entregados
+    private final AtomicBoolean programado = new AtomicBoolean(); // true si ya hay una entrega en cola
+    private volatile long primeraPublicacion; // Reloj de la publicación que programó la entrega
+    private final Consumer<List<T>> destino; // Recibe cada lote en el hilo de la interfaz
+    private final Executor hiloInterfaz; // Ejecuta la entrega (Platform.runLater en la aplicación)
+
+    /**
+     * Crea el pulso que entrega los lotes con {@link Platform#runLater}.
+     */
+    public PulsoMensajes(Consumer<List<T>> destino) {
+        this(destino, Platform::runLater);
+    }
+
+    /**
+     * Crea el pulso con el ejecutor de entrega indicado.
+     */
+    public PulsoMensajes(Consumer<List<T>> destino, Executor hiloInterfaz) {
+        this.destino = destino;
+        this.hiloInterfaz = hiloInterfaz;
+    }
+
+    /**
+     * Publica un elemento; puede llamarse desde cualquier hilo.
+     */
+    public void publicar(T elemento) {
+        pendientes.add(elemento);
+        if (programado.compareAndSet(false, true)) {
+            primeraPublicacion = System.nanoTime();
+            hiloInterfaz.execute(this::drenar);
+        }
+    }
+
+    /**
+     * Entrega en un solo lote todo lo publicado hasta ahora y mide cuánto esperó el primero.
+     */
+    void drenar() {
+        long inicio = primeraPublicacion; // Se lee antes de permitir otra entrega
+        programado.set(false);
+        List<T> lote = new ArrayList<>();
+        T elemento;
+        while ((elemento = pendientes.poll()) != null) {
+            lote.add(elemento);
+        }
+        if (!lote.isEmpty()) {
+            destino.accept(lote);
+            long latencia = System.nanoTime() - inicio;
+            Metricas.RECEPCION_PANTALLA.registrar(latencia);
+            Metricas.LOTE_PANTALLA.registrar(lote.size());
+            EventosChat.Recepcion evento = new EventosChat.Recepcion();
+            if (evento.shouldCommit()) {
+                evento.mensajes = lote.size();
+                evento.latencia = latencia;
+                evento.commit();
+            }
+        }
+    }
+}
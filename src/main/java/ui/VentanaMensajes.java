@@ -0,0 +1,164 @@
+package ui;
+
+import javafx.collections.ObservableList;
+import util.MensajeChat;
+import util.ProveedorHistorial;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Ventana de la conversación que se mantiene en la lista de la interfaz.
+ * Guarda como mucho {@code filasMaximas} mensajes; el resto queda en el {@link ProveedorHistorial}
+ * y se pide por páginas cuando el usuario se desplaza hacia arriba o de vuelta hacia abajo.
+ * Las filas siempre están en orden de secuencia, aunque los mensajes en vivo lleguen desordenados.
+ * Solo debe usarse desde el hilo de la interfaz.
+ */
+public class VentanaMensajes {
+
+    public static final int FILAS_MAXIMAS = 2000; // Mensajes en memoria de la interfaz
+    public static final int TAMANO_PAGINA = 200; // Mensajes que se cargan en cada página
+    private static final Comparator<MensajeChat> POR_SECUENCIA = Comparator.comparingLong(MensajeChat::secuencia);
+
+    private final ObservableList<MensajeChat> filas; // Filas que muestra la lista
+    private final ProveedorHistorial historial; // Origen de las páginas
+    private final int filasMaximas;
+    private boolean enVivo = true; // true si la ventana llega hasta el último mensaje
+    private long leidosHasta = -1; // Última secuencia leída del historial: las anteriores ya se cargaron o se dejaron fuera
+
+    /**
+     * Crea la ventana sobre la lista de filas indicada.
+     */
+    public VentanaMensajes(ObservableList<MensajeChat> filas, ProveedorHistorial historial, int filasMaximas) {
+        this.filas = filas;
+        this.historial = historial;
+        this.filasMaximas = filasMaximas;
+    }
+
+    /**
+     * Sustituye la ventana por la última página del historial y vuelve al modo en vivo.
+     */
+    public void cargarUltimos() {
+        filas.setAll(historial.anteriores(Long.MAX_VALUE, TAMANO_PAGINA));
+        enVivo = true;
+        leidosHasta = filas.isEmpty() ? -1 : filas.get(filas.size() - 1).secuencia();
+    }
+
+    /**
+     * Añade los mensajes recién llegados en su sitio por secuencia y descarta los más antiguos que sobren.
+     * El lote puede venir desordenado: el hilo de la interfaz y el lector guardan y publican cada uno los
+     * suyos, así que un mensaje puede publicarse después de otro que se guardó más tarde. Los que ya se
+     * leyeron del historial al cargar una página se omiten. Si el usuario está leyendo mensajes antiguos
+     * no se añaden: se cargarán al volver al final.
+     */
+    public void agregarRecientes(List<MensajeChat> nuevos) {
+        if (!enVivo || nuevos.isEmpty()) {
+            return;
+        }
+        List<MensajeChat> ordenados = new ArrayList<>(nuevos);
+        ordenados.sort(POR_SECUENCIA);
+        long ultima = filas.isEmpty() ? -1 : filas.get(filas.size() - 1).secuencia();
+        List<MensajeChat> alFinal = new ArrayList<>(ordenados.size());
+        for (MensajeChat mensaje : ordenados) {
+            long secuencia = mensaje.secuencia();
+            if (secuencia <= leidosHasta || secuencia == ultima) {
+                continue; // Ya cargado
+            }
+            if (secuencia > ultima) {
+                alFinal.add(mensaje);
+                ultima = secuencia;
+            } else {
+                insertar(mensaje); // Se publicó después de uno posterior que ya está en las filas
+            }
+        }
+        if (alFinal.size() >= filasMaximas) {
+            filas.setAll(alFinal.subList(alFinal.size() - filasMaximas, alFinal.size()));
+            return;
+        }
+        int sobran = filas.size() + alFinal.size() - filasMaximas;
+        if (sobran > 0) {
+            filas.remove(0, sobran);
+        }
+        filas.addAll(alFinal);
+    }
+
+    /**
+     * Inserta un mensaje entre las filas en el lugar de su secuencia, si no está ya.
+     */
+    private void insertar(MensajeChat mensaje) {
+        int posicion = Collections.binarySearch(filas, mensaje, POR_SECUENCIA);
+        if (posicion < 0) {
+            filas.add(-posicion - 1, mensaje);
+        }
+    }
+
+    /**
+     * Carga la página anterior al primer mensaje visible.
+     * @return el número de mensajes añadidos al principio
+     */
+    public int cargarAnteriores() {
+        if (filas.isEmpty()) {
+            return 0;
+        }
+        List<MensajeChat> pagina = historial.anteriores(filas.get(0).secuencia(), TAMANO_PAGINA);
+        if (pagina.isEmpty()) {
+            return 0;
+        }
+        filas.addAll(0, pagina);
+        int sobran = filas.size() - filasMaximas;
+        if (sobran > 0) {
+            filas.remove(filas.size() - sobran, filas.size());
+            enVivo = false;
+        }
+        return pagina.size();
+    }
+
+    /**
+     * Carga la página siguiente al último mensaje visible, volviendo al modo en vivo al alcanzar el final.
+     * @return el número de mensajes añadidos al final
+     */
+    public int cargarPosteriores() {
+        if (enVivo || filas.isEmpty()) {
+            return 0;
+        }
+        List<MensajeChat> pagina = historial.posteriores(filas.get(filas.size() - 1).secuencia(), TAMANO_PAGINA);
+        filas.addAll(pagina);
+        if (!pagina.isEmpty()) {
+            leidosHasta = Math.max(leidosHasta, pagina.get(pagina.size() - 1).secuencia());
+        }
+        int sobran = filas.size() - filasMaximas;
+        if (sobran > 0) {
+            filas.remove(0, sobran);
+        }
+        if (pagina.size() < TAMANO_PAGINA) {
+            enVivo = true;
+        }
+        return pagina.size();
+    }
+
+    /**
+     * Sustituye la ventana por una página del historial centrada en un mensaje, por ejemplo un resultado
+     * de búsqueda. Si la página llega hasta el último mensaje, la ventana vuelve al modo en vivo.
+     * @return la posición del mensaje en la lista
+     */
+    public int irA(long secuencia) {
+        List<MensajeChat> antes = historial.anteriores(secuencia + 1, TAMANO_PAGINA / 2); // Incluye el propio mensaje
+        List<MensajeChat> despues = historial.posteriores(secuencia, TAMANO_PAGINA / 2);
+        filas.setAll(antes);
+        filas.addAll(despues);
+        if (!filas.isEmpty()) {
+            leidosHasta = Math.max(leidosHasta, filas.get(filas.size() - 1).secuencia());
+        }
+        enVivo = despues.size() < TAMANO_PAGINA / 2;
+        return antes.size() - 1;
+    }
+
+    /**
+     * Indica si la ventana muestra los mensajes más recientes.
+     */
+    public boolean isEnVivo() {
+        return enVivo;
+    }
+}
@@ -0,0 +1,74 @@
+package util;
+
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Ámbito de las tareas de una sesión (lectores, intercambio de claves, etc.).
+ * Cada tarea lanzada queda registrada hasta que termina; al cerrar el ámbito se cancelan
+ * e interrumpen todas las que sigan vivas, de modo que ninguna sobrevive a su sesión.
+ */
+public class AmbitoSesion implements AutoCloseable {
+
+    private final ModoEjecucion modo; // Modelo de hilos de las tareas
+    private final Set<Future<?>> activas = ConcurrentHashMap.newKeySet(); // Tareas lanzadas que no han terminado
+    private volatile boolean cerrado;
+
+    /**
+     * Crea un ámbito vacío cuyas tareas corren según el modo indicado.
+     */
+    public AmbitoSesion(ModoEjecucion modo) {
+        this.modo = modo;
+    }
+
+    /**
+     * Lanza una tarea dentro del ámbito.
+     * @return futuro de la tarea; ya cancelado si el ámbito estaba cerrado
+     */
+    public <T> Future<T> lanzar(Callable<T> tarea) {
+        FutureTask<T> futuro = new FutureTask<>(tarea) {
+            @Override
+            protected void done() {
+                activas.remove(this);
+            }
+        };
+        activas.add(futuro);
+        if (cerrado) {
+            futuro.cancel(false);
+            return futuro;
+        }
+        modo.getEjecutor().execute(futuro);
+        return futuro;
+    }
+
+    /**
+     * Lanza una tarea sin resultado dentro del ámbito.
+     */
+    public Future<?> lanzar(Runnable tarea) {
+        return lanzar(() -> {
+            tarea.run();
+            return null;
+        });
+    }
+
+    /**
+     * Devuelve el número de tareas vivas en el ámbito.
+     */
+    public int getTareasActivas() {
+        return activas.size();
+    }
+
+    /**
+     * Cancela e interrumpe todas las tareas del ámbito; las que se lancen después se cancelan al instante.
+     */
+    @Override
+    public void close() {
+        cerrado = true;
+        for (Future<?> futuro : activas) {
+            futuro.cancel(true);
+        }
+    }
+}
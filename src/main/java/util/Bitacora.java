@@ -0,0 +1,90 @@
+package util;
+
+import java.io.PrintStream;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.function.Supplier;
+
+/**
+ * Registro de mensajes por niveles, escrito en la salida de errores.
+ * El nivel se elige con {@code -Dchat.bitacora=ERROR|AVISO|INFO|DEPURACION} (por defecto INFO)
+ * o con {@link #setNivel}. Un mensaje por debajo del nivel no se construye: los de depuración
+ * se pasan como {@link Supplier}, así que desactivados solo cuestan una comparación.
+ */
+public final class Bitacora {
+
+    public static final String PROPIEDAD = "chat.bitacora";
+
+    /**
+     * Niveles de menor a mayor detalle.
+     */
+    public enum Nivel { ERROR, AVISO, INFO, DEPURACION }
+
+    private static final DateTimeFormatter FORMATO = DateTimeFormatter.ofPattern("HH:mm:ss.SSS");
+    private static volatile Nivel nivel = leerNivel();
+    private static volatile PrintStream salida = System.err;
+
+    private final String origen; // Nombre corto de la clase que escribe
+
+    private Bitacora(String origen) {
+        this.origen = origen;
+    }
+
+    /**
+     * Devuelve la bitácora de una clase; se guarda en un campo estático.
+     */
+    public static Bitacora de(Class<?> clase) {
+        return new Bitacora(clase.getSimpleName());
+    }
+
+    /**
+     * Cambia el nivel de todas las bitácoras.
+     */
+    public static void setNivel(Nivel nuevo) {
+        nivel = nuevo;
+    }
+
+    /**
+     * Indica si se escriben los mensajes del nivel dado.
+     */
+    public static boolean isActivo(Nivel consultado) {
+        return consultado.ordinal() <= nivel.ordinal();
+    }
+
+    public void error(String mensaje, Throwable causa) {
+        if (isActivo(Nivel.ERROR)) {
+            escribir(Nivel.ERROR, causa != null ? mensaje + ": " + causa : mensaje);
+        }
+    }
+
+    public void aviso(String mensaje) {
+        if (isActivo(Nivel.AVISO)) {
+            escribir(Nivel.AVISO, mensaje);
+        }
+    }
+
+    public void info(String mensaje) {
+        if (isActivo(Nivel.INFO)) {
+            escribir(Nivel.INFO, mensaje);
+        }
+    }
+
+    public void depuracion(Supplier<String> mensaje) {
+        if (isActivo(Nivel.DEPURACION)) {
+            escribir(Nivel.DEPURACION, mensaje.get());
+        }
+    }
+
+    private void escribir(Nivel nivelMensaje, String mensaje) {
+        salida.println(FORMATO.format(LocalDateTime.now()) + " " + nivelMensaje + " [" + Thread.currentThread().getName()
+                + "] " + origen + " - " + mensaje);
+    }
+
+    private static Nivel leerNivel() {
+        try {
+            return Nivel.valueOf(System.getProperty(PROPIEDAD, Nivel.INFO.name()).toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return Nivel.INFO;
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package util;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Lector de tramas en el formato de {@link FormatoTrama} sobre un canal, basado en un búfer directo.
+ * Cada lectura al canal trae tantos bytes como haya disponibles, de modo que varias tramas
+ * pequeñas se obtienen con una sola llamada al sistema y sin copiar cada trama a un arreglo.
+ */
+public class CanalTramas {
+
+    private static final int TAMANO_INICIAL = 8 * 1024; // Búfer de lectura inicial; crece con las tramas grandes
+
+    private final ReadableByteChannel canal; // Canal de donde se leen las tramas
+    private final PoolBuffers pool; // Pool del que salen los búferes de lectura
+    private final LimitesTrama limites; // Carga máxima aceptada por tipo de trama
+    private final FormatoTrama formato = new FormatoTrama(); // Campos de la última cabecera
+    private final ByteBuffer cabecera = ByteBuffer.allocate(FormatoTrama.CABECERA_MAXIMA); // Copia de la última cabecera
+    private ByteBuffer lectura; // Bytes leídos del canal, en modo lectura
+    private int finTrama; // Posición donde termina la última trama entregada
+    private int limiteDatos; // Fin de los datos válidos en el búfer
+    private volatile long bytesLeidos; // Bytes leídos del canal (solo los actualiza el lector)
+
+    /**
+     * Crea el lector sobre un canal bloqueante. Una trama más larga que el máximo de su tipo se
+     * rechaza al leer su cabecera, antes de hacer crecer el búfer.
+     */
+    public CanalTramas(ReadableByteChannel canal, PoolBuffers pool, LimitesTrama limites) {
+        this.canal = canal;
+        this.pool = pool;
+        this.limites = limites;
+        this.lectura = pool.adquirir(TAMANO_INICIAL).flip();
+    }
+
+    /**
+     * Lee la siguiente trama y devuelve el búfer interno acotado a su carga
+     * (posición al inicio y límite al final). La vista solo es válida hasta la siguiente
+     * llamada y no debe guardarse; los campos de la cabecera se consultan con los getters.
+     */
+    public ByteBuffer leerTrama() throws IOException {
+        lectura.limit(limiteDatos).position(finTrama);
+        while (true) {
+            if (formato.decodificar(lectura, limites)) {
+                int total = formato.getLongitudTotal();
+                if (lectura.remaining() >= total) {
+                    int longitudCabecera = formato.getLongitudCabecera();
+                    lectura.get(lectura.position(), cabecera.array(), 0, longitudCabecera);
+                    cabecera.limit(longitudCabecera).position(0);
+                    int inicio = lectura.position() + longitudCabecera;
+                    finTrama = inicio + formato.getLongitud();
+                    return lectura.limit(finTrama).position(inicio);
+                }
+                if (lectura.capacity() < total) {
+                    crecer(total);
+                }
+            }
+            llenar();
+        }
+    }
+
+    /**
+     * Devuelve el tipo de la última trama leída.
+     */
+    public byte getTipo() {
+        return formato.getTipo();
+    }
+
+    /**
+     * Devuelve las banderas de la última trama leída.
+     */
+    public byte getBanderas() {
+        return formato.getBanderas();
+    }
+
+    /**
+     * Devuelve el flujo de la última trama leída.
+     */
+    public int getFlujo() {
+        return formato.getFlujo();
+    }
+
+    /**
+     * Devuelve la longitud en el cable (cabecera y carga) de la última trama leída.
+     */
+    public int getLongitudTotal() {
+        return formato.getLongitudTotal();
+    }
+
+    /**
+     * Devuelve los bytes de la cabecera de la última trama leída, para autenticarlos al descifrar.
+     * El búfer es reutilizado y solo es válido hasta la siguiente llamada a {@link #leerTrama()}.
+     */
+    public ByteBuffer getCabecera() {
+        return cabecera.rewind();
+    }
+
+    /**
+     * Devuelve los bytes leídos del canal, aunque aún no formen una trama completa.
+     */
+    public long getBytesLeidos() {
+        return bytesLeidos;
+    }
+
+    /**
+     * Lee la siguiente trama y la copia en un arreglo nuevo; útil fuera de la ruta caliente.
+     */
+    public byte[] leerTramaCopia() throws IOException {
+        ByteBuffer trama = leerTrama();
+        byte[] copia = new byte[trama.remaining()];
+        trama.get(copia);
+        return copia;
+    }
+
+    /**
+     * Compacta los bytes pendientes y lee más datos del canal.
+     */
+    private void llenar() throws IOException {
+        lectura.compact();
+        int leidos = canal.read(lectura);
+        lectura.flip();
+        if (leidos > 0) {
+            bytesLeidos += leidos;
+        }
+        finTrama = 0;
+        limiteDatos = lectura.limit();
+        if (leidos < 0) {
+            throw new EOFException("El par cerró la conexión");
+        }
+    }
+
+    private void crecer(int capacidadMinima) {
+        ByteBuffer mayor = pool.adquirir(capacidadMinima);
+        mayor.put(lectura).flip();
+        pool.liberar(lectura);
+        lectura = mayor;
+        finTrama = 0;
+        limiteDatos = lectura.limit();
+    }
+
+    /**
+     * Devuelve el búfer de lectura al pool.
+     */
+    public void liberar() {
+        pool.liberar(lectura);
+        lectura = null;
+    }
+}
@@ -0,0 +1,23 @@
+package util;
+
+import java.nio.channels.ByteChannel;
+import java.nio.channels.GatheringByteChannel;
+
+/**
+ * Canal conectado con un par, tal como lo entrega un {@link Transporte}: se lee de él y se escribe
+ * con gathering, que es lo que usan {@link CanalTramas} y {@link ColaEnvio}.
+ */
+public interface CanalTransporte extends ByteChannel, GatheringByteChannel {
+
+    /**
+     * Indica si las lecturas y escrituras bloquean; solo los canales bloqueantes tienen flujos de datos.
+     */
+    default boolean isBlocking() {
+        return true;
+    }
+
+    /**
+     * Describe el extremo remoto, por ejemplo para los registros.
+     */
+    String getDireccionRemota();
+}
@@ -0,0 +1,255 @@
+package util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Canal de salida asíncrono de una sesión.
+ * Las tramas se dejan en una cola acotada y un hilo escritor las agrupa en una sola
+ * escritura con gathering, de modo que quien envía nunca se bloquea por un par lento
+ * y una ráfaga de mensajes cuesta una llamada al sistema en lugar de una por mensaje.
+ * Las tramas masivas (bloques de archivo) van en un carril aparte, corto y de menor
+ * prioridad, para que los mensajes de chat no esperen detrás de una transferencia.
+ */
+public final class ColaEnvio implements Closeable {
+
+    public static final int CAPACIDAD_POR_DEFECTO = 1024; // Tramas que caben en la cola
+    public static final int LOTE_POR_DEFECTO = 64; // Tramas máximas por escritura
+    public static final Duration RETARDO_POR_DEFECTO = Duration.ZERO; // Espera máxima para completar un lote
+    public static final int CAPACIDAD_MASIVA = 8; // Tramas masivas que pueden esperar a la vez
+
+    private record Pendiente(ByteBuffer trama, CompletableFuture<Void> futuro) {}
+
+    private final GatheringByteChannel canal; // Canal donde se escriben las tramas
+    private final BlockingQueue<Pendiente> cola; // Tramas interactivas, acotada para aplicar contrapresión
+    private final BlockingQueue<Pendiente> colaMasiva; // Tramas masivas, atendidas después de las interactivas
+    private final Semaphore disponibles = new Semaphore(0); // Total de tramas encoladas en ambos carriles
+    private final int maxLote; // Tramas máximas agrupadas en una escritura
+    private final long maxRetardoNanos; // Tiempo máximo que se espera a que llegue más trabajo
+    private final Thread escritor; // Hilo dedicado a escribir en el canal
+    private final Consumer<ByteBuffer> liberador; // Recibe cada trama cuando ya no se necesita
+    private volatile long bytesEscritos; // Bytes escritos en el canal (solo los actualiza el escritor)
+    private volatile boolean cerrada;
+
+    /**
+     * Crea la cola con la configuración por defecto.
+     */
+    public ColaEnvio(GatheringByteChannel canal, String nombre) {
+        this(canal, nombre, CAPACIDAD_POR_DEFECTO, LOTE_POR_DEFECTO, RETARDO_POR_DEFECTO, null);
+    }
+
+    /**
+     * Crea la cola y arranca su hilo escritor.
+     * @param capacidad tramas que admite la cola antes de rechazar envíos
+     * @param maxLote tramas máximas que se agrupan en una misma escritura
+     * @param maxRetardo tiempo que el escritor espera a que se complete un lote; cero para no esperar
+     * @param liberador recibe cada trama una vez escrita o descartada (por ejemplo, para devolverla
+     *                  a un {@link PoolBuffers}); puede ser null
+     */
+    public ColaEnvio(GatheringByteChannel canal, String nombre, int capacidad, int maxLote, Duration maxRetardo,
+                     Consumer<ByteBuffer> liberador) {
+        this(canal, nombre, capacidad, maxLote, maxRetardo, liberador, Thread.ofPlatform().daemon().factory());
+    }
+
+    /**
+     * Crea la cola con un hilo escritor obtenido de la fábrica indicada (por ejemplo, un hilo virtual).
+     */
+    public ColaEnvio(GatheringByteChannel canal, String nombre, int capacidad, int maxLote, Duration maxRetardo,
+                     Consumer<ByteBuffer> liberador, ThreadFactory fabrica) {
+        this.canal = canal;
+        this.liberador = liberador;
+        this.cola = new ArrayBlockingQueue<>(capacidad);
+        this.colaMasiva = new ArrayBlockingQueue<>(CAPACIDAD_MASIVA);
+        this.maxLote = maxLote;
+        this.maxRetardoNanos = maxRetardo.toNanos();
+        this.escritor = fabrica.newThread(this::escribir);
+        escritor.setName(nombre);
+        escritor.start();
+    }
+
+    /**
+     * Encola una trama y regresa de inmediato.
+     * Si el par no está leyendo y la cola se llenó, el futuro falla enseguida (contrapresión)
+     * en lugar de bloquear al hilo que envía.
+     * @return futuro que se completa cuando la trama se escribió en el canal
+     */
+    public CompletableFuture<Void> enviar(ByteBuffer trama) {
+        CompletableFuture<Void> futuro = new CompletableFuture<>();
+        if (cerrada) {
+            descartar(new Pendiente(trama, futuro), new IOException("La cola de envío está cerrada"));
+        } else if (!cola.offer(new Pendiente(trama, futuro))) {
+            descartar(new Pendiente(trama, futuro), new IOException("Cola de envío llena: el par no está leyendo"));
+        } else {
+            encolada();
+        }
+        return futuro;
+    }
+
+    /**
+     * Encola una trama masiva en el carril de baja prioridad, esperando si está lleno.
+     * Pensado para hilos productores de datos en bloque, que deben frenar cuando el par es lento.
+     * @return futuro que se completa cuando la trama se escribió en el canal
+     */
+    public CompletableFuture<Void> enviarMasiva(ByteBuffer trama) throws InterruptedException {
+        CompletableFuture<Void> futuro = new CompletableFuture<>();
+        if (cerrada) {
+            descartar(new Pendiente(trama, futuro), new IOException("La cola de envío está cerrada"));
+            return futuro;
+        }
+        colaMasiva.put(new Pendiente(trama, futuro));
+        encolada();
+        return futuro;
+    }
+
+    private void encolada() {
+        Metricas.PROFUNDIDAD_ENVIO.registrar(getProfundidad());
+        disponibles.release();
+        if (cerrada) {
+            fallarPendientes(new IOException("La cola de envío está cerrada"));
+        }
+    }
+
+    /**
+     * Devuelve el número de tramas que esperan ser escritas.
+     */
+    public int getProfundidad() {
+        return cola.size() + colaMasiva.size();
+    }
+
+    /**
+     * Devuelve los bytes escritos en el canal desde que se creó la cola.
+     */
+    public long getBytesEscritos() {
+        return bytesEscritos;
+    }
+
+    /**
+     * Devuelve el número de tramas que aún caben en la cola.
+     */
+    public int getCapacidadRestante() {
+        return cola.remainingCapacity();
+    }
+
+    /**
+     * Bucle del hilo escritor: toma un lote, lo escribe con una sola llamada y completa sus futuros.
+     */
+    private void escribir() {
+        List<Pendiente> lote = new ArrayList<>(maxLote);
+        ByteBuffer[] tramas = new ByteBuffer[maxLote];
+        try {
+            while (!cerrada) {
+                disponibles.acquire();
+                tomar(lote);
+                while (lote.size() < maxLote && disponibles.tryAcquire()) {
+                    tomar(lote);
+                }
+                if (maxRetardoNanos > 0) {
+                    long limite = System.nanoTime() + maxRetardoNanos;
+                    while (lote.size() < maxLote && disponibles.tryAcquire(limite - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                        tomar(lote);
+                    }
+                }
+                if (lote.isEmpty()) {
+                    continue; // Las tramas de esos permisos ya las descartó un cierre
+                }
+                for (int i = 0; i < lote.size(); i++) {
+                    tramas[i] = lote.get(i).trama();
+                }
+                EventosChat.Escritura evento = new EventosChat.Escritura();
+                evento.begin();
+                long inicio = Metricas.reloj();
+                long antes = bytesEscritos;
+                try {
+                    escribirTodo(tramas, lote.size());
+                    Metricas.ESCRITURA.registrarDesde(inicio);
+                    Metricas.LOTE_ESCRITURA.registrar(lote.size());
+                    evento.end();
+                    if (evento.shouldCommit()) {
+                        evento.tramas = lote.size();
+                        evento.bytes = bytesEscritos - antes;
+                        evento.profundidad = getProfundidad();
+                        evento.commit();
+                    }
+                } catch (IOException e) {
+                    lote.forEach(p -> descartar(p, e));
+                    fallarPendientes(e);
+                    return;
+                }
+                for (Pendiente pendiente : lote) {
+                    if (liberador != null) {
+                        liberador.accept(pendiente.trama());
+                    }
+                    pendiente.futuro().complete(null);
+                }
+                lote.clear();
+                Arrays.fill(tramas, null);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        lote.forEach(p -> descartar(p, new IOException("La cola de envío se cerró")));
+        fallarPendientes(new IOException("La cola de envío se cerró"));
+    }
+
+    /**
+     * Agrega al lote la siguiente trama, primero del carril interactivo. Solo se llama con un permiso
+     * adquirido, pero puede no haber ninguna: si la cola se cierra mientras alguien encola,
+     * {@link #fallarPendientes} vacía los carriles desde ese otro hilo sin tocar los permisos.
+     */
+    private void tomar(List<Pendiente> lote) {
+        Pendiente pendiente = cola.poll();
+        if (pendiente == null) {
+            pendiente = colaMasiva.poll();
+        }
+        if (pendiente != null) {
+            lote.add(pendiente);
+        }
+    }
+
+    private void escribirTodo(ByteBuffer[] tramas, int cantidad) throws IOException {
+        int primera = 0;
+        while (primera < cantidad) {
+            bytesEscritos += canal.write(tramas, primera, cantidad - primera);
+            while (primera < cantidad && !tramas[primera].hasRemaining()) {
+                primera++;
+            }
+        }
+    }
+
+    private void fallarPendientes(IOException causa) {
+        cerrada = true;
+        Pendiente pendiente;
+        while ((pendiente = cola.poll()) != null || (pendiente = colaMasiva.poll()) != null) {
+            descartar(pendiente, causa);
+        }
+    }
+
+    private void descartar(Pendiente pendiente, IOException causa) {
+        if (liberador != null) {
+            liberador.accept(pendiente.trama());
+        }
+        pendiente.futuro().completeExceptionally(causa);
+    }
+
+    /**
+     * Detiene el hilo escritor; las tramas que no se alcanzaron a escribir fallan.
+     */
+    @Override
+    public void close() {
+        cerrada = true;
+        escritor.interrupt();
+    }
+}
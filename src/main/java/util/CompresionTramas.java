@@ -0,0 +1,181 @@
+package util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresión opcional del contenido de las tramas antes de cifrarlas, con Deflate y un
+ * diccionario predefinido común a ambos pares. Solo se usa si los dos extremos la anunciaron
+ * al conectarse ({@link TipoTrama#CAPACIDADES}); una trama comprimida lleva la bandera
+ * {@link FormatoTrama#COMPRIMIDA} en su cabecera.
+ *
+ * Para no abrir la puerta a ataques como CRIME, cada trama se comprime por separado (el contexto
+ * se reinicia y el diccionario es público), y quien envía contenido que mezcla secretos con texto
+ * que un atacante puede elegir pide explícitamente que no se comprima.
+ * Las tramas cortas no se comprimen, y si un tipo de trama no se reduce lo bastante se deja de
+ * intentar durante un número creciente de tramas, para no gastar CPU en datos ya comprimidos.
+ */
+public class CompresionTramas {
+
+    public static final String PROPIEDAD = "chat.compresion"; // Propiedad del sistema para desactivarla ("false")
+    public static final byte CAPACIDAD_DEFLATE = 1; // Bit de CAPACIDADES: acepta tramas comprimidas con Deflate
+    public static final int TAMANO_MINIMO = 256; // Contenido más corto se envía sin comprimir
+    private static final double PROPORCION_MAXIMA = 0.875; // Solo se envía comprimido si ahorra al menos un octavo
+    private static final int SALTO_MAXIMO = 64; // Tramas de un tipo que se envían sin intentar tras varios fallos
+    private static final int COMPRESORES_RETENIDOS = 8; // Deflaters libres que se conservan entre sesiones
+
+    /**
+     * Diccionario común: fragmentos frecuentes en conversaciones y en registros pegados en el chat.
+     * Deflate da más peso a lo que está al final, así que lo más habitual va último.
+     */
+    static final byte[] DICCIONARIO = (
+            "\tat java.base/java.lang.Thread.run(Thread.java:\tat java.util.concurrent. Caused by: java.lang."
+            + "Exception: ... more\n\tat org.\tat com.\tat javafx. NullPointerException IllegalStateException "
+            + "IOException: Connection reset SEVERE: WARNING: WARN  ERROR DEBUG TRACE INFO  [main] "
+            + "{\"id\": \"nombre\": \"tipo\": \"mensaje\": null, true, false, https://www. http://localhost:8080/ "
+            + "SELECT * FROM WHERE = ' AND ORDER BY public static void private final return new String "
+            + "¿Qué tal? ¿Cómo estás? Muchas gracias por favor también porque después entonces cuando donde "
+            + "mañana ahora todavía nosotros ustedes tienen puedes quieres hacer tiene puede está están "
+            + "era para pero como con una los las del que por sobre este esta esto eso muy más sin hay "
+            + " de la el en y a se no es lo me te mi tu ya sí bien hola jaja ok \n2026-")
+            .getBytes(StandardCharsets.UTF_8);
+
+    private static final ConcurrentLinkedQueue<Deflater> compresores = new ConcurrentLinkedQueue<>(); // Compartidos por todas las sesiones
+
+    private final PoolBuffers pool;
+    private final int[] saltos = new int[256]; // Tramas que faltan por saltar, por tipo (protegido por this)
+    private final int[] penalizaciones = new int[256]; // Salto que se aplicará tras el próximo fallo (protegido por this)
+    private Inflater descompresor; // Solo lo usa el hilo lector de la sesión
+
+    /**
+     * Crea la compresión de una sesión; los búferes comprimidos salen del pool indicado.
+     */
+    public CompresionTramas(PoolBuffers pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Comprime los campos de la cabecera (sin el byte de tipo) seguidos del contenido, sin mover sus posiciones.
+     * @param tipo tipo de la trama, para dejar de intentarlo con los tipos que no se reducen
+     * @return un búfer del pool con los datos comprimidos, listo para leer, o null si la trama
+     *         es corta, si el tipo se está saltando o si comprimir no ahorra lo suficiente
+     */
+    public ByteBuffer comprimir(byte tipo, ByteBuffer cabecera, ByteBuffer contenido) {
+        ByteBuffer campos = cabecera.duplicate();
+        int plano = campos.remaining() + (contenido != null ? contenido.remaining() : 0);
+        if (plano < TAMANO_MINIMO || saltar(tipo & 0xFF)) {
+            return null;
+        }
+        int limite = (int) (plano * PROPORCION_MAXIMA);
+        ByteBuffer salida = pool.adquirir(limite);
+        salida.limit(limite);
+        Deflater compresor = tomarCompresor();
+        try {
+            compresor.setInput(campos);
+            while (!compresor.needsInput() && salida.hasRemaining()) {
+                compresor.deflate(salida);
+            }
+            if (contenido != null) {
+                compresor.setInput(contenido.duplicate());
+            }
+            compresor.finish();
+            while (!compresor.finished() && salida.hasRemaining()) {
+                compresor.deflate(salida);
+            }
+            if (!compresor.finished()) {
+                fallo(tipo & 0xFF);
+                pool.liberar(salida);
+                return null;
+            }
+            acierto(tipo & 0xFF);
+            return salida.flip();
+        } finally {
+            devolverCompresor(compresor);
+        }
+    }
+
+    /**
+     * Descomprime el contenido de una trama en un búfer de salida, cambiándolo por uno mayor
+     * del pool si hace falta. Nunca produce más de {@code maximo} bytes.
+     * @param salida búfer reutilizado del lector; puede ser null
+     * @return el búfer con los datos descomprimidos, listo para leer
+     */
+    public ByteBuffer descomprimir(ByteBuffer comprimido, ByteBuffer salida, int maximo) throws IOException {
+        if (descompresor == null) {
+            descompresor = new Inflater(true);
+        }
+        descompresor.reset();
+        descompresor.setDictionary(DICCIONARIO);
+        descompresor.setInput(comprimido);
+        salida = pool.asegurar(salida, Math.min(maximo, Math.max(4 * comprimido.remaining(), TAMANO_MINIMO * 4)));
+        try {
+            while (!descompresor.finished()) {
+                if (!salida.hasRemaining()) {
+                    if (salida.capacity() >= maximo) {
+                        throw new IOException("Trama comprimida demasiado grande (más de " + maximo + " bytes)");
+                    }
+                    ByteBuffer mayor = pool.adquirir(Math.min(maximo, salida.capacity() * 2));
+                    mayor.put(salida.flip());
+                    pool.liberar(salida);
+                    salida = mayor;
+                }
+                salida.limit(Math.min(salida.capacity(), maximo));
+                if (descompresor.inflate(salida) == 0 && descompresor.needsInput() && !descompresor.finished()) {
+                    throw new IOException("Trama comprimida incompleta");
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Trama comprimida inválida", e);
+        }
+        return salida.flip();
+    }
+
+    /**
+     * Libera la memoria nativa del descompresor de la sesión.
+     */
+    public void cerrar() {
+        if (descompresor != null) {
+            descompresor.end();
+        }
+    }
+
+    private synchronized boolean saltar(int tipo) {
+        if (saltos[tipo] > 0) {
+            saltos[tipo]--;
+            return true;
+        }
+        return false;
+    }
+
+    private synchronized void fallo(int tipo) {
+        penalizaciones[tipo] = Math.min(SALTO_MAXIMO, Math.max(1, penalizaciones[tipo] * 2));
+        saltos[tipo] = penalizaciones[tipo];
+    }
+
+    private synchronized void acierto(int tipo) {
+        penalizaciones[tipo] = 0;
+    }
+
+    private static Deflater tomarCompresor() {
+        Deflater compresor = compresores.poll();
+        if (compresor == null) {
+            compresor = new Deflater(Deflater.BEST_SPEED, true);
+        }
+        compresor.setDictionary(DICCIONARIO);
+        return compresor;
+    }
+
+    private static void devolverCompresor(Deflater compresor) {
+        compresor.reset(); // Cada trama empieza sin contexto previo
+        if (compresores.size() < COMPRESORES_RETENIDOS) {
+            compresores.offer(compresor);
+        } else {
+            compresor.end();
+        }
+    }
+}
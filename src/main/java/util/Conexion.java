@@ -1,29 +1,39 @@
 package util;
 
 import java.io.*;
-import java.net.*;
 import java.security.*;
 import java.security.spec.X509EncodedKeySpec;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.function.Consumer;
-import javax.crypto.KeyAgreement;
 
 /**
- * Clase Singleton que gestiona la conexión entre dos pares usando sockets TCP.
- * También implementa el intercambio de claves mediante el algoritmo Diffie-Hellman.
+ * Clase Singleton que gestiona la conexión entre dos pares sobre un {@link Transporte}:
+ * TCP a 127.0.0.1:5000 por defecto, o el que se configure con {@code -Dchat.transporte}.
+ * También implementa el intercambio de claves: Diffie-Hellman o X25519 con pares pregenerados,
+ * y reanudación con tickets para los pares que se reconectan ({@link IntercambioClaves}).
+ * El canal, los flujos y la clave de la conexión actual viven en una {@link Sesion};
+ * para atender a muchos pares a la vez se usa el modo hub ({@link #iniciarHub}).
  */
 public class Conexion {
-    private ServerSocket serverSocket; // Socket del lado servidor
-    private Socket clientSocket; // Socket del lado cliente
-    private DataOutputStream dos; // Flujo de salida para enviar datos
-    private DataInputStream dis; // Flujo de entrada para recibir datos
+    public static final int PUERTO = 5000; // Puerto por defecto del chat
+    private Transporte transporte = Transporte.getPorDefecto(); // Dónde se escucha y a dónde se conecta
+    private Transporte.Escucha escucha; // Extremo que espera al par en el lado servidor
+    private volatile Sesion sesion; // Sesión con el par actual; la crea el hilo que acepta o conecta (canal, flujos y clave)
+    private ModoEjecucion modoEjecucion = ModoEjecucion.getPorDefecto(); // Modelo de hilos de las sesiones nuevas
+    private ModoIntercambio modoIntercambio = ModoIntercambio.getPorDefecto(); // Acuerdo que propone el cliente
+    private final IntercambioClaves intercambio = new IntercambioClaves(PoolParesClaves.getCompartido()); // Tickets de reanudación
+    private String direccionPar; // "host:puerto" del servidor al que se conectó este extremo
+    private Transporte destino; // Transporte con el que se conectó este extremo; null en el lado servidor
+    private boolean compresion = !"false".equalsIgnoreCase(System.getProperty(CompresionTramas.PROPIEDAD)); // Se anuncia al conectar
     private static Conexion instance; // Instancia única de la clase
-    private static final ExecutorService executor = Executors.newFixedThreadPool(3); // Hilo para operaciones asíncronas
-    private byte[] claveCompartida; // Clave compartida generada con Diffie-Hellman
+    private static final Bitacora bitacora = Bitacora.de(Conexion.class);
 
-    // Constructor privado para el patrón Singleton
-    private Conexion() {}
+    // Constructor privado para el patrón Singleton; empieza a generar los pares de claves en segundo plano
+    private Conexion() {
+        PoolParesClaves.getCompartido().precalentar(modoIntercambio);
+        Metricas.indicador("conexion.envio.profundidad", () -> sesion != null ? sesion.getProfundidadEnvio() : 0);
+    }
 
     /**
      * Devuelve la única instancia de la clase (Singleton).
@@ -37,58 +47,198 @@ public class Conexion {
 
     /**
      * Inicializa el servidor y espera una conexión entrante.
-     * Abre el puerto 5000 y acepta la conexión.
+     * Escucha en la dirección del transporte configurado (por defecto, el puerto 5000) y acepta la conexión.
+     * Bloquea hasta que el par se conecta; desde la interfaz se usa {@link #esperarPar()}.
      */
     public void setServerSocket() throws IOException {
-        if (serverSocket != null && !serverSocket.isClosed()) {
-            serverSocket.close();
+        abrirEscucha();
+        initializeSession(escucha.aceptar(), false);
+    }
+
+    /**
+     * Abre la escucha como {@link #setServerSocket()}, pero espera al par en un hilo nuevo del modelo
+     * de hilos de las sesiones, sin bloquear al que llama.
+     * @return futuro que se completa cuando el par se conectó y ya hay sesión
+     */
+    public CompletableFuture<Void> esperarPar() {
+        Transporte.Escucha actual;
+        try {
+            actual = abrirEscucha();
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
         }
-        serverSocket = new ServerSocket(5000);
-        clientSocket = serverSocket.accept();
-        initializeStreams();
+        CompletableFuture<Void> conectado = new CompletableFuture<>();
+        modoEjecucion.fabricaHilos().newThread(() -> {
+            try {
+                initializeSession(actual.aceptar(), false);
+                conectado.complete(null);
+            } catch (IOException e) {
+                conectado.completeExceptionally(e);
+            }
+        }).start();
+        return conectado;
+    }
+
+    private Transporte.Escucha abrirEscucha() throws IOException {
+        if (escucha != null) {
+            escucha.close();
+        }
+        escucha = transporte.escuchar();
+        destino = null;
+        return escucha;
     }
 
     /**
-     * Se conecta a un servidor remoto usando la dirección IP proporcionada.
+     * Se conecta por TCP a un servidor remoto usando la dirección IP proporcionada,
+     * en el puerto del transporte TCP configurado o en el 5000.
      */
     public void setClientSocket(String ipServer) throws IOException {
-        if (clientSocket != null && !clientSocket.isClosed()) {
-            clientSocket.close();
+        conectar(new TransporteTcp(ipServer, transporte instanceof TransporteTcp tcp ? tcp.getPuerto() : PUERTO));
+    }
+
+    /**
+     * Se conecta al par con el transporte configurado.
+     */
+    public void conectar() throws IOException {
+        conectar(transporte);
+    }
+
+    /**
+     * Se conecta al par que escucha en la dirección del transporte indicado.
+     */
+    public void conectar(Transporte destino) throws IOException {
+        if (sesion != null) {
+            sesion.cerrar();
         }
-        clientSocket = new Socket(ipServer, 5000);
-        initializeStreams();
+        this.destino = destino;
+        direccionPar = destino.getDireccion();
+        initializeSession(destino.conectar(), true);
+    }
+
+    /**
+     * Devuelve cómo recuperar la sesión con el par si se cae: el cliente vuelve a conectarse al mismo
+     * destino (reanudando la clave con su ticket) y el servidor espera al par en la misma escucha.
+     * La sesión recuperada pasa a ser la actual.
+     */
+    public Reconexion getReconexion() {
+        return () -> {
+            if (destino != null) {
+                conectar(destino);
+            } else {
+                initializeSession(escucha.aceptar(), false);
+            }
+            Sesion nueva = sesion;
+            try {
+                negociarClave().get();
+            } catch (ExecutionException e) {
+                nueva.cerrar();
+                throw e.getCause() instanceof Exception causa ? causa : e;
+            }
+            return nueva;
+        };
+    }
+
+    /**
+     * Crea la sesión (y con ella los flujos de entrada y salida) sobre el canal conectado.
+     */
+    private void initializeSession(CanalTransporte canal, boolean iniciador) {
+        sesion = new Sesion(canal, iniciador, modoEjecucion);
+    }
+
+    /**
+     * Elige el transporte de las próximas conexiones, por ejemplo {@code Transporte.desde("unix:/tmp/chat.sock")}.
+     */
+    public void setTransporte(Transporte transporte) {
+        this.transporte = transporte;
+    }
+
+    /**
+     * Devuelve el transporte de las próximas conexiones.
+     */
+    public Transporte getTransporte() {
+        return transporte;
+    }
+
+    /**
+     * Elige el modelo de hilos de las próximas sesiones (por defecto, hilos virtuales).
+     */
+    public void setModoEjecucion(ModoEjecucion modoEjecucion) {
+        this.modoEjecucion = modoEjecucion;
+    }
+
+    /**
+     * Devuelve el modelo de hilos de las sesiones nuevas.
+     */
+    public ModoEjecucion getModoEjecucion() {
+        return modoEjecucion;
+    }
+
+    /**
+     * Inicia el modo hub: un nodo no bloqueante que acepta y atiende muchas sesiones
+     * cifradas a la vez, cada una con su propia clave. Regresa sin bloquear.
+     */
+    public ServidorHub iniciarHub(int puerto, String nombreLocal, OyenteHub oyente) throws IOException {
+        return new ServidorHub(puerto, nombreLocal, oyente);
     }
 
     /**
-     * Inicializa los flujos de entrada y salida del socket.
+     * Elige el acuerdo de claves que propondrá este extremo como cliente (por defecto, X25519).
+     * Como servidor se acepta cualquiera de los modos que proponga el par.
      */
-    private void initializeStreams() throws IOException {
-        if (clientSocket != null && !clientSocket.isClosed()) {
-            dos = new DataOutputStream(clientSocket.getOutputStream());
-            dis = new DataInputStream(clientSocket.getInputStream());
+    public void setModoIntercambio(ModoIntercambio modoIntercambio) {
+        this.modoIntercambio = modoIntercambio;
+        PoolParesClaves.getCompartido().precalentar(modoIntercambio);
+    }
+
+    /**
+     * Activa o desactiva la compresión que se anunciará en las próximas conexiones (por defecto, activa).
+     * Solo se comprime si el par también la anuncia.
+     */
+    public void setCompresion(boolean compresion) {
+        this.compresion = compresion;
+    }
+
+    /**
+     * Negocia la clave de la sesión actual en un hilo de la sesión, sin bloquear al que llama.
+     * El extremo que abrió la conexión propone el modo o reanuda con su ticket; el otro responde.
+     * Con la clave ya acordada, cada extremo anuncia si acepta tramas comprimidas.
+     * @return futuro que se completa cuando la sesión ya tiene clave
+     */
+    public CompletableFuture<Void> negociarClave() {
+        CompletableFuture<Void> listo = new CompletableFuture<>();
+        Sesion actual = sesion;
+        if (actual == null) {
+            return CompletableFuture.failedFuture(new IOException("No hay conexión"));
         }
+        actual.ejecutar(() -> {
+            try {
+                actual.setClaveCompartida(intercambio.negociar(actual, direccionPar, modoIntercambio));
+                actual.anunciarCapacidades(compresion, (byte) (SincronizacionHistorial.CAPACIDAD_SINCRONIZACION | Presencia.CAPACIDAD_PRESENCIA)); // La conversación sigue en un MotorChat
+                listo.complete(null);
+            } catch (Exception e) {
+                listo.completeExceptionally(e);
+            }
+        });
+        return listo;
     }
 
     /**
-     * Genera un par de claves pública-privada para Diffie-Hellman.
+     * Entrega un par de claves Diffie-Hellman del pool de pares pregenerados.
      */
-    public KeyPair diffieHellman() throws NoSuchAlgorithmException {
-        KeyPairGenerator keyPairGen = KeyPairGenerator.getInstance("DH");
-        return keyPairGen.generateKeyPair();
+    public KeyPair diffieHellman() throws GeneralSecurityException {
+        return PoolParesClaves.getCompartido().tomar(ModoIntercambio.DH);
     }
 
     /**
      * Envía la clave pública a través del flujo de salida.
      */
     public void enviarClavePublica(PublicKey publicKey) throws IOException {
-        if (dos == null) {
+        if (sesion == null) {
             throw new IOException("Flujo de salida no inicializado");
         }
         byte[] publicKeyBytes = publicKey.getEncoded();
-        dos.writeInt(publicKeyBytes.length); // Enviar longitud primero
-        dos.write(publicKeyBytes); // Enviar bytes de la clave
-        dos.flush();
-        System.out.println("Clave pública enviada.");
+        sesion.escribirTramaPlana(publicKeyBytes); // Trama de saludo sin cifrar
+        bitacora.depuracion(() -> "Clave pública enviada (" + publicKeyBytes.length + " bytes).");
     }
 
     /**
@@ -96,24 +246,22 @@ public class Conexion {
      * Llama al consumidor proporcionado con la clave recibida.
      */
     public void recibirClavePublica(Consumer<PublicKey> onKeyReceived) {
-        executor.submit(() -> {
+        if (sesion == null) {
+            throw new IllegalStateException("Flujo de entrada no inicializado");
+        }
+        sesion.ejecutar(() -> {
             try {
-                if (dis == null) {
-                    throw new IOException("Flujo de entrada no inicializado");
-                }
-                System.out.println("Esperando clave pública...");
-                int length = dis.readInt();
-                byte[] receivedBytes = new byte[length];
-                dis.readFully(receivedBytes);
+                bitacora.depuracion(() -> "Esperando clave pública...");
+                byte[] receivedBytes = sesion.leerTramaPlana();
 
                 KeyFactory keyFactory = KeyFactory.getInstance("DH");
                 X509EncodedKeySpec keySpec = new X509EncodedKeySpec(receivedBytes);
                 PublicKey receivedPublicKey = keyFactory.generatePublic(keySpec);
 
-                System.out.println("Clave pública recibida.");
+                bitacora.depuracion(() -> "Clave pública recibida.");
                 onKeyReceived.accept(receivedPublicKey);
             } catch (Exception e) {
-                System.err.println("Error al recibir clave pública: " + e.getMessage());
+                bitacora.error("Error al recibir clave pública", e);
                 throw new RuntimeException("Error al recibir clave pública", e);
             }
         });
@@ -124,54 +272,53 @@ public class Conexion {
      * Aplica SHA-256 a la clave compartida para obtener una clave simétrica de 256 bits.
      */
     public byte[] generarClaveCompartida(PrivateKey privateKey, PublicKey receivedPublicKey) throws Exception {
-        KeyAgreement keyAgreement = KeyAgreement.getInstance("DH");
-        keyAgreement.init(privateKey);
-        keyAgreement.doPhase(receivedPublicKey, true);
-        byte[] sharedSecret = keyAgreement.generateSecret(); // Clave compartida original
-        MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
-        byte[] aesKey = sha256.digest(sharedSecret); // Ajusta a 256 bits (32 bytes)
-        return aesKey;
+        return IntercambioClaves.derivarClave(privateKey, receivedPublicKey);
     }
 
     /**
      * Establece la clave compartida generada.
      */
     public void setClaveCompartida(byte[] clave){
-        claveCompartida = clave;
+        sesion.setClaveCompartida(clave);
     }
 
     /**
      * Devuelve la clave compartida generada.
      */
     public byte[] getClaveCompartida(){
-        return claveCompartida;
+        return sesion != null ? sesion.getClaveCompartida() : null;
+    }
+
+    /**
+     * Devuelve la sesión con el par actual.
+     */
+    public Sesion getSesion(){
+        return sesion;
     }
 
     /**
      * Devuelve el flujo de salida de datos.
      */
     public DataOutputStream getDos(){
-        return dos;
+        return sesion != null ? sesion.getDos() : null;
     }
 
     /**
      * Devuelve el flujo de entrada de datos.
      */
     public DataInputStream getDis(){
-        return dis;
+        return sesion != null ? sesion.getDis() : null;
     }
 
     /**
-     * Cierra todas las conexiones y flujos abiertos.
+     * Cierra todas las conexiones y flujos abiertos, cancelando los lectores y el escritor de la sesión.
      */
     public void cerrarConexion() {
         try {
-            if (dis != null) dis.close();
-            if (dos != null) dos.close();
-            if (clientSocket != null && !clientSocket.isClosed()) clientSocket.close();
-            if (serverSocket != null && !serverSocket.isClosed()) serverSocket.close();
+            if (sesion != null) sesion.cerrar();
+            if (escucha != null) escucha.close();
         } catch (IOException e) {
-            System.err.println("Error al cerrar la conexión: " + e.getMessage());
+            bitacora.error("Error al cerrar la conexión", e);
         }
     }
 }
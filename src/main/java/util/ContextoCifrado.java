@@ -0,0 +1,227 @@
+package util;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Contexto de cifrado de una sesión, construido una sola vez tras el intercambio de claves, con la
+ * {@link SuiteCifrado} negociada (AES-GCM si no se indica otra).
+ * Reutiliza la clave y un {@link Cipher} por hilo, y genera el IV de 96 bits a partir de un
+ * contador en lugar de pedir bytes aleatorios para cada mensaje.
+ * Formato del mensaje cifrado: IV (12 bytes) seguido del texto cifrado y el tag (16 bytes).
+ */
+public class ContextoCifrado {
+
+    // Longitud del IV (vector de inicialización) para GCM
+    public static final int GCM_IV_LENGTH = 12;
+
+    // Longitud del tag de autenticación para GCM
+    public static final int GCM_TAG_LENGTH = 16;
+
+    // Bytes que el cifrado añade a cada mensaje
+    public static final int SOBRECARGA = GCM_IV_LENGTH + GCM_TAG_LENGTH;
+
+    private final SuiteCifrado suite; // Cifrado autenticado que se usa
+    private final SecretKeySpec clave; // Clave de la sesión, de 256 bits
+    private final ThreadLocal<EstadoHilo> estados; // Cipher e IV reutilizables por hilo
+    private final int prefijoNonce; // Primeros 32 bits del IV: sentido del emisor y valor aleatorio
+    private final AtomicLong contador = new AtomicLong(); // Últimos 64 bits del IV
+
+    /**
+     * Crea el contexto para una clave compartida.
+     * @param claveCompartida clave AES de 256 bits
+     * @param iniciador true en el extremo que abrió la conexión; separa el espacio de IVs
+     *                  de cada sentido para que ambos pares nunca repitan un IV con la misma clave
+     */
+    public ContextoCifrado(byte[] claveCompartida, boolean iniciador) {
+        this(claveCompartida, iniciador, SuiteCifrado.AES_GCM);
+    }
+
+    /**
+     * Crea el contexto para una clave compartida y la suite negociada con el par.
+     */
+    public ContextoCifrado(byte[] claveCompartida, boolean iniciador, SuiteCifrado suite) {
+        this.suite = suite;
+        this.clave = new SecretKeySpec(claveCompartida, suite.getAlgoritmoClave());
+        this.prefijoNonce = (new SecureRandom().nextInt() & 0x7FFFFFFF) | (iniciador ? 0x80000000 : 0);
+        this.estados = ThreadLocal.withInitial(() -> new EstadoHilo(suite));
+    }
+
+    /**
+     * Objetos que cada hilo reutiliza entre mensajes.
+     */
+    private static final class EstadoHilo {
+        private final Cipher cipher;
+        private final byte[] iv = new byte[GCM_IV_LENGTH];
+
+        EstadoHilo(SuiteCifrado suite) {
+            try {
+                cipher = Cipher.getInstance(suite.getTransformacion());
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(suite + " no disponible", e);
+            }
+        }
+    }
+
+    public SuiteCifrado getSuite() {
+        return suite;
+    }
+
+    /**
+     * Devuelve la longitud del mensaje cifrado para un texto plano de la longitud dada.
+     */
+    public static int longitudCifrada(int longitudPlana) {
+        return longitudPlana + SOBRECARGA;
+    }
+
+    /**
+     * Devuelve la longitud del texto plano contenido en un mensaje cifrado.
+     */
+    public static int longitudPlana(int longitudCifrada) {
+        return longitudCifrada - SOBRECARGA;
+    }
+
+    /**
+     * Cifra en el búfer de salida indicado, escribiendo el IV seguido del texto cifrado.
+     * @return el número de bytes escritos en la salida
+     */
+    public int cifrar(byte[] entrada, int inicio, int longitud, byte[] salida, int inicioSalida) throws GeneralSecurityException {
+        long valor = contador.getAndIncrement();
+        if (valor < 0) {
+            throw new GeneralSecurityException("Se agotó el espacio de IVs de la clave");
+        }
+        escribirNonce(salida, inicioSalida, valor);
+        Cipher cipher = estados.get().cipher;
+        cipher.init(Cipher.ENCRYPT_MODE, clave, suite.parametros(salida, inicioSalida));
+        return GCM_IV_LENGTH + cipher.doFinal(entrada, inicio, longitud, salida, inicioSalida + GCM_IV_LENGTH);
+    }
+
+    /**
+     * Descifra un mensaje (IV seguido del texto cifrado) en el búfer de salida indicado.
+     * La salida puede ser el mismo arreglo que la entrada.
+     * @return el número de bytes de texto plano escritos
+     */
+    public int descifrar(byte[] entrada, int inicio, int longitud, byte[] salida, int inicioSalida) throws GeneralSecurityException {
+        return descifrar(entrada, inicio, 0, longitud, salida, inicioSalida);
+    }
+
+    /**
+     * Descifra un mensaje autenticando además los {@code adicional} bytes que lo preceden en la
+     * entrada, como la cabecera de una trama. La salida puede ser el mismo arreglo que la entrada.
+     * @param inicio posición de los datos adicionales; el mensaje empieza {@code adicional} bytes después
+     * @return el número de bytes de texto plano escritos
+     */
+    public int descifrar(byte[] entrada, int inicio, int adicional, int longitud, byte[] salida, int inicioSalida) throws GeneralSecurityException {
+        if (longitud < SOBRECARGA) {
+            throw new GeneralSecurityException("Mensaje cifrado demasiado corto: " + longitud);
+        }
+        int mensaje = inicio + adicional;
+        Cipher cipher = estados.get().cipher;
+        cipher.init(Cipher.DECRYPT_MODE, clave, suite.parametros(entrada, mensaje));
+        if (adicional > 0) {
+            cipher.updateAAD(entrada, inicio, adicional);
+        }
+        return cipher.doFinal(entrada, mensaje + GCM_IV_LENGTH, longitud - GCM_IV_LENGTH, salida, inicioSalida);
+    }
+
+    /**
+     * Cifra los bytes restantes de {@code plano} y escribe el IV y el texto cifrado a partir de la
+     * posición de {@code salida}. Admite búferes directos, sin copias intermedias a arreglos.
+     * @return el número de bytes escritos en la salida
+     */
+    public int cifrar(ByteBuffer plano, ByteBuffer salida) throws GeneralSecurityException {
+        return cifrar(null, plano, salida);
+    }
+
+    /**
+     * Cifra una cabecera seguida de un contenido como un único mensaje, sin tener que copiarlos
+     * antes a un mismo búfer (por ejemplo, la cabecera de un bloque y la región mapeada de un archivo).
+     * @param cabecera bytes que preceden al contenido en el texto plano; puede ser null
+     * @return el número de bytes escritos en la salida
+     */
+    public int cifrar(ByteBuffer cabecera, ByteBuffer plano, ByteBuffer salida) throws GeneralSecurityException {
+        return cifrar(null, cabecera, plano, salida);
+    }
+
+    /**
+     * Cifra como el método anterior y autentica además {@code adicional}, que no se cifra ni se
+     * escribe en la salida (por ejemplo, la cabecera de la trama, que viaja en claro).
+     * @param adicional datos adicionales autenticados; puede ser null
+     * @return el número de bytes escritos en la salida
+     */
+    public int cifrar(ByteBuffer adicional, ByteBuffer cabecera, ByteBuffer plano, ByteBuffer salida) throws GeneralSecurityException {
+        long valor = contador.getAndIncrement();
+        if (valor < 0) {
+            throw new GeneralSecurityException("Se agotó el espacio de IVs de la clave");
+        }
+        EstadoHilo estado = estados.get();
+        escribirNonce(estado.iv, 0, valor);
+        salida.put(estado.iv);
+        estado.cipher.init(Cipher.ENCRYPT_MODE, clave, suite.parametros(estado.iv, 0));
+        if (adicional != null) {
+            estado.cipher.updateAAD(adicional);
+        }
+        int escritos = cabecera != null ? estado.cipher.update(cabecera, salida) : 0;
+        return GCM_IV_LENGTH + escritos + estado.cipher.doFinal(plano, salida);
+    }
+
+    /**
+     * Descifra los bytes restantes de {@code cifrado} (IV seguido del texto cifrado) y escribe
+     * el texto plano a partir de la posición de {@code salida}.
+     * @return el número de bytes de texto plano escritos
+     */
+    public int descifrar(ByteBuffer cifrado, ByteBuffer salida) throws GeneralSecurityException {
+        return descifrar(null, cifrado, salida);
+    }
+
+    /**
+     * Descifra como el método anterior comprobando además los datos adicionales autenticados.
+     * @param adicional los mismos datos adicionales que se usaron al cifrar; puede ser null
+     */
+    public int descifrar(ByteBuffer adicional, ByteBuffer cifrado, ByteBuffer salida) throws GeneralSecurityException {
+        if (cifrado.remaining() < SOBRECARGA) {
+            throw new GeneralSecurityException("Mensaje cifrado demasiado corto: " + cifrado.remaining());
+        }
+        EstadoHilo estado = estados.get();
+        cifrado.get(estado.iv);
+        estado.cipher.init(Cipher.DECRYPT_MODE, clave, suite.parametros(estado.iv, 0));
+        if (adicional != null) {
+            estado.cipher.updateAAD(adicional);
+        }
+        return estado.cipher.doFinal(cifrado, salida);
+    }
+
+    /**
+     * Cifra un texto y devuelve un arreglo nuevo con el IV al inicio.
+     */
+    public byte[] cifrar(String mensaje) throws GeneralSecurityException {
+        byte[] plano = mensaje.getBytes(StandardCharsets.UTF_8);
+        byte[] salida = new byte[longitudCifrada(plano.length)];
+        cifrar(plano, 0, plano.length, salida, 0);
+        return salida;
+    }
+
+    /**
+     * Descifra un mensaje completo y lo devuelve como texto.
+     */
+    public String descifrar(byte[] mensajeCifrado, int inicio, int longitud) throws GeneralSecurityException {
+        byte[] plano = new byte[longitudPlana(longitud)];
+        int escritos = descifrar(mensajeCifrado, inicio, longitud, plano, 0);
+        return new String(plano, 0, escritos, StandardCharsets.UTF_8);
+    }
+
+    private void escribirNonce(byte[] destino, int inicio, long valor) {
+        destino[inicio] = (byte) (prefijoNonce >>> 24);
+        destino[inicio + 1] = (byte) (prefijoNonce >>> 16);
+        destino[inicio + 2] = (byte) (prefijoNonce >>> 8);
+        destino[inicio + 3] = (byte) prefijoNonce;
+        for (int i = 0; i < 8; i++) {
+            destino[inicio + 4 + i] = (byte) (valor >>> (56 - 8 * i));
+        }
+    }
+}
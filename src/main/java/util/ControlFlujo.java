@@ -0,0 +1,137 @@
+package util;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Control de flujo por crédito de los flujos masivos de una sesión, al estilo de HTTP/2.
+ * El emisor solo tiene en vuelo tantos bytes de cada flujo como el par le concedió, y el receptor
+ * concede más con tramas {@link TipoTrama#CREDITO} a medida que las procesa. Así un archivo no
+ * llena los búferes del sistema ni la entrada del par, y un mensaje de chat nunca queda detrás de
+ * más de una ventana de datos. Los flujos interactivos no consumen crédito.
+ */
+public class ControlFlujo {
+
+    public static final int VENTANA_INICIAL = 256 * 1024; // Crédito inicial de cada flujo masivo, en bytes de trama
+
+    private final int ventana; // Crédito inicial; se devuelve al par en tramos de media ventana
+    private final ReentrantLock bloqueo = new ReentrantLock(); // No fija los hilos virtuales que esperan
+    private final Condition hayCredito = bloqueo.newCondition();
+    private final long[] credito = new long[FormatoTrama.FLUJOS]; // Bytes que aún se pueden enviar, por flujo
+    private final int[] consumidos = new int[FormatoTrama.FLUJOS]; // Bytes procesados sin devolver (solo el lector)
+    private boolean cerrado;
+
+    public ControlFlujo() {
+        this(VENTANA_INICIAL);
+    }
+
+    /**
+     * Crea el control con una ventana inicial distinta; ambos pares deben usar la misma.
+     */
+    public ControlFlujo(int ventana) {
+        this.ventana = ventana;
+        Arrays.fill(credito, ventana);
+    }
+
+    /**
+     * Espera a que el flujo tenga crédito y descuenta una trama. Una trama mayor que el crédito
+     * que queda deja el saldo en negativo en lugar de esperar para siempre.
+     * @throws IOException si la sesión se cerró mientras esperaba
+     */
+    public void reservar(int flujo, int bytes) throws InterruptedException, IOException {
+        if (!FormatoTrama.isMasivo(flujo)) {
+            return;
+        }
+        bloqueo.lockInterruptibly();
+        try {
+            if (credito[flujo] <= 0 && !cerrado) {
+                long inicio = Metricas.reloj();
+                while (credito[flujo] <= 0 && !cerrado) {
+                    hayCredito.await();
+                }
+                Metricas.ESPERA_CREDITO.registrarDesde(inicio);
+            }
+            if (cerrado) {
+                throw new IOException("La sesión se cerró esperando crédito del flujo " + flujo);
+            }
+            credito[flujo] -= bytes;
+        } finally {
+            bloqueo.unlock();
+        }
+    }
+
+    /**
+     * Descuenta una trama sin esperar, para las tramas de control de un flujo masivo que van por el carril interactivo.
+     */
+    public void descontar(int flujo, int bytes) {
+        if (!FormatoTrama.isMasivo(flujo)) {
+            return;
+        }
+        bloqueo.lock();
+        try {
+            credito[flujo] -= bytes;
+        } finally {
+            bloqueo.unlock();
+        }
+    }
+
+    /**
+     * Suma el crédito que concedió el par y despierta a los emisores que esperaban.
+     */
+    public void conceder(int flujo, int incremento) throws IOException {
+        if (!FormatoTrama.isMasivo(flujo) || flujo >= FormatoTrama.FLUJOS || incremento <= 0) {
+            throw new IOException("Crédito inválido: flujo " + flujo + ", " + incremento + " bytes");
+        }
+        bloqueo.lock();
+        try {
+            credito[flujo] = Math.min(credito[flujo] + incremento, Integer.MAX_VALUE);
+            hayCredito.signalAll();
+        } finally {
+            bloqueo.unlock();
+        }
+    }
+
+    /**
+     * Anota una trama recibida y procesada. Solo debe llamarse desde el hilo lector.
+     * @return el crédito que hay que devolver al par, o cero mientras no llegue a media ventana
+     */
+    public int consumido(int flujo, int bytes) {
+        if (!FormatoTrama.isMasivo(flujo)) {
+            return 0;
+        }
+        consumidos[flujo] += bytes;
+        if (consumidos[flujo] < ventana / 2) {
+            return 0;
+        }
+        int incremento = consumidos[flujo];
+        consumidos[flujo] = 0;
+        return incremento;
+    }
+
+    /**
+     * Devuelve el crédito que le queda a un flujo; puede ser negativo.
+     */
+    public long getCredito(int flujo) {
+        bloqueo.lock();
+        try {
+            return credito[flujo];
+        } finally {
+            bloqueo.unlock();
+        }
+    }
+
+    /**
+     * Despierta a los emisores que esperaban crédito; fallarán con una {@link IOException}.
+     */
+    public void cerrar() {
+        bloqueo.lock();
+        try {
+            cerrado = true;
+            hayCredito.signalAll();
+        } finally {
+            bloqueo.unlock();
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package util;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Eventos JFR propios del chat. Se graban con
+ * {@code -XX:StartFlightRecording:settings=profile} o desde JDK Mission Control; cuando JFR no
+ * está grabando, crear y descartar un evento no cuesta prácticamente nada.
+ */
+public final class EventosChat {
+
+    private EventosChat() {}
+
+    @Name("chatcifrado.Intercambio")
+    @Label("Intercambio de claves")
+    @Category({"Chat cifrado", "Conexión"})
+    @StackTrace(false)
+    public static class Intercambio extends Event {
+        @Label("Modo")
+        public String modo;
+
+        @Label("Servidor")
+        @Description("true si este extremo respondió al saludo")
+        public boolean servidor;
+
+        @Label("Reanudado")
+        public boolean reanudado;
+
+        @Label("Obtener par")
+        @Timespan(Timespan.NANOSECONDS)
+        public long par;
+
+        @Label("Ida y vuelta")
+        @Timespan(Timespan.NANOSECONDS)
+        public long red;
+
+        @Label("Acuerdo")
+        @Timespan(Timespan.NANOSECONDS)
+        public long acuerdo;
+    }
+
+    @Name("chatcifrado.Trama")
+    @Label("Trama cifrada o descifrada")
+    @Category({"Chat cifrado", "Sesión"})
+    @StackTrace(false)
+    public static class Trama extends Event {
+        @Label("Sesión")
+        public long sesion;
+
+        @Label("Enviada")
+        public boolean enviada;
+
+        @Label("Tipo")
+        public int tipo;
+
+        @Label("Tamaño")
+        @DataAmount
+        public int bytes;
+    }
+
+    @Name("chatcifrado.Escritura")
+    @Label("Escritura de la cola de envío")
+    @Category({"Chat cifrado", "Sesión"})
+    @StackTrace(false)
+    public static class Escritura extends Event {
+        @Label("Tramas")
+        public int tramas;
+
+        @Label("Tamaño")
+        @DataAmount
+        public long bytes;
+
+        @Label("Profundidad")
+        @Description("Tramas que seguían en la cola al escribir")
+        public int profundidad;
+    }
+
+    @Name("chatcifrado.Recepcion")
+    @Label("Mensajes entregados a la interfaz")
+    @Category({"Chat cifrado", "Interfaz"})
+    @StackTrace(false)
+    public static class Recepcion extends Event {
+        @Label("Mensajes")
+        public int mensajes;
+
+        @Label("Latencia")
+        @Description("Desde que el lector publicó el primer mensaje del lote hasta que está en la lista")
+        @Timespan(Timespan.NANOSECONDS)
+        public long latencia;
+    }
+}
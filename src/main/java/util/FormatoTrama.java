@@ -0,0 +1,232 @@
+package util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Formato binario de las tramas, común a las tramas planas del intercambio de claves y a las cifradas:
+ * <pre>
+ * versión (1 byte) | tipo (1 byte) | banderas (1 byte) | flujo (varint) | longitud (varint) | carga
+ * </pre>
+ * Los varint son LEB128 sin signo de 5 bytes como máximo. En las tramas cifradas la carga es el IV,
+ * el texto cifrado y el tag, y la cabecera entera va autenticada como datos adicionales de GCM: el
+ * receptor puede despachar la trama por su tipo y su flujo antes de descifrarla, pero nadie puede
+ * alterarlos por el camino.
+ *
+ * Varios flujos lógicos comparten la conexión. Los interactivos (control, chat y presencia) no
+ * tienen límite; los masivos, desde {@link #FLUJO_ARCHIVOS}, solo envían el crédito que les concede
+ * el par ({@link ControlFlujo}), de modo que nunca hacen esperar a los interactivos.
+ *
+ * Las banderas {@link #EPOCA} llevan los dos bits bajos de la época de la clave con que se cifró la
+ * trama ({@link RotacionClaves}); al ir en la cabecera, también están autenticadas.
+ *
+ * Una instancia decodifica cabeceras y guarda los campos de la última; no es segura entre hilos.
+ */
+public final class FormatoTrama {
+
+    public static final byte VERSION = 1; // Versión del formato; una distinta se rechaza
+    public static final int CABECERA_MAXIMA = 3 + 5 + 5; // Versión, tipo, banderas y dos varint
+
+    // Flujos lógicos
+    public static final int FLUJO_CONTROL = 0; // Intercambio de claves, capacidades y crédito
+    public static final int FLUJO_CHAT = 1; // Mensajes de texto
+    public static final int FLUJO_PRESENCIA = 2; // Estado de los pares
+    public static final int FLUJO_ARCHIVOS = 3; // Transferencias; este y los siguientes son masivos
+    public static final int FLUJO_HISTORIAL = 4; // Mensajes recuperados al sincronizar el historial
+    public static final int FLUJOS = 64; // Identificadores de flujo admitidos
+
+    // Banderas
+    public static final byte COMPRIMIDA = 0x01; // La carga va comprimida (ver CompresionTramas)
+    public static final byte EPOCA = 0x06; // Etiqueta de la época de la clave (ver RotacionClaves)
+    private static final int BANDERAS_CONOCIDAS = COMPRIMIDA | EPOCA;
+
+    private byte tipo; // Campos de la última cabecera decodificada
+    private byte banderas;
+    private int flujo;
+    private int longitud; // Longitud de la carga
+    private int longitudCabecera;
+
+    /**
+     * Decodifica la cabecera que empieza en la posición de {@code datos}, sin mover la posición.
+     * @param limites carga máxima aceptada para cada tipo
+     * @return true si la cabecera está completa; false si faltan bytes para decodificarla
+     * @throws IOException si la cabecera no es válida (versión, banderas, flujo o longitud)
+     */
+    public boolean decodificar(ByteBuffer datos, LimitesTrama limites) throws IOException {
+        int posicion = datos.position();
+        int disponibles = datos.remaining();
+        if (disponibles < 3) {
+            return false;
+        }
+        byte version = datos.get(posicion);
+        if (version != VERSION) {
+            throw new IOException("Versión de trama no admitida: " + (version & 0xFF));
+        }
+        byte banderasLeidas = datos.get(posicion + 2);
+        if ((banderasLeidas & ~BANDERAS_CONOCIDAS) != 0) {
+            throw new IOException("Banderas de trama desconocidas: " + Integer.toHexString(banderasLeidas & 0xFF));
+        }
+        long flujoLeido = leerVarintEn(datos, posicion + 3);
+        if (flujoLeido < 0) {
+            return false;
+        }
+        int finFlujo = posicion + 3 + (int) (flujoLeido >>> 32);
+        long longitudLeida = leerVarintEn(datos, finFlujo);
+        if (longitudLeida < 0) {
+            return false;
+        }
+        int valorFlujo = (int) flujoLeido;
+        int valorLongitud = (int) longitudLeida;
+        if (valorFlujo < 0 || valorFlujo >= FLUJOS) {
+            throw new IOException("Flujo de trama inválido: " + Integer.toUnsignedString(valorFlujo));
+        }
+        byte tipoLeido = datos.get(posicion + 1);
+        if (valorLongitud < 0 || valorLongitud > limites.getMaximoCarga(tipoLeido)) {
+            throw new IOException("Longitud de trama inválida para el tipo " + tipoLeido + ": " + Integer.toUnsignedString(valorLongitud));
+        }
+        tipo = tipoLeido;
+        banderas = banderasLeidas;
+        flujo = valorFlujo;
+        longitud = valorLongitud;
+        longitudCabecera = finFlujo + (int) (longitudLeida >>> 32) - posicion;
+        return true;
+    }
+
+    /**
+     * Lee un varint en una posición absoluta.
+     * @return el valor en los 32 bits bajos y los bytes que ocupa en los altos, o -1 si está incompleto
+     */
+    private static long leerVarintEn(ByteBuffer datos, int posicion) throws IOException {
+        int valor = 0;
+        for (int i = 0; i < 5; i++) {
+            if (posicion + i >= datos.limit()) {
+                return -1;
+            }
+            int b = datos.get(posicion + i);
+            if (i == 4 && (b & 0xF0) != 0) {
+                throw new IOException("Varint demasiado largo en la cabecera de la trama");
+            }
+            valor |= (b & 0x7F) << (7 * i);
+            if ((b & 0x80) == 0) {
+                return ((long) (i + 1) << 32) | (valor & 0xFFFFFFFFL);
+            }
+        }
+        throw new IOException("Varint demasiado largo en la cabecera de la trama");
+    }
+
+    /**
+     * Lee un varint no negativo en la posición de {@code datos} y la avanza; para los campos del contenido.
+     */
+    public static int leerVarint(ByteBuffer datos) throws IOException {
+        int valor = 0;
+        for (int i = 0; i < 5; i++) {
+            if (!datos.hasRemaining()) {
+                throw new IOException("Varint incompleto");
+            }
+            int b = datos.get();
+            valor |= (b & 0x7F) << (7 * i);
+            if ((b & 0x80) == 0) {
+                if (valor < 0 || (i == 4 && (b & 0xF0) != 0)) {
+                    break;
+                }
+                return valor;
+            }
+        }
+        throw new IOException("Varint inválido");
+    }
+
+    /**
+     * Escribe un varint no negativo en la posición de {@code destino}.
+     */
+    public static ByteBuffer escribirVarint(ByteBuffer destino, int valor) {
+        while ((valor & ~0x7F) != 0) {
+            destino.put((byte) ((valor & 0x7F) | 0x80));
+            valor >>>= 7;
+        }
+        return destino.put((byte) valor);
+    }
+
+    /**
+     * Devuelve los bytes que ocupa un varint no negativo.
+     */
+    public static int longitudVarint(int valor) {
+        return (31 - Integer.numberOfLeadingZeros(valor | 1)) / 7 + 1;
+    }
+
+    /**
+     * Devuelve la longitud de la cabecera de una trama de ese flujo y esa carga.
+     */
+    public static int longitudCabecera(int flujo, int longitud) {
+        return 3 + longitudVarint(flujo) + longitudVarint(longitud);
+    }
+
+    /**
+     * Escribe una cabecera en la posición de {@code destino}.
+     * @param longitud longitud de la carga que la sigue
+     */
+    public static ByteBuffer escribirCabecera(ByteBuffer destino, byte tipo, byte banderas, int flujo, int longitud) {
+        destino.put(VERSION).put(tipo).put(banderas);
+        escribirVarint(destino, flujo);
+        return escribirVarint(destino, longitud);
+    }
+
+    /**
+     * Enmarca un contenido sin cifrar como trama {@link TipoTrama#SALUDO} del flujo de control.
+     * @return un búfer del heap listo para escribir
+     */
+    public static ByteBuffer enmarcarPlana(byte[] contenido) {
+        ByteBuffer trama = ByteBuffer.allocate(longitudCabecera(FLUJO_CONTROL, contenido.length) + contenido.length);
+        escribirCabecera(trama, TipoTrama.SALUDO, (byte) 0, FLUJO_CONTROL, contenido.length);
+        return trama.put(contenido).flip();
+    }
+
+    /**
+     * Devuelve el flujo por el que viaja cada tipo de trama.
+     */
+    public static int flujoDe(byte tipo) {
+        return switch (tipo) {
+            case TipoTrama.MENSAJE, TipoTrama.MENSAJE_GRUPO -> FLUJO_CHAT;
+            case TipoTrama.ARCHIVO_OFERTA, TipoTrama.ARCHIVO_REANUDAR, TipoTrama.ARCHIVO_BLOQUE, TipoTrama.ARCHIVO_FIN -> FLUJO_ARCHIVOS;
+            case TipoTrama.LOTE_HISTORIAL -> FLUJO_HISTORIAL;
+            case TipoTrama.PRESENCIA -> FLUJO_PRESENCIA;
+            default -> FLUJO_CONTROL;
+        };
+    }
+
+    /**
+     * Indica si un flujo es masivo y, por tanto, está sujeto al crédito del par.
+     */
+    public static boolean isMasivo(int flujo) {
+        return flujo >= FLUJO_ARCHIVOS;
+    }
+
+    public byte getTipo() {
+        return tipo;
+    }
+
+    public byte getBanderas() {
+        return banderas;
+    }
+
+    public int getFlujo() {
+        return flujo;
+    }
+
+    /**
+     * Devuelve la longitud de la carga de la última trama decodificada.
+     */
+    public int getLongitud() {
+        return longitud;
+    }
+
+    public int getLongitudCabecera() {
+        return longitudCabecera;
+    }
+
+    /**
+     * Devuelve la longitud total (cabecera y carga) de la última trama decodificada.
+     */
+    public int getLongitudTotal() {
+        return longitudCabecera + longitud;
+    }
+}
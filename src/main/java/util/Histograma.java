@@ -0,0 +1,126 @@
+package util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histograma de valores no negativos sin bloqueos, con cubetas log-lineales al estilo HDR:
+ * cada potencia de dos se divide en 16 cubetas, así que los percentiles tienen un error relativo
+ * menor del 6,25 % y registrar un valor es un incremento atómico sin asignar memoria.
+ */
+public class Histograma {
+
+    private static final int BITS_SUBCUBETA = 4;
+    private static final int SUBCUBETAS = 1 << BITS_SUBCUBETA; // Cubetas por potencia de dos
+    private static final int CUBETAS = (64 - BITS_SUBCUBETA + 1) * SUBCUBETAS;
+
+    /**
+     * Resumen de un histograma en un instante.
+     * @param unidad unidad de los valores
+     * @param cuenta valores registrados
+     * @param media media aritmética
+     * @param p50 mediana
+     * @param p90 percentil 90
+     * @param p99 percentil 99
+     * @param p999 percentil 99,9
+     * @param maximo mayor valor registrado
+     */
+    public record Resumen(String unidad, long cuenta, double media, long p50, long p90, long p99, long p999, long maximo) {}
+
+    private final String nombre;
+    private final String unidad; // Unidad de los valores: "ns", "bytes", "tramas"...
+    private final AtomicLongArray cubetas = new AtomicLongArray(CUBETAS);
+    private final LongAdder suma = new LongAdder();
+    private final LongAccumulator maximo = new LongAccumulator(Math::max, 0);
+
+    /**
+     * Crea un histograma vacío; normalmente se obtiene de {@link Metricas}.
+     */
+    public Histograma(String nombre, String unidad) {
+        this.nombre = nombre;
+        this.unidad = unidad;
+    }
+
+    /**
+     * Registra un valor; los negativos cuentan como cero. No hace nada si las métricas están desactivadas.
+     */
+    public void registrar(long valor) {
+        if (!Metricas.ACTIVAS) {
+            return;
+        }
+        valor = Math.max(0, valor);
+        cubetas.getAndIncrement(indice(valor));
+        suma.add(valor);
+        maximo.accumulate(valor);
+    }
+
+    /**
+     * Registra el tiempo transcurrido desde un instante obtenido con {@link Metricas#reloj()}.
+     */
+    public void registrarDesde(long inicio) {
+        if (Metricas.ACTIVAS) {
+            registrar(System.nanoTime() - inicio);
+        }
+    }
+
+    /**
+     * Calcula el resumen actual. Los valores que se registren mientras tanto pueden quedar fuera.
+     */
+    public Resumen resumen() {
+        long[] copia = new long[CUBETAS];
+        long cuenta = 0;
+        for (int i = 0; i < CUBETAS; i++) {
+            copia[i] = cubetas.get(i);
+            cuenta += copia[i];
+        }
+        if (cuenta == 0) {
+            return new Resumen(unidad, 0, 0, 0, 0, 0, 0, 0);
+        }
+        long max = maximo.get();
+        return new Resumen(unidad, cuenta, (double) suma.sum() / cuenta,
+                percentil(copia, cuenta, 0.50, max), percentil(copia, cuenta, 0.90, max),
+                percentil(copia, cuenta, 0.99, max), percentil(copia, cuenta, 0.999, max), max);
+    }
+
+    public String getNombre() {
+        return nombre;
+    }
+
+    public String getUnidad() {
+        return unidad;
+    }
+
+    /**
+     * Devuelve el mayor valor equivalente de la cubeta donde cae el percentil.
+     */
+    private static long percentil(long[] copia, long cuenta, double fraccion, long max) {
+        long objetivo = Math.max(1, (long) Math.ceil(cuenta * fraccion));
+        long acumulado = 0;
+        for (int i = 0; i < CUBETAS; i++) {
+            acumulado += copia[i];
+            if (acumulado >= objetivo) {
+                return i + 1 < CUBETAS ? Math.min(max, minimoCubeta(i + 1) - 1) : max;
+            }
+        }
+        return max;
+    }
+
+    static int indice(long valor) {
+        if (valor < SUBCUBETAS) {
+            return (int) valor; // Los valores pequeños son exactos
+        }
+        int exponente = 63 - Long.numberOfLeadingZeros(valor);
+        int sub = (int) (valor >>> (exponente - BITS_SUBCUBETA)) & (SUBCUBETAS - 1);
+        return (exponente - BITS_SUBCUBETA + 1) * SUBCUBETAS + sub;
+    }
+
+    static long minimoCubeta(int indice) {
+        if (indice < SUBCUBETAS) {
+            return indice;
+        }
+        int exponente = indice / SUBCUBETAS + BITS_SUBCUBETA - 1;
+        long sub = indice % SUBCUBETAS;
+        return (1L << exponente) | (sub << (exponente - BITS_SUBCUBETA));
+    }
+}
@@ -0,0 +1,49 @@
+package util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Historial que solo vive en memoria mientras dura la sesión.
+ */
+public class HistorialMemoria implements ProveedorHistorial {
+
+    private final List<MensajeChat> mensajes = new ArrayList<>(); // Mensajes en orden (protegido por sí mismo)
+
+    @Override
+    public MensajeChat agregar(String autor, String texto) {
+        return agregar(autor, texto, System.currentTimeMillis());
+    }
+
+    @Override
+    public MensajeChat agregar(String autor, String texto, long instante) {
+        synchronized (mensajes) {
+            MensajeChat mensaje = new MensajeChat(mensajes.size(), autor, texto, instante);
+            mensajes.add(mensaje);
+            return mensaje;
+        }
+    }
+
+    @Override
+    public List<MensajeChat> anteriores(long secuencia, int cantidad) {
+        synchronized (mensajes) {
+            int fin = (int) Math.min(Math.max(secuencia, 0), mensajes.size());
+            return new ArrayList<>(mensajes.subList(Math.max(0, fin - cantidad), fin));
+        }
+    }
+
+    @Override
+    public List<MensajeChat> posteriores(long secuencia, int cantidad) {
+        synchronized (mensajes) {
+            int inicio = (int) Math.min(Math.max(secuencia + 1, 0), mensajes.size());
+            return new ArrayList<>(mensajes.subList(inicio, Math.min(mensajes.size(), inicio + cantidad)));
+        }
+    }
+
+    @Override
+    public long getTamano() {
+        synchronized (mensajes) {
+            return mensajes.size();
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package util;
+
+import java.io.IOException;
+
+/**
+ * Historiales guardados de las conversaciones con cada par. Cada uno queda ligado a un secreto que los
+ * dos extremos acuerdan en su primera conversación guardada: como el nombre del par lo elige el propio par
+ * y el intercambio de claves es anónimo, {@link MotorChat} solo abre el historial, y solo sincroniza con
+ * el par, cuando este prueba tener el mismo secreto.
+ */
+public interface HistorialesPorPar {
+
+    /**
+     * Devuelve el secreto ligado al historial guardado con el par, o null si no hay ninguno.
+     */
+    byte[] secreto(String par) throws IOException;
+
+    /**
+     * Abre el historial guardado con el par. Si no hay ninguno, lo crea ligado al secreto dado.
+     * @param secreto el que devolvió {@link #secreto}, o el recién acordado para un historial nuevo
+     * @throws IOException si no se puede abrir, o si hay uno que no está ligado a ningún secreto
+     */
+    ProveedorHistorial abrir(String par, byte[] secreto) throws IOException;
+}
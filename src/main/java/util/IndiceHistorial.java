@@ -0,0 +1,324 @@
+package util;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Índice invertido de las palabras del historial para buscar mensajes que ya no están en la lista.
+ * Las palabras se guardan en minúsculas y sin tildes ("Canción" y "cancion" son la misma, y la ñ se
+ * busca como n), en un mapa ordenado para poder buscar por prefijo; cada una apunta a la lista de
+ * los mensajes que la contienen como un arreglo de enteros creciente, sin objetos por aparición.
+ *
+ * Como {@link ResumenHistorial}, se construye leyendo el historial la primera vez que se busca y
+ * después se mantiene con {@link #anotar}. Vive solo en memoria: el historial en disco ya está
+ * cifrado y el índice no se guarda nunca, se vuelve a construir al abrirlo.
+ */
+public class IndiceHistorial {
+
+    public static final int LONGITUD_MAXIMA = 32; // Caracteres que se guardan de cada palabra; el resto no distingue
+    static final int UMBRAL_MAPA = 16; // Palabras de un prefijo a partir de las que sus listas se unen en un mapa de bits
+    private static final int PAGINA = 4096; // Mensajes que se leen del historial de una vez al ponerse al día
+    private static final char[] PLEGADO = new char[0x250]; // Minúscula sin diacríticos de los caracteres latinos
+
+    static {
+        for (char c = 0; c < PLEGADO.length; c++) {
+            PLEGADO[c] = Character.toLowerCase(Normalizer.normalize(String.valueOf(c), Normalizer.Form.NFD).charAt(0));
+        }
+    }
+
+    private final ProveedorHistorial historial;
+    private final TreeMap<String, Lista> palabras = new TreeMap<>(); // Palabra normalizada y mensajes que la contienen
+    private long[] secuencias = new long[1024]; // Secuencia de cada mensaje indexado; su posición es su número en las listas
+    private int documentos; // Mensajes indexados
+    private long hasta; // Las secuencias por debajo de esta ya están en el índice
+    private volatile boolean iniciado; // Ya se empezó a leer el historial; desde entonces se anotan los añadidos
+
+    /**
+     * Números, en orden creciente, de los mensajes que contienen una palabra. Solo se añade al final,
+     * así que una búsqueda puede leer las primeras {@code cantidad} posiciones sin bloqueo.
+     */
+    private static final class Lista {
+        int[] documentos = new int[1];
+        int cantidad;
+
+        void agregar(int documento) {
+            if (cantidad > 0 && documentos[cantidad - 1] == documento) {
+                return; // La palabra se repite en el mismo mensaje
+            }
+            if (cantidad == documentos.length) {
+                documentos = Arrays.copyOf(documentos, cantidad * 2);
+            }
+            documentos[cantidad++] = documento;
+        }
+    }
+
+    /**
+     * Prepara el índice de un historial; no lee nada hasta la primera búsqueda o {@link #actualizar()}.
+     */
+    public IndiceHistorial(ProveedorHistorial historial) {
+        this.historial = historial;
+    }
+
+    /**
+     * Incluye un mensaje recién añadido al historial. Si el índice aún no se construyó, o el mensaje
+     * no es el siguiente que le falta, no hace nada: lo recogerá la próxima {@link #actualizar()}.
+     */
+    public void anotar(MensajeChat mensaje) {
+        if (!iniciado) {
+            return;
+        }
+        List<String> contenidas = palabras(mensaje.texto());
+        synchronized (this) {
+            if (mensaje.secuencia() == hasta) {
+                indexar(mensaje.secuencia(), contenidas);
+                hasta++;
+            }
+        }
+    }
+
+    /**
+     * Lee del historial los mensajes que aún no están en el índice. La primera vez lo recorre entero;
+     * el resto del tiempo solo encuentra lo que {@link #anotar} no llegó a ver.
+     */
+    public void actualizar() {
+        iniciado = true;
+        while (true) {
+            long desde;
+            synchronized (this) {
+                desde = hasta;
+            }
+            List<MensajeChat> pagina = historial.posteriores(desde - 1, PAGINA);
+            List<List<String>> contenidas = new ArrayList<>(pagina.size());
+            for (MensajeChat mensaje : pagina) {
+                contenidas.add(palabras(mensaje.texto()));
+            }
+            synchronized (this) {
+                for (int i = 0; i < pagina.size(); i++) {
+                    long secuencia = pagina.get(i).secuencia();
+                    if (secuencia >= hasta) {
+                        indexar(secuencia, contenidas.get(i));
+                        hasta = secuencia + 1;
+                    }
+                }
+            }
+            if (pagina.size() < PAGINA) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Busca los mensajes que contienen todas las palabras de la consulta o palabras que empiezan por
+     * ellas ("can" encuentra "canción"), sin distinguir mayúsculas ni tildes. Antes se pone al día con
+     * el historial, así que la primera búsqueda tarda lo que cuesta leerlo entero.
+     * @return los resultados, del más reciente al más antiguo, para pedirlos por páginas
+     */
+    public Resultados buscar(String consulta) {
+        actualizar();
+        Set<String> prefijos = new LinkedHashSet<>(palabras(consulta));
+        List<int[][]> listas = new ArrayList<>(prefijos.size());
+        List<int[]> cantidades = new ArrayList<>(prefijos.size());
+        long[] secuenciasActuales;
+        synchronized (this) {
+            for (String prefijo : prefijos) {
+                Collection<Lista> encontradas = palabras.subMap(prefijo, true, prefijo + Character.MAX_VALUE, false).values();
+                int[][] arreglos = new int[encontradas.size()][];
+                int[] limites = new int[encontradas.size()];
+                int i = 0;
+                for (Lista lista : encontradas) {
+                    arreglos[i] = lista.documentos;
+                    limites[i++] = lista.cantidad;
+                }
+                listas.add(arreglos);
+                cantidades.add(limites);
+            }
+            secuenciasActuales = secuencias;
+        }
+        Criterio[] criterios = new Criterio[prefijos.size()];
+        for (int i = 0; i < criterios.length; i++) {
+            criterios[i] = new Criterio(listas.get(i), cantidades.get(i));
+        }
+        Arrays.sort(criterios, Comparator.comparingLong(criterio -> criterio.apariciones));
+        return new Resultados(criterios, secuenciasActuales);
+    }
+
+    /**
+     * Devuelve los mensajes indexados.
+     */
+    public synchronized int getMensajes() {
+        return documentos;
+    }
+
+    /**
+     * Devuelve las palabras distintas del índice.
+     */
+    public synchronized int getPalabras() {
+        return palabras.size();
+    }
+
+    /**
+     * Añade un mensaje a las listas de sus palabras. Se llama con el bloqueo del índice.
+     */
+    private void indexar(long secuencia, List<String> contenidas) {
+        if (documentos == secuencias.length) {
+            secuencias = Arrays.copyOf(secuencias, documentos * 2);
+        }
+        secuencias[documentos] = secuencia;
+        for (String palabra : contenidas) {
+            palabras.computeIfAbsent(palabra, p -> new Lista()).agregar(documentos);
+        }
+        documentos++;
+    }
+
+    /**
+     * Parte un texto en palabras (letras y dígitos seguidos) y las normaliza: minúsculas, sin tildes
+     * ni otros diacríticos y como mucho {@link #LONGITUD_MAXIMA} caracteres.
+     */
+    static List<String> palabras(String texto) {
+        List<String> encontradas = new ArrayList<>();
+        StringBuilder palabra = new StringBuilder();
+        for (int i = 0; i <= texto.length(); i++) {
+            char c = i < texto.length() ? texto.charAt(i) : ' ';
+            if (Character.getType(c) == Character.NON_SPACING_MARK) {
+                continue; // Tilde suelta de un texto ya descompuesto
+            }
+            if (Character.isLetterOrDigit(c)) {
+                if (palabra.length() < LONGITUD_MAXIMA) {
+                    palabra.append(c < PLEGADO.length ? PLEGADO[c] : Character.toLowerCase(c));
+                }
+            } else if (!palabra.isEmpty()) {
+                encontradas.add(palabra.toString());
+                palabra.setLength(0);
+            }
+        }
+        return encontradas;
+    }
+
+    /**
+     * Mensajes que contienen alguna palabra de un prefijo. Con pocas palabras recorre sus listas;
+     * con muchas (un prefijo corto) las une antes en un mapa de bits.
+     */
+    private static final class Criterio {
+        final int[][] listas;
+        final int[] cantidades;
+        final long apariciones; // Total de las listas, para empezar por el criterio más selectivo
+        final BitSet mapa;
+
+        Criterio(int[][] listas, int[] cantidades) {
+            this.listas = listas;
+            this.cantidades = cantidades;
+            long total = 0;
+            for (int cantidad : cantidades) {
+                total += cantidad;
+            }
+            this.apariciones = total;
+            if (listas.length > UMBRAL_MAPA) {
+                mapa = new BitSet();
+                for (int i = 0; i < listas.length; i++) {
+                    for (int j = 0; j < cantidades[i]; j++) {
+                        mapa.set(listas[i][j]);
+                    }
+                }
+            } else {
+                mapa = null;
+            }
+        }
+
+        /**
+         * Devuelve el mayor mensaje del criterio por debajo de {@code limite}, o -1 si no hay.
+         */
+        int anterior(int limite) {
+            if (limite <= 0) {
+                return -1;
+            }
+            if (mapa != null) {
+                return mapa.previousSetBit(limite - 1);
+            }
+            int mayor = -1;
+            for (int i = 0; i < listas.length; i++) {
+                int posicion = Arrays.binarySearch(listas[i], 0, cantidades[i], limite);
+                int anterior = (posicion >= 0 ? posicion : -posicion - 1) - 1;
+                if (anterior >= 0) {
+                    mayor = Math.max(mayor, listas[i][anterior]);
+                }
+            }
+            return mayor;
+        }
+    }
+
+    /**
+     * Resultados de una búsqueda, del más reciente al más antiguo. Se calculan a medida que se piden,
+     * así que pedir la primera página no cuesta más por haber muchos. No ve los mensajes añadidos
+     * después de buscar. Cada objeto es de un solo hilo.
+     */
+    public final class Resultados {
+
+        private final Criterio[] criterios; // Uno por palabra de la consulta, el más selectivo primero
+        private final long[] secuencias; // Secuencias de los mensajes en el momento de buscar
+        private int cursor; // Los mensajes por debajo de este número quedan por recorrer
+
+        private Resultados(Criterio[] criterios, long[] secuencias) {
+            this.criterios = criterios;
+            this.secuencias = secuencias;
+            this.cursor = criterios.length > 0 ? Integer.MAX_VALUE : 0;
+        }
+
+        /**
+         * Devuelve los siguientes {@code cantidad} mensajes que cumplen la consulta; menos si no quedan más.
+         */
+        public List<MensajeChat> siguientes(int cantidad) {
+            long inicio = Metricas.reloj();
+            List<MensajeChat> pagina = new ArrayList<>(cantidad);
+            while (pagina.size() < cantidad && cursor > 0) {
+                int documento = coincidencia(cursor);
+                cursor = Math.max(documento, 0);
+                if (documento >= 0) {
+                    List<MensajeChat> leido = historial.posteriores(secuencias[documento] - 1, 1);
+                    if (!leido.isEmpty() && leido.get(0).secuencia() == secuencias[documento]) {
+                        pagina.add(leido.get(0));
+                    }
+                }
+            }
+            Metricas.BUSQUEDA.registrarDesde(inicio);
+            return pagina;
+        }
+
+        /**
+         * Indica si ya no quedan resultados por devolver.
+         */
+        public boolean isTerminada() {
+            return cursor == 0;
+        }
+
+        /**
+         * Devuelve el mayor mensaje por debajo de {@code limite} que cumple todos los criterios, o -1.
+         * Cada criterio salta directamente al mayor de los suyos que no supera al candidato actual.
+         */
+        private int coincidencia(int limite) {
+            int candidato = criterios[0].anterior(limite);
+            while (candidato >= 0) {
+                boolean todos = true;
+                for (Criterio criterio : criterios) {
+                    int propio = criterio.anterior(candidato + 1);
+                    if (propio != candidato) {
+                        candidato = propio;
+                        todos = false;
+                        break;
+                    }
+                }
+                if (todos) {
+                    return candidato;
+                }
+            }
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,403 @@
+package util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.crypto.Cipher;
+import javax.crypto.KeyAgreement;
+import javax.crypto.Mac;
+import javax.crypto.interfaces.DHPublicKey;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Intercambio de claves de una sesión, con modo negociable y reanudación.
+ *
+ * El cliente abre con un saludo sin cifrar cuyo primer byte indica el modo:
+ * [modo][clave pública X.509] para un acuerdo completo ({@link ModoIntercambio}), o
+ * [REANUDAR][id del ticket][nonce] para reutilizar el secreto de una sesión anterior.
+ * El servidor responde [modo][su clave pública], [REANUDAR][nonce] o [RECHAZO] si no conoce
+ * el ticket, en cuyo caso el cliente repite el saludo con un acuerdo completo.
+ * Un saludo que empieza directamente por la clave X.509 (byte 0x30) es el intercambio
+ * Diffie-Hellman original y se sigue aceptando.
+ *
+ * En el mismo saludo se negocia la {@link SuiteCifrado} de la sesión: el cliente añade al final
+ * (tras la clave o el nonce) su oferta de suites y el servidor añade a su respuesta el código de la
+ * que eligió. Un saludo sin oferta, o una respuesta sin código, deja la sesión con AES-GCM.
+ *
+ * Tras cada intercambio ambos extremos derivan de la clave de sesión el mismo ticket
+ * (identificador y secreto) sin enviarlo; cada ticket sirve para una sola reanudación.
+ */
+public class IntercambioClaves {
+
+    public static final byte RECHAZO = 0; // El servidor no reconoce el ticket
+    public static final byte REANUDAR = 3; // Saludo o respuesta de reanudación
+
+    private static final byte INICIO_X509 = 0x30; // Primer byte de una clave pública X.509 (saludo original)
+    private static final int LONGITUD_ID_TICKET = 16;
+    private static final int LONGITUD_NONCE = 16;
+    private static final int TICKETS_MAXIMOS = 4096; // Tickets que recuerda el servidor
+    private static final Duration VIGENCIA_TICKET = Duration.ofHours(12);
+    private static final String HMAC = "HmacSHA256";
+    private static final Bitacora bitacora = Bitacora.de(IntercambioClaves.class);
+
+    /**
+     * Resultado de procesar un saludo en el servidor.
+     * @param trama contenido de la respuesta que hay que enviar al cliente
+     * @param clave clave de sesión acordada, o null si el cliente debe volver a saludar
+     * @param suite cifrado elegido para la sesión, o null junto con la clave
+     */
+    public record Respuesta(byte[] trama, byte[] clave, SuiteCifrado suite) {}
+
+    private record Ticket(byte[] id, byte[] secreto, long caduca) {
+        boolean vigente() {
+            return System.currentTimeMillis() < caduca;
+        }
+    }
+
+    private final PoolParesClaves pares; // Origen de los pares de claves efímeras
+    private final SecureRandom aleatorio = new SecureRandom(); // Nonces de reanudación
+    private final Map<String, Ticket> ticketsServidor = new LinkedHashMap<>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Ticket> mayor) {
+            return size() > TICKETS_MAXIMOS;
+        }
+    }; // Tickets emitidos por este extremo como servidor (protegido por sí mismo)
+    private final Map<String, Ticket> ticketsCliente = new ConcurrentHashMap<>(); // Último ticket por par remoto
+
+    /**
+     * Crea el intercambio con el pool de pares indicado.
+     */
+    public IntercambioClaves(PoolParesClaves pares) {
+        this.pares = pares;
+    }
+
+    /**
+     * Negocia la clave como cliente: reanuda si hay un ticket para el par y, si no, o si el
+     * servidor lo rechaza, hace un acuerdo completo con el modo indicado. Deja en la sesión la
+     * suite que eligió el servidor. Bloquea hasta terminar.
+     * @param par identificador del par remoto (por ejemplo, "host:puerto") con el que se guarda el ticket
+     * @return la clave de sesión
+     */
+    public byte[] negociarCliente(Sesion sesion, String par, ModoIntercambio modo) throws Exception {
+        EventosChat.Intercambio evento = new EventosChat.Intercambio();
+        evento.begin();
+        long inicio = Metricas.reloj();
+        byte[] oferta = SuiteCifrado.codificarOferta();
+        Ticket ticket = ticketsCliente.remove(par);
+        if (ticket != null && ticket.vigente()) {
+            byte[] nonceCliente = nonce();
+            long envio = System.nanoTime();
+            sesion.escribirTramaPlana(ByteBuffer.allocate(1 + LONGITUD_ID_TICKET + LONGITUD_NONCE + oferta.length)
+                    .put(REANUDAR).put(ticket.id()).put(nonceCliente).put(oferta).array());
+            byte[] respuesta = sesion.leerTramaPlana();
+            evento.red = System.nanoTime() - envio;
+            Metricas.INTERCAMBIO_RED.registrar(evento.red);
+            if (respuesta.length >= 1 + LONGITUD_NONCE && respuesta[0] == REANUDAR) {
+                sesion.setSuite(suiteElegida(respuesta, 1 + LONGITUD_NONCE));
+                byte[] clave = claveReanudada(ticket.secreto(), nonceCliente, Arrays.copyOfRange(respuesta, 1, 1 + LONGITUD_NONCE));
+                ticketsCliente.put(par, ticket(clave));
+                Metricas.INTERCAMBIO_TOTAL.registrarDesde(inicio);
+                terminar(evento, "REANUDACION", false, true);
+                return clave;
+            }
+            if (respuesta.length != 1 || respuesta[0] != RECHAZO) {
+                throw new IOException("Respuesta de reanudación inválida");
+            }
+            bitacora.info("El servidor no reconoció el ticket de " + par + "; acuerdo completo");
+        }
+        long fase = System.nanoTime();
+        KeyPair local = pares.tomar(modo);
+        evento.par = System.nanoTime() - fase;
+        Metricas.INTERCAMBIO_PAR.registrar(evento.par);
+        byte[] publica = local.getPublic().getEncoded();
+        fase = System.nanoTime();
+        sesion.escribirTramaPlana(ByteBuffer.allocate(1 + publica.length + oferta.length)
+                .put(modo.getCodigo()).put(publica).put(oferta).array());
+        byte[] respuesta = sesion.leerTramaPlana();
+        evento.red += System.nanoTime() - fase;
+        Metricas.INTERCAMBIO_RED.registrar(System.nanoTime() - fase);
+        if (respuesta.length < 2 || respuesta[0] != modo.getCodigo()) {
+            throw new IOException("El par no aceptó el intercambio " + modo);
+        }
+        int longitudPublica = longitudX509(respuesta, 1);
+        sesion.setSuite(suiteElegida(respuesta, 1 + longitudPublica));
+        fase = System.nanoTime();
+        byte[] clave = derivarClave(local.getPrivate(), modo.decodificar(respuesta, 1, longitudPublica));
+        evento.acuerdo = System.nanoTime() - fase;
+        Metricas.INTERCAMBIO_ACUERDO.registrar(evento.acuerdo);
+        ticketsCliente.put(par, ticket(clave));
+        pares.reponer(modo);
+        Metricas.INTERCAMBIO_TOTAL.registrarDesde(inicio);
+        terminar(evento, modo.name(), false, false);
+        return clave;
+    }
+
+    /**
+     * Negocia la clave según el papel de la sesión: el extremo que abrió la conexión propone
+     * el modo o reanuda con su ticket para {@code par}; el otro responde. Bloquea hasta terminar.
+     * @return la clave de sesión
+     */
+    public byte[] negociar(Sesion sesion, String par, ModoIntercambio modo) throws Exception {
+        return sesion.isIniciador() ? negociarCliente(sesion, par, modo) : negociarServidor(sesion);
+    }
+
+    /**
+     * Negocia la clave como servidor sobre una sesión bloqueante y deja en la sesión la suite
+     * elegida. Bloquea hasta terminar.
+     * @return la clave de sesión
+     */
+    public byte[] negociarServidor(Sesion sesion) throws Exception {
+        while (true) {
+            Respuesta respuesta = responder(sesion.leerTramaPlana());
+            sesion.escribirTramaPlana(respuesta.trama());
+            if (respuesta.clave() != null) {
+                sesion.setSuite(respuesta.suite());
+                reponerPares();
+                return respuesta.clave();
+            }
+        }
+    }
+
+    /**
+     * Procesa un saludo del cliente sin hacer E/S, para que lo use también el hub.
+     * Quien lo llama debe invocar {@link #reponerPares} después de enviar la respuesta.
+     */
+    public Respuesta responder(byte[] saludo) throws GeneralSecurityException {
+        if (saludo.length == 0) {
+            throw new GeneralSecurityException("Saludo vacío");
+        }
+        EventosChat.Intercambio evento = new EventosChat.Intercambio();
+        evento.begin();
+        long inicio = Metricas.reloj();
+        if (saludo[0] == INICIO_X509) {
+            PublicKey remota = ModoIntercambio.DH.decodificar(saludo, 0, saludo.length);
+            long fase = System.nanoTime();
+            KeyPair local = parDh((DHPublicKey) remota);
+            evento.par = System.nanoTime() - fase;
+            fase = System.nanoTime();
+            byte[] clave = derivarClave(local.getPrivate(), remota);
+            evento.acuerdo = System.nanoTime() - fase;
+            guardarTicketServidor(clave);
+            registrarServidor(evento, inicio, "DH");
+            return new Respuesta(local.getPublic().getEncoded(), clave, SuiteCifrado.AES_GCM);
+        }
+        if (saludo[0] == REANUDAR) {
+            Respuesta respuesta = reanudar(saludo);
+            if (respuesta.clave() != null) {
+                registrarServidor(evento, inicio, "REANUDACION");
+            }
+            return respuesta;
+        }
+        ModoIntercambio modo = ModoIntercambio.porCodigo(saludo[0]);
+        if (modo == null) {
+            throw new GeneralSecurityException("Modo de intercambio desconocido: " + saludo[0]);
+        }
+        int longitudPublica = longitudX509(saludo, 1);
+        SuiteCifrado suite = SuiteCifrado.elegir(ByteBuffer.wrap(saludo, 1 + longitudPublica, saludo.length - 1 - longitudPublica));
+        PublicKey remota = modo.decodificar(saludo, 1, longitudPublica);
+        long fase = System.nanoTime();
+        KeyPair local = modo == ModoIntercambio.DH ? parDh((DHPublicKey) remota) : pares.tomar(modo);
+        evento.par = System.nanoTime() - fase;
+        fase = System.nanoTime();
+        byte[] clave = derivarClave(local.getPrivate(), remota);
+        evento.acuerdo = System.nanoTime() - fase;
+        guardarTicketServidor(clave);
+        registrarServidor(evento, inicio, modo.name());
+        byte[] publica = local.getPublic().getEncoded();
+        return new Respuesta(ByteBuffer.allocate(1 + publica.length + 1).put(modo.getCodigo()).put(publica).put(suite.getCodigo()).array(),
+                clave, suite);
+    }
+
+    /**
+     * Registra las fases del lado servidor; la ida y vuelta no se mide aquí porque la hace quien llama.
+     */
+    private static void registrarServidor(EventosChat.Intercambio evento, long inicio, String modo) {
+        Metricas.INTERCAMBIO_PAR.registrar(evento.par);
+        Metricas.INTERCAMBIO_ACUERDO.registrar(evento.acuerdo);
+        Metricas.INTERCAMBIO_TOTAL.registrarDesde(inicio);
+        terminar(evento, modo, true, modo.equals("REANUDACION"));
+    }
+
+    private static void terminar(EventosChat.Intercambio evento, String modo, boolean servidor, boolean reanudado) {
+        evento.end();
+        if (evento.shouldCommit()) {
+            evento.modo = modo;
+            evento.servidor = servidor;
+            evento.reanudado = reanudado;
+            evento.commit();
+        }
+        bitacora.depuracion(() -> "Intercambio " + modo + (servidor ? " como servidor" : " como cliente")
+                + " en " + (evento.par + evento.red + evento.acuerdo) / 1000 + " µs (par, red y acuerdo)");
+    }
+
+    private Respuesta reanudar(byte[] saludo) throws GeneralSecurityException {
+        int finNonce = 1 + LONGITUD_ID_TICKET + LONGITUD_NONCE;
+        if (saludo.length < finNonce) {
+            throw new GeneralSecurityException("Saludo de reanudación inválido");
+        }
+        SuiteCifrado suite = SuiteCifrado.elegir(ByteBuffer.wrap(saludo, finNonce, saludo.length - finNonce));
+        String id = HexFormat.of().formatHex(saludo, 1, 1 + LONGITUD_ID_TICKET);
+        Ticket ticket;
+        synchronized (ticketsServidor) {
+            ticket = ticketsServidor.remove(id);
+        }
+        if (ticket == null || !ticket.vigente()) {
+            return new Respuesta(new byte[] {RECHAZO}, null, null);
+        }
+        byte[] nonceServidor = nonce();
+        byte[] clave = claveReanudada(ticket.secreto(), Arrays.copyOfRange(saludo, 1 + LONGITUD_ID_TICKET, finNonce), nonceServidor);
+        guardarTicketServidor(clave);
+        return new Respuesta(ByteBuffer.allocate(1 + LONGITUD_NONCE + 1).put(REANUDAR).put(nonceServidor).put(suite.getCodigo()).array(),
+                clave, suite);
+    }
+
+    /**
+     * Devuelve cuántos bytes ocupa la clave pública X.509 (una SEQUENCE DER) que empieza en
+     * {@code inicio}; lo que la sigue en el saludo es la oferta o la suite elegida.
+     */
+    private static int longitudX509(byte[] datos, int inicio) throws GeneralSecurityException {
+        if (datos.length < inicio + 2 || datos[inicio] != INICIO_X509) {
+            throw new GeneralSecurityException("Clave pública mal codificada");
+        }
+        int primero = datos[inicio + 1] & 0xFF;
+        int octetos = primero < 0x80 ? 0 : primero & 0x7F;
+        if (octetos > 3 || datos.length < inicio + 2 + octetos) {
+            throw new GeneralSecurityException("Clave pública mal codificada");
+        }
+        int longitud = octetos == 0 ? primero : 0;
+        for (int i = 0; i < octetos; i++) {
+            longitud = (longitud << 8) | (datos[inicio + 2 + i] & 0xFF);
+        }
+        int total = 2 + octetos + longitud;
+        if (datos.length < inicio + total) {
+            throw new GeneralSecurityException("Clave pública incompleta");
+        }
+        return total;
+    }
+
+    /**
+     * Lee en la respuesta del servidor la suite que eligió, que debe ser una de las ofrecidas.
+     * Sin código tras la posición indicada, el servidor no negocia y la sesión usa AES-GCM.
+     */
+    private static SuiteCifrado suiteElegida(byte[] respuesta, int posicion) throws IOException {
+        if (respuesta.length == posicion) {
+            return SuiteCifrado.AES_GCM;
+        }
+        SuiteCifrado suite = respuesta.length == posicion + 1 ? SuiteCifrado.porCodigo(respuesta[posicion]) : null;
+        if (suite == null || SuiteCifrado.getPreferidas().stream().noneMatch(medida -> medida.suite() == suite)) {
+            throw new IOException("El par eligió una suite de cifrado que no se le ofreció");
+        }
+        return suite;
+    }
+
+    /**
+     * Repone los pares de claves gastados; el servidor lo llama cuando ya envió su respuesta.
+     */
+    public void reponerPares() {
+        pares.reponer();
+    }
+
+    /**
+     * Olvida los tickets de cliente, de modo que la próxima conexión haga un acuerdo completo.
+     */
+    public void olvidarTickets() {
+        ticketsCliente.clear();
+    }
+
+    /**
+     * Devuelve un par Diffie-Hellman con los mismos parámetros que la clave del cliente:
+     * del pool si coinciden con los por defecto y, si no, generado para esos parámetros.
+     */
+    private KeyPair parDh(DHPublicKey remota) throws GeneralSecurityException {
+        KeyPair local = pares.tomar(ModoIntercambio.DH);
+        DHPublicKey publicaLocal = (DHPublicKey) local.getPublic();
+        if (publicaLocal.getParams().getP().equals(remota.getParams().getP())
+                && publicaLocal.getParams().getG().equals(remota.getParams().getG())) {
+            return local;
+        }
+        KeyPairGenerator generador = KeyPairGenerator.getInstance("DH");
+        generador.initialize(remota.getParams());
+        return generador.generateKeyPair();
+    }
+
+    /**
+     * Hace en el hilo que llama lo que, si no, haría el primer intercambio: cargar los proveedores de
+     * la JCA y preparar el acuerdo de claves del modo, SHA-256, HMAC y los cifrados de las tramas.
+     * Para ello acuerda una clave con un par desechable consigo mismo. También empieza a llenar el
+     * pool compartido de pares. Pensado para el arranque, mientras el usuario aún no se conectó.
+     */
+    public static void precalentar(ModoIntercambio modo) {
+        PoolParesClaves.getCompartido().precalentar(modo);
+        try {
+            KeyPair par = modo.generador().generateKeyPair();
+            byte[] publica = par.getPublic().getEncoded();
+            byte[] clave = derivarClave(par.getPrivate(), modo.decodificar(publica, 0, publica.length));
+            ticket(clave);
+            for (SuiteCifrado suite : SuiteCifrado.values()) {
+                Cipher cifrado = Cipher.getInstance(suite.getTransformacion());
+                cifrado.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(clave, suite.getAlgoritmoClave()),
+                        suite.parametros(new byte[ContextoCifrado.GCM_IV_LENGTH], 0));
+                cifrado.doFinal(new byte[ContextoCifrado.GCM_TAG_LENGTH]);
+            }
+        } catch (GeneralSecurityException e) {
+            bitacora.aviso("No se pudo precalentar el intercambio " + modo + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Acuerdo de claves más SHA-256, para cualquiera de los modos (el algoritmo se toma de la clave privada).
+     */
+    public static byte[] derivarClave(PrivateKey privada, PublicKey remota) throws GeneralSecurityException {
+        KeyAgreement acuerdo = KeyAgreement.getInstance(privada.getAlgorithm());
+        acuerdo.init(privada);
+        acuerdo.doPhase(remota, true);
+        return MessageDigest.getInstance("SHA-256").digest(acuerdo.generateSecret()); // Ajusta a 256 bits (32 bytes)
+    }
+
+    private void guardarTicketServidor(byte[] clave) throws GeneralSecurityException {
+        Ticket ticket = ticket(clave);
+        synchronized (ticketsServidor) {
+            ticketsServidor.put(HexFormat.of().formatHex(ticket.id()), ticket);
+        }
+    }
+
+    /**
+     * Deriva de la clave de sesión el ticket que ambos extremos guardan para reanudar.
+     */
+    private static Ticket ticket(byte[] clave) throws GeneralSecurityException {
+        byte[] id = Arrays.copyOf(hmac(clave, "chat-ticket".getBytes(StandardCharsets.US_ASCII)), LONGITUD_ID_TICKET);
+        byte[] secreto = hmac(clave, "chat-reanudacion".getBytes(StandardCharsets.US_ASCII));
+        return new Ticket(id, secreto, System.currentTimeMillis() + VIGENCIA_TICKET.toMillis());
+    }
+
+    private static byte[] claveReanudada(byte[] secreto, byte[] nonceCliente, byte[] nonceServidor) throws GeneralSecurityException {
+        byte[] etiqueta = "chat-clave".getBytes(StandardCharsets.US_ASCII);
+        return hmac(secreto, ByteBuffer.allocate(etiqueta.length + 2 * LONGITUD_NONCE)
+                .put(etiqueta).put(nonceCliente).put(nonceServidor).array());
+    }
+
+    private static byte[] hmac(byte[] clave, byte[] datos) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance(HMAC);
+        mac.init(new SecretKeySpec(clave, HMAC));
+        return mac.doFinal(datos);
+    }
+
+    private byte[] nonce() {
+        byte[] nonce = new byte[LONGITUD_NONCE];
+        aleatorio.nextBytes(nonce);
+        return nonce;
+    }
+}
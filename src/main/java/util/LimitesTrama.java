@@ -0,0 +1,112 @@
+package util;
+
+import java.util.Arrays;
+
+/**
+ * Longitud máxima del contenido de cada tipo de trama. Los lectores comparan la longitud de la
+ * cabecera con el máximo de su tipo antes de reservar un solo byte, de modo que una longitud
+ * corrupta u hostil se rechaza sin llegar a pedir memoria; el mismo máximo acota la descompresión.
+ * Los valores por defecto se cambian con la propiedad {@value #PROPIEDAD}, por ejemplo
+ * {@code -Dchat.tramas.maximos=MENSAJE:65536,ARCHIVO_BLOQUE:131072} (nombre de {@link TipoTrama} o código).
+ * Es inmutable: {@link #con(byte, int)} devuelve una copia.
+ */
+public final class LimitesTrama {
+
+    public static final String PROPIEDAD = "chat.tramas.maximos"; // Pares tipo:bytes separados por comas
+    public static final int MAXIMO_OTROS = 4 * 1024; // Contenido máximo de los tipos sin límite propio
+    private static final int MAXIMO_CONTROL = 64; // Tramas de control de campos fijos, con margen
+
+    private static final LimitesTrama porDefecto = desdePropiedad(System.getProperty(PROPIEDAD));
+
+    private final int[] maximos; // Bytes de contenido por tipo, sin el byte de tipo ni la sobrecarga del cifrado
+
+    private LimitesTrama(int[] maximos) {
+        this.maximos = maximos;
+    }
+
+    /**
+     * Devuelve los límites por defecto, con los cambios de la propiedad {@value #PROPIEDAD}.
+     */
+    public static LimitesTrama getPorDefecto() {
+        return porDefecto;
+    }
+
+    /**
+     * Devuelve límites con el mismo máximo para todos los tipos.
+     */
+    public static LimitesTrama uniformes(int maximo) {
+        int[] maximos = new int[256];
+        Arrays.fill(maximos, maximo);
+        return new LimitesTrama(maximos);
+    }
+
+    /**
+     * Devuelve una copia con otro máximo para un tipo.
+     */
+    public LimitesTrama con(byte tipo, int maximo) {
+        if (maximo < 0) {
+            throw new IllegalArgumentException("Máximo negativo para el tipo " + tipo + ": " + maximo);
+        }
+        int[] copia = maximos.clone();
+        copia[tipo & 0xFF] = maximo;
+        return new LimitesTrama(copia);
+    }
+
+    /**
+     * Devuelve el contenido máximo de un tipo, en bytes.
+     */
+    public int getMaximo(byte tipo) {
+        return maximos[tipo & 0xFF];
+    }
+
+    /**
+     * Devuelve la carga máxima de un tipo en el cable: el contenido, más el IV y el tag salvo en
+     * las tramas {@link TipoTrama#SALUDO}, que van sin cifrar.
+     */
+    public int getMaximoCarga(byte tipo) {
+        int maximo = maximos[tipo & 0xFF];
+        return tipo == TipoTrama.SALUDO ? maximo : ContextoCifrado.longitudCifrada(maximo);
+    }
+
+    private static LimitesTrama desdePropiedad(String valor) {
+        LimitesTrama limites = uniformes(MAXIMO_OTROS)
+                .con(TipoTrama.SALUDO, 16 * 1024)
+                .con(TipoTrama.MENSAJE, Sesion.TAMANO_MAXIMO_MENSAJE)
+                .con(TipoTrama.ARCHIVO_OFERTA, 4 + 8 + 8 + TransferenciaArchivos.LONGITUD_MAXIMA_NOMBRE)
+                .con(TipoTrama.ARCHIVO_REANUDAR, MAXIMO_CONTROL)
+                .con(TipoTrama.ARCHIVO_BLOQUE, 4 + 8 + TransferenciaArchivos.TAMANO_BLOQUE)
+                .con(TipoTrama.ARCHIVO_FIN, MAXIMO_CONTROL)
+                .con(TipoTrama.CAPACIDADES, MAXIMO_CONTROL)
+                .con(TipoTrama.CREDITO, MAXIMO_CONTROL)
+                .con(TipoTrama.CONVERSACION, MAXIMO_CONTROL)
+                .con(TipoTrama.ACUSE, MAXIMO_CONTROL)
+                .con(TipoTrama.CLAVE_GRUPO, MAXIMO_CONTROL)
+                .con(TipoTrama.MENSAJE_GRUPO, SalaGrupo.CABECERA + Sesion.TAMANO_MAXIMO_MENSAJE)
+                .con(TipoTrama.SINCRONIZACION, SincronizacionHistorial.MAXIMO_CONSULTA)
+                .con(TipoTrama.LOTE_HISTORIAL, Sesion.TAMANO_MAXIMO_MENSAJE)
+                .con(TipoTrama.PRESENCIA, MAXIMO_CONTROL)
+                .con(TipoTrama.IDENTIDAD, MAXIMO_CONTROL);
+        if (valor == null || valor.isBlank()) {
+            return limites;
+        }
+        for (String par : valor.split(",")) {
+            String[] partes = par.trim().split(":");
+            if (partes.length != 2) {
+                throw new IllegalArgumentException("Entrada inválida en " + PROPIEDAD + ": " + par);
+            }
+            limites = limites.con(tipo(partes[0].trim()), Integer.parseInt(partes[1].trim()));
+        }
+        return limites;
+    }
+
+    private static byte tipo(String nombre) {
+        if (!nombre.isEmpty() && Character.isDigit(nombre.charAt(0))) {
+            return (byte) Integer.parseInt(nombre);
+        }
+        try {
+            return TipoTrama.class.getField(nombre.toUpperCase()).getByte(null);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalArgumentException("Tipo de trama desconocido en " + PROPIEDAD + ": " + nombre, e);
+        }
+    }
+}
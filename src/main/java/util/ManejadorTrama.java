@@ -0,0 +1,17 @@
+package util;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Atiende las tramas de un tipo distinto a {@link TipoTrama#MENSAJE} que llegan a una sesión.
+ * Se invoca desde el hilo lector; el contenido solo es válido durante la llamada.
+ */
+@FunctionalInterface
+public interface ManejadorTrama {
+
+    /**
+     * Procesa el contenido descifrado de una trama, sin el byte de tipo. Las tramas que ya vienen
+     * cifradas con otra clave, como {@link TipoTrama#MENSAJE_GRUPO}, llegan con la carga tal cual.
+     */
+    void tramaRecibida(Sesion sesion, ByteBuffer contenido) throws Exception;
+}
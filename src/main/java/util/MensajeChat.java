@@ -0,0 +1,20 @@
+package util;
+
+/**
+ * Una línea de la conversación tal como se guarda en el historial y se muestra en la interfaz.
+ * @param secuencia posición del mensaje en el historial, creciente desde cero
+ * @param autor nombre de quien lo escribió, o null para los avisos del sistema
+ * @param texto contenido del mensaje
+ * @param instante milisegundos desde la época en que el mensaje entró en el historial, o en el del
+ *                 par si llegó al sincronizar ({@link SincronizacionHistorial})
+ */
+public record MensajeChat(long secuencia, String autor, String texto, long instante) {
+
+    /**
+     * Devuelve el mensaje tal como se muestra en el chat.
+     */
+    @Override
+    public String toString() {
+        return autor != null ? autor + ": " + texto : texto;
+    }
+}
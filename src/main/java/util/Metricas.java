@@ -0,0 +1,121 @@
+package util;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+
+/**
+ * Métricas de la ruta de envío y recepción: histogramas sin bloqueos e indicadores que se leen al
+ * pedir una instantánea. Se consultan con {@link #instantanea()} o por HTTP en local con
+ * {@link ServidorMetricas}. Con {@code -Dchat.metricas=false} registrar no cuesta nada: la
+ * comprobación es una constante que el compilador JIT elimina.
+ * Para ver cada evento por separado están además los eventos JFR de {@link EventosChat}.
+ */
+public final class Metricas {
+
+    public static final String PROPIEDAD = "chat.metricas"; // "false" desactiva el registro
+    public static final boolean ACTIVAS = !"false".equalsIgnoreCase(System.getProperty(PROPIEDAD));
+
+    private static final Map<String, Histograma> histogramas = new ConcurrentHashMap<>();
+    private static final Map<String, LongSupplier> indicadores = new ConcurrentHashMap<>();
+
+    // Intercambio de claves, por fase
+    public static final Histograma INTERCAMBIO_PAR = histograma("intercambio.par", "ns"); // Obtener el par efímero
+    public static final Histograma INTERCAMBIO_RED = histograma("intercambio.red", "ns"); // Saludo y respuesta
+    public static final Histograma INTERCAMBIO_ACUERDO = histograma("intercambio.acuerdo", "ns"); // Acuerdo y derivación
+    public static final Histograma INTERCAMBIO_TOTAL = histograma("intercambio.total", "ns");
+
+    // Tramas de las sesiones
+    public static final Histograma CIFRADO = histograma("sesion.cifrado", "ns");
+    public static final Histograma DESCIFRADO = histograma("sesion.descifrado", "ns");
+    public static final Histograma TRAMA_ENVIADA = histograma("sesion.trama.enviada", "bytes");
+    public static final Histograma TRAMA_RECIBIDA = histograma("sesion.trama.recibida", "bytes");
+    public static final Histograma ROTACION = histograma("sesion.rotacion", "ns"); // Derivar la clave de la época siguiente
+    public static final Histograma CAIDA_PAR = histograma("sesion.presencia.caida", "ns"); // Silencio tras el que se dio al par por caído
+
+    // Escritor de la cola de envío
+    public static final Histograma ESCRITURA = histograma("envio.escritura", "ns"); // Llamada de escritura con gathering
+    public static final Histograma LOTE_ESCRITURA = histograma("envio.lote", "tramas");
+    public static final Histograma PROFUNDIDAD_ENVIO = histograma("envio.profundidad", "tramas"); // Al encolar
+    public static final Histograma ESPERA_CREDITO = histograma("envio.credito.espera", "ns"); // Flujo masivo sin crédito del par
+    public static final Histograma PROFUNDIDAD_HUB = histograma("hub.envio.profundidad", "bytes"); // Cola de la sesión del hub, al encolar
+
+    // Interfaz
+    public static final Histograma HISTORIAL_AGREGAR = histograma("chat.historial.agregar", "ns");
+    public static final Histograma RECEPCION_PANTALLA = histograma("chat.recepcion.pantalla", "ns"); // Del lector a la lista
+    public static final Histograma LOTE_PANTALLA = histograma("chat.pulso.lote", "mensajes");
+    public static final Histograma RECONEXION = histograma("chat.reconexion", "ns"); // De la caída a la conversación reanudada
+    public static final Histograma SINCRONIZACION = histograma("chat.sincronizacion", "ns"); // Reconciliar el historial con el par
+    public static final Histograma BUSQUEDA = histograma("chat.busqueda", "ns"); // Una página de resultados del índice
+
+    /**
+     * Instantánea de todas las métricas.
+     * @param instante milisegundos desde la época en que se tomó
+     * @param histogramas resumen de cada histograma, por nombre
+     * @param indicadores valor de cada indicador, por nombre
+     */
+    public record Instantanea(long instante, Map<String, Histograma.Resumen> histogramas, Map<String, Long> indicadores) {
+
+        /**
+         * Devuelve la instantánea en JSON, con los tiempos en nanosegundos.
+         */
+        public String aJson() {
+            StringBuilder json = new StringBuilder("{\"instante\":").append(instante).append(",\"histogramas\":{");
+            String separador = "";
+            for (Map.Entry<String, Histograma.Resumen> entrada : histogramas.entrySet()) {
+                Histograma.Resumen r = entrada.getValue();
+                json.append(separador).append('"').append(entrada.getKey()).append("\":{")
+                        .append("\"unidad\":\"").append(r.unidad()).append('"')
+                        .append(",\"cuenta\":").append(r.cuenta())
+                        .append(",\"media\":").append(String.format(Locale.ROOT, "%.1f", r.media()))
+                        .append(",\"p50\":").append(r.p50()).append(",\"p90\":").append(r.p90())
+                        .append(",\"p99\":").append(r.p99()).append(",\"p999\":").append(r.p999())
+                        .append(",\"maximo\":").append(r.maximo()).append('}');
+                separador = ",";
+            }
+            json.append("},\"indicadores\":{");
+            separador = "";
+            for (Map.Entry<String, Long> entrada : indicadores.entrySet()) {
+                json.append(separador).append('"').append(entrada.getKey()).append("\":").append(entrada.getValue());
+                separador = ",";
+            }
+            return json.append("}}").toString();
+        }
+    }
+
+    private Metricas() {}
+
+    /**
+     * Devuelve el histograma con ese nombre, creándolo si no existe.
+     */
+    public static Histograma histograma(String nombre, String unidad) {
+        return histogramas.computeIfAbsent(nombre, n -> new Histograma(n, unidad));
+    }
+
+    /**
+     * Registra (o reemplaza) un indicador que se lee al tomar cada instantánea, como la profundidad de una cola.
+     */
+    public static void indicador(String nombre, LongSupplier valor) {
+        indicadores.put(nombre, valor);
+    }
+
+    /**
+     * Devuelve el instante actual para medir con {@link Histograma#registrarDesde}, o cero si las métricas están desactivadas.
+     */
+    public static long reloj() {
+        return ACTIVAS ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Toma una instantánea de todos los histogramas e indicadores.
+     */
+    public static Instantanea instantanea() {
+        Map<String, Histograma.Resumen> resumenes = new TreeMap<>();
+        histogramas.forEach((nombre, histograma) -> resumenes.put(nombre, histograma.resumen()));
+        Map<String, Long> valores = new TreeMap<>();
+        indicadores.forEach((nombre, indicador) -> valores.put(nombre, indicador.getAsLong()));
+        return new Instantanea(System.currentTimeMillis(), resumenes, valores);
+    }
+}
@@ -0,0 +1,63 @@
+package util;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Modelo de hilos con el que una {@link Sesion} ejecuta sus lectores y su escritor.
+ * El código de la sesión es bloqueante en todos los modos; lo que cambia es cuánto cuesta
+ * tener un hilo esperando en el socket.
+ */
+public enum ModoEjecucion {
+
+    HILOS_VIRTUALES, // Un hilo virtual por tarea: escala a decenas de miles de sesiones
+    HILOS_PLATAFORMA, // Un hilo del sistema por tarea
+    POOL_FIJO; // Pool compartido de tres hilos (modelo original); un lector ocupa un hilo para siempre
+
+    public static final String PROPIEDAD = "chat.modoEjecucion"; // Propiedad del sistema que elige el modo
+
+    private static final int HILOS_POOL_FIJO = 3; // Tamaño del pool del modo original
+
+    /**
+     * Ejecutores compartidos, creados solo si se usa su modo.
+     */
+    private static final class Ejecutores {
+        private static final ExecutorService VIRTUALES = Executors.newThreadPerTaskExecutor(
+                Thread.ofVirtual().name("sesion-virtual-", 0).factory());
+        private static final ExecutorService PLATAFORMA = Executors.newThreadPerTaskExecutor(
+                Thread.ofPlatform().daemon().name("sesion-", 0).factory());
+    }
+
+    private static final class PoolFijo {
+        private static final ExecutorService POOL = Executors.newFixedThreadPool(HILOS_POOL_FIJO,
+                Thread.ofPlatform().daemon().name("sesion-pool-", 0).factory());
+    }
+
+    /**
+     * Devuelve el modo indicado en la propiedad {@value #PROPIEDAD}, o hilos virtuales si no hay ninguno.
+     */
+    public static ModoEjecucion getPorDefecto() {
+        String valor = System.getProperty(PROPIEDAD);
+        return valor != null ? valueOf(valor.trim().toUpperCase()) : HILOS_VIRTUALES;
+    }
+
+    /**
+     * Devuelve el ejecutor compartido en el que corren las tareas de las sesiones de este modo.
+     * No debe cerrarse; las tareas de cada sesión se cancelan con su {@link AmbitoSesion}.
+     */
+    ExecutorService getEjecutor() {
+        return switch (this) {
+            case HILOS_VIRTUALES -> Ejecutores.VIRTUALES;
+            case HILOS_PLATAFORMA -> Ejecutores.PLATAFORMA;
+            case POOL_FIJO -> PoolFijo.POOL;
+        };
+    }
+
+    /**
+     * Devuelve una fábrica para los hilos dedicados de una sesión (por ejemplo, su escritor).
+     */
+    public ThreadFactory fabricaHilos() {
+        return this == HILOS_VIRTUALES ? Thread.ofVirtual().factory() : Thread.ofPlatform().daemon().factory();
+    }
+}
@@ -0,0 +1,67 @@
+package util;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
+
+/**
+ * Algoritmos de acuerdo de claves que un cliente puede proponer al conectarse.
+ * El código viaja como primer byte del saludo del intercambio de claves.
+ */
+public enum ModoIntercambio {
+
+    DH((byte) 1, "DH"), // Diffie-Hellman clásico de 2048 bits (el intercambio original)
+    X25519((byte) 2, "X25519"); // Curva 25519: claves de 32 bytes y acuerdo mucho más rápido
+
+    public static final String PROPIEDAD = "chat.modoIntercambio"; // Propiedad del sistema que elige el modo
+
+    private final byte codigo; // Identificador en el cable
+    private final String algoritmo; // Nombre del algoritmo en la JCA
+
+    ModoIntercambio(byte codigo, String algoritmo) {
+        this.codigo = codigo;
+        this.algoritmo = algoritmo;
+    }
+
+    /**
+     * Devuelve el modo indicado en la propiedad {@value #PROPIEDAD}, o X25519 si no hay ninguno.
+     */
+    public static ModoIntercambio getPorDefecto() {
+        String valor = System.getProperty(PROPIEDAD);
+        return valor != null ? valueOf(valor.trim().toUpperCase()) : X25519;
+    }
+
+    /**
+     * Devuelve el modo con el código indicado, o null si no se conoce.
+     */
+    public static ModoIntercambio porCodigo(byte codigo) {
+        for (ModoIntercambio modo : values()) {
+            if (modo.codigo == codigo) {
+                return modo;
+            }
+        }
+        return null;
+    }
+
+    public byte getCodigo() {
+        return codigo;
+    }
+
+    /**
+     * Crea un generador de pares de claves de este modo con sus parámetros por defecto.
+     */
+    KeyPairGenerator generador() throws GeneralSecurityException {
+        return KeyPairGenerator.getInstance(algoritmo);
+    }
+
+    /**
+     * Reconstruye una clave pública recibida en formato X.509.
+     */
+    PublicKey decodificar(byte[] datos, int inicio, int longitud) throws GeneralSecurityException {
+        byte[] codificada = Arrays.copyOfRange(datos, inicio, inicio + longitud);
+        return KeyFactory.getInstance(algoritmo).generatePublic(new X509EncodedKeySpec(codificada));
+    }
+}
@@ -0,0 +1,764 @@
+package util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Conversación cifrada con un par, sin dependencias de la interfaz gráfica.
+ * Conecta (o acepta) y negocia la clave, intercambia los nombres, envía mensajes y archivos
+ * y entrega lo recibido a los {@link OyenteChat} suscritos a través de un ejecutor de eventos
+ * elegido por quien lo crea: la interfaz, un servidor o un generador de carga.
+ * A diferencia de {@link Conexion}, no es un Singleton: un proceso puede tener muchos motores.
+ *
+ * Con {@link HistorialesPorPar}, al llegar el nombre remoto cada extremo prueba al otro que tiene el secreto
+ * del historial guardado entre ambos ({@link TipoTrama#IDENTIDAD}): un HMAC del secreto sobre un valor
+ * derivado de la clave de esta sesión, que no sirve para ninguna otra. Solo si la prueba es buena se abre
+ * ese historial y, si el par lo admite, cada extremo trae del otro los mensajes de conversaciones anteriores
+ * que le faltan ({@link SincronizacionHistorial}). En la primera conversación guardada ninguno tiene
+ * secreto y ambos derivan el mismo de la clave de la sesión, así que la primera vez se confía en el par.
+ *
+ * Mientras dura, cada sesión late y anuncia si el usuario escribe ({@link Presencia}); si el par deja de
+ * dar señales, la sesión se da por caída aunque TCP no lo haya notado y se trata como cualquier otra caída.
+ *
+ * Los mensajes de chat se numeran y se guardan hasta que el par acusa recibirlos ({@link ReenvioMensajes}).
+ * Con una {@link Reconexion}, si la conexión se cae el motor la recupera con esperas exponenciales,
+ * negocia la clave de nuevo y reenvía una sola vez lo que el par no llegó a recibir; los oyentes
+ * solo ven {@code reconectando} y {@code reconectado}.
+ */
+public final class MotorChat implements Closeable {
+
+    // Carpeta donde se guardan por defecto los archivos recibidos
+    public static final Path DIRECTORIO_DESCARGAS = Path.of(System.getProperty("user.home"), "Descargas", "ChatCifrado");
+
+    private static final long RETARDO_INICIAL_MS = 100; // Espera tras el primer intento fallido; se duplica en cada fallo
+    private static final long RETARDO_MAXIMO_MS = 5_000;
+    private static final long TIEMPO_RECONEXION_MS = 2 * 60_000; // Después de esto se da la conversación por perdida
+    static final int LONGITUD_ID = 16; // Bytes del id de la conversación
+    private static final int LONGITUD_PRUEBA = 32; // HMAC-SHA256 de la prueba de identidad
+    private static final String HMAC = "HmacSHA256";
+
+    private static final Bitacora bitacora = Bitacora.de(MotorChat.class);
+    private static final IntercambioClaves intercambio = new IntercambioClaves(PoolParesClaves.getCompartido()); // Tickets compartidos por los motores del proceso
+    private static final SecureRandom aleatorio = new SecureRandom(); // Ids de conversación
+
+    private volatile Sesion sesion; // Sesión cifrada con el par; cambia al reconectar
+    private final String nombreLocal; // Nombre que se envía al par al iniciar
+    private final Executor ejecutorEventos; // Entrega los eventos a los oyentes; debe conservar el orden
+    private final List<OyenteChat> oyentes = new CopyOnWriteArrayList<>();
+    private final Path descargas; // Carpeta de los archivos recibidos
+    private final OyenteArchivos puenteArchivos; // Pasa los eventos de cada transferencia al oyente de archivos
+    private volatile TransferenciaArchivos transferencia; // Archivos sobre la sesión actual
+    private volatile SincronizacionHistorial sincronizacion; // Sincronización del historial sobre la sesión actual
+    private volatile Presencia presencia; // Latidos y estado de escritura sobre la sesión actual
+    private final ReenvioMensajes reenvio = new ReenvioMensajes(); // Mensajes enviados sin acuse del par
+    private final Object envio = new Object(); // Ordena los envíos nuevos respecto al reenvío al reanudar
+    private boolean conectado; // Los mensajes nuevos salen ya por la sesión (bajo envio)
+    private Exception terminada; // Causa por la que la conversación terminó sin remedio (bajo envio)
+    private byte[] conversacion; // id de la conversación; lo elige el extremo que se conecta
+    private volatile Reconexion reconexion; // Cómo recuperar la sesión si se cae; null para no hacerlo
+    private volatile Thread hiloReconexion; // Hilo que está reconectando, para interrumpirlo al cerrar
+    private volatile boolean cerrado;
+    private volatile ResumenHistorial resumen = new ResumenHistorial(new HistorialMemoria()); // Historial donde se guarda lo recibido, con su resumen
+    private volatile long inicioHistorial; // Tamaño del historial al empezar la conversación; lo posterior no se sincroniza
+    private volatile IndiceHistorial indice = new IndiceHistorial(resumen.getHistorial()); // Palabras del historial para buscar en él
+    private volatile OyenteArchivos oyenteArchivos; // Eventos de los archivos entrantes; puede ser null
+    private volatile String nombreRemoto; // Nombre del par, cuando ya llegó
+    private volatile HistorialesPorPar historialesPorPar; // Historiales guardados de cada par; null para no cambiar de historial
+    private volatile boolean historialPropio; // El historial es el del par actual, que probó su secreto: solo entonces se sincroniza con él
+    private volatile byte[] secretoPar; // Secreto del historial guardado con el par, o null si no hay
+    private volatile boolean esperandoIdentidad; // Se envió la prueba propia y falta la del par
+    private CompletableFuture<String> inicio; // Intercambio de nombres, creado por el primer iniciar()
+
+    /**
+     * Crea el motor sobre una sesión que ya tiene clave. No lee nada hasta {@link #iniciar()}.
+     * @param ejecutorEventos ejecutor de los eventos de los oyentes, por ejemplo {@code Runnable::run}
+     *                        para recibirlos en el hilo lector o uno de un solo hilo
+     */
+    public MotorChat(Sesion sesion, String nombreLocal, Executor ejecutorEventos) {
+        this(sesion, nombreLocal, ejecutorEventos, DIRECTORIO_DESCARGAS);
+    }
+
+    /**
+     * Crea el motor indicando la carpeta donde se guardan los archivos recibidos.
+     */
+    public MotorChat(Sesion sesion, String nombreLocal, Executor ejecutorEventos, Path descargas) {
+        this.sesion = sesion;
+        this.nombreLocal = nombreLocal;
+        this.ejecutorEventos = ejecutorEventos;
+        this.descargas = descargas;
+        this.conversacion = sesion.isIniciador() ? nuevoId() : null;
+        this.puenteArchivos = new OyenteArchivos() {
+            @Override
+            public void recepcionIniciada(String nombre, long tamano, long desde) {
+                avisarArchivos(oyente -> oyente.recepcionIniciada(nombre, tamano, desde));
+            }
+
+            @Override
+            public void progresoRecepcion(String nombre, long recibidos, long tamano) {
+                avisarArchivos(oyente -> oyente.progresoRecepcion(nombre, recibidos, tamano));
+            }
+
+            @Override
+            public void recepcionCompletada(Path archivo) {
+                avisarArchivos(oyente -> oyente.recepcionCompletada(archivo));
+            }
+
+            @Override
+            public void recepcionFallida(String nombre, Exception causa) {
+                avisarArchivos(oyente -> oyente.recepcionFallida(nombre, causa));
+            }
+        };
+        adjuntar(sesion);
+    }
+
+    /**
+     * Se conecta a un par que escucha en {@code host:puerto} y negocia la clave (o reanuda la sesión
+     * anterior con ese par) en un hilo de la sesión.
+     * @return futuro con el motor listo para suscribir oyentes e {@link #iniciar()}
+     */
+    public static CompletableFuture<MotorChat> conectar(String host, int puerto, String nombreLocal, Executor ejecutorEventos) {
+        return conectar(new TransporteTcp(host, puerto), nombreLocal, ejecutorEventos);
+    }
+
+    /**
+     * Se conecta al par que escucha en la dirección del transporte y negocia la clave en un hilo de la sesión.
+     * @return futuro con el motor listo para suscribir oyentes e {@link #iniciar()}
+     */
+    public static CompletableFuture<MotorChat> conectar(Transporte transporte, String nombreLocal, Executor ejecutorEventos) {
+        try {
+            return negociar(transporte.conectar(), true, transporte.getDireccion(), nombreLocal, ejecutorEventos);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * Acepta la siguiente conexión de un transporte y responde al intercambio de claves.
+     * Bloquea hasta que llega la conexión; la negociación corre en un hilo de la sesión.
+     * @return futuro con el motor listo para suscribir oyentes e {@link #iniciar()}
+     */
+    public static CompletableFuture<MotorChat> aceptar(Transporte.Escucha escucha, String nombreLocal, Executor ejecutorEventos) throws IOException {
+        CanalTransporte canal = escucha.aceptar();
+        return negociar(canal, false, canal.getDireccionRemota(), nombreLocal, ejecutorEventos);
+    }
+
+    private static CompletableFuture<MotorChat> negociar(CanalTransporte canal, boolean iniciador, String par,
+                                                         String nombreLocal, Executor ejecutorEventos) {
+        Sesion sesion = new Sesion(canal, iniciador);
+        CompletableFuture<MotorChat> listo = new CompletableFuture<>();
+        sesion.ejecutar(() -> {
+            try {
+                acordarClave(sesion, par);
+                listo.complete(new MotorChat(sesion, nombreLocal, ejecutorEventos));
+            } catch (Exception e) {
+                sesion.cerrar();
+                listo.completeExceptionally(e);
+            }
+        });
+        return listo;
+    }
+
+    /**
+     * Devuelve la reconexión del extremo que se conectó: vuelve a conectarse al mismo destino,
+     * reanudando la clave con el ticket de la sesión anterior si el par aún lo tiene.
+     */
+    public static Reconexion reconectarA(Transporte destino) {
+        return () -> abrir(destino.conectar(), true, destino.getDireccion());
+    }
+
+    /**
+     * Devuelve la reconexión del extremo que escuchaba: espera al par en la misma escucha.
+     * La escucha debe ser solo de esta conversación; la conexión de otro par se rechaza y se sigue esperando.
+     */
+    public static Reconexion reaceptarEn(Transporte.Escucha escucha) {
+        return () -> {
+            CanalTransporte canal = escucha.aceptar();
+            return abrir(canal, false, canal.getDireccionRemota());
+        };
+    }
+
+    private static Sesion abrir(CanalTransporte canal, boolean iniciador, String par) throws Exception {
+        Sesion sesion = new Sesion(canal, iniciador);
+        try {
+            acordarClave(sesion, par);
+            return sesion;
+        } catch (Exception e) {
+            sesion.cerrar();
+            throw e;
+        }
+    }
+
+    private static void acordarClave(Sesion sesion, String par) throws Exception {
+        sesion.setClaveCompartida(intercambio.negociar(sesion, par, ModoIntercambio.getPorDefecto()));
+        sesion.anunciarCapacidades(!"false".equalsIgnoreCase(System.getProperty(CompresionTramas.PROPIEDAD)),
+                (byte) (SincronizacionHistorial.CAPACIDAD_SINCRONIZACION | Presencia.CAPACIDAD_PRESENCIA));
+    }
+
+    /**
+     * Establece cómo recuperar la sesión si se cae; con null (el valor por defecto) una caída
+     * termina la conversación y los oyentes reciben {@code conexionPerdida}.
+     */
+    public void setReconexion(Reconexion reconexion) {
+        this.reconexion = reconexion;
+    }
+
+    /**
+     * Suscribe un oyente. Para no perder eventos, hay que suscribirlo antes de {@link #iniciar()}.
+     */
+    public void suscribir(OyenteChat oyente) {
+        oyentes.add(oyente);
+    }
+
+    /**
+     * Quita un oyente suscrito.
+     */
+    public void desuscribir(OyenteChat oyente) {
+        oyentes.remove(oyente);
+    }
+
+    /**
+     * Saluda al par con el id de la conversación, envía el nombre local y empieza a leer en un hilo
+     * de la sesión: primero el nombre remoto y después los mensajes, que se guardan en el historial
+     * y se entregan a los oyentes. Las llamadas siguientes devuelven el mismo futuro.
+     * @return futuro con el nombre remoto
+     */
+    public synchronized CompletableFuture<String> iniciar() {
+        if (inicio != null) {
+            return inicio;
+        }
+        inicio = new CompletableFuture<>();
+        CompletableFuture<String> nombre = inicio;
+        Sesion actual = sesion;
+        actual.ejecutar(() -> {
+            try {
+                long recibidosPar = saludar(actual);
+                actual.enviarMensaje(nombreLocal, false).whenComplete((ignorado, error) -> { // Identidad: nunca se comprime
+                    if (error != null) {
+                        nombre.completeExceptionally(error);
+                    }
+                });
+                reponer(actual, recibidosPar);
+                String remoto = actual.leerMensaje();
+                nombreRemoto = remoto;
+                actual.setNombreRemoto(remoto);
+                probarIdentidad(actual, remoto);
+                nombre.complete(remoto);
+                avisar(oyente -> oyente.nombreRecibido(remoto));
+            } catch (Exception e) {
+                bitacora.depuracion(() -> "Inicio fallido en la sesión " + actual.getId() + ": " + e);
+                nombre.completeExceptionally(e);
+                terminar(e);
+                return;
+            }
+            leer(actual);
+        });
+        return nombre;
+    }
+
+    /**
+     * Envía un mensaje cifrado sin bloquear al hilo que llama. No lo guarda en el historial.
+     * El mensaje se numera y se guarda hasta el acuse del par: si la conexión se cae, se reenvía al reconectar.
+     * @return futuro que se completa al escribirse el mensaje (tras reconectar, si hizo falta) o falla si
+     *         no cabe en una trama, si hay demasiados mensajes sin acuse o si la conversación terminó
+     */
+    public CompletableFuture<Void> enviar(String mensaje) {
+        synchronized (envio) {
+            if (terminada != null) {
+                return CompletableFuture.failedFuture(terminada);
+            }
+            ReenvioMensajes.Pendiente pendiente;
+            try {
+                pendiente = reenvio.registrar(mensaje);
+            } catch (IOException e) {
+                return CompletableFuture.failedFuture(e);
+            }
+            if (conectado) {
+                transmitir(sesion, pendiente);
+            }
+            return pendiente.escrito();
+        }
+    }
+
+    /**
+     * Trae del par los mensajes de conversaciones anteriores que faltan en el historial, sin detener
+     * la conversación; al terminar, los oyentes reciben {@code historialSincronizado}. El motor lo hace
+     * solo al abrir el historial del par, después de que este pruebe su secreto, y si anunció que sabe responder.
+     * @return futuro con el número de mensajes recuperados
+     */
+    public CompletableFuture<Long> sincronizarHistorial() {
+        return sincronizacion.sincronizar().whenComplete((recuperados, error) -> {
+            if (error != null) {
+                bitacora.aviso("No se pudo sincronizar el historial en la sesión " + sesion.getId() + ": " + error.getMessage());
+            } else {
+                avisar(oyente -> oyente.historialSincronizado(recuperados));
+            }
+        });
+    }
+
+    /**
+     * Anuncia al par si el usuario está escribiendo; se puede llamar en cada pulsación.
+     */
+    public void escribiendo(boolean escribiendo) {
+        presencia.escribiendo(escribiendo);
+    }
+
+    /**
+     * Envía un archivo cifrado por la misma sesión.
+     * @param progreso función que recibe el avance del envío; puede ser null
+     * @return futuro que se completa cuando se envió el último bloque
+     */
+    public CompletableFuture<Path> enviarArchivo(Path archivo, ProgresoTransferencia progreso) {
+        return transferencia.enviar(archivo, progreso);
+    }
+
+    /**
+     * Guarda un mensaje en el historial de la conversación y mide cuánto tarda.
+     * @param autor el autor del mensaje, o null para un aviso del sistema
+     * @return el mensaje con su secuencia en el historial
+     */
+    public MensajeChat agregarAlHistorial(String autor, String texto) {
+        long inicioAgregar = Metricas.reloj();
+        ResumenHistorial actual = resumen;
+        MensajeChat mensaje = actual.getHistorial().agregar(autor, texto);
+        actual.anotar(mensaje);
+        indice.anotar(mensaje);
+        Metricas.HISTORIAL_AGREGAR.registrarDesde(inicioAgregar);
+        return mensaje;
+    }
+
+    public ProveedorHistorial getHistorial() {
+        return resumen.getHistorial();
+    }
+
+    /**
+     * Busca en el historial los mensajes que contienen todas las palabras de la consulta, o palabras
+     * que empiezan por ellas, sin distinguir mayúsculas ni tildes. La primera búsqueda construye el
+     * índice leyendo el historial entero, así que conviene no hacerla en el hilo de la interfaz.
+     * @return los resultados, del más reciente al más antiguo, para pedirlos por páginas
+     */
+    public IndiceHistorial.Resultados buscar(String consulta) {
+        return indice.buscar(consulta);
+    }
+
+    /**
+     * Reemplaza el historial; el motor no lo cierra, de eso se encarga quien lo abrió.
+     * Debe hacerse antes de {@link #iniciar()}: lo que ya tenga se da por anterior a la conversación.
+     * Como puede tener conversaciones con otros pares, no se sincroniza con el par.
+     */
+    public void setHistorial(ProveedorHistorial historial) {
+        cambiarHistorial(historial, false);
+    }
+
+    private void cambiarHistorial(ProveedorHistorial historial, boolean propio) {
+        resumen = new ResumenHistorial(historial);
+        indice = new IndiceHistorial(historial);
+        inicioHistorial = historial.getTamano();
+        historialPropio = propio;
+        SincronizacionHistorial anterior = sincronizacion;
+        sincronizacion = new SincronizacionHistorial(sesion, resumen, inicioHistorial, propio);
+        anterior.close();
+    }
+
+    /**
+     * Establece de dónde sacar el historial guardado con cada par. Cuando el par prueba su secreto, el
+     * motor copia a ese historial lo que tenga el actual (por ejemplo, lo recibido o enviado mientras tanto),
+     * sigue con él y avisa a los oyentes con {@code historialDelParAbierto}; si no lo prueba, se queda el
+     * actual y los oyentes reciben {@code historialDelParRechazado}. Solo se prueba con pares que anuncian
+     * {@link SincronizacionHistorial#CAPACIDAD_SINCRONIZACION}; con los demás también se queda el actual.
+     * Como con {@link #setHistorial}, el motor no cierra ninguno de los dos.
+     */
+    public void setHistorialesPorPar(HistorialesPorPar historialesPorPar) {
+        this.historialesPorPar = historialesPorPar;
+    }
+
+    /**
+     * Envía al par la prueba de que este extremo tiene el secreto de su historial, o una prueba vacía
+     * si no hay historial guardado con él. Corre en el hilo lector, antes de leer ningún mensaje.
+     */
+    private void probarIdentidad(Sesion actual, String remoto) {
+        HistorialesPorPar historiales = historialesPorPar;
+        if (historiales == null || !actual.isCapacidadPar(SincronizacionHistorial.CAPACIDAD_SINCRONIZACION)) {
+            return;
+        }
+        try {
+            secretoPar = historiales.secreto(remoto);
+        } catch (IOException e) {
+            historialRechazado("No se pudo leer el historial guardado con " + remoto + ": " + e.getMessage());
+            return;
+        }
+        ByteBuffer prueba = ByteBuffer.allocate(1 + LONGITUD_PRUEBA).put(TipoTrama.IDENTIDAD);
+        if (secretoPar != null) {
+            prueba.put(prueba(secretoPar, actual, actual.isIniciador()));
+        }
+        esperandoIdentidad = true;
+        actual.enviarTrama(prueba.flip(), null);
+    }
+
+    /**
+     * Manejador de la prueba del par: abre el historial guardado con él si la prueba coincide con el
+     * secreto propio, o lo crea con un secreto nuevo si ninguno de los dos tenía historial.
+     */
+    private void identidadRecibida(Sesion actual, ByteBuffer datos) {
+        if (!esperandoIdentidad) {
+            return; // Este extremo no guarda historiales por par, o ya se comprobó
+        }
+        esperandoIdentidad = false;
+        String remoto = nombreRemoto;
+        byte[] propio = secretoPar;
+        byte[] recibida = null;
+        if (datos.remaining() == LONGITUD_PRUEBA) {
+            recibida = new byte[LONGITUD_PRUEBA];
+            datos.get(recibida);
+        }
+        ProveedorHistorial delPar;
+        try {
+            if (propio != null) {
+                if (recibida == null || !MessageDigest.isEqual(recibida, prueba(propio, actual, !actual.isIniciador()))) {
+                    historialRechazado(remoto + " no probó ser el par de las conversaciones guardadas; esta no se guardará");
+                    return;
+                }
+                delPar = historialesPorPar.abrir(remoto, propio);
+            } else if (recibida == null) {
+                delPar = historialesPorPar.abrir(remoto, hmac(actual.getClaveCompartida(), etiqueta("chat-historial-secreto"))); // Primera conversación guardada
+            } else {
+                historialRechazado(remoto + " guarda una conversación con este extremo que aquí no existe; esta no se guardará");
+                return;
+            }
+        } catch (IOException e) {
+            historialRechazado("No se pudo abrir el historial guardado con " + remoto + ": " + e.getMessage());
+            return;
+        }
+        ProveedorHistorial provisional = getHistorial();
+        for (MensajeChat mensaje : provisional.anteriores(Long.MAX_VALUE, (int) provisional.getTamano())) {
+            delPar.agregar(mensaje.autor(), mensaje.texto(), mensaje.instante());
+        }
+        cambiarHistorial(delPar, true);
+        avisar(OyenteChat::historialDelParAbierto);
+        if (actual.isCapacidadPar(SincronizacionHistorial.CAPACIDAD_SINCRONIZACION)) {
+            sincronizarHistorial();
+        }
+    }
+
+    private void historialRechazado(String motivo) {
+        bitacora.aviso("Historial del par sin abrir en la sesión " + sesion.getId() + ": " + motivo);
+        avisar(oyente -> oyente.historialDelParRechazado(motivo));
+    }
+
+    /**
+     * HMAC del secreto sobre un valor derivado de la clave de la sesión y el papel de quien prueba,
+     * para que una prueba no sirva en otra sesión ni devuelta al mismo extremo.
+     */
+    private static byte[] prueba(byte[] secreto, Sesion actual, boolean delIniciador) {
+        byte[] vinculo = hmac(actual.getClaveCompartida(), etiqueta(delIniciador ? "chat-identidad-iniciador" : "chat-identidad-receptor"));
+        return hmac(secreto, vinculo);
+    }
+
+    private static byte[] etiqueta(String texto) {
+        return texto.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static byte[] hmac(byte[] clave, byte[] datos) {
+        try {
+            Mac mac = Mac.getInstance(HMAC);
+            mac.init(new SecretKeySpec(clave, HMAC));
+            return mac.doFinal(datos);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HMAC-SHA256 no disponible", e);
+        }
+    }
+
+    /**
+     * Establece el oyente de los archivos entrantes, que recibe sus eventos con el ejecutor de eventos.
+     */
+    public void setOyenteArchivos(OyenteArchivos oyenteArchivos) {
+        this.oyenteArchivos = oyenteArchivos;
+    }
+
+    public Sesion getSesion() {
+        return sesion;
+    }
+
+    public String getNombreLocal() {
+        return nombreLocal;
+    }
+
+    /**
+     * Devuelve el nombre remoto, o null si todavía no llegó.
+     */
+    public String getNombreRemoto() {
+        return nombreRemoto;
+    }
+
+    /**
+     * Devuelve los mensajes del par recibidos en toda la conversación, a través de las reconexiones.
+     */
+    public long getRecibidos() {
+        return reenvio.getRecibidos();
+    }
+
+    /**
+     * Devuelve los mensajes enviados que el par aún no acusó.
+     */
+    public int getSinAcuse() {
+        return reenvio.getPendientes();
+    }
+
+    /**
+     * Cierra la transferencia de archivos y la sesión, y detiene una reconexión en curso;
+     * los oyentes reciben {@code conexionPerdida}.
+     */
+    @Override
+    public void close() {
+        cerrado = true;
+        Thread hilo = hiloReconexion;
+        if (hilo != null) {
+            hilo.interrupt();
+        }
+        soltar();
+        sesion.cerrar();
+    }
+
+    /**
+     * Prepara una sesión para la conversación: los acuses del par, los archivos, la sincronización y
+     * los latidos van por ella.
+     */
+    private void adjuntar(Sesion nueva) {
+        nueva.registrarManejador(TipoTrama.ACUSE, (s, datos) -> reenvio.confirmar(datos.getLong()));
+        nueva.registrarManejador(TipoTrama.IDENTIDAD, this::identidadRecibida);
+        transferencia = new TransferenciaArchivos(nueva, descargas, puenteArchivos);
+        sincronizacion = new SincronizacionHistorial(nueva, resumen, inicioHistorial, historialPropio);
+        presencia = new Presencia(nueva, Presencia.Tiempos.getPorDefecto(), RuedaTemporizadores.getCompartida(),
+                escribiendo -> avisar(oyente -> oyente.parEscribiendo(escribiendo)));
+    }
+
+    /**
+     * Detiene los archivos, la sincronización y los latidos de la sesión adjuntada por última vez.
+     */
+    private void soltar() {
+        transferencia.close();
+        sincronizacion.close();
+        presencia.close();
+    }
+
+    /**
+     * Intercambia con el par el id de la conversación y los mensajes que cada uno ya recibió de ella.
+     * Habla primero el que se conectó; el otro adopta el id en la primera conexión y lo comprueba en las siguientes.
+     * @return los mensajes de esta conversación que el par ya recibió
+     */
+    private long saludar(Sesion actual) throws Exception {
+        if (actual.isIniciador()) {
+            enviarSaludo(actual);
+            return leerSaludo(actual);
+        }
+        long recibidosPar = leerSaludo(actual);
+        enviarSaludo(actual);
+        return recibidosPar;
+    }
+
+    private void enviarSaludo(Sesion actual) {
+        ByteBuffer saludo = ByteBuffer.allocate(1 + LONGITUD_ID + 8).put(TipoTrama.CONVERSACION).put(conversacion).putLong(reenvio.saludo());
+        actual.enviarTrama(saludo.flip(), null);
+    }
+
+    private long leerSaludo(Sesion actual) throws Exception {
+        ByteBuffer saludo = ByteBuffer.wrap(actual.leerTrama(TipoTrama.CONVERSACION));
+        byte[] id = new byte[LONGITUD_ID];
+        long recibidosPar;
+        try {
+            saludo.get(id);
+            recibidosPar = saludo.getLong();
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Saludo de la conversación mal formado", e);
+        }
+        if (conversacion == null) {
+            if (recibidosPar != 0) {
+                throw new IOException("El par intenta reanudar una conversación que este extremo no tiene");
+            }
+            conversacion = id;
+        } else if (!MessageDigest.isEqual(id, conversacion)) {
+            throw new IOException("La conexión pertenece a otra conversación");
+        }
+        return recibidosPar;
+    }
+
+    /**
+     * Reenvía por la sesión nueva, en orden, los mensajes que el par no recibió y deja salir los nuevos.
+     */
+    private void reponer(Sesion actual, long recibidosPar) throws IOException {
+        synchronized (envio) {
+            if (cerrado) {
+                throw new IOException("El motor se cerró");
+            }
+            for (ReenvioMensajes.Pendiente pendiente : reenvio.pendientesTras(recibidosPar)) {
+                transmitir(actual, pendiente);
+            }
+            conectado = true;
+        }
+    }
+
+    /**
+     * Encola un mensaje numerado. Si falla con la sesión aún abierta (el par cortó, o la cola se llenó),
+     * se cierra el canal para reenviarlo al reconectar en lugar de desfasar la secuencia del par.
+     * Solo el canal: así el lector, aunque aún no haya empezado, falla y avisa de la caída.
+     */
+    private void transmitir(Sesion destino, ReenvioMensajes.Pendiente pendiente) {
+        destino.enviarMensaje(pendiente.texto()).whenComplete((ignorado, error) -> {
+            if (error == null) {
+                pendiente.escrito().complete(null);
+            } else if (destino.isAbierta()) {
+                bitacora.depuracion(() -> "Mensaje " + pendiente.secuencia() + " sin enviar en la sesión " + destino.getId() + ": " + error);
+                try {
+                    destino.getCanal().close();
+                } catch (IOException e) {
+                    bitacora.error("Error al cerrar el canal de la sesión " + destino.getId(), e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Lee mensajes de una sesión hasta que se cae, acusando su recepción cada {@link ReenvioMensajes#ACUSE_CADA}.
+     */
+    private void leer(Sesion actual) {
+        Presencia vigilante = presencia;
+        try {
+            while (true) {
+                MensajeChat mensaje = agregarAlHistorial(nombreRemoto, actual.leerMensaje());
+                long acuse = reenvio.recibido();
+                if (acuse >= 0) {
+                    actual.enviarTrama(ByteBuffer.allocate(1 + 8).put(TipoTrama.ACUSE).putLong(acuse).flip(), null);
+                }
+                avisar(oyente -> oyente.mensajeRecibido(mensaje));
+            }
+        } catch (Exception e) {
+            Exception causa = vigilante.getCaida() != null ? vigilante.getCaida() : e; // El canal lo cerró la presencia
+            bitacora.depuracion(() -> "Lectura terminada en la sesión " + actual.getId() + ": " + causa);
+            perdida(actual, causa);
+        }
+    }
+
+    /**
+     * Atiende la caída de la sesión actual: reconecta en un hilo propio si hay {@link Reconexion}
+     * o termina la conversación.
+     */
+    private void perdida(Sesion caida, Exception causa) {
+        synchronized (envio) {
+            if (caida != sesion) {
+                return;
+            }
+            conectado = false;
+        }
+        Reconexion recuperar = reconexion;
+        if (recuperar == null || cerrado) {
+            terminar(causa);
+            return;
+        }
+        // Hilo propio: cerrar la sesión caída cancela las tareas de su ámbito, incluida la lectora
+        caida.getModoEjecucion().fabricaHilos().newThread(() -> reconectar(caida, recuperar, causa)).start();
+    }
+
+    /**
+     * Intenta recuperar la conversación con esperas exponenciales (con fluctuación aleatoria) hasta
+     * {@value #TIEMPO_RECONEXION_MS} ms. Cada intento abre una sesión con clave nueva, saluda al par
+     * y le reenvía lo que no recibió antes de empezar a leer de ella.
+     */
+    private void reconectar(Sesion caida, Reconexion recuperar, Exception causa) {
+        hiloReconexion = Thread.currentThread();
+        caida.cerrar();
+        soltar();
+        long inicio = Metricas.reloj();
+        long limite = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIEMPO_RECONEXION_MS);
+        long retardo = RETARDO_INICIAL_MS;
+        Exception ultima = causa;
+        try {
+            for (int intento = 1; !cerrado; intento++) {
+                int numero = intento;
+                Exception motivo = ultima;
+                avisar(oyente -> oyente.reconectando(motivo, numero));
+                Sesion nueva = null;
+                try {
+                    nueva = recuperar.conectar();
+                    adjuntar(nueva);
+                    long recibidosPar = saludar(nueva);
+                    nueva.setNombreRemoto(nombreRemoto);
+                    synchronized (envio) {
+                        sesion = nueva;
+                    }
+                    reponer(nueva, recibidosPar);
+                    Metricas.RECONEXION.registrarDesde(inicio);
+                    bitacora.info("Conversación reanudada en la sesión " + nueva.getId() + " tras " + numero + " intento(s)");
+                    avisar(OyenteChat::reconectado);
+                    Sesion lectora = nueva;
+                    if (nueva.ejecutar(() -> leer(lectora)).isCancelled()) {
+                        throw new IOException("La sesión " + nueva.getId() + " se cerró al reanudar");
+                    }
+                    return;
+                } catch (Exception e) {
+                    if (nueva != null) {
+                        nueva.cerrar();
+                        soltar(); // Lo que adjuntar creó para este intento: su hilo de sincronización y sus latidos
+                    }
+                    ultima = e;
+                    bitacora.aviso("Intento " + numero + " de reconexión fallido: " + e.getMessage());
+                }
+                if (System.nanoTime() > limite) {
+                    break;
+                }
+                Thread.sleep(retardo / 2 + ThreadLocalRandom.current().nextLong(retardo / 2 + 1));
+                retardo = Math.min(retardo * 2, RETARDO_MAXIMO_MS);
+            }
+        } catch (InterruptedException e) {
+            ultima = e;
+        } finally {
+            hiloReconexion = null;
+        }
+        terminar(ultima);
+    }
+
+    /**
+     * Da la conversación por terminada: los envíos pendientes y los siguientes fallan con la causa.
+     */
+    private void terminar(Exception causa) {
+        synchronized (envio) {
+            conectado = false;
+            terminada = causa;
+            reenvio.abandonar(causa);
+        }
+        avisar(oyente -> oyente.conexionPerdida(causa));
+    }
+
+    private static byte[] nuevoId() {
+        byte[] id = new byte[LONGITUD_ID];
+        aleatorio.nextBytes(id);
+        return id;
+    }
+
+    private void avisar(Consumer<OyenteChat> evento) {
+        if (!oyentes.isEmpty()) {
+            ejecutorEventos.execute(() -> oyentes.forEach(evento));
+        }
+    }
+
+    private void avisarArchivos(Consumer<OyenteArchivos> evento) {
+        OyenteArchivos oyente = oyenteArchivos;
+        if (oyente != null) {
+            ejecutorEventos.execute(() -> evento.accept(oyente));
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package util;
+
+import java.nio.file.Path;
+
+/**
+ * Recibe los eventos de los archivos que llegan por una sesión.
+ * Los métodos se invocan desde el hilo lector de la sesión.
+ */
+public interface OyenteArchivos {
+
+    /**
+     * Se invoca al aceptar una oferta, con el desplazamiento desde el que se reanuda.
+     */
+    default void recepcionIniciada(String nombre, long tamano, long desde) {}
+
+    /**
+     * Se invoca después de escribir cada bloque recibido.
+     */
+    default void progresoRecepcion(String nombre, long recibidos, long tamano) {}
+
+    /**
+     * Se invoca cuando el archivo quedó completo en su ubicación final.
+     */
+    default void recepcionCompletada(Path archivo) {}
+
+    /**
+     * Se invoca si la recepción falló; el archivo parcial se conserva para reanudar.
+     */
+    default void recepcionFallida(String nombre, Exception causa) {}
+}
@@ -0,0 +1,59 @@
+package util;
+
+/**
+ * Recibe los eventos de una conversación de {@link MotorChat}.
+ * Los métodos se invocan con el ejecutor de eventos del motor, en el orden en que ocurren.
+ */
+public interface OyenteChat {
+
+    /**
+     * Se invoca cuando llega el nombre del usuario remoto, antes que cualquier mensaje.
+     */
+    default void nombreRecibido(String nombre) {}
+
+    /**
+     * Se invoca con cada mensaje recibido, ya guardado en el historial.
+     */
+    void mensajeRecibido(MensajeChat mensaje);
+
+    /**
+     * Se invoca antes de cada intento de recuperar la conexión, si el motor tiene {@link Reconexion}.
+     * Los mensajes que se envíen mientras tanto se guardan y salen al reanudar.
+     * @param intento número del intento, desde 1
+     */
+    default void reconectando(Exception causa, int intento) {}
+
+    /**
+     * Se invoca cuando la conversación se reanudó sobre una conexión nueva.
+     */
+    default void reconectado() {}
+
+    /**
+     * Se invoca cuando el motor pasa al historial guardado con el par, después de que este probara su
+     * secreto ({@link HistorialesPorPar}); quien muestre el historial debe volver a leerlo.
+     */
+    default void historialDelParAbierto() {}
+
+    /**
+     * Se invoca si el historial guardado con el par no se abre, porque no probó su secreto o por un
+     * error al abrirlo. La conversación sigue en el historial actual y no se sincroniza.
+     */
+    default void historialDelParRechazado(String motivo) {}
+
+    /**
+     * Se invoca cuando termina la sincronización del historial con el par, al empezar la conversación.
+     * @param recuperados mensajes que faltaban y ya están al final del historial
+     */
+    default void historialSincronizado(long recuperados) {}
+
+    /**
+     * Se invoca cuando el par empieza a escribir (true) y cuando lo deja, envía el mensaje o se cae (false).
+     */
+    default void parEscribiendo(boolean escribiendo) {}
+
+    /**
+     * Se invoca una vez si la lectura termina por un error o porque se cerró la conexión
+     * y no se pudo (o no se intentó) reconectar.
+     */
+    default void conexionPerdida(Exception causa) {}
+}
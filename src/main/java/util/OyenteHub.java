@@ -0,0 +1,23 @@
+package util;
+
+/**
+ * Recibe los eventos de las sesiones atendidas por un {@link ServidorHub}.
+ * Los métodos se invocan desde los hilos del reactor, por lo que no deben bloquearse.
+ */
+public interface OyenteHub {
+
+    /**
+     * Se invoca cuando el par de una sesión, ya con clave, se presenta con su nombre.
+     */
+    default void sesionAbierta(Sesion sesion) {}
+
+    /**
+     * Se invoca con cada mensaje descifrado recibido en una sesión activa.
+     */
+    void mensajeRecibido(Sesion sesion, String mensaje);
+
+    /**
+     * Se invoca cuando una sesión se cierra, con la causa si fue por un error.
+     */
+    default void sesionCerrada(Sesion sesion, Exception causa) {}
+}
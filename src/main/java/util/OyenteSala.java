@@ -0,0 +1,15 @@
+package util;
+
+/**
+ * Recibe los mensajes de una {@link SalaGrupo}.
+ * Se invoca desde el hilo lector de la sesión del emisor, por lo que no debe bloquearse.
+ */
+@FunctionalInterface
+public interface OyenteSala {
+
+    /**
+     * Se invoca con cada mensaje descifrado con la clave de emisor de un miembro.
+     * @param emisor sesión con el miembro que escribió el mensaje
+     */
+    void mensajeRecibido(SalaGrupo sala, Sesion emisor, String mensaje);
+}
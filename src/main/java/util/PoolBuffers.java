@@ -0,0 +1,186 @@
+package util;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Pool de búferes directos organizado por clases de tamaño (potencias de dos).
+ * Permite que las tramas se cifren, escriban y lean sin crear arreglos nuevos en el heap
+ * por cada mensaje. Los búferes mayores que la clase más grande no se reutilizan.
+ *
+ * En modo de prueba ({@code -Dchat.pool.fugas=true}) el pool anota cada búfer prestado con la
+ * pila de quien lo pidió: {@link #getFugas()} lista los que no se devolvieron y liberar dos veces
+ * el mismo búfer falla en el acto, en lugar de acabar entregándolo a dos dueños.
+ */
+public class PoolBuffers {
+
+    public static final String PROPIEDAD_FUGAS = "chat.pool.fugas"; // "true" activa la detección de fugas
+
+    private static final int BITS_CLASE_MINIMA = 8; // 256 bytes
+    private static final int BITS_CLASE_MAXIMA = 21; // 2 MiB
+    private static final int RETENIDOS_POR_CLASE = 64; // Búferes libres que se conservan por clase
+
+    private static final PoolBuffers compartido = new PoolBuffers(); // Pool común a todas las sesiones
+
+    static {
+        Metricas.indicador("pool.creados.bytes", compartido::getBytesCreados);
+        Metricas.indicador("pool.libres.bytes", compartido::getBytesLibres);
+    }
+
+    private final ArrayDeque<ByteBuffer>[] libres; // Búferes libres por clase de tamaño
+    private final LongAdder bytesCreados = new LongAdder(); // Memoria directa reservada por el pool
+    private final Map<ByteBuffer, Throwable> prestados; // Búfer prestado y dónde se pidió; null sin detección de fugas
+
+    /**
+     * Crea un pool vacío, con detección de fugas si la propiedad {@value #PROPIEDAD_FUGAS} es "true".
+     */
+    public PoolBuffers() {
+        this(Boolean.getBoolean(PROPIEDAD_FUGAS));
+    }
+
+    /**
+     * Crea un pool vacío.
+     * @param detectarFugas true para anotar los préstamos; cuesta una pila por búfer, solo para pruebas
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"}) // No se pueden crear arreglos de un tipo genérico
+    public PoolBuffers(boolean detectarFugas) {
+        libres = new ArrayDeque[BITS_CLASE_MAXIMA - BITS_CLASE_MINIMA + 1];
+        for (int i = 0; i < libres.length; i++) {
+            libres[i] = new ArrayDeque<>(RETENIDOS_POR_CLASE);
+        }
+        prestados = detectarFugas ? new IdentityHashMap<>() : null;
+    }
+
+    /**
+     * Devuelve el pool común a todas las sesiones.
+     */
+    public static PoolBuffers getCompartido() {
+        return compartido;
+    }
+
+    /**
+     * Entrega un búfer directo limpio con al menos la capacidad pedida.
+     */
+    public ByteBuffer adquirir(int capacidadMinima) {
+        int clase = clase(capacidadMinima);
+        ByteBuffer bufer = null;
+        if (clase < libres.length) {
+            synchronized (libres[clase]) {
+                bufer = libres[clase].pollFirst();
+            }
+        }
+        if (bufer == null) {
+            int capacidad = clase < libres.length ? 1 << (clase + BITS_CLASE_MINIMA) : capacidadMinima;
+            bufer = ByteBuffer.allocateDirect(capacidad);
+            bytesCreados.add(capacidad);
+        }
+        if (prestados != null) {
+            synchronized (prestados) {
+                prestados.put(bufer, new Throwable("Búfer de " + bufer.capacity() + " bytes prestado aquí"));
+            }
+        }
+        return bufer.clear();
+    }
+
+    /**
+     * Devuelve un búfer al pool. No debe usarse después de liberarlo.
+     */
+    public void liberar(ByteBuffer bufer) {
+        if (bufer == null || !bufer.isDirect()) {
+            return;
+        }
+        if (prestados != null) {
+            synchronized (prestados) {
+                if (prestados.remove(bufer) == null) {
+                    throw new IllegalStateException("Búfer liberado dos veces o que no salió de este pool");
+                }
+            }
+        }
+        if (Integer.bitCount(bufer.capacity()) != 1) {
+            return;
+        }
+        int clase = clase(bufer.capacity());
+        if (clase >= libres.length) {
+            return;
+        }
+        synchronized (libres[clase]) {
+            if (libres[clase].size() < RETENIDOS_POR_CLASE) {
+                libres[clase].addFirst(bufer);
+            }
+        }
+    }
+
+    /**
+     * Garantiza que el búfer tenga la capacidad pedida, cambiándolo por uno mayor del pool si hace falta.
+     * El contenido no se conserva.
+     */
+    public ByteBuffer asegurar(ByteBuffer bufer, int capacidadMinima) {
+        if (bufer != null && bufer.capacity() >= capacidadMinima) {
+            return bufer.clear();
+        }
+        liberar(bufer);
+        return adquirir(capacidadMinima);
+    }
+
+    /**
+     * Devuelve los bytes de memoria directa que el pool ha reservado desde que se creó.
+     */
+    public long getBytesCreados() {
+        return bytesCreados.sum();
+    }
+
+    /**
+     * Devuelve los bytes de los búferes libres que el pool conserva para reutilizarlos.
+     */
+    public long getBytesLibres() {
+        long total = 0;
+        for (int i = 0; i < libres.length; i++) {
+            synchronized (libres[i]) {
+                total += (long) libres[i].size() << (i + BITS_CLASE_MINIMA);
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Indica si el pool anota los préstamos para detectar fugas.
+     */
+    public boolean isDetectandoFugas() {
+        return prestados != null;
+    }
+
+    /**
+     * Devuelve el número de búferes prestados y no devueltos, o -1 sin detección de fugas.
+     */
+    public int getPrestados() {
+        if (prestados == null) {
+            return -1;
+        }
+        synchronized (prestados) {
+            return prestados.size();
+        }
+    }
+
+    /**
+     * Devuelve, por cada búfer prestado y no devuelto, la pila de quien lo pidió.
+     * Vacía si no hay fugas o si la detección está desactivada.
+     */
+    public List<Throwable> getFugas() {
+        if (prestados == null) {
+            return List.of();
+        }
+        synchronized (prestados) {
+            return new ArrayList<>(prestados.values());
+        }
+    }
+
+    private static int clase(int capacidad) {
+        int bits = 32 - Integer.numberOfLeadingZeros(Math.max(capacidad, 1) - 1);
+        return Math.max(0, bits - BITS_CLASE_MINIMA);
+    }
+}
@@ -0,0 +1,103 @@
+package util;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Hilos que descifran las tramas grandes de todas las sesiones con {@link Sesion#configurarRecepcion recepción paralela}.
+ * Además de los hilos reparte un presupuesto de memoria: cada trama que espera o se está descifrando
+ * ocupa su longitud en bytes hasta que termina, y si el presupuesto está agotado la sesión la descifra
+ * en su propio lector. Así, con muchas sesiones recibiendo a la vez, las copias en vuelo no crecen sin límite.
+ */
+public class PoolDescifrado implements AutoCloseable {
+
+    public static final String PROPIEDAD_HILOS = "chat.descifrado.hilos"; // Hilos del pool común; 1 desactiva la recepción paralela
+    public static final String PROPIEDAD_PRESUPUESTO = "chat.descifrado.presupuesto"; // Bytes en vuelo del pool común
+    public static final int PRESUPUESTO_POR_DEFECTO = 64 * 1024 * 1024;
+
+    private static final class Compartido {
+        private static final PoolDescifrado POOL = new PoolDescifrado(
+                Integer.getInteger(PROPIEDAD_HILOS, Runtime.getRuntime().availableProcessors()),
+                Integer.getInteger(PROPIEDAD_PRESUPUESTO, PRESUPUESTO_POR_DEFECTO));
+    }
+
+    private final int hilos;
+    private final int presupuesto; // Bytes de tramas en vuelo como máximo
+    private final ExecutorService ejecutor;
+    private final Semaphore disponible; // Un permiso por byte
+
+    /**
+     * Crea un pool con sus propios hilos, que se arrancan a medida que hacen falta.
+     * @param hilos hilos que descifran a la vez
+     * @param presupuesto bytes de tramas en vuelo como máximo
+     */
+    public PoolDescifrado(int hilos, int presupuesto) {
+        if (hilos < 1 || presupuesto < 1) {
+            throw new IllegalArgumentException("Pool de descifrado sin hilos o sin presupuesto");
+        }
+        this.hilos = hilos;
+        this.presupuesto = presupuesto;
+        this.ejecutor = Executors.newFixedThreadPool(hilos, Thread.ofPlatform().daemon().name("descifrado-", 0).factory());
+        this.disponible = new Semaphore(presupuesto);
+    }
+
+    /**
+     * Devuelve el pool común, con {@value #PROPIEDAD_HILOS} hilos (uno por procesador si no se indica)
+     * y {@value #PROPIEDAD_PRESUPUESTO} bytes de presupuesto. Sus hilos no se crean hasta que se usa.
+     */
+    public static PoolDescifrado getCompartido() {
+        return Compartido.POOL;
+    }
+
+    /**
+     * Devuelve el pool que usan las sesiones nuevas: el común si tiene más de un hilo, o null si
+     * no compensa sacar el descifrado del lector.
+     */
+    public static PoolDescifrado getPorDefecto() {
+        int hilos = Integer.getInteger(PROPIEDAD_HILOS, Runtime.getRuntime().availableProcessors());
+        return hilos > 1 ? getCompartido() : null;
+    }
+
+    /**
+     * Reserva presupuesto para una trama y la descifra en un hilo del pool.
+     * @return false, sin lanzar la tarea, si no queda presupuesto para esos bytes
+     */
+    boolean lanzar(int bytes, Runnable descifrado) {
+        if (!disponible.tryAcquire(Math.min(bytes, presupuesto))) {
+            return false;
+        }
+        try {
+            ejecutor.execute(() -> {
+                try {
+                    descifrado.run();
+                } finally {
+                    disponible.release(Math.min(bytes, presupuesto));
+                }
+            });
+            return true;
+        } catch (RuntimeException e) {
+            disponible.release(Math.min(bytes, presupuesto));
+            return false;
+        }
+    }
+
+    public int getHilos() {
+        return hilos;
+    }
+
+    /**
+     * Devuelve los bytes de presupuesto libres en este momento.
+     */
+    public int getPresupuestoLibre() {
+        return disponible.availablePermits();
+    }
+
+    /**
+     * Detiene los hilos del pool; las tramas que ya se lanzaron terminan de descifrarse.
+     */
+    @Override
+    public void close() {
+        ejecutor.shutdown();
+    }
+}
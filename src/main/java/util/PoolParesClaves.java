@@ -0,0 +1,115 @@
+package util;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Pares de claves efímeras generados de antemano en segundo plano, uno por intercambio.
+ * Generar un par Diffie-Hellman de 2048 bits cuesta milisegundos; con el pool esa espera
+ * sale de la ruta de conexión. Cada par se entrega una sola vez; el hueco se repone con
+ * {@link #reponer} cuando el intercambio ya terminó, para no competir con él por la CPU.
+ */
+public class PoolParesClaves {
+
+    public static final int CAPACIDAD_POR_DEFECTO = 8; // Pares que se mantienen listos por modo
+    private static final Duration RETARDO_REPOSICION = Duration.ofMillis(25); // Margen para que termine el arranque de la sesión
+
+    private static final Bitacora bitacora = Bitacora.de(PoolParesClaves.class);
+    private static final PoolParesClaves compartido = new PoolParesClaves(CAPACIDAD_POR_DEFECTO); // Pool común
+
+    private final int capacidad; // Pares retenidos por modo; cero desactiva la pregeneración
+    private final Map<ModoIntercambio, BlockingQueue<KeyPair>> listos = new EnumMap<>(ModoIntercambio.class);
+    private final Map<ModoIntercambio, AtomicBoolean> reponiendo = new EnumMap<>(ModoIntercambio.class);
+    private final Set<ModoIntercambio> usados = ConcurrentHashMap.newKeySet(); // Modos pedidos alguna vez
+
+    /**
+     * Crea un pool vacío; los pares se generan la primera vez que se pide cada modo o al precalentarlo.
+     * @param capacidad pares listos por modo; con cero cada par se genera al pedirlo
+     */
+    public PoolParesClaves(int capacidad) {
+        this.capacidad = capacidad;
+        for (ModoIntercambio modo : ModoIntercambio.values()) {
+            listos.put(modo, new ArrayBlockingQueue<>(Math.max(1, capacidad)));
+            reponiendo.put(modo, new AtomicBoolean());
+        }
+    }
+
+    /**
+     * Devuelve el pool común a todas las conexiones.
+     */
+    public static PoolParesClaves getCompartido() {
+        return compartido;
+    }
+
+    /**
+     * Entrega un par sin usar. Si el pool está vacío lo genera en el hilo que llama.
+     */
+    public KeyPair tomar(ModoIntercambio modo) throws GeneralSecurityException {
+        usados.add(modo);
+        KeyPair par = listos.get(modo).poll();
+        return par != null ? par : modo.generador().generateKeyPair();
+    }
+
+    /**
+     * Empieza a llenar el pool del modo indicado sin esperar a que se pida un par.
+     */
+    public void precalentar(ModoIntercambio modo) {
+        usados.add(modo);
+        llenar(modo, Duration.ZERO);
+    }
+
+    /**
+     * Repone los pares de todos los modos que se han usado.
+     */
+    public void reponer() {
+        usados.forEach(this::reponer);
+    }
+
+    /**
+     * Devuelve los pares listos de un modo.
+     */
+    public int getDisponibles(ModoIntercambio modo) {
+        return listos.get(modo).size();
+    }
+
+    /**
+     * Repone los pares gastados de un modo tras un breve retardo, para que la generación
+     * no compita por la CPU con el resto del arranque de la sesión que acaba de negociar.
+     */
+    public void reponer(ModoIntercambio modo) {
+        llenar(modo, RETARDO_REPOSICION);
+    }
+
+    /**
+     * Lanza un hilo virtual que completa el pool, si no hay ya uno haciéndolo.
+     */
+    private void llenar(ModoIntercambio modo, Duration retardo) {
+        BlockingQueue<KeyPair> cola = listos.get(modo);
+        AtomicBoolean activo = reponiendo.get(modo);
+        if (capacidad == 0 || cola.size() >= capacidad || !activo.compareAndSet(false, true)) {
+            return;
+        }
+        Thread.ofVirtual().name("pares-" + modo).start(() -> {
+            try {
+                Thread.sleep(retardo);
+                while (cola.size() < capacidad && cola.offer(modo.generador().generateKeyPair())) {
+                    // Sigue hasta llenar el pool
+                }
+            } catch (GeneralSecurityException e) {
+                bitacora.error("Error al generar pares " + modo, e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                activo.set(false);
+            }
+        });
+    }
+}
@@ -0,0 +1,232 @@
+package util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Latidos y presencia de una sesión, para notar en pocos segundos que el par desapareció sin cerrar
+ * la conexión (una conexión TCP medio abierta puede tardar minutos en dar error) y para mostrar si
+ * está escribiendo. No tiene hilo propio: cada {@link Tiempos#latido()} la revisa un temporizador de
+ * la {@link RuedaTemporizadores} compartida.
+ *
+ * En cada revisión, si no salió nada por la sesión desde la anterior, se envía una trama
+ * {@link TipoTrama#PRESENCIA} de un byte con el estado ({@link #ACTIVO} o {@link #ESCRIBIENDO}); si hubo
+ * tráfico, ese tráfico ya sirve de latido. Los cambios de estado se envían en el momento. Si del par
+ * no llega ningún byte durante {@link Tiempos#silencio()}, se le da por caído y se cierra el canal, con
+ * lo que el lector falla y quien lo atiende ve la causa en {@link #getCaida()}; desde el último byte,
+ * eso ocurre como mucho un latido después del silencio (más un tic de la rueda).
+ *
+ * Solo se envían latidos si el par anunció {@link #CAPACIDAD_PRESENCIA}, porque un par anterior no
+ * entiende la trama, y solo se vigila el silencio desde que llega la primera trama de presencia del
+ * par: hasta que él empieza a latir (o si nunca lo hace), callado no significa caído.
+ */
+public final class Presencia implements Closeable {
+
+    public static final String PROPIEDAD = "chat.presencia"; // Milisegundos, por ejemplo "latido:5000,silencio:15000"
+    public static final byte CAPACIDAD_PRESENCIA = 8; // Bit de CAPACIDADES: envía latidos y entiende las tramas de presencia
+    public static final byte ACTIVO = 0; // Estado: conectado
+    public static final byte ESCRIBIENDO = 1; // Estado: el usuario está escribiendo un mensaje
+    static final long PAUSA_ESCRITURA_MS = 5_000; // Sin pulsaciones durante este tiempo, se deja de estar escribiendo
+
+    private static final Bitacora bitacora = Bitacora.de(Presencia.class);
+
+    /**
+     * Cada cuánto se revisa la sesión y cuánto silencio del par se tolera.
+     * @param latido intervalo entre revisiones; como mucho, el tiempo sin enviar nada al par
+     * @param silencio tiempo sin recibir nada tras el que el par se da por caído; al menos dos latidos
+     */
+    public record Tiempos(Duration latido, Duration silencio) {
+
+        private static final Tiempos porDefecto = desdePropiedad(System.getProperty(PROPIEDAD));
+
+        public Tiempos {
+            if (latido.isNegative() || latido.isZero() || silencio.compareTo(latido.multipliedBy(2)) < 0) {
+                throw new IllegalArgumentException("El silencio tolerado debe ser de al menos dos latidos: " + latido + ", " + silencio);
+            }
+        }
+
+        /**
+         * Devuelve latidos cada 5 s y 15 s de silencio, con los cambios de la propiedad {@value Presencia#PROPIEDAD}.
+         */
+        public static Tiempos getPorDefecto() {
+            return porDefecto;
+        }
+
+        private static Tiempos desdePropiedad(String valor) {
+            long latido = 5_000;
+            long silencio = 15_000;
+            if (valor != null && !valor.isBlank()) {
+                for (String par : valor.split(",")) {
+                    String[] partes = par.trim().split(":");
+                    if (partes.length != 2) {
+                        throw new IllegalArgumentException("Entrada inválida en " + PROPIEDAD + ": " + par);
+                    }
+                    long milisegundos = Long.parseLong(partes[1].trim());
+                    switch (partes[0].trim()) {
+                        case "latido" -> latido = milisegundos;
+                        case "silencio" -> silencio = milisegundos;
+                        default -> throw new IllegalArgumentException("Tiempo desconocido en " + PROPIEDAD + ": " + partes[0]);
+                    }
+                }
+            }
+            return new Tiempos(Duration.ofMillis(latido), Duration.ofMillis(silencio));
+        }
+    }
+
+    private final Sesion sesion;
+    private final long revisionesSilencio; // Revisiones seguidas sin recibir nada tras las que el par se da por caído
+    private final Consumer<Boolean> escrituraPar; // Recibe los cambios del par entre escribir y no escribir
+    private final RuedaTemporizadores.Temporizador temporizador;
+    private long recibidosVistos; // Bytes recibidos en la revisión anterior (solo del hilo de la rueda)
+    private long ultimaSenal = System.nanoTime(); // Revisión en la que se vio llegar algo por última vez (solo del hilo de la rueda)
+    private long calladas; // Revisiones seguidas sin recibir nada (solo del hilo de la rueda)
+    private volatile long enviadosVistos = -1; // Bytes enviados tras el último latido propio; -1 para enviar uno
+    private volatile long ultimaPulsacion; // Última vez que el usuario local escribió
+    private byte estado = ACTIVO; // Estado propio anunciado al par (protegido por this)
+    private volatile byte estadoPar = ACTIVO;
+    private volatile boolean parLatiendo; // Ya llegó alguna trama de presencia del par; desde entonces se vigila su silencio
+    private volatile IOException caida; // Por qué se dio al par por caído; null mientras responde
+
+    /**
+     * Empieza a vigilar una sesión; debe crearse antes de empezar a leer de ella.
+     * @param escrituraPar recibe true cuando el par empieza a escribir y false cuando lo deja o se cae;
+     *                     se invoca en el hilo lector o en el de la rueda
+     */
+    public Presencia(Sesion sesion, Tiempos tiempos, RuedaTemporizadores rueda, Consumer<Boolean> escrituraPar) {
+        this.sesion = sesion;
+        // Se cuentan revisiones y no se compara el reloj: así el desfase de los tics no añade un latido más
+        this.revisionesSilencio = (tiempos.silencio().toNanos() + tiempos.latido().toNanos() - 1) / tiempos.latido().toNanos();
+        this.escrituraPar = escrituraPar;
+        sesion.registrarManejador(TipoTrama.PRESENCIA, (s, datos) -> estadoRecibido(datos.get()));
+        this.temporizador = rueda.programarPeriodica(tiempos.latido(), this::revisar);
+    }
+
+    /**
+     * Anuncia al par si el usuario local está escribiendo. Se puede llamar en cada pulsación: solo se
+     * envía una trama cuando el estado cambia, y se vuelve a {@link #ACTIVO} solo tras
+     * {@value #PAUSA_ESCRITURA_MS} ms sin pulsaciones.
+     */
+    public void escribiendo(boolean escribiendo) {
+        ultimaPulsacion = escribiendo ? System.nanoTime() : 0;
+        cambiarEstado(escribiendo ? ESCRIBIENDO : ACTIVO);
+    }
+
+    /**
+     * Indica si el par anunció que está escribiendo.
+     */
+    public boolean isParEscribiendo() {
+        return estadoPar == ESCRIBIENDO;
+    }
+
+    /**
+     * Devuelve por qué se dio al par por caído, o null si no se hizo.
+     */
+    public IOException getCaida() {
+        return caida;
+    }
+
+    /**
+     * Deja de vigilar la sesión; no la cierra.
+     */
+    @Override
+    public void close() {
+        temporizador.cancelar();
+        if (estadoPar == ESCRIBIENDO) {
+            estadoRecibido(ACTIVO);
+        }
+    }
+
+    /**
+     * Revisión periódica en el hilo de la rueda: late si la sesión estuvo callada, caduca la escritura
+     * propia y comprueba que el par siga enviando algo.
+     */
+    private void revisar() {
+        if (!sesion.isAbierta()) {
+            close();
+            return;
+        }
+        long ahora = System.nanoTime();
+        if (!sesion.isCapacidadPar(CAPACIDAD_PRESENCIA)) {
+            return;
+        }
+        if (ultimaPulsacion != 0 && ahora - ultimaPulsacion > TimeUnit.MILLISECONDS.toNanos(PAUSA_ESCRITURA_MS)) {
+            ultimaPulsacion = 0;
+            cambiarEstado(ACTIVO);
+        } else {
+            long enviados = sesion.getBytesEnviados();
+            if (enviados == enviadosVistos || enviadosVistos < 0) {
+                enviar(estadoActual());
+            } else {
+                enviadosVistos = enviados; // Lo que salió desde la revisión anterior ya sirvió de latido
+            }
+        }
+        long recibidos = sesion.getBytesRecibidos();
+        if (recibidos != recibidosVistos || !parLatiendo) {
+            recibidosVistos = recibidos;
+            ultimaSenal = ahora;
+            calladas = 0;
+        } else if (++calladas >= revisionesSilencio) {
+            caer(ahora - ultimaSenal);
+        }
+    }
+
+    private synchronized byte estadoActual() {
+        return estado;
+    }
+
+    private void cambiarEstado(byte nuevo) {
+        synchronized (this) {
+            if (estado == nuevo) {
+                return;
+            }
+            estado = nuevo;
+        }
+        if (sesion.isCapacidadPar(CAPACIDAD_PRESENCIA)) {
+            enviar(nuevo);
+        }
+    }
+
+    /**
+     * Encola una trama de presencia. Al escribirse, lo enviado hasta entonces se da por visto para
+     * que la revisión siguiente no tome el propio latido por tráfico y deje de latir.
+     */
+    private void enviar(byte actual) {
+        ByteBuffer trama = ByteBuffer.allocate(2).put(TipoTrama.PRESENCIA).put(actual).flip();
+        sesion.enviarTrama(trama, null).whenComplete((ignorado, error) -> {
+            if (error == null) {
+                enviadosVistos = sesion.getBytesEnviados();
+            } else {
+                bitacora.depuracion(() -> "Latido sin enviar en la sesión " + sesion.getId() + ": " + error);
+            }
+        });
+    }
+
+    private void estadoRecibido(byte nuevo) {
+        parLatiendo = true;
+        byte anterior = estadoPar;
+        estadoPar = nuevo;
+        if ((anterior == ESCRIBIENDO) != (nuevo == ESCRIBIENDO)) {
+            escrituraPar.accept(nuevo == ESCRIBIENDO);
+        }
+    }
+
+    /**
+     * Da al par por caído y cierra solo el canal: así el lector, bloqueado en una lectura que no
+     * terminaría nunca, falla enseguida y quien atiende la sesión decide si reconectar.
+     */
+    private void caer(long calladoNanos) {
+        caida = new IOException("El par no da señales desde hace " + TimeUnit.NANOSECONDS.toMillis(calladoNanos) + " ms");
+        Metricas.CAIDA_PAR.registrar(calladoNanos);
+        bitacora.aviso("Sesión " + sesion.getId() + ": " + caida.getMessage() + "; se cierra la conexión");
+        close();
+        try {
+            sesion.getCanal().close();
+        } catch (IOException e) {
+            bitacora.error("Error al cerrar el canal de la sesión " + sesion.getId(), e);
+        }
+    }
+}
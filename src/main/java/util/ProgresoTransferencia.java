@@ -0,0 +1,13 @@
+package util;
+
+/**
+ * Recibe el avance de una transferencia de archivo.
+ */
+@FunctionalInterface
+public interface ProgresoTransferencia {
+
+    /**
+     * Se invoca después de cada bloque con los bytes transferidos hasta ahora y el total.
+     */
+    void progreso(long transferidos, long total);
+}
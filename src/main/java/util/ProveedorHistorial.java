@@ -0,0 +1,38 @@
+package util;
+
+import java.util.List;
+
+/**
+ * Almacén del historial de la conversación. La interfaz solo mantiene en memoria una ventana
+ * de mensajes y pide al proveedor las páginas anteriores o posteriores cuando hace falta.
+ */
+public interface ProveedorHistorial {
+
+    /**
+     * Guarda un mensaje nuevo al final del historial y lo devuelve con su secuencia asignada.
+     */
+    MensajeChat agregar(String autor, String texto);
+
+    /**
+     * Guarda al final del historial un mensaje escrito en otro momento, por ejemplo uno que faltaba
+     * y llegó del par al sincronizar, conservando su instante.
+     */
+    MensajeChat agregar(String autor, String texto, long instante);
+
+    /**
+     * Devuelve hasta {@code cantidad} mensajes inmediatamente anteriores a la secuencia dada,
+     * en orden cronológico.
+     */
+    List<MensajeChat> anteriores(long secuencia, int cantidad);
+
+    /**
+     * Devuelve hasta {@code cantidad} mensajes inmediatamente posteriores a la secuencia dada,
+     * en orden cronológico.
+     */
+    List<MensajeChat> posteriores(long secuencia, int cantidad);
+
+    /**
+     * Devuelve el número de mensajes guardados.
+     */
+    long getTamano();
+}
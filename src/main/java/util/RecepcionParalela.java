@@ -0,0 +1,334 @@
+package util;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Recepción de una sesión en dos etapas. Un hilo lector separa las tramas del canal, elige su clave
+ * en orden ({@link RotacionClaves#recibir}) y reparte las grandes entre los hilos de un
+ * {@link PoolDescifrado}; las pequeñas las descifra él mismo, porque el salto de hilo costaría más
+ * que el descifrado. Cada trama ocupa la posición de su número de secuencia en un anillo, y el
+ * consumidor ({@link Sesion#leerMensaje()}) las toma en el orden en que llegaron aunque terminen de
+ * descifrarse desordenadas. La descompresión, los manejadores y el crédito siguen en el consumidor.
+ *
+ * El lector se adelanta como mucho {@value #CAPACIDAD} tramas o {@value #PRESUPUESTO_SESION} bytes
+ * al consumidor; después deja de leer el canal, y el par se frena como con un lector lento.
+ */
+final class RecepcionParalela {
+
+    static final int TAMANO_MINIMO = 16 * 1024; // Carga mínima para descifrar fuera del lector
+    static final int PRESUPUESTO_SESION = 8 * 1024 * 1024; // Bytes leídos y aún no liberados por el consumidor
+    private static final int CAPACIDAD = 256; // Tramas del anillo; potencia de dos
+
+    private final long sesion; // Identificador de la sesión, para los eventos
+    private final CanalTramas entrada;
+    private final PoolBuffers pool;
+    private final RotacionClaves claves;
+    private final PoolDescifrado descifrado;
+    private final Ranura[] anillo = new Ranura[CAPACIDAD];
+    private final ReentrantLock bloqueo = new ReentrantLock();
+    private final Condition lista = bloqueo.newCondition(); // Se publicó una trama o terminó el lector
+    private final Condition hueco = bloqueo.newCondition(); // El consumidor liberó una trama
+    private final AtomicBoolean arrancado = new AtomicBoolean(); // El lector empezó, o ya no debe empezar
+    private final CountDownLatch terminado = new CountDownLatch(1); // El lector salió
+    private long leidas; // Tramas anotadas por el lector (protegido por bloqueo)
+    private long entregadas; // Tramas entregadas al consumidor (protegido por bloqueo)
+    private long liberadas; // Tramas cuyo búfer volvió al pool (protegido por bloqueo)
+    private long pendientes; // Bytes de las tramas anotadas y no liberadas (protegido por bloqueo)
+    private Exception fin; // Por qué se detuvo el lector; se entrega tras la última trama anotada
+    private boolean cerrada;
+
+    /**
+     * Trama recibida; el consumidor puede usar su contenido hasta que pide la siguiente.
+     */
+    static final class Ranura {
+        private final byte[] cabecera = new byte[FormatoTrama.CABECERA_MAXIMA]; // Copia, para autenticarla al descifrar
+        private int longitudCabecera;
+        private byte tipo;
+        private byte banderas;
+        private int flujo;
+        private int bytes; // Longitud en el cable
+        private ByteBuffer plano; // Contenido descifrado, o la carga tal cual si va cifrada fuera de la sesión
+        private Exception error; // Fallo al descifrarla
+        private boolean lista; // Publicada (protegido por bloqueo)
+
+        byte getTipo() {
+            return tipo;
+        }
+
+        byte getBanderas() {
+            return banderas;
+        }
+
+        int getFlujo() {
+            return flujo;
+        }
+
+        int getBytes() {
+            return bytes;
+        }
+
+        ByteBuffer getDatos() {
+            return plano;
+        }
+    }
+
+    /**
+     * Prepara la recepción sobre el lector de tramas de la sesión, que pasa a ser solo del hilo lector.
+     */
+    RecepcionParalela(long sesion, CanalTramas entrada, PoolBuffers pool, RotacionClaves claves, PoolDescifrado descifrado) {
+        this.sesion = sesion;
+        this.entrada = entrada;
+        this.pool = pool;
+        this.claves = claves;
+        this.descifrado = descifrado;
+        for (int i = 0; i < CAPACIDAD; i++) {
+            anillo[i] = new Ranura();
+        }
+    }
+
+    /**
+     * Tarea del hilo lector: lee tramas hasta que falla el canal, falla una trama o se cierra la recepción.
+     */
+    void leer() {
+        if (!arrancado.compareAndSet(false, true)) {
+            return;
+        }
+        Ranura reservada = null; // Aún sin número de secuencia: si algo falla, su búfer es del lector
+        try {
+            while (true) {
+                Ranura ranura = reservar();
+                reservada = ranura;
+                ByteBuffer trama = entrada.leerTrama();
+                ranura.tipo = entrada.getTipo();
+                ranura.banderas = entrada.getBanderas();
+                ranura.flujo = entrada.getFlujo();
+                ranura.bytes = entrada.getLongitudTotal();
+                ByteBuffer cabecera = entrada.getCabecera();
+                ranura.longitudCabecera = cabecera.remaining();
+                cabecera.get(ranura.cabecera, 0, ranura.longitudCabecera);
+                Sesion.comprobarCifrada(sesion, ranura.tipo, ranura.banderas, trama);
+                if (Sesion.isCifradaFuera(ranura.tipo)) {
+                    ranura.plano = pool.adquirir(trama.remaining()).put(trama).flip();
+                    reservada = null;
+                    anotar(ranura);
+                    publicar(ranura, null);
+                    continue;
+                }
+                ContextoCifrado contexto = claves.recibir(ranura.banderas);
+                ranura.plano = pool.adquirir(ContextoCifrado.longitudPlana(trama.remaining()));
+                reservada = null;
+                anotar(ranura);
+                if (trama.remaining() >= TAMANO_MINIMO && lanzar(ranura, contexto, trama)) {
+                    continue;
+                }
+                Exception error = descifrar(ranura, contexto, ByteBuffer.wrap(ranura.cabecera, 0, ranura.longitudCabecera), trama);
+                publicar(ranura, error);
+                if (error != null) {
+                    terminar(error);
+                    return;
+                }
+            }
+        } catch (Exception e) {
+            if (reservada != null) {
+                pool.liberar(reservada.plano);
+                reservada.plano = null;
+            }
+            terminar(e);
+        } finally {
+            terminado.countDown();
+        }
+    }
+
+    /**
+     * Entrega la siguiente trama en orden de llegada, esperando a que se descifre. La que se entregó
+     * antes vuelve al pool. Solo debe llamarse con el bloqueo de lectura de la sesión.
+     * @throws Exception el error de la trama o el que detuvo al lector, cuando llega su turno
+     */
+    Ranura tomar() throws Exception {
+        bloqueo.lockInterruptibly();
+        try {
+            if (entregadas > liberadas) {
+                Ranura anterior = anillo[indice(liberadas)];
+                pool.liberar(anterior.plano);
+                anterior.plano = null;
+                anterior.lista = false;
+                pendientes -= anterior.bytes;
+                liberadas++;
+                hueco.signal();
+            }
+            Ranura ranura = anillo[indice(entregadas)];
+            while (!ranura.lista) {
+                if (cerrada) {
+                    throw new ClosedChannelException();
+                }
+                if (fin != null && entregadas == leidas) {
+                    throw fin;
+                }
+                lista.await();
+            }
+            if (ranura.error != null) {
+                throw ranura.error;
+            }
+            entregadas++;
+            return ranura;
+        } finally {
+            bloqueo.unlock();
+        }
+    }
+
+    /**
+     * Despierta al lector y al consumidor para que salgan; el consumidor recibe {@link ClosedChannelException}.
+     */
+    void detener() {
+        bloqueo.lock();
+        try {
+            cerrada = true;
+            lista.signalAll();
+            hueco.signalAll();
+        } finally {
+            bloqueo.unlock();
+        }
+    }
+
+    /**
+     * Detiene la recepción y, cuando sale el lector, devuelve al pool los búferes de las tramas
+     * publicadas. Las que aún se descifran los devuelven sus hilos al terminar.
+     * @return false si el lector no salió a tiempo; entonces el lector de tramas sigue en uso
+     */
+    boolean liberar() {
+        detener();
+        if (arrancado.compareAndSet(false, true)) {
+            terminado.countDown(); // El lector no llegó a empezar
+        }
+        try {
+            if (!terminado.await(1, TimeUnit.SECONDS)) {
+                return false;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        bloqueo.lock();
+        try {
+            for (long i = liberadas; i < leidas; i++) {
+                Ranura ranura = anillo[indice(i)];
+                if (ranura.lista) {
+                    pool.liberar(ranura.plano);
+                    ranura.plano = null;
+                    ranura.lista = false;
+                }
+            }
+            return true;
+        } finally {
+            bloqueo.unlock();
+        }
+    }
+
+    /**
+     * Espera a que haya sitio en el anillo y en el presupuesto de la sesión y devuelve la siguiente posición.
+     * Siempre deja pasar una trama si el consumidor no retiene ninguna, por grande que sea.
+     */
+    private Ranura reservar() throws Exception {
+        bloqueo.lockInterruptibly();
+        try {
+            while (leidas - liberadas >= CAPACIDAD || (pendientes >= PRESUPUESTO_SESION && leidas > liberadas)) {
+                if (cerrada) {
+                    throw new ClosedChannelException();
+                }
+                hueco.await();
+            }
+            if (cerrada) {
+                throw new ClosedChannelException();
+            }
+            Ranura ranura = anillo[indice(leidas)];
+            ranura.error = null;
+            return ranura;
+        } finally {
+            bloqueo.unlock();
+        }
+    }
+
+    /**
+     * Da a la trama reservada su número de secuencia; desde aquí el consumidor la espera.
+     */
+    private void anotar(Ranura ranura) {
+        bloqueo.lock();
+        try {
+            leidas++;
+            pendientes += ranura.bytes;
+        } finally {
+            bloqueo.unlock();
+        }
+    }
+
+    /**
+     * Copia la carga y la descifra en un hilo del pool.
+     * @return false si el pool no tiene presupuesto; la trama queda por descifrar
+     */
+    private boolean lanzar(Ranura ranura, ContextoCifrado contexto, ByteBuffer trama) {
+        ByteBuffer cifrada = pool.adquirir(trama.remaining());
+        cifrada.put(trama.duplicate()).flip();
+        ByteBuffer cabecera = ByteBuffer.wrap(ranura.cabecera, 0, ranura.longitudCabecera);
+        boolean lanzada = descifrado.lanzar(cifrada.remaining(), () -> {
+            Exception error;
+            try {
+                error = descifrar(ranura, contexto, cabecera, cifrada);
+            } finally {
+                pool.liberar(cifrada);
+            }
+            publicar(ranura, error);
+        });
+        if (!lanzada) {
+            pool.liberar(cifrada);
+        }
+        return lanzada;
+    }
+
+    private Exception descifrar(Ranura ranura, ContextoCifrado contexto, ByteBuffer cabecera, ByteBuffer trama) {
+        try {
+            Sesion.descifrar(sesion, ranura.tipo, ranura.bytes, contexto, cabecera, trama, ranura.plano);
+            return null;
+        } catch (Exception e) {
+            return e;
+        }
+    }
+
+    /**
+     * Deja la trama lista para el consumidor o, si la recepción ya se cerró, devuelve su búfer.
+     */
+    private void publicar(Ranura ranura, Exception error) {
+        bloqueo.lock();
+        try {
+            if (cerrada) {
+                pool.liberar(ranura.plano);
+                ranura.plano = null;
+                return;
+            }
+            ranura.error = error;
+            ranura.lista = true;
+            lista.signalAll();
+        } finally {
+            bloqueo.unlock();
+        }
+    }
+
+    private void terminar(Exception causa) {
+        bloqueo.lock();
+        try {
+            fin = causa;
+            lista.signalAll();
+        } finally {
+            bloqueo.unlock();
+        }
+    }
+
+    private static int indice(long secuencia) {
+        return (int) (secuencia & (CAPACIDAD - 1));
+    }
+}
@@ -0,0 +1,17 @@
+package util;
+
+/**
+ * Obtiene una sesión nueva con el mismo par cuando la de un {@link MotorChat} se cae:
+ * el extremo que se conectó vuelve a conectarse y el que escuchaba espera al par.
+ * Ver {@link MotorChat#reconectarA} y {@link MotorChat#reaceptarEn}.
+ */
+@FunctionalInterface
+public interface Reconexion {
+
+    /**
+     * Abre la conexión y negocia la clave (o la reanuda con el ticket de la anterior).
+     * Puede bloquear; el motor la llama desde su propio hilo de reconexión.
+     * @return una sesión con clave y sin nada leído después del intercambio
+     */
+    Sesion conectar() throws Exception;
+}
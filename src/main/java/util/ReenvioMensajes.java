@@ -0,0 +1,129 @@
+package util;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Números de secuencia, acuses y reenvío de los mensajes de chat de una conversación, para que
+ * sobrevivan a una caída de la conexión. Cada mensaje enviado recibe el siguiente número y se guarda
+ * hasta que el par acusa haberlo recibido. El acuse es acumulativo, como en TCP: el número de mensajes
+ * de la conversación que el par ya entregó. Al reconectar, cada extremo dice cuántos recibió y el otro
+ * reenvía solo los siguientes, en orden, de modo que ninguno se pierde ni se entrega dos veces.
+ *
+ * Los números no viajan en cada trama: la sesión entrega en orden y sin huecos, así que ambos
+ * extremos los cuentan. Por eso un mensaje numerado tiene que llegar a enviarse; {@link #registrar}
+ * rechaza antes de numerarlo el que no cabría en una trama.
+ */
+public class ReenvioMensajes {
+
+    public static final int CAPACIDAD = 512; // Mensajes sin acuse; menos que la cola de envío, que así nunca se llena
+    public static final int ACUSE_CADA = 32; // Mensajes recibidos entre dos acuses
+
+    private final ArrayDeque<Pendiente> pendientes = new ArrayDeque<>(); // Sin acuse, por orden de secuencia
+    private long enviados; // Último número de secuencia asignado
+    private long confirmados; // Mensajes que el par acusó haber recibido
+    private volatile long recibidos; // Mensajes del par ya entregados (solo los escribe el hilo lector)
+    private long acusados; // Valor del último acuse enviado al par (solo el hilo lector)
+
+    /**
+     * Mensaje enviado y aún sin acuse.
+     * @param escrito futuro que se completa la primera vez que alguna conexión escribe el mensaje
+     */
+    public record Pendiente(long secuencia, String texto, CompletableFuture<Void> escrito) {}
+
+    /**
+     * Numera un mensaje y lo guarda hasta su acuse.
+     * @throws IOException si el mensaje no cabe en una trama o ya hay {@value #CAPACIDAD} mensajes sin acuse
+     */
+    public synchronized Pendiente registrar(String texto) throws IOException {
+        if (texto.length() > Sesion.TAMANO_MAXIMO_MENSAJE / 3
+                && texto.getBytes(StandardCharsets.UTF_8).length > Sesion.TAMANO_MAXIMO_MENSAJE) {
+            throw new IOException("Mensaje demasiado grande: " + texto.length() + " caracteres");
+        }
+        if (pendientes.size() >= CAPACIDAD) {
+            throw new IOException("Hay " + CAPACIDAD + " mensajes sin acuse del par");
+        }
+        Pendiente pendiente = new Pendiente(++enviados, texto, new CompletableFuture<>());
+        pendientes.addLast(pendiente);
+        return pendiente;
+    }
+
+    /**
+     * Descarta los mensajes que el par acusó haber recibido.
+     * @param hasta mensajes de la conversación que el par ya entregó
+     * @throws IOException si acusa un mensaje que no se envió
+     */
+    public synchronized void confirmar(long hasta) throws IOException {
+        if (hasta > enviados) {
+            throw new IOException("Acuse del mensaje " + hasta + " cuando solo se enviaron " + enviados);
+        }
+        while (!pendientes.isEmpty() && pendientes.peekFirst().secuencia() <= hasta) {
+            pendientes.pollFirst();
+        }
+        confirmados = Math.max(confirmados, hasta);
+    }
+
+    /**
+     * Confirma lo que el par dice haber recibido al reanudar y devuelve el resto, para reenviarlo en orden.
+     * @throws IOException si el par dice haber recibido menos de lo que ya acusó: perdió su estado
+     */
+    public synchronized List<Pendiente> pendientesTras(long recibidosPorElPar) throws IOException {
+        if (recibidosPorElPar < confirmados) {
+            throw new IOException("El par dice haber recibido " + recibidosPorElPar + " mensajes y ya había acusado " + confirmados);
+        }
+        confirmar(recibidosPorElPar);
+        return new ArrayList<>(pendientes);
+    }
+
+    /**
+     * Anota un mensaje del par ya entregado. Solo debe llamarse desde el hilo lector.
+     * @return el acuse que hay que enviar al par, o -1 si todavía no toca
+     */
+    public long recibido() {
+        long total = recibidos + 1;
+        recibidos = total;
+        if (total - acusados < ACUSE_CADA) {
+            return -1;
+        }
+        acusados = total;
+        return total;
+    }
+
+    /**
+     * Devuelve los mensajes entregados para anunciarlos al par en el saludo de una conexión nueva,
+     * que sirve también de acuse. Solo debe llamarse desde el hilo que va a leer de esa conexión.
+     */
+    public long saludo() {
+        acusados = recibidos;
+        return recibidos;
+    }
+
+    /**
+     * Hace fallar los envíos pendientes que nunca se llegaron a escribir y los descarta todos,
+     * cuando la conversación termina sin poder reanudarse.
+     */
+    public synchronized void abandonar(Exception causa) {
+        for (Pendiente pendiente : pendientes) {
+            pendiente.escrito().completeExceptionally(causa);
+        }
+        pendientes.clear();
+    }
+
+    /**
+     * Devuelve los mensajes del par entregados en toda la conversación.
+     */
+    public long getRecibidos() {
+        return recibidos;
+    }
+
+    /**
+     * Devuelve los mensajes enviados que el par aún no acusó.
+     */
+    public synchronized int getPendientes() {
+        return pendientes.size();
+    }
+}
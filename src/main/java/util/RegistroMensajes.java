@@ -0,0 +1,834 @@
+package util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Stream;
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Historial persistente: un registro de mensajes solo de añadido, cifrado en disco y dividido en segmentos.
+ *
+ * Cada segmento son dos archivos con la secuencia de su primer mensaje como nombre:
+ * <ul>
+ *   <li>{@code .log}: registros [longitud][IV][texto cifrado y tag] cifrados con AES-GCM; la secuencia
+ *       va como dato autenticado, así que un registro no puede moverse a otra posición.</li>
+ *   <li>{@code .idx}: índice mapeado en memoria con una entrada fija de 16 bytes por secuencia
+ *       (desplazamiento en el log y instante), de modo que una página se localiza sin recorrer nada
+ *       y se lee con una sola lectura del log.</li>
+ * </ul>
+ * Los mensajes se escriben al añadirlos, pero el {@code force} se agrupa: un hilo de confirmación
+ * sincroniza el disco cada {@link #INTERVALO_CONFIRMACION} con todo lo añadido entretanto.
+ * Al abrir solo se comprueban las últimas entradas del último segmento, sin reproducir el log.
+ * Los mensajes borrados conservan su entrada en el índice y sus bytes se eliminan al compactar.
+ */
+public class RegistroMensajes implements ProveedorHistorial, Closeable {
+
+    public static final int MENSAJES_POR_SEGMENTO = 1 << 20; // Entradas de cada índice (16 MiB)
+    public static final Duration INTERVALO_CONFIRMACION = Duration.ofMillis(5); // Espera máxima para agrupar un force
+    public static final String ARCHIVO_CLAVE = "clave"; // Clave local creada por abrir(Path)
+
+    private static final int ENTRADA = 16; // Desplazamiento (8) e instante (8)
+    private static final long BORRADO = 1L << 63; // Marca de borrado en el desplazamiento
+    private static final int CABECERA = 4; // Longitud del registro
+    private static final int IV = 12;
+    private static final int TAG = 16;
+    private static final int VENTANA_RECUPERACION = 1 << 13; // Entradas del final que se validan al abrir (de sobra para un force)
+    private static final String TRANSFORMACION = "AES/GCM/NoPadding";
+    private static final String COMPACTO = ".compacto"; // Sufijo de los archivos a medio compactar
+
+    private final Path directorio;
+    private final SecretKeySpec clave; // Clave AES de los datos en reposo
+    private final int mensajesPorSegmento;
+    private final Duration intervalo;
+    private final ThreadLocal<Cipher> descifradores = ThreadLocal.withInitial(RegistroMensajes::nuevoCipher);
+
+    private final ReentrantLock escritura = new ReentrantLock(); // Serializa los añadidos
+    private final Condition hayPendientes = escritura.newCondition();
+    private final ReentrantReadWriteLock estructura = new ReentrantReadWriteLock(); // Lecturas frente a cierre de segmentos
+    private final ReentrantLock compactacion = new ReentrantLock(); // Serializa borrados y compactaciones
+    private volatile Segmento[] segmentos; // En orden de secuencia; el último es el activo
+
+    // Estado del escritor (protegido por escritura)
+    private final Cipher cifrador = nuevoCipher();
+    private final byte[] iv = new byte[IV];
+    private final SecureRandom aleatorio = new SecureRandom();
+    private long prefijoIv; // Primeros 64 bits del IV, aleatorios por apertura
+    private int contadorIv; // Últimos 32 bits del IV
+    private long ultimoInstante;
+    private long escritoHasta; // Secuencias por debajo de esta ya están escritas
+    private long sincronizadoHasta; // ...y estas ya están en disco
+    private final ArrayDeque<Espera> esperas = new ArrayDeque<>(); // Añadidos que esperan su force
+    private boolean abierto = true;
+    private IOException errorConfirmacion; // Último fallo del hilo de confirmación
+
+    private final Thread confirmador;
+
+    private record Espera(long secuencia, CompletableFuture<MensajeChat> futuro, MensajeChat mensaje) {}
+
+    /**
+     * Un segmento abierto: canal del log e índice mapeado.
+     */
+    private static final class Segmento {
+        final long base; // Secuencia de la primera entrada
+        final int capacidad;
+        final FileChannel log;
+        final MappedByteBuffer indice;
+        volatile long fin; // Bytes válidos del log
+        volatile int cantidad; // Entradas escritas; se publica después del registro y de su entrada
+
+        Segmento(long base, int capacidad, FileChannel log, MappedByteBuffer indice) {
+            this.base = base;
+            this.capacidad = capacidad;
+            this.log = log;
+            this.indice = indice;
+        }
+
+        long desplazamiento(int i) {
+            return indice.getLong(i * ENTRADA) & ~BORRADO;
+        }
+
+        long instante(int i) {
+            return indice.getLong(i * ENTRADA + 8);
+        }
+
+        boolean borrado(int i) {
+            return indice.getLong(i * ENTRADA) < 0;
+        }
+
+        void escribirEntrada(int i, long desplazamiento, long instante) {
+            indice.putLong(i * ENTRADA + 8, instante);
+            indice.putLong(i * ENTRADA, desplazamiento);
+        }
+
+        /**
+         * Bytes que ocupa en el log la entrada i (cero si se borró y el segmento ya se compactó).
+         */
+        long ocupado(int i) {
+            return (i + 1 < cantidad ? desplazamiento(i + 1) : fin) - desplazamiento(i);
+        }
+    }
+
+    /**
+     * Abre el registro de un directorio con la clave local guardada en él, creándola si no existe.
+     * La clave queda en el archivo {@value #ARCHIVO_CLAVE} con permisos solo para el propietario:
+     * protege las copias de los segmentos, no frente a quien pueda leer el directorio completo.
+     */
+    public static RegistroMensajes abrir(Path directorio) throws IOException {
+        Files.createDirectories(directorio);
+        Path archivo = directorio.resolve(ARCHIVO_CLAVE);
+        if (Files.notExists(archivo)) {
+            byte[] nueva = new byte[32];
+            new SecureRandom().nextBytes(nueva);
+            try {
+                if (directorio.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+                    Files.createFile(archivo, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+                } else {
+                    Files.createFile(archivo);
+                }
+                Files.write(archivo, nueva);
+            } catch (FileAlreadyExistsException e) {
+                // Otro proceso la creó a la vez; se usa la suya
+            }
+        }
+        byte[] clave = Files.readAllBytes(archivo);
+        if (clave.length != 32) {
+            throw new IOException("Clave del historial inválida: " + archivo);
+        }
+        return new RegistroMensajes(directorio, clave, MENSAJES_POR_SEGMENTO, INTERVALO_CONFIRMACION);
+    }
+
+    /**
+     * Abre o crea el registro de un directorio.
+     * @param clave clave AES de 256 bits con la que se cifran los mensajes
+     * @param mensajesPorSegmento entradas por segmento; debe ser el mismo con el que se creó el registro
+     * @param intervalo espera máxima entre un añadido y el force que lo confirma
+     */
+    public RegistroMensajes(Path directorio, byte[] clave, int mensajesPorSegmento, Duration intervalo) throws IOException {
+        this.directorio = directorio;
+        this.clave = new SecretKeySpec(clave, "AES");
+        this.mensajesPorSegmento = mensajesPorSegmento;
+        this.intervalo = intervalo;
+        this.prefijoIv = aleatorio.nextLong();
+        Files.createDirectories(directorio);
+        this.segmentos = cargarSegmentos();
+        Segmento activo = segmentos[segmentos.length - 1];
+        this.escritoHasta = activo.base + activo.cantidad;
+        this.sincronizadoHasta = escritoHasta;
+        this.ultimoInstante = activo.cantidad > 0 ? activo.instante(activo.cantidad - 1) : 0;
+        this.confirmador = new Thread(this::confirmar, "registro-confirmacion");
+        confirmador.setDaemon(true);
+        confirmador.start();
+    }
+
+    /**
+     * Guarda un mensaje; queda escrito al volver y en disco tras el siguiente force agrupado.
+     */
+    @Override
+    public MensajeChat agregar(String autor, String texto) {
+        escritura.lock();
+        try {
+            return escribir(autor, texto, siguienteInstante());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            escritura.unlock();
+        }
+    }
+
+    /**
+     * Guarda un mensaje con su instante de origen. Como el índice se ordena por secuencia, un instante
+     * anterior a los últimos queda fuera de orden (ver {@link #buscarPorInstante}).
+     */
+    @Override
+    public MensajeChat agregar(String autor, String texto, long instante) {
+        escritura.lock();
+        try {
+            return escribir(autor, texto, Math.max(1, instante)); // El instante cero marca una entrada vacía
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            escritura.unlock();
+        }
+    }
+
+    /**
+     * Guarda un mensaje y devuelve un futuro que se completa cuando el force que lo incluye termina.
+     * Varias llamadas seguidas comparten el mismo force.
+     */
+    public CompletableFuture<MensajeChat> agregarSincronizado(String autor, String texto) {
+        escritura.lock();
+        try {
+            MensajeChat mensaje = escribir(autor, texto, siguienteInstante());
+            CompletableFuture<MensajeChat> futuro = new CompletableFuture<>();
+            esperas.add(new Espera(mensaje.secuencia(), futuro, mensaje));
+            return futuro;
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        } finally {
+            escritura.unlock();
+        }
+    }
+
+    /**
+     * Lleva a disco todo lo añadido hasta ahora sin esperar al hilo de confirmación.
+     */
+    public void sincronizar() throws IOException {
+        escritura.lock();
+        try {
+            Segmento activo = segmentos[segmentos.length - 1];
+            activo.log.force(false);
+            activo.indice.force();
+            sincronizadoHasta = escritoHasta;
+            completarEsperas(null);
+        } finally {
+            escritura.unlock();
+        }
+    }
+
+    /**
+     * Escribe el registro en el log y su entrada en el índice. Se llama con el bloqueo de escritura.
+     */
+    private MensajeChat escribir(String autor, String texto, long instante) throws IOException {
+        if (!abierto) {
+            throw new IOException("El registro está cerrado");
+        }
+        Segmento activo = segmentos[segmentos.length - 1];
+        if (activo.cantidad == activo.capacidad) {
+            activo = rotar(activo);
+        }
+        long secuencia = activo.base + activo.cantidad;
+        byte[] plano = codificar(autor, texto);
+        ByteBuffer registro = ByteBuffer.allocate(CABECERA + IV + plano.length + TAG);
+        registro.putInt(IV + plano.length + TAG);
+        siguienteIv();
+        registro.put(iv);
+        try {
+            cifrador.init(Cipher.ENCRYPT_MODE, clave, new GCMParameterSpec(TAG * 8, iv));
+            cifrador.updateAAD(datosAsociados(secuencia));
+            cifrador.doFinal(plano, 0, plano.length, registro.array(), CABECERA + IV);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("No se pudo cifrar el mensaje", e);
+        }
+        registro.rewind();
+        long posicion = activo.fin;
+        while (registro.hasRemaining()) {
+            posicion += activo.log.write(registro, posicion);
+        }
+        activo.escribirEntrada(activo.cantidad, activo.fin, instante);
+        activo.fin = posicion;
+        activo.cantidad++;
+        escritoHasta = secuencia + 1;
+        hayPendientes.signal();
+        return new MensajeChat(secuencia, autor, texto, instante);
+    }
+
+    /**
+     * Devuelve el instante de un mensaje nuevo, que nunca es anterior al del último. Se llama con el bloqueo de escritura.
+     */
+    private long siguienteInstante() {
+        ultimoInstante = Math.max(System.currentTimeMillis(), ultimoInstante);
+        return ultimoInstante;
+    }
+
+    /**
+     * Cierra el segmento lleno (lo lleva a disco entero) y abre el siguiente.
+     */
+    private Segmento rotar(Segmento lleno) throws IOException {
+        lleno.log.force(false);
+        lleno.indice.force();
+        Segmento nuevo = abrirSegmento(lleno.base + lleno.capacidad);
+        estructura.writeLock().lock();
+        try {
+            Segmento[] actuales = segmentos;
+            Segmento[] ampliados = Arrays.copyOf(actuales, actuales.length + 1);
+            ampliados[actuales.length] = nuevo;
+            segmentos = ampliados;
+        } finally {
+            estructura.writeLock().unlock();
+        }
+        return nuevo;
+    }
+
+    private void siguienteIv() {
+        if (++contadorIv == 0) {
+            prefijoIv = aleatorio.nextLong(); // Nunca se repite un IV con la misma clave
+        }
+        ByteBuffer.wrap(iv).putLong(prefijoIv).putInt(contadorIv);
+    }
+
+    /**
+     * Hilo de confirmación: espera a que haya añadidos, deja pasar el intervalo para agrupar
+     * los que lleguen entretanto y hace un solo force para todos.
+     */
+    private void confirmar() {
+        while (true) {
+            Segmento activo;
+            long objetivo;
+            escritura.lock();
+            try {
+                while (abierto && escritoHasta == sincronizadoHasta) {
+                    hayPendientes.awaitUninterruptibly();
+                }
+                if (!abierto) {
+                    return;
+                }
+            } finally {
+                escritura.unlock();
+            }
+            try {
+                TimeUnit.NANOSECONDS.sleep(intervalo.toNanos());
+            } catch (InterruptedException e) {
+                return;
+            }
+            escritura.lock();
+            try {
+                activo = segmentos[segmentos.length - 1];
+                objetivo = escritoHasta;
+            } finally {
+                escritura.unlock();
+            }
+            IOException error = null;
+            try {
+                activo.log.force(false); // Los segmentos anteriores ya se sincronizaron al rotar
+                activo.indice.force();
+            } catch (IOException e) {
+                error = e;
+            }
+            escritura.lock();
+            try {
+                if (error == null) {
+                    sincronizadoHasta = Math.max(sincronizadoHasta, objetivo);
+                } else {
+                    errorConfirmacion = error;
+                    sincronizadoHasta = objetivo; // Las esperas reciben el error en lugar de quedarse colgadas
+                }
+                completarEsperas(error);
+            } finally {
+                escritura.unlock();
+            }
+        }
+    }
+
+    private void completarEsperas(IOException error) {
+        Espera espera;
+        while ((espera = esperas.peek()) != null && espera.secuencia() < sincronizadoHasta) {
+            esperas.poll();
+            if (error == null) {
+                espera.futuro().complete(espera.mensaje());
+            } else {
+                espera.futuro().completeExceptionally(error);
+            }
+        }
+    }
+
+    @Override
+    public List<MensajeChat> anteriores(long secuencia, int cantidad) {
+        ArrayDeque<List<MensajeChat>> paginas = new ArrayDeque<>();
+        int reunidos = 0;
+        estructura.readLock().lock();
+        try {
+            Segmento[] actuales = segmentos;
+            long cursor = Math.min(secuencia, siguiente(actuales)) - 1;
+            while (reunidos < cantidad && cursor >= actuales[0].base) {
+                Segmento segmento = actuales[buscar(actuales, cursor)];
+                long desde = Math.max(segmento.base, cursor - (cantidad - reunidos) + 1);
+                List<MensajeChat> pagina = leer(segmento, (int) (desde - segmento.base), (int) (cursor - segmento.base));
+                paginas.addFirst(pagina);
+                reunidos += pagina.size();
+                cursor = desde - 1;
+            }
+        } finally {
+            estructura.readLock().unlock();
+        }
+        List<MensajeChat> resultado = new ArrayList<>(reunidos);
+        paginas.forEach(resultado::addAll);
+        return resultado;
+    }
+
+    @Override
+    public List<MensajeChat> posteriores(long secuencia, int cantidad) {
+        List<MensajeChat> resultado = new ArrayList<>(cantidad);
+        estructura.readLock().lock();
+        try {
+            Segmento[] actuales = segmentos;
+            long limite = siguiente(actuales);
+            long cursor = Math.max(secuencia + 1, actuales[0].base);
+            while (resultado.size() < cantidad && cursor < limite) {
+                Segmento segmento = actuales[buscar(actuales, cursor)];
+                long hasta = Math.min(segmento.base + segmento.cantidad, cursor + (cantidad - resultado.size())) - 1;
+                List<MensajeChat> pagina = leer(segmento, (int) (cursor - segmento.base), (int) (hasta - segmento.base));
+                resultado.addAll(pagina.subList(0, Math.min(pagina.size(), cantidad - resultado.size())));
+                cursor = hasta + 1;
+            }
+        } finally {
+            estructura.readLock().unlock();
+        }
+        return resultado;
+    }
+
+    /**
+     * Devuelve las posiciones ocupadas del historial, incluidos los mensajes borrados.
+     */
+    @Override
+    public long getTamano() {
+        Segmento[] actuales = segmentos;
+        return siguiente(actuales) - actuales[0].base;
+    }
+
+    /**
+     * Devuelve la primera secuencia escrita en el instante indicado o después, o -1 si no hay ninguna.
+     * Es una búsqueda binaria sobre los índices mapeados: los instantes de los mensajes añadidos aquí
+     * nunca decrecen, pero los que llegaron con su propio instante al sincronizar pueden desviarla.
+     */
+    public long buscarPorInstante(long instante) {
+        estructura.readLock().lock();
+        try {
+            Segmento[] actuales = segmentos;
+            for (Segmento segmento : actuales) {
+                int cantidadSegmento = segmento.cantidad;
+                if (cantidadSegmento == 0 || segmento.instante(cantidadSegmento - 1) < instante) {
+                    continue;
+                }
+                int bajo = 0;
+                int alto = cantidadSegmento - 1;
+                while (bajo < alto) {
+                    int medio = (bajo + alto) >>> 1;
+                    if (segmento.instante(medio) < instante) {
+                        bajo = medio + 1;
+                    } else {
+                        alto = medio;
+                    }
+                }
+                return segmento.base + bajo;
+            }
+            return -1;
+        } finally {
+            estructura.readLock().unlock();
+        }
+    }
+
+    /**
+     * Marca un mensaje como borrado: deja de devolverse y sus bytes se liberan en la próxima compactación.
+     * @return false si la secuencia no existe
+     */
+    public boolean eliminar(long secuencia) {
+        compactacion.lock();
+        estructura.readLock().lock();
+        try {
+            Segmento[] actuales = segmentos;
+            if (secuencia < actuales[0].base || secuencia >= siguiente(actuales)) {
+                return false;
+            }
+            Segmento segmento = actuales[buscar(actuales, secuencia)];
+            int i = (int) (secuencia - segmento.base);
+            segmento.indice.putLong(i * ENTRADA, segmento.indice.getLong(i * ENTRADA) | BORRADO);
+            return true;
+        } finally {
+            estructura.readLock().unlock();
+            compactacion.unlock();
+        }
+    }
+
+    /**
+     * Descarta los segmentos completos anteriores a la secuencia indicada (retención).
+     * El segmento activo nunca se descarta.
+     * @return el número de segmentos eliminados
+     */
+    public int descartarAnteriores(long secuencia) throws IOException {
+        compactacion.lock();
+        try {
+            List<Segmento> descartados = new ArrayList<>();
+            estructura.writeLock().lock();
+            try {
+                Segmento[] actuales = segmentos;
+                int quedan = 0;
+                while (quedan < actuales.length - 1 && actuales[quedan].base + actuales[quedan].capacidad <= secuencia) {
+                    descartados.add(actuales[quedan++]);
+                }
+                segmentos = Arrays.copyOfRange(actuales, quedan, actuales.length);
+            } finally {
+                estructura.writeLock().unlock();
+            }
+            for (Segmento segmento : descartados) {
+                segmento.log.close();
+                Files.deleteIfExists(archivoLog(segmento.base));
+                Files.deleteIfExists(archivoIndice(segmento.base));
+            }
+            return descartados.size();
+        } finally {
+            compactacion.unlock();
+        }
+    }
+
+    /**
+     * Reescribe los segmentos cerrados que tienen mensajes borrados sin los bytes de esos mensajes.
+     * Las entradas del índice se conservan, así que las secuencias no cambian. Cada segmento se
+     * escribe aparte y se sustituye con renombrados; si el proceso se interrumpe, al abrir se
+     * termina o se descarta la sustitución pendiente.
+     * @return los bytes liberados
+     */
+    public long compactar() throws IOException {
+        compactacion.lock();
+        try {
+            long liberados = 0;
+            Segmento[] actuales = segmentos;
+            for (int s = 0; s < actuales.length - 1; s++) {
+                liberados += compactar(actuales[s]);
+            }
+            return liberados;
+        } finally {
+            compactacion.unlock();
+        }
+    }
+
+    private long compactar(Segmento viejo) throws IOException {
+        boolean pendiente = false;
+        for (int i = 0; i < viejo.cantidad && !pendiente; i++) {
+            pendiente = viejo.borrado(i) && viejo.ocupado(i) > 0;
+        }
+        if (!pendiente) {
+            return 0;
+        }
+        Path logNuevo = Path.of(archivoLog(viejo.base) + COMPACTO);
+        Path indiceNuevo = Path.of(archivoIndice(viejo.base) + COMPACTO);
+        long escritos = 0;
+        try (FileChannel log = FileChannel.open(logNuevo, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+             RandomAccessFile archivoIndice = new RandomAccessFile(indiceNuevo.toFile(), "rw")) {
+            archivoIndice.setLength((long) viejo.capacidad * ENTRADA);
+            MappedByteBuffer indice = archivoIndice.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, (long) viejo.capacidad * ENTRADA);
+            int i = 0;
+            while (i < viejo.cantidad) {
+                if (viejo.borrado(i)) {
+                    indice.putLong(i * ENTRADA, escritos | BORRADO);
+                    indice.putLong(i * ENTRADA + 8, viejo.instante(i));
+                    i++;
+                    continue;
+                }
+                long desde = viejo.desplazamiento(i);
+                while (i < viejo.cantidad && !viejo.borrado(i)) { // Copia de una vez cada tramo conservado
+                    indice.putLong(i * ENTRADA, escritos + viejo.desplazamiento(i) - desde);
+                    indice.putLong(i * ENTRADA + 8, viejo.instante(i));
+                    i++;
+                }
+                long hasta = i < viejo.cantidad ? viejo.desplazamiento(i) : viejo.fin;
+                for (long copiado = 0; copiado < hasta - desde; ) {
+                    copiado += viejo.log.transferTo(desde + copiado, hasta - desde - copiado, log);
+                }
+                escritos += hasta - desde;
+            }
+            log.force(true);
+            indice.force();
+        }
+        estructura.writeLock().lock();
+        try {
+            Files.move(logNuevo, archivoLog(viejo.base), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            Files.move(indiceNuevo, archivoIndice(viejo.base), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            Segmento nuevo = abrirSegmento(viejo.base);
+            Segmento[] actuales = segmentos.clone();
+            actuales[Arrays.asList(actuales).indexOf(viejo)] = nuevo;
+            segmentos = actuales;
+            viejo.log.close();
+        } finally {
+            estructura.writeLock().unlock();
+        }
+        return viejo.fin - escritos;
+    }
+
+    /**
+     * Detiene el hilo de confirmación, lleva a disco lo pendiente y cierra los segmentos.
+     */
+    @Override
+    public void close() throws IOException {
+        escritura.lock();
+        try {
+            if (!abierto) {
+                return;
+            }
+            abierto = false;
+            hayPendientes.signal();
+        } finally {
+            escritura.unlock();
+        }
+        try {
+            confirmador.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        sincronizar();
+        estructura.writeLock().lock();
+        try {
+            for (Segmento segmento : segmentos) {
+                segmento.log.close();
+            }
+        } finally {
+            estructura.writeLock().unlock();
+        }
+        if (errorConfirmacion != null) {
+            throw errorConfirmacion;
+        }
+    }
+
+    /**
+     * Lee las entradas [desde, hasta] de un segmento con una sola lectura del log y descifra
+     * las que no están borradas. Se llama con el bloqueo de lectura de la estructura.
+     */
+    private List<MensajeChat> leer(Segmento segmento, int desde, int hasta) {
+        int cantidadSegmento = segmento.cantidad;
+        hasta = Math.min(hasta, cantidadSegmento - 1);
+        List<MensajeChat> pagina = new ArrayList<>(Math.max(0, hasta - desde + 1));
+        if (desde > hasta) {
+            return pagina;
+        }
+        long inicio = segmento.desplazamiento(desde);
+        long fin = hasta + 1 < cantidadSegmento ? segmento.desplazamiento(hasta + 1) : segmento.fin;
+        ByteBuffer datos = ByteBuffer.allocate((int) (fin - inicio));
+        try {
+            while (datos.hasRemaining()) {
+                if (segmento.log.read(datos, inicio + datos.position()) < 0) {
+                    throw new IOException("Log truncado en el segmento " + segmento.base);
+                }
+            }
+            Cipher descifrador = descifradores.get();
+            for (int i = desde; i <= hasta; i++) {
+                if (segmento.borrado(i)) {
+                    continue;
+                }
+                int posicion = (int) (segmento.desplazamiento(i) - inicio);
+                int longitud = datos.getInt(posicion);
+                long secuencia = segmento.base + i;
+                descifrador.init(Cipher.DECRYPT_MODE, clave, new GCMParameterSpec(TAG * 8, datos.array(), posicion + CABECERA, IV));
+                descifrador.updateAAD(datosAsociados(secuencia));
+                byte[] plano = descifrador.doFinal(datos.array(), posicion + CABECERA + IV, longitud - IV);
+                pagina.add(decodificar(secuencia, plano, segmento.instante(i)));
+            }
+            return pagina;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (GeneralSecurityException e) {
+            throw new UncheckedIOException(new IOException("Historial dañado o clave incorrecta", e));
+        }
+    }
+
+    /**
+     * Abre los segmentos del directorio, termina o descarta compactaciones interrumpidas
+     * y recupera el final del último segmento.
+     */
+    private Segmento[] cargarSegmentos() throws IOException {
+        List<Long> bases = new ArrayList<>();
+        try (Stream<Path> archivos = Files.list(directorio)) {
+            for (Path archivo : (Iterable<Path>) archivos::iterator) {
+                String nombre = archivo.getFileName().toString();
+                if (nombre.endsWith(".idx" + COMPACTO)) {
+                    Path log = Path.of(archivo.toString().replace(".idx" + COMPACTO, ".log" + COMPACTO));
+                    if (Files.exists(log)) {
+                        Files.delete(log); // La sustitución no empezó: se conserva el original
+                        Files.delete(archivo);
+                    } else {
+                        Files.move(archivo, Path.of(archivo.toString().substring(0, archivo.toString().length() - COMPACTO.length())),
+                                StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING); // El log ya se sustituyó
+                    }
+                } else if (nombre.endsWith(".log")) {
+                    bases.add(Long.parseLong(nombre.substring(0, nombre.length() - 4)));
+                }
+            }
+        }
+        bases.sort(null);
+        if (bases.isEmpty()) {
+            bases.add(0L);
+        }
+        Segmento[] cargados = new Segmento[bases.size()];
+        for (int s = 0; s < cargados.length; s++) {
+            cargados[s] = abrirSegmento(bases.get(s));
+        }
+        recuperar(cargados[cargados.length - 1]);
+        return cargados;
+    }
+
+    /**
+     * Abre (o crea) un segmento. Sus entradas se cuentan con una búsqueda binaria sobre el índice.
+     */
+    private Segmento abrirSegmento(long base) throws IOException {
+        FileChannel log = FileChannel.open(archivoLog(base), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        MappedByteBuffer indice;
+        try (RandomAccessFile archivo = new RandomAccessFile(archivoIndice(base).toFile(), "rw")) {
+            if (archivo.length() == 0) {
+                archivo.setLength((long) mensajesPorSegmento * ENTRADA);
+            }
+            indice = archivo.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, archivo.length());
+        }
+        Segmento segmento = new Segmento(base, indice.capacity() / ENTRADA, log, indice);
+        int bajo = 0;
+        int alto = segmento.capacidad;
+        while (bajo < alto) { // Primera entrada vacía (instante cero)
+            int medio = (bajo + alto) >>> 1;
+            if (segmento.instante(medio) != 0) {
+                bajo = medio + 1;
+            } else {
+                alto = medio;
+            }
+        }
+        segmento.cantidad = bajo;
+        segmento.fin = log.size();
+        return segmento;
+    }
+
+    /**
+     * Valida las últimas entradas del segmento activo contra su log, por si el proceso terminó
+     * entre dos force: descarta las entradas sin registro completo y los bytes sin entrada.
+     */
+    private void recuperar(Segmento activo) throws IOException {
+        long tamano = activo.log.size();
+        int primera = Math.max(0, activo.cantidad - VENTANA_RECUPERACION);
+        long esperado = primera < activo.cantidad ? activo.desplazamiento(primera) : 0;
+        ByteBuffer longitud = ByteBuffer.allocate(CABECERA);
+        int validas = primera;
+        while (validas < activo.cantidad && activo.instante(validas) != 0 && activo.desplazamiento(validas) == esperado) {
+            if (esperado + CABECERA > tamano) {
+                break;
+            }
+            longitud.clear();
+            while (longitud.hasRemaining() && activo.log.read(longitud, esperado + longitud.position()) >= 0) {
+                // Lee la cabecera completa
+            }
+            long ocupado = CABECERA + (long) longitud.getInt(0);
+            if (ocupado < CABECERA + IV + 4 + TAG || esperado + ocupado > tamano) {
+                break;
+            }
+            esperado += ocupado;
+            validas++;
+        }
+        for (int i = validas; i < Math.min(activo.capacidad, activo.cantidad + VENTANA_RECUPERACION); i++) {
+            if (activo.instante(i) != 0) {
+                activo.escribirEntrada(i, 0, 0); // Entradas sin registro, incluidas las escritas fuera de orden
+            }
+        }
+        activo.log.truncate(esperado);
+        activo.cantidad = validas;
+        activo.fin = esperado;
+    }
+
+    private static long siguiente(Segmento[] actuales) {
+        Segmento activo = actuales[actuales.length - 1];
+        return activo.base + activo.cantidad;
+    }
+
+    /**
+     * Devuelve la posición del segmento que contiene la secuencia.
+     */
+    private static int buscar(Segmento[] actuales, long secuencia) {
+        int bajo = 0;
+        int alto = actuales.length - 1;
+        while (bajo < alto) {
+            int medio = (bajo + alto + 1) >>> 1;
+            if (actuales[medio].base <= secuencia) {
+                bajo = medio;
+            } else {
+                alto = medio - 1;
+            }
+        }
+        return bajo;
+    }
+
+    private Path archivoLog(long base) {
+        return directorio.resolve(String.format("%020d.log", base));
+    }
+
+    private Path archivoIndice(long base) {
+        return directorio.resolve(String.format("%020d.idx", base));
+    }
+
+    private static byte[] datosAsociados(long secuencia) {
+        return ByteBuffer.allocate(8).putLong(secuencia).array();
+    }
+
+    /**
+     * Texto plano del registro: [longitud del autor, o -1 si no hay][autor][texto], en UTF-8.
+     */
+    private static byte[] codificar(String autor, String texto) {
+        byte[] bytesAutor = autor != null ? autor.getBytes(StandardCharsets.UTF_8) : new byte[0];
+        byte[] bytesTexto = texto.getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.allocate(4 + bytesAutor.length + bytesTexto.length)
+                .putInt(autor != null ? bytesAutor.length : -1).put(bytesAutor).put(bytesTexto).array();
+    }
+
+    private static MensajeChat decodificar(long secuencia, byte[] plano, long instante) {
+        int longitudAutor = ByteBuffer.wrap(plano).getInt();
+        String autor = longitudAutor >= 0 ? new String(plano, 4, longitudAutor, StandardCharsets.UTF_8) : null;
+        int inicioTexto = 4 + Math.max(0, longitudAutor);
+        return new MensajeChat(secuencia, autor, new String(plano, inicioTexto, plano.length - inicioTexto, StandardCharsets.UTF_8), instante);
+    }
+
+    private static Cipher nuevoCipher() {
+        try {
+            return Cipher.getInstance(TRANSFORMACION);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("AES-GCM no disponible", e);
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package util;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+
+/**
+ * Un {@link RegistroMensajes} por par en una carpeta, cada uno en su subcarpeta (usuario local y par)
+ * con el secreto del par en el archivo {@value #ARCHIVO_SECRETO}, con permisos solo para el propietario.
+ */
+public class RegistrosPorPar implements HistorialesPorPar {
+
+    public static final String ARCHIVO_SECRETO = "secreto-par"; // Secreto acordado con el par en la primera conversación
+
+    private final Path directorio; // Carpeta con una subcarpeta por par
+    private final String nombreLocal; // Usuario local, parte del nombre de cada subcarpeta
+
+    public RegistrosPorPar(Path directorio, String nombreLocal) {
+        this.directorio = directorio;
+        this.nombreLocal = nombreLocal;
+    }
+
+    @Override
+    public byte[] secreto(String par) throws IOException {
+        Path archivo = carpeta(par).resolve(ARCHIVO_SECRETO);
+        return Files.exists(archivo) ? Files.readAllBytes(archivo) : null;
+    }
+
+    @Override
+    public RegistroMensajes abrir(String par, byte[] secreto) throws IOException {
+        Path carpeta = carpeta(par);
+        Path archivo = carpeta.resolve(ARCHIVO_SECRETO);
+        if (Files.notExists(archivo)) {
+            if (Files.exists(carpeta)) {
+                throw new IOException("El historial de " + carpeta + " no está ligado a ningún par; muévelo para empezar otro");
+            }
+            Files.createDirectories(carpeta);
+            if (carpeta.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+                Files.createFile(archivo, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+            } else {
+                Files.createFile(archivo);
+            }
+            Files.write(archivo, secreto);
+        }
+        return RegistroMensajes.abrir(carpeta);
+    }
+
+    private Path carpeta(String par) {
+        return directorio.resolve((nombreLocal + "-" + par).replaceAll("[^\\p{L}\\p{N}._-]", "_"));
+    }
+}
@@ -0,0 +1,288 @@
+package util;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Resumen de un historial para compararlo con el de un par ({@link SincronizacionHistorial}): un árbol
+ * de dieciséis ramas en el que cada nodo guarda cuántos mensajes hay debajo y la suma de sus huellas.
+ *
+ * La huella de un mensaje depende solo de su autor y su texto, porque el instante no coincide entre los
+ * pares: cada uno guarda el mensaje cuando lo escribe o cuando lo recibe. Los niveles de arriba parten
+ * el tiempo en cubetas de {@link #ANCHO_CUBETA} ms y los de abajo reparten cada cubeta por los primeros
+ * bits de la huella, así que un mensaje cae en la misma hoja en los dos historiales salvo que su
+ * instante quede a los dos lados del borde de una cubeta. Como el resumen de un nodo es una suma, no
+ * depende del orden en que llegaron los mensajes y añadir uno solo toca un nodo por nivel.
+ *
+ * El árbol vive en memoria y se construye leyendo el historial la primera vez que se compara; después
+ * se mantiene con {@link #anotar}. Los avisos del sistema (sin autor) son locales y no entran en él.
+ */
+public class ResumenHistorial {
+
+    public static final long ANCHO_CUBETA = 1L << 26; // Milisegundos de cada cubeta de tiempo (unas 18,6 horas)
+    public static final long MARGEN = 5 * 60_000; // Diferencia máxima entre los instantes de un mismo mensaje en los dos pares
+    static final int NIVELES = 7; // Niveles sobre las hojas; la raíz es la clave 0 del nivel NIVELES
+    static final int BITS_RAMA = 4; // Dieciséis hijos por nodo
+    static final int RAMAS = 1 << BITS_RAMA;
+    private static final int BITS_HUELLA = 12; // Bits de la huella que reparten cada cubeta entre sus hojas
+    private static final long ULTIMA_CUBETA = (1L << (NIVELES * BITS_RAMA - BITS_HUELLA)) - 1; // Hasta el año 2109
+    private static final int PAGINA = 4096; // Mensajes que se leen del historial de una vez al ponerse al día
+
+    private final ProveedorHistorial historial;
+    private final List<Map<Long, Nodo>> niveles = new ArrayList<>(); // Nodos de cada nivel por clave; en el 0, las hojas
+    private long hasta; // Las secuencias por debajo de esta ya están en el árbol
+    private boolean iniciado; // Ya se empezó a leer el historial; desde entonces se anotan los añadidos
+    private long mensajes; // Mensajes en el árbol
+
+    /**
+     * Mensajes y suma de las huellas bajo un nodo.
+     */
+    private static class Nodo {
+        int cantidad;
+        long suma;
+    }
+
+    /**
+     * Nodo del nivel 0, con la secuencia, la huella y el instante de cada uno de sus mensajes.
+     */
+    private static final class Hoja extends Nodo {
+        long[] secuencias = new long[4];
+        long[] huellas = new long[4];
+        long[] instantes = new long[4];
+
+        /**
+         * Guarda los datos del mensaje en la posición {@code cantidad}; quien llama la incrementa.
+         */
+        void agregar(long secuencia, long huella, long instante) {
+            if (cantidad == secuencias.length) {
+                secuencias = Arrays.copyOf(secuencias, cantidad * 2);
+                huellas = Arrays.copyOf(huellas, cantidad * 2);
+                instantes = Arrays.copyOf(instantes, cantidad * 2);
+            }
+            secuencias[cantidad] = secuencia;
+            huellas[cantidad] = huella;
+            instantes[cantidad] = instante;
+        }
+    }
+
+    /**
+     * Prepara el resumen de un historial; no lee nada hasta {@link #actualizar()}.
+     */
+    public ResumenHistorial(ProveedorHistorial historial) {
+        this.historial = historial;
+        for (int nivel = 0; nivel <= NIVELES; nivel++) {
+            niveles.add(new HashMap<>());
+        }
+    }
+
+    public ProveedorHistorial getHistorial() {
+        return historial;
+    }
+
+    /**
+     * Incluye un mensaje recién añadido al historial. Si el árbol aún no se construyó, o el mensaje no es
+     * el siguiente que le falta, no hace nada: lo recogerá la próxima {@link #actualizar()}.
+     */
+    public synchronized void anotar(MensajeChat mensaje) {
+        if (iniciado && mensaje.secuencia() == hasta) {
+            sumar(mensaje);
+            hasta++;
+        }
+    }
+
+    /**
+     * Guarda en el historial un mensaje que llegó del par con su instante de origen y lo incluye en el árbol.
+     */
+    public MensajeChat importar(String autor, String texto, long instante) {
+        MensajeChat mensaje = historial.agregar(autor, texto, instante);
+        anotar(mensaje);
+        return mensaje;
+    }
+
+    /**
+     * Lee del historial los mensajes que aún no están en el árbol. La primera vez lo recorre entero;
+     * el resto del tiempo solo encuentra lo que {@link #anotar} no llegó a ver.
+     */
+    public void actualizar() {
+        synchronized (this) {
+            iniciado = true;
+        }
+        while (true) {
+            long desde;
+            synchronized (this) {
+                desde = hasta;
+            }
+            List<MensajeChat> pagina = historial.posteriores(desde - 1, PAGINA);
+            synchronized (this) {
+                for (MensajeChat mensaje : pagina) {
+                    if (mensaje.secuencia() >= hasta) {
+                        sumar(mensaje);
+                        hasta = mensaje.secuencia() + 1;
+                    }
+                }
+            }
+            if (pagina.size() < PAGINA) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Devuelve los mensajes que hay en el árbol.
+     */
+    public synchronized long getMensajes() {
+        return mensajes;
+    }
+
+    /**
+     * Indica si un nodo propio tiene la cantidad y la suma dadas (las de un nodo del par).
+     */
+    synchronized boolean igual(int nivel, long clave, int cantidad, long suma) {
+        Nodo nodo = niveles.get(nivel).get(clave);
+        return nodo != null ? nodo.cantidad == cantidad && nodo.suma == suma : cantidad == 0;
+    }
+
+    /**
+     * Escribe los hijos no vacíos de un nodo: [hijos]([rama][cantidad:varint][suma:long])*.
+     */
+    synchronized void escribirHijos(int nivel, long clave, ByteBuffer destino) {
+        Map<Long, Nodo> hijos = niveles.get(nivel - 1);
+        int posicion = destino.position();
+        destino.put((byte) 0);
+        int escritos = 0;
+        for (int rama = 0; rama < RAMAS; rama++) {
+            Nodo hijo = hijos.get(clave << BITS_RAMA | rama);
+            if (hijo != null) {
+                destino.put((byte) rama);
+                FormatoTrama.escribirVarint(destino, hijo.cantidad);
+                destino.putLong(hijo.suma);
+                escritos++;
+            }
+        }
+        destino.put(posicion, (byte) escritos);
+    }
+
+    /**
+     * Escribe la huella y el instante de los mensajes de una hoja anteriores a {@code limite}:
+     * [n:varint]([huella:long][instante:long])*. Si no caben todos, escribe los primeros.
+     * @return false si la hoja no cabía entera
+     */
+    synchronized boolean escribirHuellas(long clave, long limite, ByteBuffer destino) {
+        Hoja hoja = (Hoja) niveles.get(0).get(clave);
+        int total = 0;
+        for (int i = 0; hoja != null && i < hoja.cantidad; i++) {
+            if (hoja.secuencias[i] < limite) {
+                total++;
+            }
+        }
+        int escritos = Math.min(total, (destino.remaining() - 5) / 16);
+        FormatoTrama.escribirVarint(destino, escritos);
+        for (int i = 0, n = 0; n < escritos; i++) {
+            if (hoja.secuencias[i] < limite) {
+                destino.putLong(hoja.huellas[i]).putLong(hoja.instantes[i]);
+                n++;
+            }
+        }
+        return escritos == total;
+    }
+
+    /**
+     * Busca el mensaje con esa huella y ese instante exactos.
+     * @return su secuencia, o -1 si no está o no es anterior a {@code limite}
+     */
+    synchronized long buscar(long huella, long instante, long limite) {
+        Hoja hoja = (Hoja) niveles.get(0).get(clave(instante, huella));
+        for (int i = 0; hoja != null && i < hoja.cantidad; i++) {
+            if (hoja.huellas[i] == huella && hoja.instantes[i] == instante && hoja.secuencias[i] < limite) {
+                return hoja.secuencias[i];
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Compara los mensajes de unas hojas del par con los propios: uno está si aquí hay otro con su
+     * huella cuyo instante no se aleja más de {@link #MARGEN}, y cada mensaje propio solo sirve para uno.
+     * @return las posiciones, en los arreglos, de los mensajes del par que faltan aquí
+     */
+    synchronized List<Integer> faltantes(long[] huellas, long[] instantes, int cantidad) {
+        Set<Long> usados = new HashSet<>(); // Secuencias propias ya emparejadas
+        List<Integer> faltan = new ArrayList<>();
+        for (int i = 0; i < cantidad; i++) {
+            if (!emparejar(huellas[i], instantes[i], usados)) {
+                faltan.add(i);
+            }
+        }
+        return faltan;
+    }
+
+    private boolean emparejar(long huella, long instante, Set<Long> usados) {
+        long primera = cubeta(instante - MARGEN);
+        long ultima = cubeta(instante + MARGEN);
+        for (long cubeta = primera; cubeta <= ultima; cubeta++) {
+            Hoja hoja = (Hoja) niveles.get(0).get(cubeta << BITS_HUELLA | huella >>> (Long.SIZE - BITS_HUELLA));
+            for (int i = 0; hoja != null && i < hoja.cantidad; i++) {
+                if (hoja.huellas[i] == huella && Math.abs(hoja.instantes[i] - instante) <= MARGEN && usados.add(hoja.secuencias[i])) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Suma un mensaje a su hoja y a todos sus antecesores. Se llama con el bloqueo del resumen.
+     */
+    private void sumar(MensajeChat mensaje) {
+        if (mensaje.autor() == null) {
+            return;
+        }
+        long huella = huella(mensaje.autor(), mensaje.texto());
+        long clave = clave(mensaje.instante(), huella);
+        Hoja hoja = (Hoja) niveles.get(0).computeIfAbsent(clave, c -> new Hoja());
+        hoja.agregar(mensaje.secuencia(), huella, mensaje.instante());
+        for (int nivel = 0; nivel <= NIVELES; nivel++) {
+            Nodo nodo = nivel == 0 ? hoja : niveles.get(nivel).computeIfAbsent(clave >>> (nivel * BITS_RAMA), c -> new Nodo());
+            nodo.cantidad++;
+            nodo.suma += huella;
+        }
+        mensajes++;
+    }
+
+    /**
+     * Devuelve la hoja de un mensaje: su cubeta de tiempo seguida de los primeros bits de su huella.
+     */
+    static long clave(long instante, long huella) {
+        return cubeta(instante) << BITS_HUELLA | huella >>> (Long.SIZE - BITS_HUELLA);
+    }
+
+    private static long cubeta(long instante) {
+        return Math.min(Math.max(0, Math.floorDiv(instante, ANCHO_CUBETA)), ULTIMA_CUBETA);
+    }
+
+    /**
+     * Huella de 64 bits del autor y el texto: FNV-1a sobre sus caracteres y una mezcla final para
+     * repartir los bits altos, que eligen la hoja. No es criptográfica: solo se sincroniza con un par
+     * que probó el secreto del historial ({@link HistorialesPorPar}), y una colisión solo hace que un
+     * mensaje se dé por presente y no se traiga.
+     */
+    static long huella(String autor, String texto) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < autor.length(); i++) {
+            h = (h ^ autor.charAt(i)) * 0x100000001b3L;
+        }
+        h = (h ^ 0xFFFF) * 0x100000001b3L; // Separa el autor del texto
+        for (int i = 0; i < texto.length(); i++) {
+            h = (h ^ texto.charAt(i)) * 0x100000001b3L;
+        }
+        h = (h ^ (h >>> 30)) * 0xbf58476d1ce4e5b9L;
+        h = (h ^ (h >>> 27)) * 0x94d049bb133111ebL;
+        return h ^ (h >>> 31);
+    }
+}
@@ -0,0 +1,282 @@
+package util;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Rotación de las claves de una sesión sin detener el envío. Cada sentido de la conexión tiene su
+ * propia cadena de claves: la época 0 usa la clave del intercambio y la clave de la época n+1 se
+ * deriva de la de la época n con HKDF-Expand sobre HMAC-SHA256, como el KeyUpdate de TLS 1.3.
+ * La clave siguiente se calcula en segundo plano en cuanto empieza una época, y el emisor la adopta
+ * al superar un umbral de bytes, de tramas o de tiempo ({@link Umbrales}). Las claves que ya no se
+ * necesitan se olvidan, así que quien robe la clave actual no descifra las épocas antiguas.
+ *
+ * Cada trama cifrada lleva en sus banderas ({@link FormatoTrama#EPOCA}) los dos bits bajos de su
+ * época. El receptor conserva las claves de la época anterior, la actual y la siguiente, y avanza al
+ * ver la primera trama de la siguiente: las que se cifraron con la clave vieja y aún esperaban en la
+ * cola (por ejemplo, bloques masivos sin crédito) se siguen descifrando. Para que nunca llegue una
+ * trama de una época que el receptor ya olvidó, el emisor no avanza mientras quede sin escribir
+ * alguna trama de la época anterior a la actual.
+ *
+ * Solo se rota hacia un par que anunció {@link #CAPACIDAD_ROTACION}; a los demás se les envía
+ * siempre con la época 0, como antes.
+ */
+public class RotacionClaves {
+
+    public static final String PROPIEDAD = "chat.rotacion"; // Umbrales, por ejemplo "bytes:1073741824,tramas:16777216,segundos:3600"
+    public static final byte CAPACIDAD_ROTACION = 2; // Bit de CAPACIDADES: acepta tramas de otras épocas
+    private static final int ETIQUETAS = 4; // Valores de la etiqueta de época de la cabecera
+    private static final String HMAC = "HmacSHA256";
+    private static final byte[] INFO_INICIADOR = "chat rotacion iniciador".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] INFO_ACEPTANTE = "chat rotacion aceptante".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * Cuándo deja de usarse la clave de una época para enviar: lo primero que se alcance.
+     * Con IVs de contador no hay riesgo de repetir un IV, pero los límites de uso de AES-GCM
+     * recomiendan no cifrar demasiados bloques con la misma clave.
+     * @param bytes bytes de tramas cifradas con la clave
+     * @param tramas tramas cifradas con la clave
+     * @param tiempo tiempo desde que la clave empezó a usarse
+     */
+    public record Umbrales(long bytes, long tramas, Duration tiempo) {
+
+        public static final Umbrales NUNCA = new Umbrales(Long.MAX_VALUE, Long.MAX_VALUE, Duration.ofNanos(Long.MAX_VALUE));
+
+        private static final Umbrales porDefecto = desdePropiedad(System.getProperty(PROPIEDAD));
+
+        /**
+         * Devuelve 1 GiB, 2^24 tramas y una hora, con los cambios de la propiedad {@value RotacionClaves#PROPIEDAD}.
+         */
+        public static Umbrales getPorDefecto() {
+            return porDefecto;
+        }
+
+        private static Umbrales desdePropiedad(String valor) {
+            Umbrales umbrales = new Umbrales(1L << 30, 1L << 24, Duration.ofHours(1));
+            if (valor == null || valor.isBlank()) {
+                return umbrales;
+            }
+            for (String par : valor.split(",")) {
+                String[] partes = par.trim().split(":");
+                if (partes.length != 2) {
+                    throw new IllegalArgumentException("Entrada inválida en " + PROPIEDAD + ": " + par);
+                }
+                long cantidad = Long.parseLong(partes[1].trim());
+                umbrales = switch (partes[0].trim()) {
+                    case "bytes" -> new Umbrales(cantidad, umbrales.tramas, umbrales.tiempo);
+                    case "tramas" -> new Umbrales(umbrales.bytes, cantidad, umbrales.tiempo);
+                    case "segundos" -> new Umbrales(umbrales.bytes, umbrales.tramas, Duration.ofSeconds(cantidad));
+                    default -> throw new IllegalArgumentException("Umbral desconocido en " + PROPIEDAD + ": " + partes[0]);
+                };
+            }
+            return umbrales;
+        }
+    }
+
+    /**
+     * Clave de una época de uno de los sentidos y la derivación, quizá en curso, de la siguiente.
+     */
+    static final class Epoca {
+        private final long numero;
+        private final ContextoCifrado contexto;
+        private final byte[] info; // Etiqueta HKDF del sentido
+        private final boolean iniciador;
+        private final long inicio = System.nanoTime();
+        private final AtomicLong bytes = new AtomicLong(); // Cifrados con esta clave (solo en emisión)
+        private final AtomicLong tramas = new AtomicLong();
+        private byte[] clave; // Se olvida al derivar la siguiente
+        private CompletableFuture<Epoca> siguiente; // (protegido por this)
+
+        private Epoca(long numero, byte[] clave, ContextoCifrado contexto, byte[] info, boolean iniciador) {
+            this.numero = numero;
+            this.clave = clave;
+            this.contexto = contexto;
+            this.info = info;
+            this.iniciador = iniciador;
+        }
+
+        /**
+         * Empieza a derivar en segundo plano la clave de la época siguiente, si no se había empezado.
+         */
+        synchronized CompletableFuture<Epoca> derivarSiguiente() {
+            if (siguiente == null) {
+                byte[] actual = clave;
+                clave = null;
+                siguiente = CompletableFuture.supplyAsync(() -> {
+                    long inicioDerivacion = Metricas.reloj();
+                    byte[] nueva = derivar(actual, info);
+                    Metricas.ROTACION.registrarDesde(inicioDerivacion);
+                    return new Epoca(numero + 1, nueva, new ContextoCifrado(nueva, iniciador, contexto.getSuite()), info, iniciador);
+                }, ModoEjecucion.HILOS_VIRTUALES.getEjecutor()); // Con una CPU, el pool común crearía un hilo por tarea
+            }
+            return siguiente;
+        }
+
+        ContextoCifrado getContexto() {
+            return contexto;
+        }
+
+        /**
+         * Devuelve la etiqueta de la época tal como va en las banderas de la cabecera.
+         */
+        byte getBanderas() {
+            return (byte) ((numero % ETIQUETAS) << 1);
+        }
+
+        private int etiqueta() {
+            return (int) (numero % ETIQUETAS);
+        }
+
+        private boolean agotada(int longitud, Umbrales umbrales) {
+            return tramas.incrementAndGet() >= umbrales.tramas()
+                    || bytes.addAndGet(longitud) >= umbrales.bytes()
+                    || System.nanoTime() - inicio >= umbrales.tiempo().toNanos();
+        }
+    }
+
+    private volatile Umbrales umbrales;
+    private volatile boolean permitida; // El par anunció que acepta tramas de otras épocas
+    private volatile Epoca emision; // Época con la que se cifra lo que se envía
+    private final AtomicInteger[] sinEscribir = new AtomicInteger[ETIQUETAS]; // Tramas cifradas aún no escritas, por etiqueta
+    private Epoca recepcion; // Época actual del par (solo el hilo lector)
+    private Epoca anteriorRecepcion; // Época anterior del par, para las tramas que aún estaban en vuelo (solo el hilo lector)
+    private volatile long epocaRecepcion; // Número de la época de recepción, para consultarlo desde otros hilos
+
+    /**
+     * Crea las cadenas de ambos sentidos a partir de la clave acordada.
+     * @param inicial contexto de la época 0, compartido por los dos sentidos
+     * @param clave clave acordada, de la que se derivan las siguientes
+     * @param iniciador true en el extremo que abrió la conexión
+     */
+    public RotacionClaves(ContextoCifrado inicial, byte[] clave, boolean iniciador, Umbrales umbrales) {
+        this.umbrales = umbrales;
+        this.emision = new Epoca(0, clave, inicial, iniciador ? INFO_INICIADOR : INFO_ACEPTANTE, iniciador);
+        this.recepcion = new Epoca(0, clave, inicial, iniciador ? INFO_ACEPTANTE : INFO_INICIADOR, iniciador);
+        for (int i = 0; i < ETIQUETAS; i++) {
+            sinEscribir[i] = new AtomicInteger();
+        }
+    }
+
+    /**
+     * Habilita la rotación al saber que el par la acepta, y empieza a derivar las primeras claves siguientes.
+     */
+    public void permitir() {
+        emision.derivarSiguiente();
+        recepcion.derivarSiguiente();
+        permitida = true;
+    }
+
+    /**
+     * Cambia los umbrales; se aplican desde la próxima trama.
+     */
+    public void setUmbrales(Umbrales umbrales) {
+        this.umbrales = umbrales;
+    }
+
+    /**
+     * Devuelve la época con la que cifrar una trama de {@code longitud} bytes y la anota como
+     * pendiente de escribir hasta {@link #terminada(byte)}. Si la época supera algún umbral y ya
+     * se puede, las tramas siguientes pasan a la siguiente; esta nunca espera.
+     */
+    Epoca emitir(int longitud) {
+        Epoca actual;
+        while (true) {
+            actual = emision;
+            AtomicInteger pendientes = sinEscribir[actual.etiqueta()];
+            pendientes.incrementAndGet();
+            if (emision == actual) {
+                break;
+            }
+            pendientes.decrementAndGet(); // Otro hilo avanzó mientras tanto
+        }
+        if (permitida && actual.agotada(longitud, umbrales)) {
+            avanzar(actual);
+        }
+        return actual;
+    }
+
+    private void avanzar(Epoca actual) {
+        CompletableFuture<Epoca> siguiente = actual.derivarSiguiente();
+        int anterior = (actual.etiqueta() + ETIQUETAS - 1) % ETIQUETAS;
+        if (!siguiente.isDone() || sinEscribir[anterior].get() > 0) {
+            return; // Se reintenta con la próxima trama
+        }
+        synchronized (this) {
+            if (emision != actual || sinEscribir[anterior].get() > 0) {
+                return;
+            }
+            Epoca nueva = siguiente.join();
+            nueva.derivarSiguiente();
+            emision = nueva;
+        }
+    }
+
+    /**
+     * Anota que una trama cifrada se escribió o se descartó.
+     * @param banderas banderas de su cabecera
+     */
+    void terminada(byte banderas) {
+        sinEscribir[(banderas & FormatoTrama.EPOCA) >>> 1].decrementAndGet();
+    }
+
+    /**
+     * Devuelve el contexto con el que descifrar una trama del par según la etiqueta de sus banderas,
+     * y avanza de época si es la primera de la siguiente. Solo debe llamarse desde el hilo lector.
+     * @throws IOException si la etiqueta no es de la época anterior, la actual ni la siguiente
+     */
+    ContextoCifrado recibir(byte banderas) throws IOException {
+        int etiqueta = (banderas & FormatoTrama.EPOCA) >>> 1;
+        Epoca actual = recepcion;
+        if (etiqueta == actual.etiqueta()) {
+            return actual.contexto;
+        }
+        if (anteriorRecepcion != null && etiqueta == anteriorRecepcion.etiqueta()) {
+            return anteriorRecepcion.contexto;
+        }
+        if (etiqueta != (actual.etiqueta() + 1) % ETIQUETAS) {
+            throw new IOException("Trama con etiqueta de época " + etiqueta + " durante la época " + actual.numero);
+        }
+        Epoca nueva = actual.derivarSiguiente().join(); // Normalmente ya está derivada
+        nueva.derivarSiguiente();
+        anteriorRecepcion = actual;
+        recepcion = nueva;
+        epocaRecepcion = nueva.numero;
+        return nueva.contexto;
+    }
+
+    /**
+     * Devuelve el número de la época con la que se envía.
+     */
+    public long getEpocaEmision() {
+        return emision.numero;
+    }
+
+    /**
+     * Devuelve el número de la época más reciente recibida del par.
+     */
+    public long getEpocaRecepcion() {
+        return epocaRecepcion;
+    }
+
+    /**
+     * Devuelve la clave de la época siguiente: HKDF-Expand(clave, info, 32), que con una sola
+     * salida de 32 bytes es HMAC(clave, info | 0x01).
+     */
+    static byte[] derivar(byte[] clave, byte[] info) {
+        try {
+            Mac mac = Mac.getInstance(HMAC);
+            mac.init(new SecretKeySpec(clave, HMAC));
+            mac.update(info);
+            return mac.doFinal(new byte[] {1});
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HMAC-SHA256 no disponible", e);
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package util;
+
+import java.time.Duration;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Rueda de temporizadores (hashed timing wheel) con un solo hilo para todas las sesiones del proceso.
+ * El tiempo avanza en tics; cada temporizador cuelga de la ranura de su tic de vencimiento junto con
+ * las vueltas que le faltan, así que programarlo y cancelarlo cuesta lo mismo con diez temporizadores
+ * que con cien mil, y el hilo solo recorre en cada tic los de una ranura. A cambio, la precisión es de
+ * un tic. Las tareas corren en el hilo de la rueda y deben ser breves: encolar una trama, no esperarla.
+ */
+public final class RuedaTemporizadores implements AutoCloseable {
+
+    public static final Duration TIC_POR_DEFECTO = Duration.ofMillis(100);
+    public static final int RANURAS_POR_DEFECTO = 512; // Una vuelta de la rueda compartida son 51,2 s
+
+    private static final Bitacora bitacora = Bitacora.de(RuedaTemporizadores.class);
+
+    private static final class Compartida {
+        private static final RuedaTemporizadores RUEDA = new RuedaTemporizadores("temporizadores", TIC_POR_DEFECTO, RANURAS_POR_DEFECTO);
+    }
+
+    /**
+     * Tarea programada en la rueda. Solo el hilo de la rueda toca sus campos, salvo la cancelación.
+     */
+    public static final class Temporizador {
+        private final Runnable tarea;
+        private final long periodo; // Tics entre ejecuciones; 0 si solo se ejecuta una vez
+        private final long retardo; // Tics hasta la primera ejecución
+        private long vueltas; // Vueltas completas que faltan cuando el hilo pasa por su ranura
+        private Temporizador siguiente; // Siguiente de la misma ranura
+        private volatile boolean cancelado;
+
+        private Temporizador(Runnable tarea, long retardo, long periodo) {
+            this.tarea = tarea;
+            this.retardo = retardo;
+            this.periodo = periodo;
+        }
+
+        /**
+         * Evita las ejecuciones siguientes; la rueda lo suelta la próxima vez que pasa por su ranura.
+         */
+        public void cancelar() {
+            cancelado = true;
+        }
+
+        public boolean isCancelado() {
+            return cancelado;
+        }
+    }
+
+    private final long ticNanos;
+    private final Temporizador[] ranuras; // Primer temporizador de cada ranura (solo del hilo de la rueda)
+    private final int mascara;
+    private final ConcurrentLinkedQueue<Temporizador> nuevos = new ConcurrentLinkedQueue<>(); // Programados desde otros hilos
+    private final LongAdder ejecutadas = new LongAdder();
+    private final Thread hilo;
+    private long tic; // Tics transcurridos (solo del hilo de la rueda)
+    private volatile boolean cerrada;
+
+    /**
+     * Crea la rueda y arranca su hilo.
+     * @param tic duración de un tic, que es la precisión de los temporizadores
+     * @param ranuras ranuras de la rueda; se redondea a una potencia de dos
+     */
+    public RuedaTemporizadores(String nombre, Duration tic, int ranuras) {
+        if (tic.toNanos() <= 0 || ranuras < 1) {
+            throw new IllegalArgumentException("Rueda de temporizadores sin tic o sin ranuras");
+        }
+        this.ticNanos = tic.toNanos();
+        int tamano = Integer.highestOneBit(ranuras);
+        this.ranuras = new Temporizador[tamano < ranuras ? tamano << 1 : tamano];
+        this.mascara = this.ranuras.length - 1;
+        this.hilo = Thread.ofPlatform().daemon().name(nombre).start(this::girar);
+    }
+
+    /**
+     * Devuelve la rueda común del proceso, con tics de {@link #TIC_POR_DEFECTO}. Su hilo no se detiene.
+     */
+    public static RuedaTemporizadores getCompartida() {
+        return Compartida.RUEDA;
+    }
+
+    /**
+     * Ejecuta una tarea una vez pasado el retardo, redondeado a tics.
+     */
+    public Temporizador programar(Duration retardo, Runnable tarea) {
+        return agregar(new Temporizador(tarea, tics(retardo), 0));
+    }
+
+    /**
+     * Ejecuta una tarea cada {@code periodo}, redondeado a tics, empezando un periodo después.
+     */
+    public Temporizador programarPeriodica(Duration periodo, Runnable tarea) {
+        long tics = tics(periodo);
+        return agregar(new Temporizador(tarea, tics, tics));
+    }
+
+    /**
+     * Devuelve las tareas ejecutadas desde que se creó la rueda.
+     */
+    public long getEjecutadas() {
+        return ejecutadas.sum();
+    }
+
+    /**
+     * Detiene el hilo de la rueda; los temporizadores pendientes no se ejecutan.
+     */
+    @Override
+    public void close() {
+        cerrada = true;
+        LockSupport.unpark(hilo);
+    }
+
+    private Temporizador agregar(Temporizador temporizador) {
+        if (cerrada) {
+            throw new IllegalStateException("La rueda de temporizadores está cerrada");
+        }
+        nuevos.add(temporizador);
+        return temporizador;
+    }
+
+    private long tics(Duration duracion) {
+        return Math.max(1, (duracion.toNanos() + ticNanos - 1) / ticNanos);
+    }
+
+    /**
+     * Bucle del hilo de la rueda: espera al tic siguiente, coloca los temporizadores nuevos y ejecuta
+     * los que vencen en la ranura del tic. Los tics se cuentan desde el arranque, de modo que una
+     * ranura lenta retrasa a las siguientes pero no acumula deriva.
+     */
+    private void girar() {
+        long inicio = System.nanoTime();
+        while (!cerrada) {
+            long espera;
+            while ((espera = inicio + (tic + 1) * ticNanos - System.nanoTime()) > 0 && !cerrada) {
+                LockSupport.parkNanos(this, espera);
+            }
+            tic++;
+            Temporizador nuevo;
+            while ((nuevo = nuevos.poll()) != null) {
+                if (!nuevo.cancelado) {
+                    colocar(nuevo, nuevo.retardo);
+                }
+            }
+            int ranura = (int) (tic & mascara);
+            Temporizador actual = ranuras[ranura];
+            ranuras[ranura] = null; // Los que no vencen vuelven a colgarse de la ranura
+            while (actual != null) {
+                Temporizador siguiente = actual.siguiente;
+                if (actual.cancelado) {
+                    actual.siguiente = null;
+                } else if (actual.vueltas > 0) {
+                    actual.vueltas--;
+                    actual.siguiente = ranuras[ranura];
+                    ranuras[ranura] = actual;
+                } else {
+                    ejecutar(actual);
+                }
+                actual = siguiente;
+            }
+        }
+    }
+
+    private void ejecutar(Temporizador temporizador) {
+        try {
+            temporizador.tarea.run();
+        } catch (RuntimeException e) {
+            bitacora.error("Error en una tarea de la rueda de temporizadores", e);
+        }
+        ejecutadas.increment();
+        if (temporizador.periodo > 0 && !temporizador.cancelado) {
+            colocar(temporizador, temporizador.periodo);
+        } else {
+            temporizador.siguiente = null;
+        }
+    }
+
+    /**
+     * Cuelga un temporizador de la ranura del tic en que vence, {@code retardo} tics después del actual.
+     */
+    private void colocar(Temporizador temporizador, long retardo) {
+        int ranura = (int) ((tic + retardo) & mascara);
+        temporizador.vueltas = (retardo - 1) / ranuras.length;
+        temporizador.siguiente = ranuras[ranura];
+        ranuras[ranura] = temporizador;
+    }
+}
@@ -0,0 +1,295 @@
+package util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Sala de chat de grupo sobre las sesiones par a par que este nodo ya tiene con cada miembro.
+ * Cada miembro tiene una clave de emisor AES-GCM y la reparte a los demás por esas sesiones, en
+ * una trama {@link TipoTrama#CLAVE_GRUPO} cifrada con la clave de cada una. Un mensaje se cifra una
+ * sola vez con la clave de emisor y la misma trama {@link TipoTrama#MENSAJE_GRUPO} se encola en la
+ * sesión de cada miembro, en lugar de cifrarlo N veces con N claves de sesión.
+ *
+ * Cuando entra o sale un miembro, la sala genera una clave de emisor nueva y la reparte a los
+ * miembros de ese momento: quien salió no lee lo que se escriba después y quien entra no lee lo
+ * anterior. Cada miembro hace lo mismo en su propia sala al cambiar su lista. Las claves recibidas
+ * se guardan por sesión y id, así que la clave de un emisor solo sirve para los mensajes que llegan
+ * por la sesión con ese emisor, y el contador del IV debe crecer de un mensaje al siguiente: un
+ * miembro no puede hacerse pasar por otro ni repetir mensajes ajenos, y repartir una clave con el id
+ * de la de otro (que todos ven) no reemplaza la de ese otro.
+ *
+ * Si un miembro reparte su clave antes de que este nodo lo haya añadido, la sesión la descarta.
+ * Por eso, al enviar su clave a un miembro del que no tiene la suya, la sala se la pide, y el
+ * miembro responde con la suya si ya la añadió: ambos terminan con la clave del otro sin importar
+ * quién añadió primero.
+ *
+ * Alguien tiene que leer cada sesión (un {@link MotorChat} o un bucle con {@link Sesion#leerMensaje()})
+ * para que las tramas de grupo lleguen a la sala.
+ */
+public class SalaGrupo {
+
+    public static final int LONGITUD_ID = 16; // Identificador aleatorio de la sala
+    public static final int CABECERA = LONGITUD_ID + 8; // id de la sala e id de la clave, delante del mensaje cifrado
+    private static final int LONGITUD_CLAVE = 32; // Clave de emisor AES de 256 bits
+    private static final SecureRandom aleatorio = new SecureRandom();
+    private static final Bitacora bitacora = Bitacora.de(SalaGrupo.class);
+
+    private final byte[] id; // Igual en la sala de cada miembro
+    private final ByteBuffer clave; // id como clave de los mapas de despacho
+    private final OyenteSala oyente; // Recibe los mensajes descifrados
+    private final List<Sesion> miembros = new CopyOnWriteArrayList<>(); // Sesiones con los demás miembros
+    private final Set<Sesion> admitidos = ConcurrentHashMap.newKeySet(); // Los mismos, para consultarlos al recibir
+    private final Map<IdClave, ClaveMiembro> clavesMiembros = new ConcurrentHashMap<>(); // Claves de emisor recibidas, por sesión e id
+    private final Map<Sesion, Long> clavePorMiembro = new ConcurrentHashMap<>(); // id de la clave vigente de cada miembro
+    private ClavePropia propia; // Clave de emisor de este nodo (protegida por this)
+
+    private record ClavePropia(long id, byte[] clave, ContextoCifrado contexto) {}
+
+    /**
+     * Id de una clave de emisor junto con la sesión por la que llegó, la única por la que se aceptan sus mensajes.
+     */
+    private record IdClave(Sesion emisor, long id) {}
+
+    /**
+     * Clave de emisor de otro miembro y el contador del último mensaje que llegó con ella.
+     */
+    private static final class ClaveMiembro {
+        private final ContextoCifrado contexto;
+        private long ultimo = -1; // Solo lo usa el hilo lector de la sesión del emisor
+
+        ClaveMiembro(ContextoCifrado contexto) {
+            this.contexto = contexto;
+        }
+    }
+
+    /**
+     * Crea la sala de este nodo; los demás miembros deben crear la suya con el mismo id.
+     */
+    public SalaGrupo(byte[] id, OyenteSala oyente) {
+        if (id.length != LONGITUD_ID) {
+            throw new IllegalArgumentException("El id de una sala ocupa " + LONGITUD_ID + " bytes");
+        }
+        this.id = id.clone();
+        this.clave = ByteBuffer.wrap(this.id);
+        this.oyente = oyente;
+        renovarClave();
+    }
+
+    /**
+     * Devuelve un id aleatorio para una sala nueva.
+     */
+    public static byte[] nuevoId() {
+        byte[] id = new byte[LONGITUD_ID];
+        aleatorio.nextBytes(id);
+        return id;
+    }
+
+    /**
+     * Añade un miembro por la sesión (ya con clave) que este nodo tiene con él y renueva la
+     * clave de emisor para todos. La sesión puede estar ya leyendo.
+     */
+    public void agregar(Sesion miembro) {
+        agregar(List.of(miembro));
+    }
+
+    /**
+     * Añade varios miembros con una sola renovación de la clave, por ejemplo al crear la sala.
+     */
+    public synchronized void agregar(Collection<Sesion> nuevos) {
+        boolean cambio = false;
+        for (Sesion miembro : nuevos) {
+            if (admitidos.add(miembro)) {
+                Despacho.de(miembro).put(clave, this);
+                miembros.add(miembro);
+                cambio = true;
+            }
+        }
+        if (cambio) {
+            renovarClave();
+        }
+    }
+
+    /**
+     * Saca a un miembro, olvida su clave y renueva la clave de emisor para los que quedan.
+     */
+    public synchronized void quitar(Sesion miembro) {
+        if (!admitidos.remove(miembro)) {
+            return;
+        }
+        miembros.remove(miembro);
+        Despacho.de(miembro).remove(clave, this);
+        Long anterior = clavePorMiembro.remove(miembro);
+        if (anterior != null) {
+            clavesMiembros.remove(new IdClave(miembro, anterior));
+        }
+        renovarClave();
+    }
+
+    /**
+     * Cifra un mensaje una vez con la clave de emisor y encola la misma trama en la sesión de cada miembro.
+     * @return futuro que se completa cuando la trama se escribió en todas las sesiones, o que
+     *         falla si no se pudo cifrar o alguna sesión la rechazó
+     */
+    public synchronized CompletableFuture<Void> enviar(String mensaje) {
+        byte[] texto = mensaje.getBytes(StandardCharsets.UTF_8);
+        if (texto.length > Sesion.TAMANO_MAXIMO_MENSAJE) {
+            return CompletableFuture.failedFuture(new IOException("Mensaje demasiado grande: " + texto.length + " bytes"));
+        }
+        int carga = CABECERA + ContextoCifrado.longitudCifrada(texto.length);
+        ByteBuffer trama = ByteBuffer.allocate(FormatoTrama.longitudCabecera(FormatoTrama.FLUJO_CHAT, carga) + carga);
+        FormatoTrama.escribirCabecera(trama, TipoTrama.MENSAJE_GRUPO, (byte) 0, FormatoTrama.FLUJO_CHAT, carga);
+        int inicio = trama.position();
+        trama.put(id).putLong(propia.id());
+        try {
+            long inicioCifrado = Metricas.reloj();
+            propia.contexto().cifrar(trama.slice(inicio, CABECERA), null, ByteBuffer.wrap(texto), trama);
+            Metricas.CIFRADO.registrarDesde(inicioCifrado);
+        } catch (GeneralSecurityException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        trama.flip();
+        CompletableFuture<?>[] escrituras = new CompletableFuture<?>[miembros.size()];
+        int i = 0;
+        for (Sesion miembro : miembros) {
+            escrituras[i++] = miembro.enviarTramaCifrada(trama.duplicate());
+        }
+        return CompletableFuture.allOf(escrituras);
+    }
+
+    /**
+     * Genera una clave de emisor nueva y la reparte a los miembros actuales. Los mensajes que ya
+     * estaban en cola salen antes que la clave, así que cada miembro aún los descifra con la anterior.
+     */
+    private synchronized void renovarClave() {
+        byte[] nueva = new byte[LONGITUD_CLAVE];
+        aleatorio.nextBytes(nueva);
+        propia = new ClavePropia(aleatorio.nextLong(), nueva, new ContextoCifrado(nueva, true));
+        for (Sesion miembro : miembros) {
+            repartir(miembro);
+        }
+    }
+
+    /**
+     * Envía la clave propia a un miembro, pidiéndole la suya si aún no se tiene.
+     */
+    private synchronized void repartir(Sesion miembro) {
+        byte pedir = (byte) (clavePorMiembro.containsKey(miembro) ? 0 : 1);
+        ByteBuffer trama = ByteBuffer.allocate(1 + LONGITUD_ID + 8 + LONGITUD_CLAVE + 1)
+                .put(TipoTrama.CLAVE_GRUPO).put(id).putLong(propia.id()).put(propia.clave()).put(pedir).flip();
+        miembro.enviarTrama(trama, null).exceptionally(e -> {
+            bitacora.error("No se pudo repartir la clave de grupo por la sesión " + miembro.getId(), e);
+            return null;
+        });
+    }
+
+    /**
+     * Guarda la clave de emisor que un miembro envió por su sesión, en lugar de la anterior, y
+     * le responde con la propia si la pidió. Descarta la de una sesión que no está en la sala.
+     */
+    private synchronized void claveRecibida(Sesion emisor, ByteBuffer datos) {
+        if (!admitidos.contains(emisor)) { // Sincronizado con quitar: no deja la clave de quien ya salió
+            bitacora.aviso("Clave de grupo de una sesión que no está en la sala: " + emisor.getId());
+            return;
+        }
+        long idClave = datos.getLong();
+        byte[] recibida = new byte[LONGITUD_CLAVE];
+        datos.get(recibida);
+        boolean pedida = datos.hasRemaining() && datos.get() != 0;
+        Long anterior = clavePorMiembro.put(emisor, idClave);
+        if (anterior == null || anterior != idClave) { // Una clave repetida no reinicia su contador
+            clavesMiembros.put(new IdClave(emisor, idClave), new ClaveMiembro(new ContextoCifrado(recibida, false)));
+            if (anterior != null) {
+                clavesMiembros.remove(new IdClave(emisor, anterior));
+            }
+        }
+        if (pedida) {
+            repartir(emisor);
+        }
+    }
+
+    /**
+     * Descifra un mensaje de grupo que llegó por la sesión de su emisor y lo entrega al oyente.
+     * @param datos carga tras el id de la sala
+     * @throws IOException si el mensaje se repite
+     */
+    private void mensajeRecibido(Sesion emisor, ByteBuffer datos) throws IOException, GeneralSecurityException {
+        int inicio = datos.position() - LONGITUD_ID;
+        long idClave = datos.getLong();
+        ClaveMiembro claveMiembro = clavesMiembros.get(new IdClave(emisor, idClave)); // Solo las que llegaron por esta sesión
+        if (claveMiembro == null || !admitidos.contains(emisor)) {
+            bitacora.aviso("Mensaje de grupo sin clave de emisor conocida en la sesión " + emisor.getId());
+            return;
+        }
+        long contador = datos.getLong(datos.position() + 4); // Últimos 8 bytes del IV
+        if (contador <= claveMiembro.ultimo) {
+            throw new IOException("Mensaje de grupo repetido o fuera de orden en la sesión " + emisor.getId());
+        }
+        ByteBuffer plano = ByteBuffer.allocate(ContextoCifrado.longitudPlana(datos.remaining()));
+        long inicioDescifrado = Metricas.reloj();
+        claveMiembro.contexto.descifrar(datos.slice(inicio, CABECERA), datos, plano);
+        Metricas.DESCIFRADO.registrarDesde(inicioDescifrado);
+        claveMiembro.ultimo = contador;
+        oyente.mensajeRecibido(this, emisor, new String(plano.array(), 0, plano.position(), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Devuelve el id de la sala.
+     */
+    public byte[] getId() {
+        return id.clone();
+    }
+
+    /**
+     * Devuelve las sesiones con los demás miembros.
+     */
+    public List<Sesion> getMiembros() {
+        return List.copyOf(miembros);
+    }
+
+    /**
+     * Entrega las tramas de grupo de una sesión a la sala de su id. Hay uno por sesión, registrado
+     * para los dos tipos, de modo que una misma sesión puede estar en varias salas.
+     */
+    private record Despacho(byte tipo, Map<ByteBuffer, SalaGrupo> salas) implements ManejadorTrama {
+
+        /**
+         * Devuelve las salas de una sesión, registrando sus manejadores la primera vez.
+         */
+        static Map<ByteBuffer, SalaGrupo> de(Sesion sesion) {
+            synchronized (Despacho.class) {
+                if (sesion.getManejador(TipoTrama.MENSAJE_GRUPO) instanceof Despacho despacho) {
+                    return despacho.salas();
+                }
+                Map<ByteBuffer, SalaGrupo> salas = new ConcurrentHashMap<>();
+                sesion.registrarManejador(TipoTrama.CLAVE_GRUPO, new Despacho(TipoTrama.CLAVE_GRUPO, salas));
+                sesion.registrarManejador(TipoTrama.MENSAJE_GRUPO, new Despacho(TipoTrama.MENSAJE_GRUPO, salas));
+                return salas;
+            }
+        }
+
+        @Override
+        public void tramaRecibida(Sesion sesion, ByteBuffer contenido) throws Exception {
+            SalaGrupo sala = salas.get(contenido.slice(contenido.position(), LONGITUD_ID));
+            if (sala == null) {
+                bitacora.depuracion(() -> "Trama de grupo de una sala desconocida en la sesión " + sesion.getId());
+                return;
+            }
+            contenido.position(contenido.position() + LONGITUD_ID);
+            if (tipo == TipoTrama.CLAVE_GRUPO) {
+                sala.claveRecibida(sesion, contenido);
+            } else {
+                sala.mensajeRecibido(sesion, contenido);
+            }
+        }
+    }
+}
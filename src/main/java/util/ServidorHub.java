@@ -0,0 +1,580 @@
+package util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Nodo concentrador no bloqueante basado en {@link Selector}.
+ * Un hilo acepta conexiones y las reparte entre unos pocos reactores, cada uno con su
+ * propio selector, de forma que un solo nodo atiende miles de sesiones cifradas.
+ * El protocolo en el cable es el mismo que usa {@link Conexion} con el Peer B:
+ * tramas con longitud, saludo del {@link IntercambioClaves}, nombre de usuario y mensajes AES-GCM.
+ *
+ * Tras el intercambio de claves, el hub espera a que el par hable primero. Un {@link MotorChat} abre
+ * con el saludo de la conversación ({@link TipoTrama#CONVERSACION}); el hub le devuelve el mismo id
+ * con cero mensajes recibidos y después su nombre, y le acusa los mensajes de chat cada
+ * {@link ReenvioMensajes#ACUSE_CADA} para que no acumule pendientes. Un par que no saluda envía
+ * directamente su nombre, recibe el del hub y no recibe acuses. El hub no guarda conversaciones: una reconexión
+ * se atiende como una sesión nueva.
+ *
+ * La cola de salida de cada sesión está acotada a {@link #MAXIMO_EN_COLA} bytes, como la {@link ColaEnvio}
+ * de un par: si el par deja de leer, {@link #enviar} devuelve false en lugar de acumular sus mensajes.
+ */
+public class ServidorHub implements Closeable {
+
+    public static final int MAXIMO_EN_COLA = 1 << 22; // Bytes que una sesión puede tener sin escribir antes de rechazar envíos
+    private static final int TAMANO_INICIAL_LECTURA = 4096; // Búfer de lectura inicial por sesión
+    private static final Bitacora bitacora = Bitacora.de(ServidorHub.class);
+
+    private enum Etapa { ESPERANDO_CLAVE, CALCULANDO_CLAVE, ACTIVA }
+
+    private final ServerSocketChannel servidor; // Canal que acepta las conexiones entrantes
+    private final Selector selectorAceptacion; // Selector exclusivo para aceptar conexiones
+    private final Reactor[] reactores; // Reactores que atienden la lectura y escritura
+    private final ExecutorService ejecutorClaves; // Hilos para el cálculo de claves
+    private final IntercambioClaves intercambio = new IntercambioClaves(PoolParesClaves.getCompartido()); // Acuerdos y tickets
+    private final OyenteHub oyente; // Receptor de los eventos de sesión
+    private final String nombreLocal; // Nombre que el hub anuncia a cada par
+    private final LimitesTrama limites = LimitesTrama.getPorDefecto(); // Carga máxima de las tramas entrantes, por tipo
+    private final Map<Long, EstadoSesion> sesiones = new ConcurrentHashMap<>(); // Sesiones abiertas por id
+    private final AtomicInteger siguienteReactor = new AtomicInteger(); // Reparto round-robin
+    private final LongAdder mensajesRecibidos = new LongAdder(); // Contador de mensajes descifrados
+    private final LongAdder mensajesEnviados = new LongAdder(); // Contador de mensajes escritos
+    private final LongAdder enviosRechazados = new LongAdder(); // Mensajes que no cupieron en la cola de su sesión
+    private final LongAdder bytesEnCola = new LongAdder(); // Bytes sin escribir en todas las sesiones
+    private volatile boolean activo = true;
+
+    /**
+     * Abre el hub en el puerto indicado con un reactor por cada dos núcleos.
+     */
+    public ServidorHub(int puerto, String nombreLocal, OyenteHub oyente) throws IOException {
+        this(new InetSocketAddress(puerto), Math.max(1, Runtime.getRuntime().availableProcessors() / 2), nombreLocal, oyente);
+    }
+
+    /**
+     * Abre el hub en la dirección indicada con el número de reactores dado.
+     */
+    public ServidorHub(InetSocketAddress direccion, int numReactores, String nombreLocal, OyenteHub oyente) throws IOException {
+        this.oyente = oyente;
+        this.nombreLocal = nombreLocal;
+        Metricas.indicador("hub.envio.bytes", bytesEnCola::sum);
+        this.ejecutorClaves = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), tarea -> {
+            Thread hilo = new Thread(tarea, "hub-claves");
+            hilo.setDaemon(true);
+            return hilo;
+        });
+        this.reactores = new Reactor[numReactores];
+        for (int i = 0; i < numReactores; i++) {
+            reactores[i] = new Reactor(i);
+        }
+        servidor = ServerSocketChannel.open();
+        servidor.bind(direccion, 1024);
+        servidor.configureBlocking(false);
+        selectorAceptacion = Selector.open();
+        servidor.register(selectorAceptacion, SelectionKey.OP_ACCEPT);
+
+        for (Reactor reactor : reactores) {
+            reactor.hilo.start();
+        }
+        Thread aceptador = new Thread(this::aceptar, "hub-aceptador");
+        aceptador.setDaemon(true);
+        aceptador.start();
+    }
+
+    /**
+     * Bucle del hilo aceptador: entrega cada conexión nueva a un reactor.
+     */
+    private void aceptar() {
+        try {
+            while (activo) {
+                selectorAceptacion.select();
+                selectorAceptacion.selectedKeys().clear();
+                SocketChannel canal;
+                while ((canal = servidor.accept()) != null) {
+                    canal.configureBlocking(false);
+                    canal.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                    Reactor reactor = reactores[Math.floorMod(siguienteReactor.getAndIncrement(), reactores.length)];
+                    EstadoSesion estado = new EstadoSesion(canal, new Sesion(canal, false), reactor);
+                    sesiones.put(estado.sesion.getId(), estado);
+                    reactor.ejecutar(() -> reactor.registrar(estado));
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            if (activo) {
+                bitacora.error("Error en el aceptador del hub", e);
+            }
+        }
+    }
+
+    /**
+     * Cifra y encola un mensaje para una sesión activa. Puede llamarse desde cualquier hilo.
+     * @return false si la sesión no existe, el par aún no ha enviado su nombre o su cola ya
+     *         tiene {@link #MAXIMO_EN_COLA} bytes sin escribir porque no está leyendo
+     */
+    public boolean enviar(Sesion sesion, String mensaje) throws Exception {
+        EstadoSesion estado = sesiones.get(sesion.getId());
+        if (estado == null || sesion.getNombreRemoto() == null) {
+            return false;
+        }
+        ByteBuffer trama = sesion.cifrarTrama(mensaje);
+        if (!estado.reservar(trama.remaining())) {
+            enviosRechazados.increment();
+            bitacora.depuracion(() -> "Cola de salida llena en la sesión " + sesion.getId() + ": el par no está leyendo");
+            return false;
+        }
+        estado.reactor.ejecutar(() -> estado.agregar(trama));
+        mensajesEnviados.increment();
+        return true;
+    }
+
+    /**
+     * Envía un mensaje a todas las sesiones activas, cada una cifrada con su propia clave.
+     */
+    public void difundir(String mensaje) throws Exception {
+        for (EstadoSesion estado : sesiones.values()) {
+            enviar(estado.sesion, mensaje);
+        }
+    }
+
+    /**
+     * Devuelve una vista de las sesiones abiertas.
+     */
+    public Collection<Sesion> getSesiones() {
+        List<Sesion> lista = new ArrayList<>(sesiones.size());
+        for (EstadoSesion estado : sesiones.values()) {
+            lista.add(estado.sesion);
+        }
+        return Collections.unmodifiableList(lista);
+    }
+
+    /**
+     * Devuelve el número de sesiones abiertas.
+     */
+    public int getNumeroSesiones() {
+        return sesiones.size();
+    }
+
+    /**
+     * Devuelve el total de mensajes descifrados desde el arranque.
+     */
+    public long getMensajesRecibidos() {
+        return mensajesRecibidos.sum();
+    }
+
+    /**
+     * Devuelve el total de mensajes encolados para envío desde el arranque.
+     */
+    public long getMensajesEnviados() {
+        return mensajesEnviados.sum();
+    }
+
+    /**
+     * Devuelve el total de mensajes rechazados porque la cola de su sesión estaba llena.
+     */
+    public long getEnviosRechazados() {
+        return enviosRechazados.sum();
+    }
+
+    /**
+     * Devuelve los bytes encolados y aún sin escribir en todas las sesiones.
+     */
+    public long getBytesEnCola() {
+        return bytesEnCola.sum();
+    }
+
+    /**
+     * Devuelve los bytes encolados y aún sin escribir para una sesión, o cero si ya no existe.
+     */
+    public long getBytesEnCola(Sesion sesion) {
+        EstadoSesion estado = sesiones.get(sesion.getId());
+        return estado != null ? estado.enCola.get() : 0;
+    }
+
+    /**
+     * Devuelve el puerto local en el que escucha el hub.
+     */
+    public int getPuerto() throws IOException {
+        return ((InetSocketAddress) servidor.getLocalAddress()).getPort();
+    }
+
+    /**
+     * Detiene el hub y cierra todas sus sesiones.
+     */
+    @Override
+    public void close() {
+        activo = false;
+        try {
+            servidor.close();
+            selectorAceptacion.close();
+        } catch (IOException e) {
+            bitacora.error("Error al cerrar el hub", e);
+        }
+        for (Reactor reactor : reactores) {
+            reactor.ejecutar(reactor::detener);
+        }
+        ejecutorClaves.shutdownNow();
+    }
+
+    /**
+     * Responde al saludo del par y, si el intercambio termina, activa la sesión con su clave.
+     * Se ejecuta fuera del reactor porque el acuerdo de claves es costoso.
+     */
+    private void calcularClave(EstadoSesion estado, byte[] saludo) {
+        try {
+            IntercambioClaves.Respuesta respuesta = intercambio.responder(saludo);
+            ByteBuffer tramaRespuesta = FormatoTrama.enmarcarPlana(respuesta.trama());
+            if (respuesta.clave() == null) {
+                estado.reactor.ejecutar(() -> estado.rechazar(tramaRespuesta));
+                return;
+            }
+            estado.sesion.setSuite(respuesta.suite());
+            estado.sesion.setClaveCompartida(respuesta.clave());
+            ByteBuffer tramaNombre = estado.sesion.cifrarTrama(nombreLocal);
+            estado.reactor.ejecutar(() -> estado.activar(tramaRespuesta, tramaNombre));
+            intercambio.reponerPares();
+        } catch (Exception e) {
+            estado.reactor.ejecutar(() -> estado.reactor.cerrar(estado, e));
+        }
+    }
+
+    /**
+     * Hilo con su propio selector que atiende un subconjunto de las sesiones.
+     */
+    private final class Reactor implements Runnable {
+        private final Selector selector;
+        private final Thread hilo;
+        private final Queue<Runnable> tareas = new ConcurrentLinkedQueue<>(); // Trabajo enviado desde otros hilos
+        private boolean detenido;
+
+        Reactor(int indice) throws IOException {
+            selector = Selector.open();
+            hilo = new Thread(this, "hub-reactor-" + indice);
+            hilo.setDaemon(true);
+        }
+
+        void ejecutar(Runnable tarea) {
+            tareas.add(tarea);
+            selector.wakeup();
+        }
+
+        void registrar(EstadoSesion estado) {
+            try {
+                estado.clave = estado.canal.register(selector, SelectionKey.OP_READ, estado);
+            } catch (IOException e) {
+                cerrar(estado, e);
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!detenido) {
+                    selector.select();
+                    Runnable tarea;
+                    while ((tarea = tareas.poll()) != null) {
+                        tarea.run();
+                    }
+                    if (detenido) {
+                        return;
+                    }
+                    for (SelectionKey clave : selector.selectedKeys()) {
+                        EstadoSesion estado = (EstadoSesion) clave.attachment();
+                        try {
+                            if (clave.isValid() && clave.isReadable()) {
+                                estado.leer();
+                            }
+                            if (clave.isValid() && clave.isWritable()) {
+                                estado.escribir();
+                            }
+                        } catch (Exception e) {
+                            cerrar(estado, e);
+                        }
+                    }
+                    selector.selectedKeys().clear();
+                }
+            } catch (IOException | ClosedSelectorException e) {
+                bitacora.error("Error en el reactor del hub", e);
+            }
+        }
+
+        void cerrar(EstadoSesion estado, Exception causa) {
+            if (sesiones.remove(estado.sesion.getId()) == null) {
+                return;
+            }
+            if (estado.clave != null) {
+                estado.clave.cancel();
+            }
+            estado.descartarSalida();
+            estado.sesion.cerrar();
+            oyente.sesionCerrada(estado.sesion, causa);
+        }
+
+        void detener() {
+            detenido = true;
+            for (SelectionKey clave : selector.keys()) {
+                cerrar((EstadoSesion) clave.attachment(), null);
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                bitacora.error("Error al cerrar el reactor", e);
+            }
+        }
+    }
+
+    /**
+     * Estado de una sesión dentro de su reactor. Solo lo modifica el hilo del reactor.
+     */
+    private final class EstadoSesion {
+        private final SocketChannel canal; // Socket no bloqueante, registrado en el selector del reactor
+        private final Sesion sesion;
+        private final Reactor reactor;
+        private SelectionKey clave;
+        private ByteBuffer lectura = ByteBuffer.allocate(TAMANO_INICIAL_LECTURA);
+        private final FormatoTrama formato = new FormatoTrama(); // Cabecera de la trama en curso
+        private final ArrayDeque<ByteBuffer> salida = new ArrayDeque<>(); // Tramas pendientes de escribir
+        private final AtomicLong enCola = new AtomicLong(); // Bytes sin escribir, contando los que esperan en las tareas del reactor
+        private final List<byte[]> pendientes = new ArrayList<>(); // Tramas recibidas antes de tener clave
+        private Etapa etapa = Etapa.ESPERANDO_CLAVE;
+        private ByteBuffer tramaNombre; // Nombre del hub, pendiente hasta que el par hable primero
+        private long recibidos; // Mensajes de chat del par, para acusarlos
+        private boolean saludada; // El par abrió con el saludo de la conversación: numera sus mensajes y espera acuses
+
+        EstadoSesion(SocketChannel canal, Sesion sesion, Reactor reactor) {
+            this.canal = canal;
+            this.sesion = sesion;
+            this.reactor = reactor;
+        }
+
+        void leer() throws Exception {
+            int leidos = canal.read(lectura);
+            if (leidos < 0) {
+                reactor.cerrar(this, null);
+                return;
+            }
+            lectura.flip();
+            while (formato.decodificar(lectura, limites)) {
+                int total = formato.getLongitudTotal();
+                if (lectura.remaining() < total) {
+                    if (lectura.capacity() < total) {
+                        ByteBuffer mayor = ByteBuffer.allocate(total);
+                        mayor.put(lectura);
+                        lectura = mayor;
+                        return;
+                    }
+                    break;
+                }
+                if (etapa == Etapa.ACTIVA) {
+                    procesarActiva(lectura.array(), lectura.position());
+                    lectura.position(lectura.position() + total);
+                } else {
+                    byte[] trama = new byte[total];
+                    lectura.get(trama);
+                    procesar(trama);
+                }
+            }
+            lectura.compact();
+        }
+
+        /**
+         * Procesa una trama completa (cabecera y carga) según la etapa de la sesión.
+         */
+        private void procesar(byte[] trama) throws Exception {
+            formato.decodificar(ByteBuffer.wrap(trama), limites);
+            switch (etapa) {
+                case ESPERANDO_CLAVE -> {
+                    if (formato.getTipo() != TipoTrama.SALUDO) {
+                        throw new IOException("Se esperaba el saludo del intercambio de claves");
+                    }
+                    byte[] saludo = Arrays.copyOfRange(trama, formato.getLongitudCabecera(), trama.length);
+                    etapa = Etapa.CALCULANDO_CLAVE;
+                    ejecutorClaves.execute(() -> calcularClave(this, saludo));
+                }
+                case CALCULANDO_CLAVE -> pendientes.add(trama);
+                case ACTIVA -> procesarActiva(trama, 0);
+            }
+        }
+
+        /**
+         * Descifra en su sitio, sobre el búfer de lectura, la trama de una sesión activa cuya
+         * cabecera acaba de decodificarse. Las tramas que no son saludos ni mensajes de chat
+         * (capacidades, acuses, latidos) ni se descifran.
+         */
+        private void procesarActiva(byte[] bufer, int inicio) throws Exception {
+            byte tipo = formato.getTipo();
+            if ((tipo != TipoTrama.MENSAJE && tipo != TipoTrama.CONVERSACION) || formato.getBanderas() != 0) {
+                return; // El hub no anuncia compresión ni rotación, así que nada le llega comprimido ni de otra época
+            }
+            int cabecera = formato.getLongitudCabecera();
+            int plano = sesion.getCifrado().descifrar(bufer, inicio, cabecera, formato.getLongitud(), bufer, inicio);
+            if (tipo == TipoTrama.CONVERSACION) {
+                responderSaludo(ByteBuffer.wrap(bufer, inicio, plano));
+                return;
+            }
+            String mensaje = new String(bufer, inicio, plano, StandardCharsets.UTF_8);
+            if (sesion.getNombreRemoto() == null) {
+                enviarNombre(); // El par no saludó: habla primero con su nombre
+                sesion.setNombreRemoto(mensaje);
+                oyente.sesionAbierta(sesion);
+            } else {
+                mensajesRecibidos.increment();
+                if (saludada && ++recibidos % ReenvioMensajes.ACUSE_CADA == 0) {
+                    encolar(sesion.cifrarTrama(TipoTrama.ACUSE, ByteBuffer.allocate(8).putLong(recibidos).flip()));
+                }
+                oyente.mensajeRecibido(sesion, mensaje);
+            }
+        }
+
+        /**
+         * Devuelve al motor del par su saludo, con el mismo id y cero mensajes recibidos, y le envía el nombre del hub.
+         */
+        private void responderSaludo(ByteBuffer saludo) throws Exception {
+            if (sesion.getNombreRemoto() != null || tramaNombre == null) {
+                throw new IOException("Saludo de la conversación fuera de lugar");
+            }
+            if (saludo.remaining() < MotorChat.LONGITUD_ID + 8) {
+                throw new IOException("Saludo de la conversación mal formado");
+            }
+            ByteBuffer respuesta = ByteBuffer.allocate(MotorChat.LONGITUD_ID + 8);
+            respuesta.put(saludo.limit(saludo.position() + MotorChat.LONGITUD_ID)).putLong(0);
+            encolar(sesion.cifrarTrama(TipoTrama.CONVERSACION, respuesta.flip()));
+            saludada = true;
+            enviarNombre();
+        }
+
+        private void enviarNombre() {
+            if (tramaNombre != null) {
+                encolar(tramaNombre);
+                tramaNombre = null;
+            }
+        }
+
+        void activar(ByteBuffer tramaClave, ByteBuffer tramaNombre) {
+            if (!sesion.isAbierta()) {
+                return;
+            }
+            encolar(tramaClave);
+            this.tramaNombre = tramaNombre;
+            etapa = Etapa.ACTIVA;
+            try {
+                for (byte[] trama : pendientes) {
+                    procesar(trama);
+                }
+                pendientes.clear();
+            } catch (Exception e) {
+                reactor.cerrar(this, e);
+            }
+        }
+
+        /**
+         * El ticket del par no sirvió: se le avisa y se espera un saludo con acuerdo completo.
+         */
+        void rechazar(ByteBuffer tramaRechazo) {
+            if (!sesion.isAbierta()) {
+                return;
+            }
+            encolar(tramaRechazo);
+            etapa = Etapa.ESPERANDO_CLAVE;
+            List<byte[]> recibidas = new ArrayList<>(pendientes);
+            pendientes.clear();
+            try {
+                for (byte[] trama : recibidas) {
+                    procesar(trama);
+                }
+            } catch (Exception e) {
+                reactor.cerrar(this, e);
+            }
+        }
+
+        /**
+         * Aparta sitio en la cola para una trama; puede llamarse desde cualquier hilo.
+         * @return false si no cabe sin pasar de {@link #MAXIMO_EN_COLA}
+         */
+        boolean reservar(int bytes) {
+            long total = enCola.addAndGet(bytes);
+            if (total > MAXIMO_EN_COLA) {
+                enCola.addAndGet(-bytes);
+                return false;
+            }
+            bytesEnCola.add(bytes);
+            Metricas.PROFUNDIDAD_HUB.registrar(total);
+            return true;
+        }
+
+        private void liberar(int bytes) {
+            enCola.addAndGet(-bytes);
+            bytesEnCola.add(-bytes);
+        }
+
+        /**
+         * Encola una trama propia del protocolo (respuesta del saludo, nombre, acuse), que no se rechaza
+         * aunque la cola esté llena: son pocas y las provoca el propio par.
+         */
+        void encolar(ByteBuffer trama) {
+            int bytes = trama.remaining();
+            enCola.addAndGet(bytes);
+            bytesEnCola.add(bytes);
+            agregar(trama);
+        }
+
+        /**
+         * Añade a la salida una trama cuyo sitio ya se contó, o lo devuelve si la sesión está cerrada.
+         */
+        void agregar(ByteBuffer trama) {
+            if (clave == null || !clave.isValid()) {
+                liberar(trama.remaining());
+                return;
+            }
+            salida.add(trama);
+            try {
+                escribir();
+            } catch (IOException e) {
+                reactor.cerrar(this, e);
+            }
+        }
+
+        void descartarSalida() {
+            ByteBuffer trama;
+            while ((trama = salida.poll()) != null) {
+                liberar(trama.remaining());
+            }
+        }
+
+        void escribir() throws IOException {
+            ByteBuffer trama;
+            while ((trama = salida.peek()) != null) {
+                liberar(canal.write(trama));
+                if (trama.hasRemaining()) {
+                    clave.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+                salida.poll();
+            }
+            clave.interestOps(SelectionKey.OP_READ);
+        }
+    }
+}
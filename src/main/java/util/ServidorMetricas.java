@@ -0,0 +1,81 @@
+package util;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Punto HTTP de solo lectura que devuelve {@link Metricas#instantanea()} en JSON en {@code /metricas}.
+ * Solo escucha en la interfaz de loopback, así que no es accesible desde otras máquinas.
+ * Se arranca desde la aplicación con {@code -Dchat.metricas.puerto=9464}.
+ */
+public final class ServidorMetricas implements Closeable {
+
+    public static final String PROPIEDAD_PUERTO = "chat.metricas.puerto";
+    public static final String RUTA = "/metricas";
+
+    private static final Bitacora bitacora = Bitacora.de(ServidorMetricas.class);
+
+    private final HttpServer servidor;
+    private final ExecutorService ejecutor = Executors.newVirtualThreadPerTaskExecutor();
+
+    /**
+     * Abre el punto en el puerto indicado de 127.0.0.1; con puerto cero se elige uno libre.
+     */
+    public ServidorMetricas(int puerto) throws IOException {
+        servidor = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), puerto), 0);
+        servidor.createContext(RUTA, this::atender);
+        servidor.setExecutor(ejecutor);
+        servidor.start();
+        bitacora.info("Métricas en http://127.0.0.1:" + getPuerto() + RUTA);
+    }
+
+    /**
+     * Arranca el punto si la propiedad {@value #PROPIEDAD_PUERTO} tiene un puerto.
+     * @return el servidor, o null si no se pidió o no se pudo abrir
+     */
+    public static ServidorMetricas iniciarSiSePide() {
+        String puerto = System.getProperty(PROPIEDAD_PUERTO);
+        if (puerto == null || puerto.isBlank()) {
+            return null;
+        }
+        try {
+            return new ServidorMetricas(Integer.parseInt(puerto.trim()));
+        } catch (IOException | NumberFormatException e) {
+            bitacora.error("No se pudo abrir el punto de métricas en el puerto " + puerto, e);
+            return null;
+        }
+    }
+
+    public int getPuerto() {
+        return servidor.getAddress().getPort();
+    }
+
+    private void atender(HttpExchange intercambio) throws IOException {
+        try (intercambio) {
+            if (!"GET".equals(intercambio.getRequestMethod())) {
+                intercambio.sendResponseHeaders(405, -1);
+                return;
+            }
+            byte[] cuerpo = Metricas.instantanea().aJson().getBytes(StandardCharsets.UTF_8);
+            intercambio.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+            intercambio.sendResponseHeaders(200, cuerpo.length);
+            try (OutputStream salida = intercambio.getResponseBody()) {
+                salida.write(cuerpo);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        servidor.stop(0);
+        ejecutor.shutdownNow();
+    }
+}
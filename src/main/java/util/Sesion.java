@@ -0,0 +1,945 @@
+package util;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.time.Duration;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Sesión cifrada con un único par remoto.
+ * Agrupa el canal, los flujos y el material de claves propios de esa sesión,
+ * de modo que un nodo pueda mantener varias sesiones a la vez.
+ */
+public final class Sesion {
+
+    // Tamaño máximo del texto plano de un mensaje
+    public static final int TAMANO_MAXIMO_MENSAJE = 1024 * 1024;
+
+    private static final int PLANO_RETENIDO = 64 * 1024; // Búfer de texto plano que la sesión conserva entre mensajes
+    private static final AtomicLong secuenciaIds = new AtomicLong(); // Generador de identificadores de sesión
+    private static final Bitacora bitacora = Bitacora.de(Sesion.class);
+
+    private final long id; // Identificador local de la sesión
+    private final CanalTransporte canal; // Canal con el par, del transporte que sea
+    private final boolean iniciador; // true si este extremo abrió la conexión
+    private final ModoEjecucion modo; // Modelo de hilos de los lectores y el escritor
+    private final AmbitoSesion ambito; // Tareas de la sesión, canceladas al cerrarla
+    private DataOutputStream dos; // Flujo de salida (solo en modo bloqueante)
+    private DataInputStream dis; // Flujo de entrada (solo en modo bloqueante)
+    private volatile byte[] claveCompartida; // Clave AES derivada con Diffie-Hellman
+    private volatile ContextoCifrado cifrado; // Contexto de cifrado construido con la clave
+    private volatile SuiteCifrado suite = SuiteCifrado.AES_GCM; // Cifrado negociado en el intercambio de claves
+    private volatile RotacionClaves rotacion; // Claves de cada época, a partir de la compartida
+    private volatile RotacionClaves.Umbrales umbralesRotacion = RotacionClaves.Umbrales.getPorDefecto();
+    private volatile String nombreRemoto; // Nombre anunciado por el par remoto
+    private ColaEnvio colaEnvio; // Salida asíncrona, creada con el primer envío
+    private int capacidadEnvio = ColaEnvio.CAPACIDAD_POR_DEFECTO;
+    private int loteEnvio = ColaEnvio.LOTE_POR_DEFECTO;
+    private Duration retardoEnvio = ColaEnvio.RETARDO_POR_DEFECTO;
+    private final PoolBuffers pool = PoolBuffers.getCompartido(); // Origen de los búferes directos
+    private final CharsetEncoder codificador = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE); // Codificador UTF-8 reutilizado al enviar
+    private ByteBuffer planoSalida; // Texto plano codificado antes de cifrar (protegido por codificador)
+    private final ByteBuffer cabeceraMensaje = ByteBuffer.wrap(new byte[] {TipoTrama.MENSAJE}); // (protegido por codificador)
+    private final AtomicReferenceArray<ManejadorTrama> manejadores = new AtomicReferenceArray<>(256); // Manejadores por tipo de trama
+    private final ReentrantLock bloqueoLectura = new ReentrantLock(); // Serializa a los lectores sin fijar hilos virtuales
+    private volatile CanalTramas entrada; // Lector de tramas, creado con la primera lectura
+    private PoolDescifrado descifrado = PoolDescifrado.getPorDefecto(); // Hilos de la recepción paralela; null para descifrar al leer
+    private volatile RecepcionParalela recepcion; // Existe si la sesión ya lee con recepción paralela
+    private LimitesTrama limites = LimitesTrama.getPorDefecto(); // Contenido máximo de las tramas entrantes, por tipo
+    private final CharsetDecoder decodificador = StandardCharsets.UTF_8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE); // Decodificador UTF-8 reutilizado al recibir
+    private ByteBuffer planoEntrada; // Texto plano descifrado (protegido por bloqueoLectura)
+    private ByteBuffer descomprimido; // Contenido de la última trama comprimida (protegido por bloqueoLectura)
+    private volatile CompresionTramas compresion; // Existe si este extremo anunció que acepta compresión
+    private volatile boolean compresionPar; // true si el par anunció que acepta compresión
+    private volatile byte capacidadesPar; // Bits de la trama de capacidades del par
+    private final ControlFlujo control = new ControlFlujo(); // Crédito de los flujos masivos en ambos sentidos
+    private CharBuffer caracteres = CharBuffer.allocate(256); // Caracteres decodificados (protegido por bloqueoLectura)
+
+    /**
+     * Crea una sesión sobre un socket ya conectado.
+     * Si el canal es bloqueante se inicializan también los flujos de datos.
+     * @param iniciador true en el extremo que abrió la conexión (cliente)
+     */
+    public Sesion(SocketChannel canal, boolean iniciador) {
+        this(canal, iniciador, ModoEjecucion.getPorDefecto());
+    }
+
+    /**
+     * Crea una sesión sobre un socket cuyas tareas corren con el modelo de hilos indicado.
+     */
+    public Sesion(SocketChannel canal, boolean iniciador, ModoEjecucion modo) {
+        this(TransporteSocket.envolver(canal), iniciador, modo);
+    }
+
+    /**
+     * Crea una sesión sobre el canal de un {@link Transporte}.
+     */
+    public Sesion(CanalTransporte canal, boolean iniciador) {
+        this(canal, iniciador, ModoEjecucion.getPorDefecto());
+    }
+
+    /**
+     * Crea una sesión sobre el canal de un {@link Transporte} con el modelo de hilos indicado.
+     */
+    public Sesion(CanalTransporte canal, boolean iniciador, ModoEjecucion modo) {
+        this.id = secuenciaIds.incrementAndGet();
+        this.canal = canal;
+        this.iniciador = iniciador;
+        this.modo = modo;
+        this.ambito = new AmbitoSesion(modo);
+        if (canal.isBlocking()) {
+            dos = new DataOutputStream(Channels.newOutputStream(canal));
+            dis = new DataInputStream(Channels.newInputStream(canal));
+        }
+        registrarManejador(TipoTrama.CAPACIDADES, (sesion, datos) -> {
+            byte capacidades = datos.hasRemaining() ? datos.get() : 0;
+            capacidadesPar = capacidades;
+            compresionPar = (capacidades & CompresionTramas.CAPACIDAD_DEFLATE) != 0;
+            if ((capacidades & RotacionClaves.CAPACIDAD_ROTACION) != 0) {
+                requerirClaves().permitir();
+            }
+        });
+        registrarManejador(TipoTrama.CREDITO, (sesion, datos) -> {
+            int flujo = FormatoTrama.leerVarint(datos);
+            control.conceder(flujo, FormatoTrama.leerVarint(datos));
+        });
+        // Hasta que la sesión entre en una SalaGrupo, sus tramas de grupo se descartan (ver SalaGrupo)
+        ManejadorTrama sinSala = (sesion, datos) -> bitacora.depuracion(() -> "Trama de grupo en la sesión " + id + ", que no está en ninguna sala");
+        registrarManejador(TipoTrama.CLAVE_GRUPO, sinSala);
+        registrarManejador(TipoTrama.MENSAJE_GRUPO, sinSala);
+    }
+
+    /**
+     * Anuncia al par lo que este extremo acepta; se llama una vez, justo después del intercambio de claves.
+     * La compresión solo se usa en cada sentido si ambos extremos la anunciaron. La rotación de
+     * claves se anuncia siempre: cada extremo rota lo que envía solo si el par la anunció.
+     * @param compresion true si este extremo acepta y usará tramas comprimidas
+     */
+    public CompletableFuture<Void> anunciarCapacidades(boolean compresion) {
+        return anunciarCapacidades(compresion, (byte) 0);
+    }
+
+    /**
+     * Anuncia las capacidades con bits que dependen de quien usa la sesión, como
+     * {@link SincronizacionHistorial#CAPACIDAD_SINCRONIZACION}: solo puede anunciarlos quien
+     * registra los manejadores de sus tramas.
+     */
+    public CompletableFuture<Void> anunciarCapacidades(boolean compresion, byte otras) {
+        this.compresion = compresion ? new CompresionTramas(pool) : null;
+        byte capacidades = (byte) (otras | RotacionClaves.CAPACIDAD_ROTACION | (compresion ? CompresionTramas.CAPACIDAD_DEFLATE : 0));
+        return enviarTrama(ByteBuffer.wrap(new byte[] {TipoTrama.CAPACIDADES, capacidades}), null);
+    }
+
+    /**
+     * Indica si el par anunció una capacidad. Las capacidades llegan justo después del intercambio
+     * de claves, antes que cualquier trama que el par envíe después.
+     */
+    public boolean isCapacidadPar(byte capacidad) {
+        return (capacidadesPar & capacidad) != 0;
+    }
+
+    /**
+     * Indica si las tramas que se envían pueden ir comprimidas (ambos extremos lo anunciaron).
+     */
+    public boolean isCompresionActiva() {
+        return compresion != null && compresionPar;
+    }
+
+    /**
+     * Cifra un mensaje con la clave y la suite de la sesión.
+     * @param mensaje el mensaje a cifrar
+     * @return el mensaje cifrado con el IV al inicio
+     * @throws Exception si la sesión no tiene clave o falla el cifrado
+     */
+    public byte[] encriptar(String mensaje) throws Exception {
+        return requerirCifrado().cifrar(mensaje);
+    }
+
+    /**
+     * Descifra un mensaje recibido con la clave de la sesión.
+     * @param mensajeCifrado el mensaje cifrado con el IV al inicio
+     * @return el texto plano
+     * @throws Exception si la sesión no tiene clave o el mensaje no es auténtico
+     */
+    public String desencriptar(byte[] mensajeCifrado) throws Exception {
+        return requerirCifrado().descifrar(mensajeCifrado, 0, mensajeCifrado.length);
+    }
+
+    /**
+     * Cifra un mensaje directamente dentro de una trama lista para escribir (cabecera + mensaje cifrado).
+     * Usa siempre la clave de la época 0: solo sirve para sesiones que no rotan, como las del hub.
+     */
+    public ByteBuffer cifrarTrama(String mensaje) throws Exception {
+        return cifrarTrama(TipoTrama.MENSAJE, ByteBuffer.wrap(mensaje.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Cifra en una trama de cualquier tipo, como un saludo o un acuse, el contenido que sigue al tipo,
+     * con la clave de la época 0 igual que {@link #cifrarTrama(String)}.
+     */
+    public ByteBuffer cifrarTrama(byte tipo, ByteBuffer contenido) throws Exception {
+        int flujo = FormatoTrama.flujoDe(tipo);
+        int longitud = ContextoCifrado.longitudCifrada(contenido.remaining());
+        ByteBuffer trama = ByteBuffer.allocate(FormatoTrama.longitudCabecera(flujo, longitud) + longitud);
+        FormatoTrama.escribirCabecera(trama, tipo, (byte) 0, flujo, longitud);
+        requerirCifrado().cifrar(trama.duplicate().flip(), null, contenido, trama);
+        return trama.flip();
+    }
+
+    /**
+     * Cifra un mensaje y lo deja en la cola de envío de la sesión; regresa de inmediato.
+     * El texto se codifica con un {@link CharsetEncoder} reutilizado y se cifra directamente
+     * en un búfer directo del pool, que vuelve al pool cuando la trama se escribe.
+     * Si la compresión está activa, el mensaje puede comprimirse antes de cifrarlo.
+     * @return futuro que se completa cuando la trama se escribió en el canal, o que falla
+     *         si no se pudo cifrar o la cola está llena porque el par dejó de leer
+     */
+    public CompletableFuture<Void> enviarMensaje(String mensaje) {
+        return enviarMensaje(mensaje, true);
+    }
+
+    /**
+     * Envía un mensaje indicando si puede comprimirse.
+     * @param comprimible false si el texto mezcla secretos con contenido que un atacante puede
+     *                    elegir; comprimirlo filtraría información a través del tamaño de la trama
+     */
+    public CompletableFuture<Void> enviarMensaje(String mensaje, boolean comprimible) {
+        ByteBuffer trama = null;
+        try {
+            RotacionClaves claves = requerirClaves();
+            ColaEnvio cola = getColaEnvio();
+            if (mensaje.length() > TAMANO_MAXIMO_MENSAJE) { // Cada carácter ocupa al menos un byte
+                throw new IOException("Mensaje demasiado grande: " + mensaje.length() + " caracteres");
+            }
+            synchronized (codificador) {
+                // En UTF-8 un carácter ocupa como mucho 3 bytes; lo que no quepa en el máximo se rechaza al codificar
+                planoSalida = pool.asegurar(planoSalida, (int) Math.min(3L * mensaje.length(), TAMANO_MAXIMO_MENSAJE));
+                try {
+                    codificador.reset();
+                    if (codificador.encode(CharBuffer.wrap(mensaje), planoSalida, true).isOverflow()
+                            || codificador.flush(planoSalida).isOverflow()) {
+                        throw new IOException("Mensaje demasiado grande: más de " + TAMANO_MAXIMO_MENSAJE + " bytes");
+                    }
+                    planoSalida.flip();
+                    trama = cifrarEnTrama(claves, cabeceraMensaje.rewind(), planoSalida, comprimible);
+                } finally {
+                    if (planoSalida.capacity() > PLANO_RETENIDO) { // Un mensaje grande no retiene su búfer el resto de la sesión
+                        pool.liberar(planoSalida);
+                        planoSalida = null;
+                    }
+                }
+            }
+            return cola.enviar(trama);
+        } catch (Exception e) {
+            liberarTrama(trama);
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * Cifra una trama de control o de datos y la deja en el carril interactivo de la cola.
+     * Nunca espera crédito: si la trama es de un flujo masivo, solo lo descuenta.
+     * @param cabecera tipo de trama seguido de sus campos fijos
+     * @param contenido datos que siguen a la cabecera; puede ser null
+     */
+    public CompletableFuture<Void> enviarTrama(ByteBuffer cabecera, ByteBuffer contenido) {
+        ByteBuffer trama = null;
+        try {
+            int flujo = FormatoTrama.flujoDe(cabecera.get(cabecera.position()));
+            trama = cifrarEnTrama(requerirClaves(), cabecera, contenido, true);
+            control.descontar(flujo, trama.remaining());
+            return getColaEnvio().enviar(trama);
+        } catch (Exception e) {
+            liberarTrama(trama);
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * Cifra una trama de datos en bloque y la deja en el carril masivo de la cola, esperando
+     * antes a que su flujo tenga crédito del par y a que haya sitio en el carril.
+     * Los mensajes de chat siempre se escriben antes que estas tramas.
+     */
+    public CompletableFuture<Void> enviarTramaMasiva(ByteBuffer cabecera, ByteBuffer contenido) throws Exception {
+        int flujo = FormatoTrama.flujoDe(cabecera.get(cabecera.position()));
+        ByteBuffer trama = cifrarEnTrama(requerirClaves(), cabecera, contenido, true);
+        try {
+            control.reservar(flujo, trama.remaining());
+            return getColaEnvio().enviarMasiva(trama);
+        } catch (InterruptedException | IOException e) {
+            liberarTrama(trama);
+            throw e;
+        }
+    }
+
+    /**
+     * Deja en el carril interactivo de la cola una trama completa (cabecera y carga) que ya viene
+     * cifrada con otra clave que la de la sesión, como los mensajes de una {@link SalaGrupo}. La
+     * trama no se copia ni vuelve al pool: la misma puede encolarse en varias sesiones, cada una
+     * con su propia vista {@link ByteBuffer#duplicate()}.
+     */
+    public CompletableFuture<Void> enviarTramaCifrada(ByteBuffer trama) {
+        try {
+            return getColaEnvio().enviar(trama);
+        } catch (Exception e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * Cifra cabecera y contenido en un búfer directo del pool precedidos de la cabecera de la trama,
+     * comprimiéndolos antes si la compresión está activa y la trama lo permite.
+     * El tipo (primer byte de {@code cabecera}) viaja en la cabecera de la trama, autenticado pero sin cifrar,
+     * igual que la etiqueta de la época de la clave; la trama cuenta como pendiente de esa época
+     * hasta que pase por {@link #liberarTrama}.
+     */
+    private ByteBuffer cifrarEnTrama(RotacionClaves claves, ByteBuffer cabecera, ByteBuffer contenido, boolean comprimible) throws Exception {
+        int plano = cabecera.remaining() - 1 + (contenido != null ? contenido.remaining() : 0);
+        if (plano > TAMANO_MAXIMO_MENSAJE) {
+            throw new IOException("Mensaje demasiado grande: " + plano + " bytes");
+        }
+        byte tipo = cabecera.get();
+        int flujo = FormatoTrama.flujoDe(tipo);
+        byte banderas = 0;
+        ByteBuffer comprimido = comprimible && isCompresionActiva() ? compresion.comprimir(tipo, cabecera, contenido) : null;
+        if (comprimido != null) {
+            banderas = FormatoTrama.COMPRIMIDA;
+            cabecera = null;
+            contenido = comprimido;
+            plano = comprimido.remaining();
+        }
+        int cifrada = ContextoCifrado.longitudCifrada(plano);
+        int total = FormatoTrama.longitudCabecera(flujo, cifrada) + cifrada;
+        ByteBuffer trama = pool.adquirir(total);
+        RotacionClaves.Epoca epoca = claves.emitir(total);
+        banderas |= epoca.getBanderas();
+        try {
+            FormatoTrama.escribirCabecera(trama, tipo, banderas, flujo, cifrada);
+            EventosChat.Trama evento = new EventosChat.Trama();
+            evento.begin();
+            long inicio = Metricas.reloj();
+            epoca.getContexto().cifrar(trama.duplicate().flip(), cabecera, contenido != null ? contenido : ByteBuffer.allocate(0), trama);
+            Metricas.CIFRADO.registrarDesde(inicio);
+            trama.flip();
+            Metricas.TRAMA_ENVIADA.registrar(trama.remaining());
+            evento.end();
+            if (evento.shouldCommit()) {
+                evento.sesion = id;
+                evento.enviada = true;
+                evento.tipo = tipo & 0xFF;
+                evento.bytes = trama.remaining();
+                evento.commit();
+            }
+            return trama;
+        } catch (Exception e) {
+            claves.terminada(banderas);
+            pool.liberar(trama);
+            throw e;
+        } finally {
+            pool.liberar(comprimido);
+        }
+    }
+
+    /**
+     * Devuelve al pool una trama cifrada que ya se escribió o se descartó; la cola de envío lo
+     * llama con cada una. Admite null.
+     */
+    private void liberarTrama(ByteBuffer trama) {
+        if (trama != null && !isCifradaFuera(trama.get(1))) {
+            rotacion.terminada(trama.get(2)); // Banderas, tras la versión y el tipo
+            pool.liberar(trama);
+        }
+    }
+
+    /**
+     * Indica si las tramas de un tipo llegan cifradas con una clave ajena a la sesión
+     * ({@link #enviarTramaCifrada}) y su manejador recibe la carga tal cual.
+     */
+    static boolean isCifradaFuera(byte tipo) {
+        return tipo == TipoTrama.MENSAJE_GRUPO;
+    }
+
+    /**
+     * Registra el manejador de las tramas de un tipo. Puede hacerse con la sesión ya leyendo,
+     * pero una trama que llegue antes sin manejador cierra la lectura con error.
+     */
+    public void registrarManejador(byte tipo, ManejadorTrama manejador) {
+        manejadores.set(tipo & 0xFF, manejador);
+    }
+
+    /**
+     * Devuelve el manejador registrado para un tipo de trama, o null si no hay ninguno.
+     */
+    public ManejadorTrama getManejador(byte tipo) {
+        return manejadores.get(tipo & 0xFF);
+    }
+
+    /**
+     * Envía un mensaje por la cola de la sesión y espera a que se haya escrito.
+     */
+    public void escribirMensaje(String mensaje) throws Exception {
+        try {
+            enviarMensaje(mensaje).get();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception causa ? causa : e;
+        }
+    }
+
+    /**
+     * Configura la cola de envío; debe llamarse antes del primer envío.
+     * @param capacidad tramas que admite la cola antes de rechazar envíos
+     * @param maxLote tramas máximas agrupadas en una escritura
+     * @param maxRetardo tiempo máximo de espera para completar un lote
+     */
+    public synchronized void configurarEnvio(int capacidad, int maxLote, Duration maxRetardo) {
+        if (colaEnvio != null) {
+            throw new IllegalStateException("La cola de envío ya está en uso");
+        }
+        capacidadEnvio = capacidad;
+        loteEnvio = maxLote;
+        retardoEnvio = maxRetardo;
+    }
+
+    /**
+     * Cambia el contenido máximo aceptado para cada tipo de trama entrante; debe llamarse antes de la primera lectura.
+     */
+    public void configurarLimites(LimitesTrama limites) {
+        bloqueoLectura.lock();
+        try {
+            if (entrada != null) {
+                throw new IllegalStateException("La sesión ya está leyendo");
+            }
+            this.limites = limites;
+        } finally {
+            bloqueoLectura.unlock();
+        }
+    }
+
+    /**
+     * Elige quién descifra las tramas entrantes; debe llamarse antes de la primera lectura cifrada.
+     * Con un pool, un hilo lector separa las tramas y las grandes se descifran en paralelo en los
+     * hilos del pool ({@link RecepcionParalela}); con null se descifran en el hilo que lee, una tras otra.
+     * Por defecto se usa {@link PoolDescifrado#getPorDefecto()}.
+     */
+    public void configurarRecepcion(PoolDescifrado descifrado) {
+        bloqueoLectura.lock();
+        try {
+            if (recepcion != null) {
+                throw new IllegalStateException("La sesión ya está leyendo");
+            }
+            this.descifrado = descifrado;
+        } finally {
+            bloqueoLectura.unlock();
+        }
+    }
+
+    /**
+     * Devuelve la cola de envío de la sesión, creándola si aún no existe.
+     */
+    public synchronized ColaEnvio getColaEnvio() {
+        if (colaEnvio == null) {
+            colaEnvio = new ColaEnvio(canal, "envio-sesion-" + id, capacidadEnvio, loteEnvio, retardoEnvio, this::liberarTrama,
+                    modo.fabricaHilos());
+        }
+        return colaEnvio;
+    }
+
+    /**
+     * Devuelve los bytes que la sesión ha escrito en el canal (tramas cifradas con su cabecera).
+     */
+    public synchronized long getBytesEnviados() {
+        return colaEnvio != null ? colaEnvio.getBytesEscritos() : 0;
+    }
+
+    /**
+     * Devuelve los bytes que la sesión ha leído del canal, aunque aún no formen una trama completa.
+     */
+    public long getBytesRecibidos() {
+        CanalTramas actual = entrada;
+        return actual != null ? actual.getBytesLeidos() : 0;
+    }
+
+    /**
+     * Devuelve las tramas que esperan en la cola de envío.
+     */
+    public synchronized int getProfundidadEnvio() {
+        return colaEnvio != null ? colaEnvio.getProfundidad() : 0;
+    }
+
+    /**
+     * Lee tramas del canal de la sesión hasta obtener un mensaje de chat y lo devuelve.
+     * Las tramas de otros tipos se entregan a su {@link ManejadorTrama} en este mismo hilo.
+     * La trama se lee en un búfer directo, se descifra en otro búfer reutilizado y se decodifica
+     * con un {@link CharsetDecoder} reutilizado, de modo que en régimen estable la única
+     * asignación en el heap es el {@code String} resultante.
+     * @return el mensaje en texto plano
+     */
+    public String leerMensaje() throws Exception {
+        RotacionClaves claves = requerirClaves();
+        bloqueoLectura.lock();
+        try {
+            return decodificar(leerHasta(claves, TipoTrama.MENSAJE));
+        } finally {
+            bloqueoLectura.unlock();
+        }
+    }
+
+    /**
+     * Lee tramas hasta obtener una del tipo indicado y devuelve una copia de su contenido descifrado,
+     * por ejemplo el saludo de una conversación antes de sus mensajes. Las de otros tipos se entregan
+     * a su manejador como en {@link #leerMensaje()}; un mensaje de chat antes de tiempo es un error.
+     */
+    public byte[] leerTrama(byte tipo) throws Exception {
+        RotacionClaves claves = requerirClaves();
+        bloqueoLectura.lock();
+        try {
+            ByteBuffer datos = leerHasta(claves, tipo);
+            byte[] contenido = new byte[datos.remaining()];
+            datos.get(contenido);
+            return contenido;
+        } finally {
+            bloqueoLectura.unlock();
+        }
+    }
+
+    /**
+     * Lee, descifra y despacha tramas hasta la primera del tipo esperado, cuyo contenido devuelve
+     * en un búfer que solo es válido mientras el que llama conserve el bloqueo de lectura.
+     */
+    private ByteBuffer leerHasta(RotacionClaves claves, byte esperado) throws Exception {
+        while (true) {
+            byte tipo;
+            byte banderas;
+            int flujo;
+            int bytes;
+            ByteBuffer datos;
+            RecepcionParalela paralela = getRecepcion(claves);
+            if (paralela != null) {
+                RecepcionParalela.Ranura ranura = paralela.tomar();
+                tipo = ranura.getTipo();
+                banderas = ranura.getBanderas();
+                flujo = ranura.getFlujo();
+                bytes = ranura.getBytes();
+                datos = ranura.getDatos();
+            } else {
+                CanalTramas canalTramas = getEntrada();
+                ByteBuffer trama = canalTramas.leerTrama();
+                tipo = canalTramas.getTipo();
+                banderas = canalTramas.getBanderas();
+                flujo = canalTramas.getFlujo();
+                bytes = canalTramas.getLongitudTotal();
+                comprobarCifrada(id, tipo, banderas, trama);
+                if (isCifradaFuera(tipo)) {
+                    datos = trama;
+                } else {
+                    planoEntrada = pool.asegurar(planoEntrada, ContextoCifrado.longitudPlana(trama.remaining()));
+                    descifrar(id, tipo, bytes, claves.recibir(banderas), canalTramas.getCabecera(), trama, planoEntrada);
+                    datos = planoEntrada;
+                }
+            }
+            if (isCifradaFuera(tipo)) {
+                despachar(tipo, datos);
+                consumido(flujo, bytes);
+                continue;
+            }
+            if ((banderas & FormatoTrama.COMPRIMIDA) != 0) {
+                CompresionTramas aceptada = compresion;
+                if (aceptada == null) {
+                    throw new IOException("Trama comprimida sin haber anunciado compresión");
+                }
+                descomprimido = aceptada.descomprimir(datos, descomprimido, limites.getMaximo(tipo));
+                datos = descomprimido;
+            }
+            if (tipo == esperado) {
+                consumido(flujo, bytes);
+                return datos;
+            }
+            if (tipo == TipoTrama.MENSAJE) {
+                throw new IOException("Mensaje de chat mientras se esperaba una trama de tipo " + esperado);
+            }
+            despachar(tipo, datos);
+            consumido(flujo, bytes);
+        }
+    }
+
+    /**
+     * Rechaza una trama leída en una sesión cifrada que no puede descifrarse: un saludo sin cifrar,
+     * una carga menor que el IV y la etiqueta, o banderas en una trama cifrada fuera de la sesión.
+     */
+    static void comprobarCifrada(long id, byte tipo, byte banderas, ByteBuffer trama) throws IOException {
+        if (tipo == TipoTrama.SALUDO) {
+            throw new IOException("Trama sin cifrar en la sesión " + id + " ya cifrada");
+        }
+        if (trama.remaining() < ContextoCifrado.SOBRECARGA) {
+            throw new IOException("Trama cifrada demasiado corta: " + trama.remaining());
+        }
+        if (isCifradaFuera(tipo) && banderas != 0) {
+            throw new IOException("Banderas inesperadas en una trama de tipo " + tipo);
+        }
+    }
+
+    /**
+     * Descifra la carga de una trama en {@code plano}, que queda en modo lectura, y anota la métrica y
+     * el evento de la trama recibida. Puede llamarse desde cualquier hilo.
+     * @param bytes longitud de la trama en el cable
+     */
+    static void descifrar(long id, byte tipo, int bytes, ContextoCifrado contexto, ByteBuffer cabecera,
+            ByteBuffer trama, ByteBuffer plano) throws GeneralSecurityException {
+        EventosChat.Trama evento = new EventosChat.Trama();
+        evento.begin();
+        long inicio = Metricas.reloj();
+        contexto.descifrar(cabecera, trama, plano);
+        Metricas.DESCIFRADO.registrarDesde(inicio);
+        Metricas.TRAMA_RECIBIDA.registrar(bytes);
+        plano.flip();
+        evento.end();
+        if (evento.shouldCommit()) {
+            evento.sesion = id;
+            evento.tipo = tipo & 0xFF;
+            evento.bytes = bytes;
+            evento.commit();
+        }
+    }
+
+    /**
+     * Devuelve la recepción paralela de la sesión, arrancando su lector la primera vez, o null si
+     * la sesión descifra en el hilo que lee. Solo debe llamarse con el bloqueo de lectura.
+     */
+    private RecepcionParalela getRecepcion(RotacionClaves claves) throws IOException {
+        if (recepcion == null && descifrado != null) {
+            RecepcionParalela nueva = new RecepcionParalela(id, getEntrada(), pool, claves, descifrado);
+            recepcion = nueva;
+            ambito.lanzar(nueva::leer);
+        }
+        return recepcion;
+    }
+
+    private void despachar(byte tipo, ByteBuffer datos) throws Exception {
+        ManejadorTrama manejador = manejadores.get(tipo & 0xFF);
+        if (manejador == null) {
+            throw new IOException("Tipo de trama desconocido: " + tipo);
+        }
+        try {
+            manejador.tramaRecibida(this, datos);
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException("Trama de tipo " + tipo + " mal formada", e);
+        }
+    }
+
+    /**
+     * Anota una trama procesada y, si su flujo es masivo y ya consumió media ventana, devuelve
+     * ese crédito al par por el carril interactivo.
+     */
+    private void consumido(int flujo, int bytes) {
+        int incremento = control.consumido(flujo, bytes);
+        if (incremento > 0) {
+            ByteBuffer credito = ByteBuffer.allocate(1 + 5 + 5).put(TipoTrama.CREDITO);
+            FormatoTrama.escribirVarint(credito, flujo);
+            FormatoTrama.escribirVarint(credito, incremento);
+            enviarTrama(credito.flip(), null).exceptionally(e -> {
+                bitacora.error("No se pudo conceder crédito en la sesión " + id, e);
+                return null;
+            });
+        }
+    }
+
+    /**
+     * Decodifica texto UTF-8 con el decodificador reutilizado de la sesión.
+     * Solo debe llamarse desde el hilo lector.
+     */
+    public String decodificar(ByteBuffer utf8) throws IOException {
+        int maxCaracteres = (int) (utf8.remaining() * (double) decodificador.maxCharsPerByte());
+        if (caracteres.capacity() < maxCaracteres) {
+            caracteres = CharBuffer.allocate(Math.max(maxCaracteres, caracteres.capacity() * 2));
+        }
+        caracteres.clear();
+        decodificador.reset();
+        CoderResult resultado = decodificador.decode(utf8, caracteres, true);
+        if (resultado.isError()) {
+            resultado.throwException();
+        }
+        decodificador.flush(caracteres);
+        return caracteres.flip().toString();
+    }
+
+    /**
+     * Lee una trama {@link TipoTrama#SALUDO} sin cifrar (por ejemplo, una clave pública) y devuelve una copia de su contenido.
+     */
+    public byte[] leerTramaPlana() throws IOException {
+        bloqueoLectura.lock();
+        try {
+            if (recepcion != null) {
+                throw new IOException("La sesión " + id + " ya lee tramas cifradas en paralelo");
+            }
+            byte[] contenido = getEntrada().leerTramaCopia();
+            if (entrada.getTipo() != TipoTrama.SALUDO) {
+                throw new IOException("Se esperaba una trama del intercambio de claves y llegó una de tipo " + entrada.getTipo());
+            }
+            return contenido;
+        } finally {
+            bloqueoLectura.unlock();
+        }
+    }
+
+    /**
+     * Escribe una trama sin cifrar (por ejemplo, un saludo del intercambio de claves).
+     * Solo se usa antes de que la sesión tenga clave, en sesiones bloqueantes.
+     */
+    public void escribirTramaPlana(byte[] contenido) throws IOException {
+        if (dos == null) {
+            throw new IOException("Flujo de salida no inicializado");
+        }
+        ByteBuffer trama = FormatoTrama.enmarcarPlana(contenido);
+        synchronized (dos) {
+            dos.write(trama.array(), 0, trama.limit());
+            dos.flush();
+        }
+    }
+
+    private CanalTramas getEntrada() throws IOException {
+        if (entrada == null) {
+            if (!canal.isOpen()) {
+                throw new ClosedChannelException();
+            }
+            entrada = new CanalTramas(canal, pool, limites);
+        }
+        return entrada;
+    }
+
+    private ContextoCifrado requerirCifrado() throws IOException {
+        ContextoCifrado contexto = cifrado;
+        if (contexto == null) {
+            throw new IOException("La sesión " + id + " aún no tiene clave compartida");
+        }
+        return contexto;
+    }
+
+    private RotacionClaves requerirClaves() throws IOException {
+        RotacionClaves claves = rotacion;
+        if (claves == null) {
+            throw new IOException("La sesión " + id + " aún no tiene clave compartida");
+        }
+        return claves;
+    }
+
+    /**
+     * Ejecuta una tarea de la sesión (típicamente un lector bloqueante) según su modelo de hilos.
+     * La tarea se cancela e interrumpe al cerrar la sesión.
+     */
+    public <T> Future<T> ejecutar(Callable<T> tarea) {
+        return ambito.lanzar(tarea);
+    }
+
+    /**
+     * Ejecuta una tarea sin resultado dentro de la sesión.
+     */
+    public Future<?> ejecutar(Runnable tarea) {
+        return ambito.lanzar(tarea);
+    }
+
+    /**
+     * Devuelve el modelo de hilos de la sesión.
+     */
+    public ModoEjecucion getModoEjecucion() {
+        return modo;
+    }
+
+    /**
+     * Devuelve el número de tareas de la sesión que siguen vivas.
+     */
+    public int getTareasActivas() {
+        return ambito.getTareasActivas();
+    }
+
+    /**
+     * Devuelve el identificador local de la sesión.
+     */
+    public long getId() {
+        return id;
+    }
+
+    /**
+     * Indica si este extremo abrió la conexión (cliente).
+     */
+    public boolean isIniciador() {
+        return iniciador;
+    }
+
+    /**
+     * Devuelve el canal de la sesión.
+     */
+    public CanalTransporte getCanal() {
+        return canal;
+    }
+
+    /**
+     * Devuelve el flujo de salida de datos (null si la sesión no es bloqueante).
+     */
+    public DataOutputStream getDos() {
+        return dos;
+    }
+
+    /**
+     * Devuelve el flujo de entrada de datos (null si la sesión no es bloqueante).
+     */
+    public DataInputStream getDis() {
+        return dis;
+    }
+
+    /**
+     * Devuelve la clave compartida de la sesión.
+     */
+    public byte[] getClaveCompartida() {
+        return claveCompartida;
+    }
+
+    /**
+     * Establece la clave compartida de la sesión y construye su contexto de cifrado y la cadena de
+     * claves de las épocas siguientes.
+     */
+    public void setClaveCompartida(byte[] claveCompartida) {
+        ContextoCifrado inicial = new ContextoCifrado(claveCompartida, iniciador, suite);
+        this.rotacion = new RotacionClaves(inicial, claveCompartida, iniciador, umbralesRotacion);
+        this.cifrado = inicial;
+        this.claveCompartida = claveCompartida;
+    }
+
+    /**
+     * Elige el cifrado de la sesión; debe llamarse antes de {@link #setClaveCompartida}. El
+     * {@link IntercambioClaves} lo hace con la suite que negoció con el par.
+     */
+    public void setSuite(SuiteCifrado suite) {
+        this.suite = suite;
+    }
+
+    public SuiteCifrado getSuite() {
+        return suite;
+    }
+
+    /**
+     * Cambia cuándo se rota la clave de envío; puede llamarse en cualquier momento.
+     */
+    public void configurarRotacion(RotacionClaves.Umbrales umbrales) {
+        umbralesRotacion = umbrales;
+        RotacionClaves claves = rotacion;
+        if (claves != null) {
+            claves.setUmbrales(umbrales);
+        }
+    }
+
+    /**
+     * Devuelve las claves por época de la sesión (null antes del intercambio de claves).
+     */
+    public RotacionClaves getRotacion() {
+        return rotacion;
+    }
+
+    /**
+     * Devuelve el contexto de cifrado de la época 0 de la sesión (null antes del intercambio de claves).
+     */
+    public ContextoCifrado getCifrado() {
+        return cifrado;
+    }
+
+    /**
+     * Devuelve el nombre anunciado por el par remoto.
+     */
+    public String getNombreRemoto() {
+        return nombreRemoto;
+    }
+
+    /**
+     * Establece el nombre anunciado por el par remoto.
+     */
+    public void setNombreRemoto(String nombreRemoto) {
+        this.nombreRemoto = nombreRemoto;
+    }
+
+    /**
+     * Indica si el canal de la sesión sigue abierto.
+     */
+    public boolean isAbierta() {
+        return canal.isOpen();
+    }
+
+    /**
+     * Cancela las tareas de la sesión y cierra su escritor, los flujos y el canal.
+     */
+    public void cerrar() {
+        ambito.close();
+        RecepcionParalela paralela = recepcion;
+        if (paralela != null) paralela.detener(); // Despierta al consumidor que espera una trama
+        control.cerrar();
+        synchronized (this) {
+            if (colaEnvio != null) colaEnvio.close();
+        }
+        CompresionTramas activa = compresion;
+        if (activa != null) activa.cerrar();
+        try {
+            if (dis != null) dis.close();
+            if (dos != null) dos.close();
+            canal.close();
+        } catch (IOException e) {
+            bitacora.error("Error al cerrar la sesión " + id, e);
+        }
+        liberarBuferes();
+    }
+
+    /**
+     * Devuelve al pool los búferes de lectura y de codificación. Con el canal ya cerrado, el lector
+     * sale enseguida y suelta el bloqueo; si no lo hace a tiempo, sus búferes se quedan al recolector.
+     */
+    private void liberarBuferes() {
+        synchronized (codificador) {
+            pool.liberar(planoSalida);
+            planoSalida = null;
+        }
+        try {
+            if (!bloqueoLectura.tryLock(1, TimeUnit.SECONDS)) {
+                bitacora.aviso("El lector de la sesión " + id + " no terminó; sus búferes no vuelven al pool");
+                return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        try {
+            if (recepcion != null && !recepcion.liberar()) {
+                bitacora.aviso("El lector de tramas de la sesión " + id + " no terminó; sus búferes no vuelven al pool");
+                return;
+            }
+            if (entrada != null) entrada.liberar();
+            entrada = null;
+            pool.liberar(planoEntrada);
+            pool.liberar(descomprimido);
+            planoEntrada = null;
+            descomprimido = null;
+        } finally {
+            bloqueoLectura.unlock();
+        }
+    }
+}
@@ -0,0 +1,425 @@
+package util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reconciliación del historial con el par después de haber estado desconectados: cada extremo trae del
+ * otro solo los mensajes que le faltan, en lugar de reenviar la conversación entera.
+ *
+ * Quien sincroniza baja por el {@link ResumenHistorial} del par nivel a nivel, pidiendo solo los hijos
+ * de los nodos cuyo resumen no coincide con el suyo, hasta llegar a las hojas distintas. De esas pide
+ * la huella y el instante de cada mensaje, los busca en su historial con {@link ResumenHistorial#MARGEN}
+ * de tolerancia en el instante y pide al par los que no encuentra. Llegan en lotes por el flujo masivo
+ * {@link FormatoTrama#FLUJO_HISTORIAL}, que cede el paso a los mensajes de chat y respeta el crédito del
+ * par, y se guardan desde un hilo de la sesión, no desde el lector, así que la conversación sigue
+ * mientras tanto. La sincronización va en un sentido; para igualar los dos historiales, sincroniza cada extremo.
+ *
+ * Solo se envían mensajes anteriores a la conversación actual: los posteriores ya le llegan al par por
+ * ella, y enviarlos también aquí podría duplicarlos. Y solo si el historial es el de las conversaciones
+ * con ese par y el par probó tener su secreto ({@link MotorChat}): a cualquier otro se le responde como
+ * si estuviera vacío, así que no recupera nada.
+ *
+ * Contenido de las tramas {@link TipoTrama#SINCRONIZACION}, tras la operación (los números son varint):
+ * CONSULTA_NODOS [nivel][n][clave]*, NODOS [nivel][n]([hijos]([rama][cantidad][suma:long])*)*,
+ * CONSULTA_HOJAS [n][clave]*, HUELLAS [n]([m]([huella:long][instante:long])*)*,
+ * PEDIDO [n]([huella:long][instante:long])*. Las de {@link TipoTrama#LOTE_HISTORIAL} llevan
+ * [último][n]([instante:long][autor][texto])*, cada cadena en UTF-8 precedida de su longitud.
+ */
+public class SincronizacionHistorial implements Closeable {
+
+    public static final byte CAPACIDAD_SINCRONIZACION = 4; // Bit de CAPACIDADES: atiende las consultas de sincronización
+    static final int MAXIMO_CONSULTA = 256 * 1024; // Contenido máximo de una trama de sincronización
+    static final int TAMANO_LOTE = 64 * 1024; // Bytes de mensajes por lote
+    private static final int NODOS_POR_CONSULTA = 256; // Su respuesta ocupa como mucho unos 57 KiB
+    private static final int HUELLAS_POR_CONSULTA = 4096; // Mensajes del par en las hojas que se consultan a la vez
+    private static final int MENSAJES_POR_PEDIDO = 4096;
+    private static final long TIEMPO_RESPUESTA_MS = 30_000; // Espera máxima por cada respuesta del par
+
+    // Operaciones de las tramas de sincronización
+    private static final byte CONSULTA_NODOS = 1;
+    private static final byte NODOS = 2;
+    private static final byte CONSULTA_HOJAS = 3;
+    private static final byte HUELLAS = 4;
+    private static final byte PEDIDO = 5;
+
+    private static final Bitacora bitacora = Bitacora.de(SincronizacionHistorial.class);
+    private static final ByteBuffer CERRADA = ByteBuffer.allocate(0); // Despierta a la sincronización en curso al cerrar
+
+    private final Sesion sesion;
+    private final ResumenHistorial resumen;
+    private final ResumenHistorial publico; // Lo que ve el par: el resumen, o uno vacío si el historial no es solo suyo
+    private final long limite; // Secuencia del historial en que empezó la conversación; desde ella no se envía nada
+    private final ExecutorService servidor; // Hilo que responde las consultas del par y le envía los lotes
+    private final BlockingQueue<ByteBuffer> respuestas = new LinkedBlockingQueue<>(); // Respuestas y lotes para la sincronización en curso
+    private CompletableFuture<Long> enCurso; // Sincronización propia (protegido por this)
+    private volatile boolean cerrada;
+
+    /**
+     * Registra los manejadores de sincronización en la sesión, respondiendo al par con el historial entero.
+     * Solo para un historial que no contenga conversaciones con otros pares, con un par ya autenticado por otra vía.
+     */
+    public SincronizacionHistorial(Sesion sesion, ResumenHistorial resumen, long limite) {
+        this(sesion, resumen, limite, true);
+    }
+
+    /**
+     * Registra los manejadores de sincronización en la sesión; debe crearse antes de empezar a leer de ella.
+     * @param limite secuencias del historial desde las que los mensajes son de esta conversación y no
+     *               se envían al par; {@link Long#MAX_VALUE} para enviarlo todo
+     * @param delPar true si el historial solo tiene conversaciones con este par y el par probó su
+     *               secreto; si no, sus consultas se responden como con un historial vacío
+     */
+    public SincronizacionHistorial(Sesion sesion, ResumenHistorial resumen, long limite, boolean delPar) {
+        this.sesion = sesion;
+        this.resumen = resumen;
+        this.publico = delPar ? resumen : new ResumenHistorial(new HistorialMemoria());
+        this.limite = limite;
+        this.servidor = Executors.newSingleThreadExecutor(r -> {
+            Thread hilo = sesion.getModoEjecucion().fabricaHilos().newThread(r);
+            hilo.setName("sincronizacion-" + sesion.getId());
+            return hilo;
+        });
+        sesion.registrarManejador(TipoTrama.SINCRONIZACION, (s, contenido) -> consultaRecibida(contenido));
+        sesion.registrarManejador(TipoTrama.LOTE_HISTORIAL, (s, contenido) -> respuestas.add(copiar(contenido)));
+    }
+
+    /**
+     * Trae del par los mensajes que faltan en el historial, en un hilo de la sesión. Si ya hay una
+     * sincronización en curso, devuelve la misma.
+     * @return futuro con el número de mensajes recuperados
+     */
+    public synchronized CompletableFuture<Long> sincronizar() {
+        if (enCurso != null && !enCurso.isDone()) {
+            return enCurso;
+        }
+        CompletableFuture<Long> futuro = new CompletableFuture<>();
+        enCurso = futuro;
+        respuestas.clear();
+        if (sesion.ejecutar(() -> {
+            try {
+                futuro.complete(traer());
+            } catch (BufferUnderflowException | IllegalArgumentException e) {
+                futuro.completeExceptionally(new IOException("Respuesta de sincronización mal formada", e));
+            } catch (Exception e) {
+                futuro.completeExceptionally(e);
+            }
+        }).isCancelled()) {
+            futuro.completeExceptionally(new IOException("La sesión " + sesion.getId() + " está cerrada"));
+        }
+        return futuro;
+    }
+
+    /**
+     * Deja de atender al par y hace fallar la sincronización en curso.
+     */
+    @Override
+    public void close() {
+        cerrada = true;
+        servidor.shutdownNow();
+        respuestas.add(CERRADA);
+    }
+
+    /**
+     * Baja por los nodos distintos hasta las hojas y reconcilia sus mensajes.
+     */
+    private long traer() throws Exception {
+        long inicio = Metricas.reloj();
+        resumen.actualizar();
+        List<Long> claves = List.of(0L); // La raíz
+        Map<Long, Integer> cantidades = new HashMap<>(); // Mensajes del par en cada hoja distinta
+        for (int nivel = ResumenHistorial.NIVELES; nivel > 0 && !claves.isEmpty(); nivel--) {
+            List<Long> distintas = new ArrayList<>();
+            for (int i = 0; i < claves.size(); i += NODOS_POR_CONSULTA) {
+                List<Long> tramo = claves.subList(i, Math.min(claves.size(), i + NODOS_POR_CONSULTA));
+                ByteBuffer consulta = ByteBuffer.allocate(3 + 5 + 5 * tramo.size()).put(TipoTrama.SINCRONIZACION).put(CONSULTA_NODOS).put((byte) nivel);
+                escribirClaves(consulta, tramo);
+                ByteBuffer respuesta = consultar(consulta.flip(), NODOS);
+                if (respuesta.get() != nivel || FormatoTrama.leerVarint(respuesta) != tramo.size()) {
+                    throw new IOException("Respuesta de otros nodos que los consultados");
+                }
+                for (long clave : tramo) {
+                    int hijos = respuesta.get() & 0xFF;
+                    for (int h = 0; h < hijos; h++) {
+                        int rama = respuesta.get() & 0xFF;
+                        int cantidad = FormatoTrama.leerVarint(respuesta);
+                        long suma = respuesta.getLong();
+                        if (rama >= ResumenHistorial.RAMAS) {
+                            throw new IOException("Rama de nodo inválida: " + rama);
+                        }
+                        long hijo = clave << ResumenHistorial.BITS_RAMA | rama;
+                        if (!resumen.igual(nivel - 1, hijo, cantidad, suma)) {
+                            distintas.add(hijo);
+                            if (nivel == 1) {
+                                cantidades.put(hijo, cantidad);
+                            }
+                        }
+                    }
+                }
+            }
+            claves = distintas;
+        }
+        long recuperados = 0;
+        List<Long> tanda = new ArrayList<>();
+        int mensajes = 0;
+        for (long hoja : claves) {
+            tanda.add(hoja);
+            mensajes += cantidades.get(hoja);
+            if (mensajes >= HUELLAS_POR_CONSULTA || tanda.size() == NODOS_POR_CONSULTA) {
+                recuperados += reconciliar(tanda);
+                tanda.clear();
+                mensajes = 0;
+            }
+        }
+        if (!tanda.isEmpty()) {
+            recuperados += reconciliar(tanda);
+        }
+        Metricas.SINCRONIZACION.registrarDesde(inicio);
+        bitacora.info("Historial sincronizado en la sesión " + sesion.getId() + ": " + claves.size()
+                + " hojas distintas, " + recuperados + " mensajes recuperados");
+        return recuperados;
+    }
+
+    /**
+     * Pide las huellas de unas hojas, compara y trae los mensajes que faltan.
+     * @return los mensajes guardados
+     */
+    private long reconciliar(List<Long> hojas) throws Exception {
+        ByteBuffer consulta = ByteBuffer.allocate(2 + 5 + 5 * hojas.size()).put(TipoTrama.SINCRONIZACION).put(CONSULTA_HOJAS);
+        escribirClaves(consulta, hojas);
+        ByteBuffer respuesta = consultar(consulta.flip(), HUELLAS);
+        if (FormatoTrama.leerVarint(respuesta) != hojas.size()) {
+            throw new IOException("Respuesta de otras hojas que las consultadas");
+        }
+        long[] huellas = new long[respuesta.remaining() / 16];
+        long[] instantes = new long[huellas.length];
+        int cantidad = 0;
+        for (int i = 0; i < hojas.size(); i++) {
+            int m = FormatoTrama.leerVarint(respuesta);
+            if (m > respuesta.remaining() / 16) {
+                throw new IOException("Hoja con más huellas que la trama: " + m);
+            }
+            for (int j = 0; j < m; j++) {
+                huellas[cantidad] = respuesta.getLong();
+                instantes[cantidad++] = respuesta.getLong();
+            }
+        }
+        List<Integer> faltan = resumen.faltantes(huellas, instantes, cantidad);
+        long guardados = 0;
+        for (int i = 0; i < faltan.size(); i += MENSAJES_POR_PEDIDO) {
+            List<Integer> tramo = faltan.subList(i, Math.min(faltan.size(), i + MENSAJES_POR_PEDIDO));
+            ByteBuffer pedido = ByteBuffer.allocate(2 + 5 + 16 * tramo.size()).put(TipoTrama.SINCRONIZACION).put(PEDIDO);
+            FormatoTrama.escribirVarint(pedido, tramo.size());
+            for (int posicion : tramo) {
+                pedido.putLong(huellas[posicion]).putLong(instantes[posicion]);
+            }
+            sesion.enviarTrama(pedido.flip(), null);
+            guardados += recibirLotes();
+        }
+        return guardados;
+    }
+
+    /**
+     * Guarda los mensajes de los lotes que responden a un pedido, hasta el último.
+     */
+    private long recibirLotes() throws Exception {
+        long guardados = 0;
+        while (true) {
+            ByteBuffer lote = esperar();
+            boolean ultimo = lote.get() != 0;
+            int n = FormatoTrama.leerVarint(lote);
+            for (int i = 0; i < n; i++) {
+                long instante = lote.getLong();
+                String autor = leerCadena(lote);
+                String texto = leerCadena(lote);
+                resumen.importar(autor, texto, instante);
+                guardados++;
+            }
+            if (ultimo) {
+                return guardados;
+            }
+        }
+    }
+
+    /**
+     * Envía una consulta y espera su respuesta, que debe ser la operación indicada.
+     * @return el contenido de la respuesta tras la operación
+     */
+    private ByteBuffer consultar(ByteBuffer consulta, byte esperada) throws Exception {
+        sesion.enviarTrama(consulta, null);
+        ByteBuffer respuesta = esperar();
+        byte operacion = respuesta.get();
+        if (operacion != esperada) {
+            throw new IOException("Respuesta de sincronización " + operacion + " en lugar de " + esperada);
+        }
+        return respuesta;
+    }
+
+    private ByteBuffer esperar() throws Exception {
+        ByteBuffer respuesta = respuestas.poll(TIEMPO_RESPUESTA_MS, TimeUnit.MILLISECONDS);
+        if (respuesta == null) {
+            throw new IOException("El par no respondió a la sincronización en " + TIEMPO_RESPUESTA_MS + " ms");
+        }
+        if (respuesta == CERRADA || cerrada) {
+            throw new IOException("La sincronización se cerró");
+        }
+        return respuesta;
+    }
+
+    /**
+     * Manejador de las tramas de sincronización: las respuestas van a la sincronización en curso y las
+     * consultas se atienden en el hilo servidor, para no ocupar al lector.
+     */
+    private void consultaRecibida(ByteBuffer contenido) {
+        ByteBuffer copia = copiar(contenido);
+        byte operacion = copia.get(0);
+        if (operacion == NODOS || operacion == HUELLAS) {
+            respuestas.add(copia);
+            return;
+        }
+        try {
+            servidor.execute(() -> atender(copia));
+        } catch (RejectedExecutionException e) {
+            // Ya se cerró
+        }
+    }
+
+    private void atender(ByteBuffer consulta) {
+        try {
+            publico.actualizar();
+            byte operacion = consulta.get();
+            switch (operacion) {
+                case CONSULTA_NODOS -> responderNodos(consulta);
+                case CONSULTA_HOJAS -> responderHuellas(consulta);
+                case PEDIDO -> enviarLotes(consulta);
+                default -> throw new IOException("Operación de sincronización desconocida: " + operacion);
+            }
+        } catch (Exception e) {
+            if (!cerrada) {
+                bitacora.aviso("Consulta de sincronización sin atender en la sesión " + sesion.getId() + ": " + e);
+            }
+        }
+    }
+
+    private void responderNodos(ByteBuffer consulta) throws IOException {
+        int nivel = consulta.get();
+        int n = FormatoTrama.leerVarint(consulta);
+        if (nivel < 1 || nivel > ResumenHistorial.NIVELES || n > NODOS_POR_CONSULTA) {
+            throw new IOException("Consulta de nodos inválida: nivel " + nivel + ", " + n + " nodos");
+        }
+        ByteBuffer respuesta = ByteBuffer.allocate(3 + 5 + n * (1 + ResumenHistorial.RAMAS * (1 + 5 + 8)))
+                .put(TipoTrama.SINCRONIZACION).put(NODOS).put((byte) nivel);
+        FormatoTrama.escribirVarint(respuesta, n);
+        for (int i = 0; i < n; i++) {
+            publico.escribirHijos(nivel, FormatoTrama.leerVarint(consulta), respuesta);
+        }
+        sesion.enviarTrama(respuesta.flip(), null);
+    }
+
+    private void responderHuellas(ByteBuffer consulta) throws IOException {
+        int n = FormatoTrama.leerVarint(consulta);
+        if (n > NODOS_POR_CONSULTA) {
+            throw new IOException("Consulta de " + n + " hojas");
+        }
+        ByteBuffer respuesta = ByteBuffer.allocate(1 + MAXIMO_CONSULTA).put(TipoTrama.SINCRONIZACION).put(HUELLAS);
+        FormatoTrama.escribirVarint(respuesta, n);
+        for (int i = 0; i < n; i++) {
+            long clave = FormatoTrama.leerVarint(consulta);
+            ByteBuffer hoja = respuesta.slice().limit(Math.max(0, respuesta.remaining() - 5 * (n - i - 1))); // Sitio para las hojas que faltan
+            if (!publico.escribirHuellas(clave, limite, hoja)) {
+                bitacora.aviso("Hoja " + clave + " con demasiados mensajes para una consulta; se envía en parte");
+            }
+            respuesta.position(respuesta.position() + hoja.position());
+        }
+        sesion.enviarTrama(respuesta.flip(), null);
+    }
+
+    /**
+     * Envía en lotes los mensajes pedidos que aún están en el historial; el último lote lo indica.
+     * Espera el crédito del flujo, así que corre en el hilo servidor.
+     */
+    private void enviarLotes(ByteBuffer pedido) throws Exception {
+        int n = FormatoTrama.leerVarint(pedido);
+        if (n > pedido.remaining() / 16) {
+            throw new IOException("Pedido de " + n + " mensajes mal formado");
+        }
+        ProveedorHistorial historial = publico.getHistorial();
+        List<byte[]> lote = new ArrayList<>();
+        int bytes = 0;
+        for (int i = 0; i < n; i++) {
+            long secuencia = publico.buscar(pedido.getLong(), pedido.getLong(), limite);
+            List<MensajeChat> encontrado = secuencia >= 0 ? historial.posteriores(secuencia - 1, 1) : List.of();
+            if (encontrado.isEmpty() || encontrado.get(0).secuencia() != secuencia) {
+                continue; // Ya no está, o es de esta conversación
+            }
+            byte[] entrada = codificar(encontrado.get(0));
+            if (1 + 5 + entrada.length > Sesion.TAMANO_MAXIMO_MENSAJE) {
+                bitacora.aviso("Mensaje " + secuencia + " demasiado grande para un lote; no se envía");
+                continue;
+            }
+            if (bytes + entrada.length > TAMANO_LOTE && !lote.isEmpty()) {
+                enviarLote(lote, bytes, false);
+                lote.clear();
+                bytes = 0;
+            }
+            lote.add(entrada);
+            bytes += entrada.length;
+        }
+        enviarLote(lote, bytes, true);
+    }
+
+    private void enviarLote(List<byte[]> entradas, int bytes, boolean ultimo) throws Exception {
+        ByteBuffer cabecera = ByteBuffer.allocate(2 + 5).put(TipoTrama.LOTE_HISTORIAL).put((byte) (ultimo ? 1 : 0));
+        FormatoTrama.escribirVarint(cabecera, entradas.size());
+        ByteBuffer contenido = ByteBuffer.allocate(bytes);
+        entradas.forEach(contenido::put);
+        sesion.enviarTramaMasiva(cabecera.flip(), contenido.flip());
+    }
+
+    private static byte[] codificar(MensajeChat mensaje) {
+        byte[] autor = mensaje.autor().getBytes(StandardCharsets.UTF_8);
+        byte[] texto = mensaje.texto().getBytes(StandardCharsets.UTF_8);
+        ByteBuffer entrada = ByteBuffer.allocate(8 + 5 + autor.length + 5 + texto.length).putLong(mensaje.instante());
+        FormatoTrama.escribirVarint(entrada, autor.length).put(autor);
+        FormatoTrama.escribirVarint(entrada, texto.length).put(texto);
+        return Arrays.copyOf(entrada.array(), entrada.position());
+    }
+
+    private static String leerCadena(ByteBuffer datos) throws IOException {
+        int longitud = FormatoTrama.leerVarint(datos);
+        if (longitud > datos.remaining()) {
+            throw new IOException("Cadena de " + longitud + " bytes en un lote de " + datos.remaining());
+        }
+        String cadena = new String(datos.array(), datos.arrayOffset() + datos.position(), longitud, StandardCharsets.UTF_8);
+        datos.position(datos.position() + longitud);
+        return cadena;
+    }
+
+    private static void escribirClaves(ByteBuffer destino, List<Long> claves) {
+        FormatoTrama.escribirVarint(destino, claves.size());
+        for (long clave : claves) {
+            FormatoTrama.escribirVarint(destino, (int) clave);
+        }
+    }
+
+    private static ByteBuffer copiar(ByteBuffer contenido) {
+        ByteBuffer copia = ByteBuffer.allocate(contenido.remaining());
+        copia.put(contenido).flip();
+        return copia;
+    }
+}
@@ -0,0 +1,284 @@
+package util;
+
+import com.sun.management.HotSpotDiagnosticMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.spec.AlgorithmParameterSpec;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+
+/**
+ * Cifrados autenticados con los que una sesión puede proteger sus tramas. Los dos usan claves de
+ * 256 bits, IV de 12 bytes y etiqueta de 16, así que el formato de las tramas no cambia.
+ * AES-GCM es el más rápido con instrucciones AES en la CPU; sin ellas (máquinas antiguas o
+ * virtualizadas que no las exponen) ChaCha20-Poly1305 suele ser varias veces más rápido.
+ *
+ * Cada extremo ordena las suites ({@link #getPreferidas()}) y las ofrece en el intercambio de
+ * claves junto con lo que midió; el servidor elige la que más rinde en el extremo más lento de los
+ * dos ({@link #elegir}). Al arrancar se mide cada suite en segundo plano; hasta que termina, el
+ * orden sale de si la JVM usa las instrucciones AES de la CPU. La medición no puede ser de unos
+ * pocos milisegundos: con el JIT frío ChaCha20 se compila antes y parecería el más rápido aunque
+ * no lo sea. La propiedad {@value #PROPIEDAD} fija la lista y su orden sin medir, por ejemplo
+ * {@code CHACHA20_POLY1305,AES_GCM} o solo {@code AES_GCM}.
+ */
+public enum SuiteCifrado {
+
+    AES_GCM((byte) 1, "AES/GCM/NoPadding", "AES"), // La suite original; la única que conoce un par sin negociación
+    CHACHA20_POLY1305((byte) 2, "ChaCha20-Poly1305", "ChaCha20");
+
+    public static final String PROPIEDAD = "chat.suites"; // Suites ofrecidas, en orden de preferencia
+    private static final int TAMANO_MEDICION = 1024; // Carga de cada cifrado: un mensaje de chat típico, y muchas llamadas para el JIT
+    private static final int CALENTAMIENTO = 25_000; // Cifrados antes de medir; AES-GCM no se compila hasta unas 20.000 llamadas
+    private static final long NANOS_CALENTAMIENTO = 15_000_000_000L; // Si no le basta, se mantiene el orden provisional
+    private static final Duration PAUSA_COMPILACION = Duration.ofMillis(500);
+    private static final long NANOS_TRAMO = 100_000_000; // Cada medición de una suite
+    private static final int TRAMOS = 3; // Mediciones por suite, alternadas; cuenta la mejor
+    private static final int MAXIMO_OFERTA = 0xFFFF; // MB/s que caben en la oferta
+
+    private static final Bitacora bitacora = Bitacora.de(SuiteCifrado.class);
+
+    private final byte codigo; // Identificador en el cable
+    private final String transformacion; // Nombre del cifrado en la JCA
+    private final String algoritmoClave;
+
+    SuiteCifrado(byte codigo, String transformacion, String algoritmoClave) {
+        this.codigo = codigo;
+        this.transformacion = transformacion;
+        this.algoritmoClave = algoritmoClave;
+    }
+
+    /**
+     * Suite con el rendimiento medido en este equipo.
+     * @param megasPorSegundo MB/s cifrando, o 0 si el orden viene de la propiedad y no se midió
+     */
+    public record Medida(SuiteCifrado suite, int megasPorSegundo) {}
+
+    /**
+     * Orden de las suites de este extremo; la primera vez que se usa empieza la medición.
+     */
+    private static final class Preferencias {
+        private static volatile List<Medida> actuales;
+
+        static {
+            String valor = System.getProperty(PROPIEDAD);
+            if (valor != null) {
+                List<Medida> fijadas = new ArrayList<>();
+                for (String nombre : valor.split(",")) {
+                    fijadas.add(new Medida(valueOf(nombre.trim().toUpperCase()), 0));
+                }
+                actuales = List.copyOf(fijadas);
+            } else {
+                actuales = porInstrucciones();
+                Thread.ofPlatform().daemon().priority(Thread.MIN_PRIORITY).name("medicion-suites").start(SuiteCifrado::medirAlArrancar);
+            }
+        }
+    }
+
+    /**
+     * Devuelve la suite con el código indicado, o null si no se conoce.
+     */
+    public static SuiteCifrado porCodigo(byte codigo) {
+        for (SuiteCifrado suite : values()) {
+            if (suite.codigo == codigo) {
+                return suite;
+            }
+        }
+        return null;
+    }
+
+    public byte getCodigo() {
+        return codigo;
+    }
+
+    String getTransformacion() {
+        return transformacion;
+    }
+
+    String getAlgoritmoClave() {
+        return algoritmoClave;
+    }
+
+    /**
+     * Devuelve los parámetros del cifrado para el IV que empieza en {@code inicio}.
+     */
+    AlgorithmParameterSpec parametros(byte[] iv, int inicio) {
+        return this == AES_GCM
+                ? new GCMParameterSpec(ContextoCifrado.GCM_TAG_LENGTH * 8, iv, inicio, ContextoCifrado.GCM_IV_LENGTH)
+                : new IvParameterSpec(iv, inicio, ContextoCifrado.GCM_IV_LENGTH);
+    }
+
+    /**
+     * Empieza a medir las suites en segundo plano, para que la medida esté lista cuanto antes.
+     */
+    public static void precalentar() {
+        getPreferidas();
+    }
+
+    /**
+     * Devuelve las suites que ofrece este extremo, de la más a la menos preferida. No espera a la
+     * medición: mientras no termina, las medidas valen 0 y el orden sale de las instrucciones AES.
+     */
+    public static List<Medida> getPreferidas() {
+        return Preferencias.actuales;
+    }
+
+    /**
+     * Mide cuántos MB/s cifra esta suite con cargas del tamaño indicado, cifrando sin parar durante
+     * el tiempo dado en el hilo que llama. Una medición corta con el JIT frío favorece a ChaCha20,
+     * cuyo código se compila antes; por eso conviene repetirla.
+     */
+    public static double medir(SuiteCifrado suite, int tamano, long nanos) throws GeneralSecurityException {
+        long inicio = System.nanoTime();
+        long llamadas = cifrar(suite, tamano, inicio + nanos, Long.MAX_VALUE);
+        return llamadas * tamano * 1e3 / (System.nanoTime() - inicio);
+    }
+
+    /**
+     * Cifra cargas del tamaño indicado en búferes directos, como la sesión, hasta el instante
+     * {@code hasta} o hasta hacer {@code maximo} cifrados.
+     * @return los cifrados hechos
+     */
+    private static long cifrar(SuiteCifrado suite, int tamano, long hasta, long maximo) throws GeneralSecurityException {
+        ContextoCifrado contexto = new ContextoCifrado(new byte[32], true, suite);
+        ByteBuffer plano = ByteBuffer.allocateDirect(tamano);
+        ByteBuffer salida = ByteBuffer.allocateDirect(ContextoCifrado.longitudCifrada(tamano));
+        long llamadas = 0;
+        do {
+            contexto.cifrar(plano.clear(), salida.clear());
+            llamadas++;
+        } while (llamadas < maximo && System.nanoTime() < hasta);
+        return llamadas;
+    }
+
+    /**
+     * Orden provisional: AES-GCM primero si la JVM usa las instrucciones AES de la CPU (AES-NI o
+     * equivalentes), ChaCha20-Poly1305 primero si no. Fuera de HotSpot se supone que sí las usa.
+     */
+    private static List<Medida> porInstrucciones() {
+        boolean aes = true;
+        try {
+            aes = Boolean.parseBoolean(ManagementFactory.getPlatformMXBean(HotSpotDiagnosticMXBean.class)
+                    .getVMOption("UseAESIntrinsics").getValue());
+        } catch (RuntimeException e) {
+            bitacora.depuracion(() -> "No se pudo consultar UseAESIntrinsics: " + e);
+        }
+        return aes ? List.of(new Medida(AES_GCM, 0), new Medida(CHACHA20_POLY1305, 0))
+                : List.of(new Medida(CHACHA20_POLY1305, 0), new Medida(AES_GCM, 0));
+    }
+
+    /**
+     * Calienta cada suite con un número fijo de cifrados, para que el JIT compile las dos, y después
+     * las mide por turnos y las ordena por la mejor medida de cada una. Un calentamiento por tiempo no
+     * sirve: con una CPU ocupada ChaCha20 se compila mucho antes y AES-GCM saldría peor de lo que es.
+     */
+    private static void medirAlArrancar() {
+        SuiteCifrado[] suites = values();
+        double[] mejores = new double[suites.length];
+        long inicio = System.nanoTime();
+        try {
+            for (SuiteCifrado suite : suites) {
+                if (cifrar(suite, TAMANO_MEDICION, inicio + NANOS_CALENTAMIENTO, CALENTAMIENTO) < CALENTAMIENTO) {
+                    bitacora.aviso("Medición de las suites de cifrado sin terminar; se mantiene el orden " + Preferencias.actuales);
+                    return;
+                }
+            }
+            Thread.sleep(PAUSA_COMPILACION.toMillis()); // Con pocas CPU, deja que el compilador termine lo encolado
+            for (int tramo = 0; tramo < TRAMOS; tramo++) {
+                for (int i = 0; i < suites.length; i++) {
+                    mejores[i] = Math.max(mejores[i], medir(suites[i], TAMANO_MEDICION, NANOS_TRAMO));
+                }
+            }
+        } catch (InterruptedException e) {
+            return;
+        } catch (GeneralSecurityException | IllegalStateException e) {
+            bitacora.aviso("No se pudieron medir las suites de cifrado; se mantiene el orden provisional: " + e);
+            return;
+        }
+        List<Medida> medidas = new ArrayList<>();
+        for (int i = 0; i < suites.length; i++) {
+            medidas.add(new Medida(suites[i], (int) Math.min(MAXIMO_OFERTA, Math.max(1, mejores[i]))));
+        }
+        medidas.sort(Comparator.comparingInt(Medida::megasPorSegundo).reversed());
+        Preferencias.actuales = List.copyOf(medidas);
+        bitacora.info("Suites de cifrado por rendimiento (MB/s) tras " + (System.nanoTime() - inicio) / 1_000_000 + " ms: " + medidas);
+    }
+
+    /**
+     * Codifica la oferta de este extremo: [n] y, por cada suite en orden de preferencia,
+     * [código][MB/s en 2 bytes].
+     */
+    static byte[] codificarOferta() {
+        List<Medida> medidas = getPreferidas();
+        ByteBuffer oferta = ByteBuffer.allocate(1 + 3 * medidas.size()).put((byte) medidas.size());
+        for (Medida medida : medidas) {
+            oferta.put(medida.suite().codigo).putShort((short) medida.megasPorSegundo());
+        }
+        return oferta.array();
+    }
+
+    /**
+     * Elige en el servidor la suite de la sesión a partir de la oferta del cliente. Si los dos
+     * extremos midieron, gana la suite cuyo rendimiento en el más lento de los dos es mayor (a
+     * igualdad, la que prefiere el servidor); si a alguno le falta la medida, manda el orden del
+     * servidor y, si solo midió el servidor, el del cliente. Los códigos desconocidos se ignoran.
+     * @param oferta oferta del cliente; sin bytes restantes, el cliente no negocia y se usa AES-GCM
+     * @throws GeneralSecurityException si la oferta está mal formada o no hay ninguna suite común
+     */
+    static SuiteCifrado elegir(ByteBuffer oferta) throws GeneralSecurityException {
+        if (!oferta.hasRemaining()) {
+            return AES_GCM;
+        }
+        int cantidad = oferta.get() & 0xFF;
+        if (oferta.remaining() != 3 * cantidad) {
+            throw new GeneralSecurityException("Oferta de suites de cifrado mal formada");
+        }
+        List<Medida> remotas = new ArrayList<>();
+        for (int i = 0; i < cantidad; i++) {
+            SuiteCifrado suite = porCodigo(oferta.get());
+            int megas = oferta.getShort() & 0xFFFF;
+            if (suite != null) {
+                remotas.add(new Medida(suite, megas));
+            }
+        }
+        List<Medida> locales = getPreferidas();
+        boolean medidoLocal = locales.get(0).megasPorSegundo() > 0; // Sin medir: lista fijada o medición en curso
+        boolean medidas = medidoLocal && remotas.stream().allMatch(m -> m.megasPorSegundo() > 0);
+        // Se recorre el orden del servidor, salvo que solo el cliente haya fijado el suyo
+        List<Medida> orden = medidoLocal && !medidas ? remotas : locales;
+        List<Medida> otras = orden == locales ? remotas : locales;
+        SuiteCifrado elegida = null;
+        int mejor = -1;
+        for (Medida medida : orden) {
+            Medida otra = buscar(medida.suite(), otras);
+            if (otra == null) {
+                continue;
+            }
+            if (!medidas) {
+                return medida.suite();
+            }
+            int puntos = Math.min(medida.megasPorSegundo(), otra.megasPorSegundo());
+            if (puntos > mejor) {
+                elegida = medida.suite();
+                mejor = puntos;
+            }
+        }
+        if (elegida == null) {
+            throw new GeneralSecurityException("El par no ofrece ninguna suite de cifrado que acepte este extremo");
+        }
+        return elegida;
+    }
+
+    private static Medida buscar(SuiteCifrado suite, List<Medida> medidas) {
+        for (Medida medida : medidas) {
+            if (medida.suite() == suite) {
+                return medida;
+            }
+        }
+        return null;
+    }
+}
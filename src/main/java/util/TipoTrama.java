@@ -0,0 +1,27 @@
+package util;
+
+/**
+ * Tipos de trama, en el segundo byte de la cabecera ({@link FormatoTrama}).
+ * Permiten multiplexar mensajes de chat y transferencias de archivos sobre la misma conexión.
+ */
+public final class TipoTrama {
+
+    public static final byte SALUDO = 0; // Intercambio de claves; la única trama sin cifrar
+    public static final byte MENSAJE = 1; // Texto de chat en UTF-8
+    public static final byte ARCHIVO_OFERTA = 2; // id, tamaño, fecha de modificación y nombre de un archivo a enviar
+    public static final byte ARCHIVO_REANUDAR = 3; // id y desplazamiento desde el que el receptor quiere los datos
+    public static final byte ARCHIVO_BLOQUE = 4; // id, desplazamiento y datos de un bloque
+    public static final byte ARCHIVO_FIN = 5; // id y SHA-256 de una transferencia completada
+    public static final byte CAPACIDADES = 6; // Bits de lo que acepta el emisor (por ejemplo, compresión)
+    public static final byte CREDITO = 7; // Flujo y bytes de crédito que el receptor concede al emisor
+    public static final byte CONVERSACION = 8; // id de la conversación y mensajes recibidos de ella; la abre o la reanuda
+    public static final byte ACUSE = 9; // Mensajes de chat recibidos hasta ahora (acuse acumulado)
+    public static final byte CLAVE_GRUPO = 10; // id de la sala, id y clave de emisor de un miembro, y si pide la del receptor (ver SalaGrupo)
+    public static final byte MENSAJE_GRUPO = 11; // id de la sala e id de la clave, seguidos del texto cifrado con la clave del emisor
+    public static final byte SINCRONIZACION = 12; // Consulta o respuesta sobre el resumen del historial (ver SincronizacionHistorial)
+    public static final byte LOTE_HISTORIAL = 13; // Mensajes del historial que el par pidió al sincronizar
+    public static final byte PRESENCIA = 14; // Estado del emisor (activo o escribiendo); sin otro tráfico, sirve de latido (ver Presencia)
+    public static final byte IDENTIDAD = 15; // Prueba del secreto del historial guardado con el receptor, o vacía si no hay (ver MotorChat)
+
+    private TipoTrama() {}
+}
@@ -0,0 +1,377 @@
+package util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Envío y recepción de archivos cifrados sobre la misma sesión del chat.
+ * El emisor ofrece el archivo, el receptor responde desde qué byte lo quiere (lo que ya tenga
+ * de un intento anterior) y los bloques se leen de regiones mapeadas del archivo y se cifran
+ * directamente en tramas del pool, sin cargar el archivo completo en memoria. Los bloques van
+ * por el carril masivo de la {@link ColaEnvio}, así que los mensajes de chat no esperan detrás.
+ *
+ * El archivo parcial lleva en el nombre la identidad del archivo ofrecido (tamaño y fecha de
+ * modificación), así que solo se reanuda lo que quedó de ese mismo archivo; lo de otro archivo con el
+ * mismo nombre se descarta. Al terminar, el receptor compara el SHA-256 de lo recibido con el que
+ * manda el emisor antes de mover el archivo a su nombre final.
+ *
+ * Contenido de las tramas (tras el byte de tipo):
+ * OFERTA [id:int][tamaño:long][modificado:long][nombre UTF-8], REANUDAR [id:int][desde:long] (-1 si se rechaza),
+ * BLOQUE [id:int][desplazamiento:long][datos], FIN [id:int][sha256:32 bytes].
+ */
+public class TransferenciaArchivos implements Closeable {
+
+    public static final int TAMANO_BLOQUE = 64 * 1024; // Datos de archivo por trama
+    public static final int MAXIMO_RECEPCIONES = 16; // Archivos que el par puede estar enviando a la vez
+    private static final long TAMANO_REGION = 16L * 1024 * 1024; // Porción del archivo mapeada a la vez
+    static final int LONGITUD_MAXIMA_NOMBRE = 255; // Bytes máximos del nombre ofrecido
+    static final int LONGITUD_RESUMEN = 32; // Bytes del SHA-256 de la trama FIN
+    private static final String EXTENSION_PARCIAL = ".parcial"; // Sufijo de los archivos incompletos
+
+    private record Envio(Path archivo, long tamano, ProgresoTransferencia progreso, CompletableFuture<Path> futuro) {}
+
+    private static final class Recepcion {
+        private final String nombre;
+        private final long tamano;
+        private final Path parcial;
+        private final FileChannel canal;
+        private final MessageDigest resumen; // SHA-256 de lo recibido hasta ahora, en orden
+        private long recibidos;
+
+        private Recepcion(String nombre, long tamano, Path parcial, FileChannel canal, MessageDigest resumen, long recibidos) {
+            this.nombre = nombre;
+            this.tamano = tamano;
+            this.parcial = parcial;
+            this.canal = canal;
+            this.resumen = resumen;
+            this.recibidos = recibidos;
+        }
+    }
+
+    private final Sesion sesion; // Sesión por la que viajan los archivos
+    private final Path directorio; // Carpeta donde se guardan los archivos recibidos
+    private final OyenteArchivos oyente; // Eventos de recepción
+    private final AtomicInteger secuenciaIds = new AtomicInteger(); // Identificadores de los envíos propios
+    private final Map<Integer, Envio> envios = new ConcurrentHashMap<>(); // Ofertas propias pendientes o en curso
+    private final Map<Integer, Recepcion> recepciones = new ConcurrentHashMap<>(); // Archivos que se están recibiendo
+    private final ExecutorService emisor; // Hilo que lee y cifra los bloques de los envíos
+
+    /**
+     * Registra los manejadores de archivo en la sesión; debe crearse antes de empezar a leer de ella.
+     * @param directorio carpeta de descargas; se crea si no existe
+     * @param oyente eventos de recepción; puede ser null
+     */
+    public TransferenciaArchivos(Sesion sesion, Path directorio, OyenteArchivos oyente) {
+        this.sesion = sesion;
+        this.directorio = directorio;
+        this.oyente = oyente != null ? oyente : new OyenteArchivos() {};
+        this.emisor = Executors.newSingleThreadExecutor(r -> {
+            Thread hilo = sesion.getModoEjecucion().fabricaHilos().newThread(r);
+            hilo.setName("envio-archivos-" + sesion.getId());
+            return hilo;
+        });
+        sesion.registrarManejador(TipoTrama.ARCHIVO_OFERTA, (s, contenido) -> ofertaRecibida(contenido));
+        sesion.registrarManejador(TipoTrama.ARCHIVO_REANUDAR, (s, contenido) -> reanudarRecibido(contenido));
+        sesion.registrarManejador(TipoTrama.ARCHIVO_BLOQUE, (s, contenido) -> bloqueRecibido(contenido));
+        sesion.registrarManejador(TipoTrama.ARCHIVO_FIN, (s, contenido) -> finRecibido(contenido));
+    }
+
+    /**
+     * Ofrece un archivo al par. Los datos empiezan a enviarse cuando el par responde
+     * con el desplazamiento desde el que los quiere.
+     * @param progreso avance del envío; puede ser null
+     * @return futuro que se completa cuando el último bloque se escribió en el canal
+     */
+    public CompletableFuture<Path> enviar(Path archivo, ProgresoTransferencia progreso) {
+        CompletableFuture<Path> futuro = new CompletableFuture<>();
+        try {
+            long tamano = Files.size(archivo);
+            long modificado = Files.getLastModifiedTime(archivo).toMillis();
+            byte[] nombre = recortar(archivo.getFileName().toString().getBytes(StandardCharsets.UTF_8));
+            int id = secuenciaIds.incrementAndGet();
+            envios.put(id, new Envio(archivo, tamano, progreso, futuro));
+            ByteBuffer oferta = ByteBuffer.allocate(1 + 4 + 8 + 8 + nombre.length)
+                    .put(TipoTrama.ARCHIVO_OFERTA).putInt(id).putLong(tamano).putLong(modificado).put(nombre).flip();
+            sesion.enviarTrama(oferta, null).whenComplete((v, e) -> {
+                if (e != null) {
+                    envios.remove(id);
+                    futuro.completeExceptionally(e);
+                }
+            });
+        } catch (IOException e) {
+            futuro.completeExceptionally(e);
+        }
+        return futuro;
+    }
+
+    /**
+     * Lee el archivo desde el desplazamiento pedido y encola sus bloques, seguidos del SHA-256 del
+     * archivo entero (lo que el par ya tenía se vuelve a leer solo para el resumen). Corre en el hilo emisor.
+     */
+    private void transmitir(int id, Envio envio, long desde) {
+        try (FileChannel canal = FileChannel.open(envio.archivo(), StandardOpenOption.READ)) {
+            MessageDigest resumen = resumir(canal, desde);
+            CompletableFuture<Void> ultimo = CompletableFuture.completedFuture(null);
+            long posicion = desde;
+            while (posicion < envio.tamano()) {
+                long longitudRegion = Math.min(TAMANO_REGION, envio.tamano() - posicion);
+                MappedByteBuffer region = canal.map(FileChannel.MapMode.READ_ONLY, posicion, longitudRegion);
+                for (int inicio = 0; inicio < longitudRegion; inicio += TAMANO_BLOQUE) {
+                    if (envio.futuro().isDone()) {
+                        return; // La sesión falló o la transferencia se canceló
+                    }
+                    int longitud = (int) Math.min(TAMANO_BLOQUE, longitudRegion - inicio);
+                    long fin = posicion + inicio + longitud;
+                    ByteBuffer cabecera = ByteBuffer.allocate(1 + 4 + 8)
+                            .put(TipoTrama.ARCHIVO_BLOQUE).putInt(id).putLong(posicion + inicio).flip();
+                    ByteBuffer bloque = region.slice(inicio, longitud);
+                    resumen.update(bloque.duplicate());
+                    ultimo = sesion.enviarTramaMasiva(cabecera, bloque);
+                    ultimo.whenComplete((v, e) -> {
+                        if (e != null) {
+                            envio.futuro().completeExceptionally(e);
+                        } else if (envio.progreso() != null) {
+                            envio.progreso().progreso(fin, envio.tamano());
+                        }
+                    });
+                }
+                posicion += longitudRegion;
+            }
+            ByteBuffer fin = ByteBuffer.allocate(1 + 4 + LONGITUD_RESUMEN).put(TipoTrama.ARCHIVO_FIN).putInt(id).put(resumen.digest()).flip();
+            sesion.enviarTramaMasiva(fin, null).whenComplete((v, e) -> {
+                if (e != null) {
+                    envio.futuro().completeExceptionally(e);
+                } else {
+                    envio.futuro().complete(envio.archivo());
+                }
+            });
+        } catch (Exception e) {
+            envio.futuro().completeExceptionally(e);
+        } finally {
+            envios.remove(id);
+        }
+    }
+
+    private void reanudarRecibido(ByteBuffer contenido) {
+        int id = contenido.getInt();
+        long desde = contenido.getLong();
+        Envio envio = envios.get(id);
+        if (envio == null) {
+            return;
+        }
+        if (desde < 0 || desde > envio.tamano()) {
+            envios.remove(id);
+            envio.futuro().completeExceptionally(new IOException("El par rechazó el archivo " + envio.archivo().getFileName()));
+            return;
+        }
+        emisor.execute(() -> transmitir(id, envio, desde));
+    }
+
+    /**
+     * Prepara el archivo parcial y responde desde qué byte se quieren los datos: lo que ya haya de
+     * este mismo archivo, o cero. Se rechaza si el par ya tiene {@value #MAXIMO_RECEPCIONES} envíos abiertos.
+     */
+    private void ofertaRecibida(ByteBuffer contenido) {
+        int id = contenido.getInt();
+        long tamano = contenido.getLong();
+        long modificado = contenido.getLong();
+        String nombre = sanearNombre(StandardCharsets.UTF_8.decode(contenido).toString());
+        long desde = -1;
+        try {
+            if (recepciones.size() >= MAXIMO_RECEPCIONES && !recepciones.containsKey(id)) {
+                throw new IOException("El par ya está enviando " + MAXIMO_RECEPCIONES + " archivos");
+            }
+            Files.createDirectories(directorio);
+            String prefijo = nombre + ".";
+            Path parcial = directorio.resolve(prefijo + Long.toHexString(tamano) + "-" + Long.toHexString(modificado) + EXTENSION_PARCIAL);
+            borrarOtrasVersiones(prefijo, parcial);
+            FileChannel canal = FileChannel.open(parcial, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            try {
+                desde = canal.size();
+                if (desde > tamano) {
+                    canal.truncate(0);
+                    desde = 0;
+                }
+                Recepcion anterior = recepciones.put(id, new Recepcion(nombre, tamano, parcial, canal, resumir(canal, desde), desde));
+                cerrarEnSilencio(anterior);
+            } catch (IOException e) {
+                canal.close();
+                desde = -1;
+                throw e;
+            }
+            oyente.recepcionIniciada(nombre, tamano, desde);
+        } catch (IOException e) {
+            oyente.recepcionFallida(nombre, e);
+        }
+        sesion.enviarTrama(ByteBuffer.allocate(1 + 4 + 8).put(TipoTrama.ARCHIVO_REANUDAR).putInt(id).putLong(desde).flip(), null);
+    }
+
+    private void bloqueRecibido(ByteBuffer contenido) {
+        int id = contenido.getInt();
+        long desplazamiento = contenido.getLong();
+        Recepcion recepcion = recepciones.get(id);
+        if (recepcion == null) {
+            return; // Recepción fallida o desconocida: se descartan sus bloques
+        }
+        try {
+            if (desplazamiento != recepcion.recibidos || desplazamiento + contenido.remaining() > recepcion.tamano) {
+                throw new IOException("Bloque fuera de orden o del tamaño anunciado");
+            }
+            recepcion.resumen.update(contenido.duplicate());
+            while (contenido.hasRemaining()) {
+                desplazamiento += recepcion.canal.write(contenido, desplazamiento);
+            }
+            recepcion.recibidos = desplazamiento;
+            oyente.progresoRecepcion(recepcion.nombre, recepcion.recibidos, recepcion.tamano);
+        } catch (IOException e) {
+            fallar(id, recepcion, e);
+        }
+    }
+
+    /**
+     * Comprueba el tamaño y el SHA-256 de lo recibido, asegura los datos en disco y mueve el archivo
+     * parcial a su nombre final. Si el resumen no coincide, el parcial se vacía: reanudarlo no lo arreglaría.
+     */
+    private void finRecibido(ByteBuffer contenido) {
+        int id = contenido.getInt();
+        byte[] esperado = new byte[LONGITUD_RESUMEN];
+        contenido.get(esperado);
+        Recepcion recepcion = recepciones.remove(id);
+        if (recepcion == null) {
+            return;
+        }
+        try (FileChannel canal = recepcion.canal) {
+            if (canal.size() != recepcion.tamano) {
+                throw new IOException("Archivo incompleto: " + canal.size() + " de " + recepcion.tamano + " bytes");
+            }
+            if (!MessageDigest.isEqual(recepcion.resumen.digest(), esperado)) {
+                canal.truncate(0);
+                throw new IOException("El SHA-256 de " + recepcion.nombre + " no coincide con el del emisor");
+            }
+            canal.force(true);
+        } catch (IOException e) {
+            oyente.recepcionFallida(recepcion.nombre, e);
+            return;
+        }
+        try {
+            Path destino = Files.move(recepcion.parcial, destinoLibre(recepcion.nombre), StandardCopyOption.ATOMIC_MOVE);
+            oyente.recepcionCompletada(destino);
+        } catch (IOException e) {
+            oyente.recepcionFallida(recepcion.nombre, e);
+        }
+    }
+
+    private void fallar(int id, Recepcion recepcion, IOException causa) {
+        recepciones.remove(id);
+        cerrarEnSilencio(recepcion);
+        oyente.recepcionFallida(recepcion.nombre, causa);
+    }
+
+    /**
+     * Devuelve un SHA-256 que ya incluye los primeros {@code hasta} bytes del archivo.
+     */
+    private static MessageDigest resumir(FileChannel canal, long hasta) throws IOException {
+        MessageDigest resumen;
+        try {
+            resumen = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 no disponible", e);
+        }
+        for (long posicion = 0; posicion < hasta; posicion += TAMANO_REGION) {
+            resumen.update(canal.map(FileChannel.MapMode.READ_ONLY, posicion, Math.min(TAMANO_REGION, hasta - posicion)));
+        }
+        return resumen;
+    }
+
+    /**
+     * Borra los parciales de otros archivos con el mismo nombre: sus datos no sirven para este.
+     */
+    private void borrarOtrasVersiones(String prefijo, Path actual) throws IOException {
+        try (Stream<Path> archivos = Files.list(directorio)) {
+            for (Path otro : (Iterable<Path>) archivos::iterator) {
+                String nombre = otro.getFileName().toString();
+                if (!otro.equals(actual) && nombre.startsWith(prefijo) && nombre.endsWith(EXTENSION_PARCIAL)
+                        && nombre.substring(prefijo.length()).matches("[0-9a-f]+-[0-9a-f]+" + Pattern.quote(EXTENSION_PARCIAL))) {
+                    Files.deleteIfExists(otro);
+                }
+            }
+        }
+    }
+
+    /**
+     * Devuelve una ruta del directorio de descargas que no exista, añadiendo un número si hace falta.
+     */
+    private Path destinoLibre(String nombre) {
+        Path destino = directorio.resolve(nombre);
+        int punto = nombre.lastIndexOf('.');
+        String base = punto > 0 ? nombre.substring(0, punto) : nombre;
+        String extension = punto > 0 ? nombre.substring(punto) : "";
+        for (int i = 1; Files.exists(destino); i++) {
+            destino = directorio.resolve(base + " (" + i + ")" + extension);
+        }
+        return destino;
+    }
+
+    /**
+     * Deja solo el último componente del nombre ofrecido y quita caracteres de control,
+     * para que el par no pueda escribir fuera del directorio de descargas.
+     */
+    static String sanearNombre(String nombre) {
+        String limpio = nombre.replace('\\', '/');
+        limpio = limpio.substring(limpio.lastIndexOf('/') + 1).replaceAll("[\\p{Cntrl}:*?\"<>|]", "_").trim();
+        if (limpio.isEmpty() || limpio.equals(".") || limpio.equals("..")) {
+            return "archivo";
+        }
+        return limpio;
+    }
+
+    private static byte[] recortar(byte[] nombre) {
+        if (nombre.length <= LONGITUD_MAXIMA_NOMBRE) {
+            return nombre;
+        }
+        byte[] recortado = new byte[LONGITUD_MAXIMA_NOMBRE];
+        System.arraycopy(nombre, nombre.length - LONGITUD_MAXIMA_NOMBRE, recortado, 0, LONGITUD_MAXIMA_NOMBRE);
+        return recortado;
+    }
+
+    private static void cerrarEnSilencio(Recepcion recepcion) {
+        if (recepcion == null) {
+            return;
+        }
+        try {
+            recepcion.canal.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Detiene los envíos en curso y cierra los archivos parciales, que se conservan para reanudar.
+     */
+    @Override
+    public void close() {
+        emisor.shutdownNow();
+        IOException cerrada = new IOException("La transferencia se cerró");
+        envios.values().forEach(envio -> envio.futuro().completeExceptionally(cerrada));
+        envios.clear();
+        recepciones.values().forEach(TransferenciaArchivos::cerrarEnSilencio);
+        recepciones.clear();
+    }
+}
@@ -0,0 +1,79 @@
+package util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Forma de llegar al par: TCP, socket de dominio Unix para pares en la misma máquina o
+ * tuberías en memoria para pruebas y benchmarks. La sesión cifrada es la misma sobre cualquiera.
+ * Se elige con una dirección como {@code tcp://127.0.0.1:5000}, {@code unix:/tmp/chat.sock}
+ * o {@code memoria:chat}, por ejemplo con {@code -Dchat.transporte=unix:/tmp/chat.sock}.
+ */
+public interface Transporte {
+
+    String PROPIEDAD = "chat.transporte"; // Dirección del transporte por defecto
+    String POR_DEFECTO = "tcp://127.0.0.1:" + Conexion.PUERTO;
+
+    /**
+     * Extremo que espera conexiones de los pares.
+     */
+    interface Escucha extends Closeable {
+
+        /**
+         * Bloquea hasta que un par se conecta y devuelve el canal con él.
+         */
+        CanalTransporte aceptar() throws IOException;
+
+        /**
+         * Dirección real donde se escucha, por ejemplo con el puerto elegido si se pidió el cero.
+         */
+        String getDireccion();
+    }
+
+    /**
+     * Empieza a escuchar en la dirección del transporte.
+     */
+    Escucha escuchar() throws IOException;
+
+    /**
+     * Se conecta al par que escucha en la dirección del transporte.
+     */
+    CanalTransporte conectar() throws IOException;
+
+    /**
+     * Dirección del transporte en el formato que acepta {@link #desde(String)}; identifica al par
+     * para los tickets de reanudación.
+     */
+    String getDireccion();
+
+    /**
+     * Crea el transporte de una dirección {@code tcp://host:puerto}, {@code unix:ruta} o {@code memoria:nombre}.
+     * @throws IllegalArgumentException si el esquema no se conoce o la dirección está mal formada
+     */
+    static Transporte desde(String direccion) {
+        int separador = direccion.indexOf(':');
+        String esquema = separador > 0 ? direccion.substring(0, separador) : "";
+        String resto = direccion.substring(separador + 1);
+        return switch (esquema) {
+            case "tcp" -> {
+                String hostPuerto = resto.startsWith("//") ? resto.substring(2) : resto;
+                int dosPuntos = hostPuerto.lastIndexOf(':');
+                if (dosPuntos < 0) {
+                    yield new TransporteTcp(hostPuerto, Conexion.PUERTO);
+                }
+                yield new TransporteTcp(hostPuerto.substring(0, dosPuntos), Integer.parseInt(hostPuerto.substring(dosPuntos + 1)));
+            }
+            case "unix" -> new TransporteUnix(Path.of(resto));
+            case "memoria" -> new TransporteMemoria(resto);
+            default -> throw new IllegalArgumentException("Transporte desconocido: " + direccion);
+        };
+    }
+
+    /**
+     * Devuelve el transporte de la propiedad {@value #PROPIEDAD}, o TCP a 127.0.0.1:5000.
+     */
+    static Transporte getPorDefecto() {
+        return desde(System.getProperty(PROPIEDAD, POR_DEFECTO));
+    }
+}
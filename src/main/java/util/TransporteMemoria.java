@@ -0,0 +1,127 @@
+package util;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.Pipe;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Transporte dentro del mismo proceso: cada conexión son dos {@link Pipe} de NIO, una por sentido,
+ * sin sockets ni pila de red. Sirve para pruebas y benchmarks; las direcciones son nombres
+ * que solo existen mientras alguien escucha en ellos.
+ */
+public class TransporteMemoria implements Transporte {
+
+    private static final Map<String, BlockingQueue<CanalMemoria>> escuchas = new ConcurrentHashMap<>(); // Conexiones por aceptar, por nombre
+    private static final CanalMemoria CERRADA = new CanalMemoria(null, null, "cerrada"); // Despierta a quien espera en aceptar()
+
+    private final String nombre; // Nombre de la dirección
+
+    public TransporteMemoria(String nombre) {
+        this.nombre = nombre;
+    }
+
+    @Override
+    public Escucha escuchar() throws IOException {
+        BlockingQueue<CanalMemoria> pendientes = new LinkedBlockingQueue<>();
+        if (escuchas.putIfAbsent(nombre, pendientes) != null) {
+            throw new IOException("Ya se escucha en " + getDireccion());
+        }
+        return new Escucha() {
+            @Override
+            public CanalTransporte aceptar() throws IOException {
+                try {
+                    CanalMemoria canal = pendientes.take();
+                    if (canal == CERRADA) {
+                        pendientes.add(CERRADA);
+                        throw new AsynchronousCloseException();
+                    }
+                    return canal;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Espera interrumpida en " + getDireccion());
+                }
+            }
+
+            @Override
+            public String getDireccion() {
+                return TransporteMemoria.this.getDireccion();
+            }
+
+            @Override
+            public void close() {
+                if (escuchas.remove(nombre, pendientes)) {
+                    pendientes.add(CERRADA);
+                }
+            }
+        };
+    }
+
+    @Override
+    public CanalTransporte conectar() throws IOException {
+        BlockingQueue<CanalMemoria> pendientes = escuchas.get(nombre);
+        if (pendientes == null) {
+            throw new IOException("Nadie escucha en " + getDireccion());
+        }
+        Pipe ida = Pipe.open();
+        Pipe vuelta = Pipe.open();
+        pendientes.add(new CanalMemoria(ida.source(), vuelta.sink(), "cliente de " + getDireccion()));
+        return new CanalMemoria(vuelta.source(), ida.sink(), getDireccion());
+    }
+
+    @Override
+    public String getDireccion() {
+        return "memoria:" + nombre;
+    }
+
+    /**
+     * Un extremo de la conexión: lee de la tubería de llegada y escribe en la de salida.
+     * Al cerrarlo, el otro extremo lee el fin de flujo.
+     */
+    private record CanalMemoria(Pipe.SourceChannel entrada, Pipe.SinkChannel salida, String remota) implements CanalTransporte {
+
+        @Override
+        public int read(ByteBuffer destino) throws IOException {
+            return entrada.read(destino);
+        }
+
+        @Override
+        public int write(ByteBuffer origen) throws IOException {
+            return salida.write(origen);
+        }
+
+        @Override
+        public long write(ByteBuffer[] origenes, int desde, int cantidad) throws IOException {
+            return salida.write(origenes, desde, cantidad);
+        }
+
+        @Override
+        public long write(ByteBuffer[] origenes) throws IOException {
+            return salida.write(origenes);
+        }
+
+        @Override
+        public boolean isOpen() {
+            return entrada.isOpen() && salida.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                salida.close();
+            } finally {
+                entrada.close();
+            }
+        }
+
+        @Override
+        public String getDireccionRemota() {
+            return remota;
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package util;
+
+import java.io.IOException;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Base de los transportes sobre {@link SocketChannel}: TCP y dominio Unix solo se diferencian
+ * en la familia de direcciones y en cómo se prepara cada canal.
+ */
+abstract class TransporteSocket implements Transporte {
+
+    /**
+     * Dirección del socket al que se conecta o en el que se escucha.
+     */
+    protected abstract SocketAddress getDireccionSocket();
+
+    /**
+     * Familia de protocolos del canal de escucha.
+     */
+    protected abstract ProtocolFamily getFamilia();
+
+    /**
+     * Ajusta un canal recién conectado o aceptado.
+     */
+    protected void preparar(SocketChannel canal) throws IOException {}
+
+    /**
+     * Prepara la dirección antes de escuchar en ella.
+     */
+    protected void antesDeEscuchar() throws IOException {}
+
+    /**
+     * Libera la dirección al dejar de escuchar.
+     */
+    protected void despuesDeEscuchar() throws IOException {}
+
+    @Override
+    public Escucha escuchar() throws IOException {
+        antesDeEscuchar();
+        ServerSocketChannel servidor = ServerSocketChannel.open(getFamilia()).bind(getDireccionSocket());
+        return new Escucha() {
+            @Override
+            public CanalTransporte aceptar() throws IOException {
+                SocketChannel canal = servidor.accept();
+                preparar(canal);
+                return envolver(canal);
+            }
+
+            @Override
+            public String getDireccion() {
+                try {
+                    return direccionDe(servidor.getLocalAddress());
+                } catch (IOException e) {
+                    return TransporteSocket.this.getDireccion();
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                servidor.close();
+                despuesDeEscuchar();
+            }
+        };
+    }
+
+    @Override
+    public CanalTransporte conectar() throws IOException {
+        SocketChannel canal = SocketChannel.open(getDireccionSocket());
+        preparar(canal);
+        return envolver(canal);
+    }
+
+    /**
+     * Traduce la dirección local de un canal de escucha al formato de {@link Transporte#desde}.
+     */
+    protected abstract String direccionDe(SocketAddress local);
+
+    /**
+     * Adapta un canal de socket a la interfaz de las sesiones.
+     */
+    static CanalTransporte envolver(SocketChannel canal) {
+        return new CanalSocket(canal);
+    }
+
+    /**
+     * Delegación directa al {@link SocketChannel}; no añade copias ni búferes.
+     */
+    private record CanalSocket(SocketChannel canal) implements CanalTransporte {
+
+        @Override
+        public int read(ByteBuffer destino) throws IOException {
+            return canal.read(destino);
+        }
+
+        @Override
+        public int write(ByteBuffer origen) throws IOException {
+            return canal.write(origen);
+        }
+
+        @Override
+        public long write(ByteBuffer[] origenes, int desde, int cantidad) throws IOException {
+            return canal.write(origenes, desde, cantidad);
+        }
+
+        @Override
+        public long write(ByteBuffer[] origenes) throws IOException {
+            return canal.write(origenes);
+        }
+
+        @Override
+        public boolean isOpen() {
+            return canal.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            canal.close();
+        }
+
+        @Override
+        public boolean isBlocking() {
+            return canal.isBlocking();
+        }
+
+        @Override
+        public String getDireccionRemota() {
+            try {
+                return String.valueOf(canal.getRemoteAddress());
+            } catch (IOException e) {
+                return "desconectado";
+            }
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package util;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Transporte TCP; desactiva el algoritmo de Nagle porque los mensajes de chat son pequeños.
+ */
+public class TransporteTcp extends TransporteSocket {
+
+    private final String host; // Host al que se conecta o en el que se escucha
+    private final int puerto; // Puerto; con cero se escucha en uno libre
+
+    public TransporteTcp(String host, int puerto) {
+        this.host = host;
+        this.puerto = puerto;
+    }
+
+    @Override
+    protected SocketAddress getDireccionSocket() {
+        return new InetSocketAddress(host, puerto);
+    }
+
+    @Override
+    protected ProtocolFamily getFamilia() {
+        return host.contains(":") ? StandardProtocolFamily.INET6 : StandardProtocolFamily.INET;
+    }
+
+    @Override
+    protected void preparar(SocketChannel canal) throws IOException {
+        canal.setOption(StandardSocketOptions.TCP_NODELAY, true);
+    }
+
+    @Override
+    protected String direccionDe(SocketAddress local) {
+        return "tcp://" + host + ":" + ((InetSocketAddress) local).getPort();
+    }
+
+    @Override
+    public String getDireccion() {
+        return "tcp://" + host + ":" + puerto;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPuerto() {
+        return puerto;
+    }
+}
@@ -0,0 +1,59 @@
+package util;
+
+import java.io.IOException;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Transporte por socket de dominio Unix para pares en la misma máquina: evita la pila TCP
+ * y el acceso lo controlan los permisos del archivo del socket.
+ */
+public class TransporteUnix extends TransporteSocket {
+
+    private final Path ruta; // Archivo del socket
+
+    public TransporteUnix(Path ruta) {
+        this.ruta = ruta;
+    }
+
+    @Override
+    protected SocketAddress getDireccionSocket() {
+        return UnixDomainSocketAddress.of(ruta);
+    }
+
+    @Override
+    protected ProtocolFamily getFamilia() {
+        return StandardProtocolFamily.UNIX;
+    }
+
+    /**
+     * Borra el archivo que haya dejado una ejecución anterior; si no, no se puede escuchar en la ruta.
+     */
+    @Override
+    protected void antesDeEscuchar() throws IOException {
+        Files.deleteIfExists(ruta);
+    }
+
+    @Override
+    protected void despuesDeEscuchar() throws IOException {
+        Files.deleteIfExists(ruta);
+    }
+
+    @Override
+    protected String direccionDe(SocketAddress local) {
+        return getDireccion();
+    }
+
+    @Override
+    public String getDireccion() {
+        return "unix:" + ruta;
+    }
+
+    public Path getRuta() {
+        return ruta;
+    }
+}